@@ -38,16 +38,21 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker13;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
@@ -60,6 +65,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 import org.jdom2.Attribute;
 import org.jdom2.Element;
@@ -78,6 +84,10 @@ import com.kixeye.kixmpp.KixmppStanzaRejectedException;
 import com.kixeye.kixmpp.KixmppStreamEnd;
 import com.kixeye.kixmpp.KixmppStreamStart;
 import com.kixeye.kixmpp.KixmppWebSocketCodec;
+import com.kixeye.kixmpp.KixmppWebSocketDeflateCodec;
+import com.kixeye.kixmpp.KixmppWebSocketFrameDecoder;
+import com.kixeye.kixmpp.KixmppZlibEncoder;
+import com.kixeye.kixmpp.KixmppZlibEncoder.FlushStrategy;
 import com.kixeye.kixmpp.client.module.KixmppClientModule;
 import com.kixeye.kixmpp.client.module.chat.MessageKixmppClientModule;
 import com.kixeye.kixmpp.client.module.error.ErrorKixmppClientModule;
@@ -97,6 +107,12 @@ public class KixmppClient implements AutoCloseable {
 
 	private static String OS = System.getProperty("os.name").toLowerCase();
 	
+	private static final String COMPRESSION_FEATURE_NAMESPACE = "http://jabber.org/features/compress";
+	private static final String COMPRESSION_PROTOCOL_NAMESPACE = "http://jabber.org/protocol/compress";
+	
+	// the same frame limit Netty's handshaker factory uses
+	private static final int MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH = 65536;
+	
 	public enum Type {
 		TCP,
 		WEBSOCKET
@@ -124,6 +140,9 @@ public class KixmppClient implements AutoCloseable {
 	private KixmppJid jid;
 	private String password;
 	
+	private volatile boolean authenticated = false;
+	private volatile boolean compressed = false;
+	
 	private AtomicReference<Channel> channel = new AtomicReference<>(null);
 	private AtomicReference<GenericFutureListener<Future<? super Void>>> connectListener = new AtomicReference<>();
 	
@@ -243,9 +262,29 @@ public class KixmppClient implements AutoCloseable {
 		checkAndSetState(State.CONNECTING, State.DISCONNECTED);
 		
 		this.jid = new KixmppJid(domain);
+		Object enableCompression = clientOptions.get(KixmppClientOption.ENABLE_COMPRESSION);
+		boolean offerDeflate = enableCompression != null && (boolean)enableCompression;
+		
+		DefaultHttpHeaders handshakeHeaders = new DefaultHttpHeaders();
+		
+		if (offerDeflate) {
+			handshakeHeaders.add(KixmppWebSocketDeflateCodec.EXTENSIONS_HEADER, KixmppWebSocketDeflateCodec.EXTENSION_NAME);
+		}
+		
         try {
-			this.handshaker = WebSocketClientHandshakerFactory.newHandshaker(
-					new URI("ws://" + hostname + ":" + port), WebSocketVersion.V13, null, false, new DefaultHttpHeaders());
+        	if (offerDeflate) {
+        		// compressed frames set the first reserved bit and their text is not UTF-8 until it is inflated
+        		this.handshaker = new WebSocketClientHandshaker13(
+        				new URI("ws://" + hostname + ":" + port), WebSocketVersion.V13, null, true, handshakeHeaders, MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH) {
+        			@Override
+        			protected WebSocketFrameDecoder newWebsocketDecoder() {
+        				return new KixmppWebSocketFrameDecoder(false, true, MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH);
+        			}
+        		};
+        	} else {
+        		this.handshaker = WebSocketClientHandshakerFactory.newHandshaker(
+        				new URI("ws://" + hostname + ":" + port), WebSocketVersion.V13, null, false, handshakeHeaders);
+        	}
         } catch (Exception e) {
         	throw new RuntimeException("Unable to set up handshaker.", e);
         }
@@ -308,6 +347,8 @@ public class KixmppClient implements AutoCloseable {
 
 		this.jid = this.jid.withNode(username).withResource(resource);
 		this.password = password;
+		this.authenticated = false;
+		this.compressed = false;
 		
 		channel.get().writeAndFlush(new KixmppStreamStart(null, new KixmppJid(jid.getDomain()), true));
 		
@@ -530,6 +571,8 @@ public class KixmppClient implements AutoCloseable {
     		
     		eventEngine.registerGlobalStanzaHandler("success", authResultHandler);
     		eventEngine.registerGlobalStanzaHandler("failure", authResultHandler);
+    		
+    		eventEngine.registerGlobalStanzaHandler("compressed", compressionResultHandler);
 
     		eventEngine.registerGlobalStanzaHandler("iq", iqResultHandler);
     		
@@ -574,6 +617,27 @@ public class KixmppClient implements AutoCloseable {
 		return module;
     }
     
+    /**
+     * Binds the resource.
+     */
+    private void performBind() {
+		Element bindRequest = new Element("iq");
+		bindRequest.setAttribute("type", "set");
+		bindRequest.setAttribute("id", "bind");
+		
+		Element bind = new Element("bind", "urn:ietf:params:xml:ns:xmpp-bind");
+		
+		if (jid.getResource() != null) {
+			Element resource = new Element("resource", null, "urn:ietf:params:xml:ns:xmpp-bind");
+			resource.setText(jid.getResource());
+			bind.addContent(resource);
+		}
+		
+		bindRequest.addContent(bind);
+
+		channel.get().writeAndFlush(bindRequest);
+    }
+    
     /**
      * Performs auth.
      */
@@ -599,6 +663,30 @@ public class KixmppClient implements AutoCloseable {
      */
     private final KixmppStanzaHandler streamFeaturesHandler = new KixmppStanzaHandler() {
 		public void handle(Channel channel, Element streamFeatures) {
+			if (authenticated) {
+				// the stream was restarted after auth to negotiate compression
+				Element compression = streamFeatures.getChild("compression", Namespace.getNamespace(COMPRESSION_FEATURE_NAMESPACE));
+				
+				if (!compressed && compression != null) {
+					boolean zlibOffered = false;
+					
+					for (Element method : compression.getChildren("method", compression.getNamespace())) {
+						zlibOffered |= "zlib".equals(method.getTextTrim());
+					}
+					
+					if (zlibOffered) {
+						Element compress = new Element("compress", COMPRESSION_PROTOCOL_NAMESPACE);
+						compress.addContent(new Element("method", COMPRESSION_PROTOCOL_NAMESPACE).setText("zlib"));
+						
+						KixmppClient.this.channel.get().writeAndFlush(compress);
+						return;
+					}
+				}
+				
+				performBind();
+				return;
+			}
+			
 			Element startTls = streamFeatures.getChild("starttls", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-tls"));
 			
 			Object enableTls = clientOptions.get(KixmppClientOption.ENABLE_TLS);
@@ -643,24 +731,26 @@ public class KixmppClient implements AutoCloseable {
      */
     private final KixmppStanzaHandler authResultHandler = new KixmppStanzaHandler() {
 		public void handle(Channel channel, Element authResult) {
+			if (COMPRESSION_PROTOCOL_NAMESPACE.equals(authResult.getNamespaceURI())) {
+				// compression was refused, carry on without it
+				logger.warn("Compression failed: " + new XMLOutputter().outputString(authResult));
+				
+				performBind();
+				return;
+			}
+			
 			switch (authResult.getName()) {
 				case "success":
-					// send bind
-					Element bindRequest = new Element("iq");
-					bindRequest.setAttribute("type", "set");
-					bindRequest.setAttribute("id", "bind");
-					
-					Element bind = new Element("bind", "urn:ietf:params:xml:ns:xmpp-bind");
+					Object enableCompression = clientOptions.get(KixmppClientOption.ENABLE_COMPRESSION);
 					
-					if (KixmppClient.this.jid.getResource() != null) {
-						Element resource = new Element("resource", null, "urn:ietf:params:xml:ns:xmpp-bind");
-						resource.setText(KixmppClient.this.jid.getResource());
-						bind.addContent(resource);
+					if (enableCompression != null && (boolean)enableCompression && type == Type.TCP) {
+						// restart the stream to see if the server offers compression
+						authenticated = true;
+						
+						KixmppClient.this.channel.get().writeAndFlush(new KixmppStreamStart(null, new KixmppJid(jid.getDomain()), true));
+					} else {
+						performBind();
 					}
-					
-					bindRequest.addContent(bind);
-		
-					KixmppClient.this.channel.get().writeAndFlush(bindRequest);
 					break;
 				default:
 					// fail
@@ -670,6 +760,31 @@ public class KixmppClient implements AutoCloseable {
 		}
 	};
 	
+	/**
+     * Handles compression success
+     */
+    private final KixmppStanzaHandler compressionResultHandler = new KixmppStanzaHandler() {
+		public void handle(Channel channel, Element compressionResult) {
+			compressed = true;
+			
+			Object compressionLevelOption = clientOptions.get(KixmppClientOption.COMPRESSION_LEVEL);
+			final int compressionLevel = compressionLevelOption != null ? (int)compressionLevelOption : Deflater.DEFAULT_COMPRESSION;
+			
+			final Channel currentChannel = KixmppClient.this.channel.get();
+			
+			// everything from here on is compressed, so the pipeline changes on the event loop before the stream restarts
+			currentChannel.eventLoop().execute(new Runnable() {
+				public void run() {
+					currentChannel.pipeline().addBefore("kixmppCodec", "zlibDecoder", new JdkZlibDecoder(ZlibWrapper.ZLIB));
+					currentChannel.pipeline().addBefore("kixmppCodec", "zlibEncoder", new KixmppZlibEncoder(compressionLevel, FlushStrategy.SYNC_PER_WRITE));
+					currentChannel.pipeline().replace(KixmppCodec.class, "kixmppCodec", new KixmppCodec());
+					
+					currentChannel.writeAndFlush(new KixmppStreamStart(null, new KixmppJid(jid.getDomain()), true));
+				}
+			});
+		}
+	};
+	
 	/**
      * Handles iq stanzas
      */
@@ -870,7 +985,18 @@ public class KixmppClient implements AutoCloseable {
 	    public void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
 	        Channel ch = ctx.channel();
 	        if (!handshaker.isHandshakeComplete()) {
-	            handshaker.finishHandshake(ch, (FullHttpResponse) msg);
+	            FullHttpResponse response = (FullHttpResponse) msg;
+	            
+	            handshaker.finishHandshake(ch, response);
+	            
+	            Object compressionLevelOption = clientOptions.get(KixmppClientOption.COMPRESSION_LEVEL);
+	            KixmppWebSocketDeflateCodec deflateCodec = KixmppWebSocketDeflateCodec.accept(response.headers().get(KixmppWebSocketDeflateCodec.EXTENSIONS_HEADER), 
+	            		compressionLevelOption != null ? (int)compressionLevelOption : Deflater.DEFAULT_COMPRESSION);
+	            
+	            if (deflateCodec != null) {
+	            	ctx.pipeline().addBefore(ctx.name(), "wsDeflate", deflateCodec);
+	            }
+	            
 	            handshakeFuture.setSuccess().addListener(connectListener.get());
 	            return;
 	        }
@@ -882,7 +1008,7 @@ public class KixmppClient implements AutoCloseable {
 	                            ", content=" + response.content().toString(CharsetUtil.UTF_8) + ')');
 	        }
 
-	       ctx.fireChannelRead(msg);
+	       ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
 	    }
 	}
 	
@@ -30,6 +30,7 @@ public class KixmppClientOption<T> {
 	public static final KixmppClientOption<String> DOMAIN_NAME = valueOf("XMPP_DOMAIN");
 	public static final KixmppClientOption<Boolean> ENABLE_TLS = valueOf("ENABLE_TLS");
 	public static final KixmppClientOption<Boolean> ENABLE_COMPRESSION = valueOf("ENABLE_COMPRESSION");
+	public static final KixmppClientOption<Integer> COMPRESSION_LEVEL = valueOf("COMPRESSION_LEVEL");
 
 	private final String name;
 
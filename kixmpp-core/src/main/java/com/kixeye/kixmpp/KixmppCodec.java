@@ -22,17 +22,22 @@ package com.kixeye.kixmpp;
 
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
 
 import org.jdom2.Element;
-import org.jdom2.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +45,10 @@ import com.fasterxml.aalto.AsyncInputFeeder;
 import com.fasterxml.aalto.AsyncXMLStreamReader;
 import com.fasterxml.aalto.stax.InputFactoryImpl;
 import com.kixeye.kixmpp.jdom.StAXElementBuilder;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanzaBatch;
+import com.kixeye.kixmpp.stanza.KixmppStanzaBuilder;
 
 /**
  * An XMPP codec for the client.
@@ -48,14 +57,98 @@ import com.kixeye.kixmpp.jdom.StAXElementBuilder;
  */
 public class KixmppCodec extends ByteToMessageCodec<Object> {
 	private static final int STANZA_ELEMENT_DEPTH = 2;
+	
+	private static final int MAX_RETAINED_SCRATCH_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Per-thread arrays used to feed the parser from buffers that are not backed by a heap array. 
+	 * The parser consumes everything it is fed before decode returns, so one array per event loop is enough.
+	 */
+	private static final FastThreadLocal<byte[]> scratchBuffers = new FastThreadLocal<byte[]>() {
+		protected byte[] initialValue() throws Exception {
+			return new byte[4096];
+		}
+	};
 
+	/**
+	 * Input factories are thread safe once configured, every codec with the same configuration shares one.
+	 */
+	private static final EnumMap<XMLStreamReaderConfiguration, InputFactoryImpl> inputFactories = new EnumMap<>(XMLStreamReaderConfiguration.class);
+	
+	static {
+		for (XMLStreamReaderConfiguration configuration : XMLStreamReaderConfiguration.values()) {
+			InputFactoryImpl inputFactory = new InputFactoryImpl();
+			
+			switch (configuration) {
+				case CONVENIENCE:
+					inputFactory.configureForConvenience();
+					break;
+				case LOW_MEMORY_USAGE:
+					inputFactory.configureForLowMemUsage();
+					break;
+				case ROUND_TRIPPING:
+					inputFactory.configureForRoundTripping();
+					break;
+				case SPEED:
+					inputFactory.configureForSpeed();
+					break;
+				case XML_CONFORMANCE:
+					inputFactory.configureForXmlConformance();
+					break;
+			}
+			
+			inputFactories.put(configuration, inputFactory);
+		}
+	}
+
 	private static final Logger logger  = LoggerFactory.getLogger(KixmppCodec.class);
+	
+	/**
+	 * Gets the shared input factory for a configuration.
+	 * 
+	 * @param configuration
+	 * @return
+	 */
+	public static InputFactoryImpl getInputFactory(XMLStreamReaderConfiguration configuration) {
+		return inputFactories.get(configuration);
+	}
 
 	private StAXElementBuilder elementBuilder = null;
+	private KixmppStanzaBuilder stanzaBuilder = null;
+	
+	private final StanzaModel stanzaModel;
+	private final boolean retainRawBytes;
+	private boolean batchStanzas = false;
+	
+	// whether the bytes of the current stanza stay in the buffer until it is complete
+	private boolean keepStanzaBytes;
+	
+	// bookkeeping for kept bytes, offsets are the parser's byte offsets
+	private int fedBytes = 0;
+	private int readerIndexOffset = 0;
+	private int stanzaBoundary = 0;
 	
-	private InputFactoryImpl inputFactory = new InputFactoryImpl();
-	private AsyncXMLStreamReader streamReader = inputFactory.createAsyncXMLStreamReader();
-	private AsyncInputFeeder asyncInputFeeder = streamReader.getInputFeeder();
+	// where in the array the parser is currently reading from, the parser adds it to its offsets
+	private int feedArrayOffset = 0;
+	
+	// limits on inbound stanzas
+	private KixmppDecoderLimits limits = KixmppDecoderLimits.NONE;
+	private int parserInput = 0;
+	private long textLength = 0;
+	private boolean stanzaDecoded = false;
+	
+	private final InputFactoryImpl inputFactory;
+	private AsyncXMLStreamReader streamReader;
+	private AsyncInputFeeder asyncInputFeeder;
+	
+	// hibernation of idle connections
+	private boolean hibernationEnabled = false;
+	private long hibernationDelayMillis = 0;
+	private ChannelHandlerContext hibernationContext;
+	private ScheduledFuture<?> hibernationCheck;
+	private boolean readSinceHibernationCheck = false;
+	private boolean hibernating = false;
+	private byte[] streamHeader;
 	
 	public enum XMLStreamReaderConfiguration {
 		SPEED,
@@ -65,6 +158,18 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 		XML_CONFORMANCE
 	}
 	
+	public enum StanzaModel {
+		/**
+		 * Decodes stanzas into JDOM {@link Element}s.
+		 */
+		JDOM,
+		
+		/**
+		 * Decodes stanzas into compact {@link KixmppStanza}s.
+		 */
+		KIXMPP_STANZA
+	}
+	
 	/**
 	 * Creates a new codec and optimizes the parser for speed.
 	 */
@@ -78,45 +183,157 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 	 * @param configuration tells the codec how to optimize the XMLStreamReader
 	 */
 	public KixmppCodec(XMLStreamReaderConfiguration configuration) {
-		switch (configuration) {
-			case CONVENIENCE:
-				inputFactory.configureForConvenience();
-				break;
-			case LOW_MEMORY_USAGE:
-				inputFactory.configureForLowMemUsage();
-				break;
-			case ROUND_TRIPPING:
-				inputFactory.configureForRoundTripping();
-				break;
-			case SPEED:
-				inputFactory.configureForSpeed();
-				break;
-			case XML_CONFORMANCE:
-				inputFactory.configureForXmlConformance();
-				break;
+		this(configuration, StanzaModel.JDOM);
+	}
+	
+	/**
+	 * Creates a new codec and optimizes the parser based on the configuration flag.
+	 * 
+	 * @param configuration tells the codec how to optimize the XMLStreamReader
+	 * @param stanzaModel what the codec decodes stanzas into
+	 */
+	public KixmppCodec(XMLStreamReaderConfiguration configuration, StanzaModel stanzaModel) {
+		this(configuration, stanzaModel, false);
+	}
+	
+	/**
+	 * Creates a new codec and optimizes the parser based on the configuration flag.
+	 * 
+	 * <p>When raw bytes are retained every decoded {@link KixmppStanza} holds a retained slice of the bytes it was parsed from, 
+	 * so it can be written out again without being serialized. Whoever consumes such stanzas has to release them. 
+	 * Stanzas are then only parsed up to their routing header, the body is parsed from the bytes when a handler asks for it. 
+	 * This only applies to {@link StanzaModel#KIXMPP_STANZA}.</p>
+	 * 
+	 * @param configuration tells the codec how to optimize the XMLStreamReader
+	 * @param stanzaModel what the codec decodes stanzas into
+	 * @param retainRawBytes whether stanzas keep the bytes they were parsed from
+	 */
+	public KixmppCodec(XMLStreamReaderConfiguration configuration, StanzaModel stanzaModel, boolean retainRawBytes) {
+		this.stanzaModel = stanzaModel;
+		this.retainRawBytes = retainRawBytes && stanzaModel == StanzaModel.KIXMPP_STANZA;
+		this.keepStanzaBytes = this.retainRawBytes;
+		
+		this.inputFactory = inputFactories.get(configuration);
+		this.streamReader = inputFactory.createAsyncXMLStreamReader();
+		this.asyncInputFeeder = streamReader.getInputFeeder();
+	}
+	
+	/**
+	 * Makes the codec pass the stanzas it decodes from a single read on as one {@link KixmppStanzaBatch}, 
+	 * so the next handler can dispatch them together. A read with only one stanza still passes on the stanza itself. 
+	 * This only applies to {@link StanzaModel#KIXMPP_STANZA}.
+	 * 
+	 * @return
+	 */
+	public KixmppCodec enableStanzaBatching() {
+		this.batchStanzas = stanzaModel == StanzaModel.KIXMPP_STANZA;
+		
+		return this;
+	}
+	
+	/**
+	 * Sets the limits inbound stanzas are held to. A stream that breaks them is closed with a 
+	 * <code>policy-violation</code> stream error.
+	 * 
+	 * @param limits
+	 * @return
+	 */
+	public KixmppCodec setDecoderLimits(KixmppDecoderLimits limits) {
+		this.limits = limits;
+		
+		return this;
+	}
+	
+	/**
+	 * Lets the codec drop its parser and any partially built stanza once the connection has not read anything 
+	 * for the given time. They are rebuilt on the next read from the bytes kept since the last complete stanza. 
+	 * With a quiet period of zero the codec only hibernates when {@link #hibernate()} is called. 
+	 * Has to be called before the codec is added to a pipeline.
+	 * 
+	 * @param quietPeriod
+	 * @param unit
+	 * @return
+	 */
+	public KixmppCodec enableHibernation(long quietPeriod, TimeUnit unit) {
+		this.hibernationEnabled = true;
+		this.hibernationDelayMillis = unit.toMillis(quietPeriod);
+		this.keepStanzaBytes = true;
+		
+		return this;
+	}
+	
+	/**
+	 * Drops the parser and any partially built stanza, they are rebuilt on the next read. 
+	 * Has to be called from the channel's event loop.
+	 * 
+	 * @return <b>true</b> if the codec went into hibernation
+	 */
+	public boolean hibernate() {
+		if (!hibernationEnabled || hibernating || streamReader == null) {
+			return false;
+		}
+		
+		try {
+			streamReader.close();
+		} catch (XMLStreamException e) {
+			logger.debug("Unable to close the stream reader.", e);
 		}
+		
+		streamReader = null;
+		asyncInputFeeder = null;
+		stanzaBuilder = null;
+		elementBuilder = null;
+		
+		// everything since the last complete stanza is fed again on wake up
+		fedBytes = 0;
+		hibernating = true;
+		
+		return true;
+	}
+	
+	/**
+	 * @return <b>true</b> if the codec has dropped its parser
+	 */
+	public boolean isHibernating() {
+		return hibernating;
 	}
 	
 	/**
 	 * @see io.netty.handler.codec.ByteToMessageCodec#decode(io.netty.channel.ChannelHandlerContext, io.netty.buffer.ByteBuf, java.util.List)
 	 */
 	@Override
-	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-		if (logger.isDebugEnabled()) {
-			logger.debug("Received: [{}]", in.toString(StandardCharsets.UTF_8));
-		}
-		
-		int retryCount = 0;
-		Exception thrownException = null;
-		
-		// feed the data into the async xml input feeded
-		byte[] data = new byte[in.readableBytes()];
-		in.readBytes(data);
-		
-		if (streamReader != null) {
-			while (retryCount < 2) {
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		if (hibernating) {
+			wakeUp();
+		}
+		
+		int readerIndex = in.readerIndex();
+		
+		// while raw bytes are retained the current stanza stays in the buffer, only the bytes after it are new
+		int feedIndex = readerIndex + fedBytes;
+		int length = in.writerIndex() - feedIndex;
+		
+		if (length == 0) {
+			return;
+		}
+		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Received: [{}]", in.toString(feedIndex, length, StandardCharsets.UTF_8));
+		}
+		
+		int retryCount = 0;
+		Exception thrownException = null;
+		
+		int outIndex = out.size();
+		
+		if (!keepStanzaBytes) {
+			in.skipBytes(length);
+		}
+		
+		if (streamReader != null) {
+			while (retryCount < 2) {
 				try {
-					asyncInputFeeder.feedInput(data, 0, data.length);
+					feedInput(in, feedIndex, length);
 					
 					int event = -1;
 					
@@ -139,11 +356,26 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 								streamElementBuilder.process(streamReader);
 			
 								out.add(new KixmppStreamStart(null, true));
+								
+								stanzaBoundary = getParserOffset();
+								
+								if (hibernationEnabled) {
+									streamHeader = buildStreamHeader();
+								}
 							}
 						// only handle events that have element depth of 2 and above (everything under <stream:stream>..)
 						} else if (streamReader.getDepth() >= STANZA_ELEMENT_DEPTH) {
+							checkLimits(event);
+							
 							// if this is the beginning of the element and this is at stanza depth
-							if (event == XMLStreamConstants.START_ELEMENT && streamReader.getDepth() == STANZA_ELEMENT_DEPTH) {
+							if (event == XMLStreamConstants.START_ELEMENT && streamReader.getDepth() == STANZA_ELEMENT_DEPTH && stanzaModel == StanzaModel.KIXMPP_STANZA) {
+								stanzaBuilder = new KixmppStanzaBuilder(retainRawBytes);
+								stanzaBuilder.process(streamReader);
+								
+								if ("stream".equals(streamReader.getLocalName()) && "stream".equals(streamReader.getPrefix())) {
+									throw new RuntimeException("Starting a new stream.");
+								}
+							} else if (event == XMLStreamConstants.START_ELEMENT && streamReader.getDepth() == STANZA_ELEMENT_DEPTH) {
 								elementBuilder = new StAXElementBuilder(true);
 								elementBuilder.process(streamReader);
 	
@@ -154,22 +386,61 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 									throw new RuntimeException("Starting a new stream.");
 								}
 							// if this is the ending of the element and this is at stanza depth
+						    } else if (event == XMLStreamConstants.END_ELEMENT && streamReader.getDepth() == STANZA_ELEMENT_DEPTH && stanzaModel == StanzaModel.KIXMPP_STANZA) {
+						    	stanzaBuilder.process(streamReader);
+						    	
+						    	KixmppStanza stanza = stanzaBuilder.getStanza();
+						    	
+						    	int stanzaEnd = getParserOffset();
+						    	
+						    	checkStanzaBytes(stanzaEnd);
+						    	
+						    	if (retainRawBytes) {
+						    		stanzaBuilder.setRawBytes(sliceRawBytes(in, readerIndex, stanzaEnd));
+						    	}
+						    	
+						    	stanzaBoundary = stanzaEnd;
+						    	stanzaDecoded = true;
+						    	
+						    	out.add(stanza);
+						    	
+						    	stanzaBuilder = null;
 						    } else if (event == XMLStreamConstants.END_ELEMENT && streamReader.getDepth() == STANZA_ELEMENT_DEPTH) {
 								elementBuilder.process(streamReader);
-	
-								// get the constructed element
-								Element element = elementBuilder.getElement();
+	
+								// get the constructed element
+								Element element = elementBuilder.getElement();
+								
+								int stanzaEnd = getParserOffset();
+								
+								checkStanzaBytes(stanzaEnd);
 								
 					    		out.add(element);
+					    		
+					    		elementBuilder = null;
+					    		
+					    		stanzaBoundary = stanzaEnd;
+					    		stanzaDecoded = true;
 					    
 					    	// just process the event
+						    } else if (stanzaModel == StanzaModel.KIXMPP_STANZA) {
+						    	stanzaBuilder.process(streamReader);
 						    } else {
 								elementBuilder.process(streamReader);
 						    }
 						}
 					}
 					
+					if (streamReader != null) {
+						// the current stanza is incomplete, make sure it is not growing past the limit
+						checkStanzaBytes(parserInput);
+					}
+					
 					break;
+				} catch (KixmppStreamErrorException e) {
+					rejectStream(ctx, in, e);
+					
+					return;
 				} catch (Exception e) {
 					retryCount++;
 					
@@ -179,19 +450,349 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 					
 					try {
 						streamReader.close();
-					} finally {
-						streamReader = inputFactory.createAsyncXMLStreamReader();
-						asyncInputFeeder = streamReader.getInputFeeder();
-					}
-				}
-			}
-			
-			if (retryCount > 1) {
-				throw thrownException;
-			}
+					} finally {
+						streamReader = inputFactory.createAsyncXMLStreamReader();
+						asyncInputFeeder = streamReader.getInputFeeder();
+						
+						if (keepStanzaBytes) {
+							// the new reader starts right after the last complete stanza and counts its offsets from there
+							feedIndex = toBufferIndex(readerIndex, stanzaBoundary);
+							length = in.writerIndex() - feedIndex;
+							readerIndexOffset = readerIndex - feedIndex;
+						}
+						
+						parserInput = 0;
+						stanzaBoundary = 0;
+						textLength = 0;
+					}
+				}
+			}
+			
+			if (retryCount > 1) {
+				throw thrownException;
+			}
+		}
+		
+		if (keepStanzaBytes) {
+			if (streamReader == null) {
+				in.skipBytes(in.readableBytes());
+				
+				fedBytes = 0;
+			} else {
+				// discard everything up to the end of the last complete stanza, the next one may have started already
+				in.readerIndex(toBufferIndex(readerIndex, stanzaBoundary));
+				
+				readerIndexOffset = stanzaBoundary;
+				fedBytes = in.readableBytes();
+			}
+		}
+		
+		if (batchStanzas && out.size() - outIndex > 1) {
+			batchStanzas(out, outIndex);
+		}
+		
+		if (hibernationDelayMillis > 0 && streamReader != null) {
+			readSinceHibernationCheck = true;
+			
+			if (hibernationCheck == null) {
+				hibernationContext = ctx;
+				hibernationCheck = ctx.executor().schedule(HIBERNATION_CHECK, hibernationDelayMillis, TimeUnit.MILLISECONDS);
+			}
 		}
 	}
 	
+	/**
+	 * Replaces every run of consecutive stanzas from the given index on with a single batch. 
+	 * Stream events stay where they are, so the order of everything decoded is kept.
+	 * 
+	 * @param out
+	 * @param fromIndex
+	 */
+	private static void batchStanzas(List<Object> out, int fromIndex) {
+		int writeIndex = fromIndex;
+		KixmppStanzaBatch batch = null;
+		
+		for (int i = fromIndex, size = out.size(); i < size; i++) {
+			Object decoded = out.get(i);
+			
+			if (decoded instanceof KixmppStanza) {
+				if (batch != null) {
+					batch.add((KixmppStanza)decoded);
+					continue;
+				} else if (i + 1 < size && out.get(i + 1) instanceof KixmppStanza) {
+					batch = new KixmppStanzaBatch(size - i);
+					batch.add((KixmppStanza)decoded);
+					
+					out.set(writeIndex++, batch);
+					continue;
+				}
+			}
+			
+			batch = null;
+			out.set(writeIndex++, decoded);
+		}
+		
+		while (out.size() > writeIndex) {
+			out.remove(out.size() - 1);
+		}
+	}
+	
+	/**
+	 * Checks an event inside a stanza against the limits.
+	 * 
+	 * @param event
+	 */
+	private void checkLimits(int event) {
+		switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				limits.checkDepth(streamReader.getDepth() - 1);
+				limits.checkAttributes(streamReader.getAttributeCount());
+				
+				textLength = 0;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				textLength = 0;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				// text can arrive in several events when it is split across reads
+				textLength += streamReader.getTextLength();
+				
+				limits.checkTextLength(textLength);
+				break;
+		}
+	}
+	
+	/**
+	 * Checks the bytes of the current stanza against the limits. Until the first stanza is complete 
+	 * everything the parser was fed counts, the stream header included.
+	 * 
+	 * @param offset the parser offset the current stanza reaches to
+	 */
+	private void checkStanzaBytes(int offset) {
+		if (stanzaDecoded) {
+			limits.checkStanzaBytes(offset - stanzaBoundary, false);
+		} else {
+			limits.checkStanzaBytes(offset, true);
+		}
+	}
+	
+	/**
+	 * Closes the stream with a stream error and drops the parser, nothing else is read from the connection.
+	 * 
+	 * @param ctx
+	 * @param in
+	 * @param e
+	 */
+	private void rejectStream(ChannelHandlerContext ctx, ByteBuf in, KixmppStreamErrorException e) {
+		logger.info("Closing stream of channel [{}] with [{}]: {}", ctx.channel(), e.getCondition(), e.getMessage());
+		
+		try {
+			streamReader.close();
+		} catch (XMLStreamException ex) {
+			logger.debug("Unable to close the stream reader.", ex);
+		}
+		
+		streamReader = null;
+		asyncInputFeeder = null;
+		stanzaBuilder = null;
+		elementBuilder = null;
+		
+		in.skipBytes(in.readableBytes());
+		fedBytes = 0;
+		
+		cancelHibernationCheck();
+		
+		// written past this codec's encoder, so it goes out as bytes
+		ctx.writeAndFlush(Unpooled.copiedBuffer(e.toStreamError(), StandardCharsets.UTF_8)).addListener(ChannelFutureListener.CLOSE);
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelInactive(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		cancelHibernationCheck();
+		
+		super.channelInactive(ctx);
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		cancelHibernationCheck();
+		
+		super.handlerRemoved(ctx);
+	}
+	
+	/**
+	 * Hibernates the codec if nothing was read since the last check, otherwise checks again later.
+	 */
+	private final Runnable HIBERNATION_CHECK = new Runnable() {
+		public void run() {
+			hibernationCheck = null;
+			
+			if (readSinceHibernationCheck) {
+				readSinceHibernationCheck = false;
+				
+				hibernationCheck = hibernationContext.executor().schedule(this, hibernationDelayMillis, TimeUnit.MILLISECONDS);
+			} else if (hibernate()) {
+				logger.debug("Channel [{}] is idle, hibernating the parser.", hibernationContext.channel());
+			}
+		}
+	};
+	
+	private void cancelHibernationCheck() {
+		if (hibernationCheck != null) {
+			hibernationCheck.cancel(false);
+			hibernationCheck = null;
+		}
+	}
+	
+	/**
+	 * Creates a new parser and replays the stream header into it, so it continues with the namespaces the stream declared. 
+	 * The bytes kept since the last complete stanza are then fed as if they were new.
+	 * 
+	 * @throws XMLStreamException
+	 */
+	private void wakeUp() throws XMLStreamException {
+		hibernating = false;
+		
+		streamReader = inputFactory.createAsyncXMLStreamReader();
+		asyncInputFeeder = streamReader.getInputFeeder();
+		
+		int headerLength = 0;
+		
+		if (streamHeader != null) {
+			headerLength = streamHeader.length;
+			
+			feedArrayOffset = 0;
+			
+			asyncInputFeeder.feedInput(streamHeader, 0, headerLength);
+			
+			while (isValidEvent(streamReader.next())) {
+				// skip the replayed stream start
+			}
+		}
+		
+		readerIndexOffset = headerLength;
+		stanzaBoundary = headerLength;
+		parserInput = headerLength;
+		textLength = 0;
+	}
+	
+	/**
+	 * Builds a stream start tag with the namespaces declared on the current one.
+	 * 
+	 * @return
+	 */
+	private byte[] buildStreamHeader() {
+		StringBuilder header = new StringBuilder("<");
+		
+		String prefix = streamReader.getPrefix();
+		
+		if (prefix != null && !prefix.isEmpty()) {
+			header.append(prefix).append(':');
+		}
+		
+		header.append(streamReader.getLocalName());
+		
+		for (int i = 0, len = streamReader.getNamespaceCount(); i < len; i++) {
+			String namespacePrefix = streamReader.getNamespacePrefix(i);
+			
+			header.append(namespacePrefix == null || namespacePrefix.isEmpty() ? " xmlns" : " xmlns:" + namespacePrefix);
+			header.append("='").append(streamReader.getNamespaceURI(i).replace("&", "&amp;").replace("<", "&lt;").replace("'", "&apos;")).append('\'');
+		}
+		
+		return header.append('>').toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Feeds bytes into the parser straight from the buffer's memory, or through a scratch array if it is not backed by one.
+	 * 
+	 * @param in
+	 * @param index
+	 * @param length
+	 * @throws XMLStreamException
+	 */
+	private void feedInput(ByteBuf in, int index, int length) throws XMLStreamException {
+		parserInput += length;
+		
+		if (in.hasArray()) {
+			feedArrayOffset = in.arrayOffset() + index;
+			
+			asyncInputFeeder.feedInput(in.array(), feedArrayOffset, length);
+		} else {
+			byte[] data = getScratchBuffer(length);
+			
+			in.getBytes(index, data, 0, length);
+			
+			feedArrayOffset = 0;
+			
+			asyncInputFeeder.feedInput(data, 0, length);
+		}
+	}
+	
+	/**
+	 * @return the number of bytes the parser has consumed since it was created
+	 */
+	private int getParserOffset() {
+		return streamReader.getLocation().getCharacterOffset() - feedArrayOffset;
+	}
+	
+	/**
+	 * Slices the bytes of the stanza that ends at the given parser offset, dropping any whitespace in front of it.
+	 * 
+	 * @param in
+	 * @param readerIndex
+	 * @param stanzaEnd
+	 * @return
+	 */
+	private ByteBuf sliceRawBytes(ByteBuf in, int readerIndex, int stanzaEnd) {
+		int start = toBufferIndex(readerIndex, stanzaBoundary);
+		int end = toBufferIndex(readerIndex, stanzaEnd);
+		
+		while (start < end && in.getByte(start) != '<') {
+			start++;
+		}
+		
+		return in.slice(start, end - start).retain();
+	}
+	
+	/**
+	 * Maps a parser offset to an index in the inbound buffer.
+	 * 
+	 * @param readerIndex
+	 * @param offset
+	 * @return
+	 */
+	private int toBufferIndex(int readerIndex, int offset) {
+		return readerIndex + (offset - readerIndexOffset);
+	}
+	
+	/**
+	 * Gets a scratch array for the current thread that can hold at least the given number of bytes.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	private static byte[] getScratchBuffer(int length) {
+		byte[] scratchBuffer = scratchBuffers.get();
+		
+		if (scratchBuffer.length < length) {
+			scratchBuffer = new byte[Math.max(length, Math.min(scratchBuffer.length * 2, MAX_RETAINED_SCRATCH_BUFFER_SIZE))];
+			
+			if (scratchBuffer.length <= MAX_RETAINED_SCRATCH_BUFFER_SIZE) {
+				scratchBuffers.set(scratchBuffer);
+			}
+		}
+		
+		return scratchBuffer;
+	}
+	
 	/**
 	 * @param event the event id
 	 * @return <b>true</b> if this event is not the end of a document event and it is not an event incomplete event
@@ -205,26 +806,16 @@ public class KixmppCodec extends ByteToMessageCodec<Object> {
 	 */
 	@Override
 	protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
-		if (msg instanceof Element) {
-			new XMLOutputter().output((Element)msg, new ByteBufOutputStream(out));
-		} else if (msg instanceof KixmppStreamStart) {
-			KixmppStreamStart streamStart = (KixmppStreamStart)msg;
-			if (streamStart.doesIncludeXmlHeader()) {
-				out.writeBytes("<?xml version='1.0' encoding='UTF-8'?>".getBytes(StandardCharsets.UTF_8));
-			}
-			out.writeBytes("<stream:stream ".getBytes(StandardCharsets.UTF_8));
-			if (streamStart.getId() != null) {
-				out.writeBytes(String.format("id=\"%s\" ", streamStart.getId()).getBytes(StandardCharsets.UTF_8));
-			}
-			if (streamStart.getFrom() != null) {
-				out.writeBytes(String.format("from=\"%s\" ", streamStart.getFrom().getFullJid()).getBytes(StandardCharsets.UTF_8));
-			}
-			if (streamStart.getTo() != null) {
-				out.writeBytes(String.format("to=\"%s\" ", streamStart.getTo().getFullJid()).getBytes(StandardCharsets.UTF_8));
-			}
-			out.writeBytes("version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">".getBytes(StandardCharsets.UTF_8));
-		} else if (msg instanceof KixmppStreamEnd) {
-			out.writeBytes("</stream:stream>".getBytes(StandardCharsets.UTF_8));
+		if (msg instanceof Element) {
+			KixmppXmlSerializer.write((Element)msg, out);
+		} else if (msg instanceof KixmppStanza) {
+			KixmppXmlSerializer.write((KixmppStanza)msg, out);
+		} else if (msg instanceof KixmppEncodedStanza) {
+			KixmppXmlSerializer.write((KixmppEncodedStanza)msg, out);
+		} else if (msg instanceof KixmppStreamStart) {
+			KixmppXmlSerializer.write((KixmppStreamStart)msg, out);
+		} else if (msg instanceof KixmppStreamEnd) {
+			KixmppXmlSerializer.write((KixmppStreamEnd)msg, out);
 		} else if (msg instanceof String) {
 			out.writeBytes(((String)msg).getBytes(StandardCharsets.UTF_8));
 		} else if (msg instanceof ByteBuf) {
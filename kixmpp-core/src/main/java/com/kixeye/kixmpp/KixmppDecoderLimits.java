@@ -0,0 +1,166 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Limits a decoder enforces on inbound stanzas. Input that breaks them is cut off with a 
+ * <code>policy-violation</code> stream error before it reaches a tree builder.
+ * 
+ * <p>Instances are immutable, the <code>with</code> methods return a copy. A limit of zero or less is not enforced.</p>
+ */
+public final class KixmppDecoderLimits {
+	/**
+	 * No limits at all.
+	 */
+	public static final KixmppDecoderLimits NONE = new KixmppDecoderLimits(0, 0, 0, 0, 0);
+	
+	/**
+	 * Limits that comfortably fit regular XMPP traffic.
+	 */
+	public static final KixmppDecoderLimits DEFAULT = new KixmppDecoderLimits(64 * 1024, 32, 64, 64 * 1024, 16 * 1024);
+	
+	private final int maxStanzaBytes;
+	private final int maxDepth;
+	private final int maxAttributes;
+	private final int maxTextLength;
+	private final int maxBytesBeforeFirstStanza;
+	
+	private KixmppDecoderLimits(int maxStanzaBytes, int maxDepth, int maxAttributes, int maxTextLength, int maxBytesBeforeFirstStanza) {
+		this.maxStanzaBytes = maxStanzaBytes;
+		this.maxDepth = maxDepth;
+		this.maxAttributes = maxAttributes;
+		this.maxTextLength = maxTextLength;
+		this.maxBytesBeforeFirstStanza = maxBytesBeforeFirstStanza;
+	}
+	
+	/**
+	 * @param maxStanzaBytes the most bytes a single stanza can take up
+	 * @return
+	 */
+	public KixmppDecoderLimits withMaxStanzaBytes(int maxStanzaBytes) {
+		return new KixmppDecoderLimits(maxStanzaBytes, maxDepth, maxAttributes, maxTextLength, maxBytesBeforeFirstStanza);
+	}
+	
+	/**
+	 * @param maxDepth how deep elements can be nested in a stanza, the stanza itself is at depth one
+	 * @return
+	 */
+	public KixmppDecoderLimits withMaxDepth(int maxDepth) {
+		return new KixmppDecoderLimits(maxStanzaBytes, maxDepth, maxAttributes, maxTextLength, maxBytesBeforeFirstStanza);
+	}
+	
+	/**
+	 * @param maxAttributes the most attributes a single element can have
+	 * @return
+	 */
+	public KixmppDecoderLimits withMaxAttributes(int maxAttributes) {
+		return new KixmppDecoderLimits(maxStanzaBytes, maxDepth, maxAttributes, maxTextLength, maxBytesBeforeFirstStanza);
+	}
+	
+	/**
+	 * @param maxTextLength the most characters of text a single element can contain
+	 * @return
+	 */
+	public KixmppDecoderLimits withMaxTextLength(int maxTextLength) {
+		return new KixmppDecoderLimits(maxStanzaBytes, maxDepth, maxAttributes, maxTextLength, maxBytesBeforeFirstStanza);
+	}
+	
+	/**
+	 * @param maxBytesBeforeFirstStanza the most bytes a peer can send before its first stanza is complete, the stream header included
+	 * @return
+	 */
+	public KixmppDecoderLimits withMaxBytesBeforeFirstStanza(int maxBytesBeforeFirstStanza) {
+		return new KixmppDecoderLimits(maxStanzaBytes, maxDepth, maxAttributes, maxTextLength, maxBytesBeforeFirstStanza);
+	}
+	
+	public int getMaxStanzaBytes() {
+		return maxStanzaBytes;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxAttributes() {
+		return maxAttributes;
+	}
+
+	public int getMaxTextLength() {
+		return maxTextLength;
+	}
+
+	public int getMaxBytesBeforeFirstStanza() {
+		return maxBytesBeforeFirstStanza;
+	}
+	
+	/**
+	 * Checks the bytes taken up by the current stanza so far.
+	 * 
+	 * @param bytes
+	 * @param firstStanza whether no stanza has been completed on the stream yet
+	 */
+	void checkStanzaBytes(long bytes, boolean firstStanza) {
+		if (firstStanza) {
+			if (maxBytesBeforeFirstStanza > 0 && bytes > maxBytesBeforeFirstStanza) {
+				throw violation("Received " + bytes + " bytes before the first stanza, the limit is " + maxBytesBeforeFirstStanza);
+			}
+		} else if (maxStanzaBytes > 0 && bytes > maxStanzaBytes) {
+			throw violation("Stanza is at least " + bytes + " bytes, the limit is " + maxStanzaBytes);
+		}
+	}
+	
+	/**
+	 * Checks the depth of an element.
+	 * 
+	 * @param depth the depth within the stanza, starting at one
+	 */
+	void checkDepth(int depth) {
+		if (maxDepth > 0 && depth > maxDepth) {
+			throw violation("Stanza is nested at least " + depth + " deep, the limit is " + maxDepth);
+		}
+	}
+	
+	/**
+	 * Checks the attribute count of an element.
+	 * 
+	 * @param attributes
+	 */
+	void checkAttributes(int attributes) {
+		if (maxAttributes > 0 && attributes > maxAttributes) {
+			throw violation("Element has " + attributes + " attributes, the limit is " + maxAttributes);
+		}
+	}
+	
+	/**
+	 * Checks the text length of an element.
+	 * 
+	 * @param length
+	 */
+	void checkTextLength(long length) {
+		if (maxTextLength > 0 && length > maxTextLength) {
+			throw violation("Element has at least " + length + " characters of text, the limit is " + maxTextLength);
+		}
+	}
+	
+	private static KixmppStreamErrorException violation(String reason) {
+		return new KixmppStreamErrorException(KixmppStreamErrorException.POLICY_VIOLATION, reason);
+	}
+}
@@ -0,0 +1,58 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * An exception that gets thrown when a stream has to be closed with a stream error.
+ */
+public class KixmppStreamErrorException extends KixmppException {
+	private static final long serialVersionUID = 3346081523431287417L;
+	
+	public static final String POLICY_VIOLATION = "policy-violation";
+	
+	private final String condition;
+
+	/**
+	 * A stream error with a defined condition and a reason.
+	 * 
+	 * @param condition the defined condition, such as {@link #POLICY_VIOLATION}
+	 * @param reason
+	 */
+	public KixmppStreamErrorException(String condition, String reason) {
+		super(reason);
+		
+		this.condition = condition;
+	}
+	
+	/**
+	 * @return the defined condition of the stream error
+	 */
+	public String getCondition() {
+		return condition;
+	}
+	
+	/**
+	 * @return the stream error, followed by the end of the stream
+	 */
+	public String toStreamError() {
+		return "<stream:error><" + condition + " xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error></stream:stream>";
+	}
+}
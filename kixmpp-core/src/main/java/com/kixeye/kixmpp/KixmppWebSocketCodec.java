@@ -21,46 +21,118 @@ package com.kixeye.kixmpp;
  */
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-import org.jdom2.Content;
-import org.jdom2.Document;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
 import org.jdom2.Element;
+import org.jdom2.JDOMException;
 import org.jdom2.Namespace;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.input.sax.XMLReaderSAX2Factory;
-import org.jdom2.output.XMLOutputter;
-import org.jdom2.util.IteratorIterable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.aalto.AsyncInputFeeder;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import com.kixeye.kixmpp.jdom.StAXElementBuilder;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
 /**
- * An XMPP codec for the client.
- * It implements the following spec: http://tools.ietf.org/html/draft-ietf-xmpp-websocket-00
+ * An XMPP codec for WebSocket connections.
+ * 
+ * <p>It implements RFC 7395, where the stream is opened and closed with <code>&lt;open/&gt;</code> and <code>&lt;close/&gt;</code> 
+ * and every message holds one element, as well as the earlier draft (http://tools.ietf.org/html/draft-ietf-xmpp-websocket-00) 
+ * that sends an unclosed <code>&lt;stream:stream&gt;</code> start tag. Outgoing stream headers use the framing the peer used.</p>
  * 
+ * <p>Frames are fed straight into one async parser per channel, which sees them as the children of a synthetic root 
+ * that declares the client namespace. Messages can be split into continuation frames.</p>
+ * 
+ * @author ebahtijaragic
  */
 public class KixmppWebSocketCodec extends MessageToMessageCodec<Object, Object> {
 	private static final Logger logger  = LoggerFactory.getLogger(KixmppWebSocketCodec.class);
-
-	private XMLReaderSAX2Factory readerFactory = new XMLReaderSAX2Factory(false);
+	
+	private static final String CLIENT_NAMESPACE_URI = "jabber:client";
+	private static final String STREAM_NAMESPACE_URI = "http://etherx.jabber.org/streams";
+	private static final String FRAMING_NAMESPACE_URI = "urn:ietf:params:xml:ns:xmpp-framing";
+	
+	private static final byte[] ROOT = ("<root xmlns='" + CLIENT_NAMESPACE_URI + "'>").getBytes(StandardCharsets.UTF_8);
+	private static final byte[] MESSAGE_SEPARATOR = " ".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] LEGACY_STREAM_START = ("<stream:stream xmlns:stream='" + STREAM_NAMESPACE_URI + "'>").getBytes(StandardCharsets.UTF_8);
+	
+	private static final int ROOT_DEPTH = 1;
+	
+	private static final InputFactoryImpl inputFactory = new InputFactoryImpl();
+	
+	static {
+		inputFactory.configureForSpeed();
+	}
+	
+	private AsyncXMLStreamReader streamReader;
+	private AsyncInputFeeder asyncInputFeeder;
+	private StAXElementBuilder elementBuilder;
+	
+	// peers using the draft framing send stanzas inside an unclosed stream element
+	private boolean legacyStreamOpen = false;
+	private boolean framingUsed = false;
+	
+	// whether the next frame starts a new message
+	private boolean messageStart = true;
+	private long messageBytes = 0;
+	
+	private KixmppDecoderLimits limits = KixmppDecoderLimits.NONE;
+	private long bytesBeforeFirstStanza = 0;
+	private boolean stanzaDecoded = false;
+	private long textLength = 0;
+	
+	private final boolean openWithFraming;
+	
+	/**
+	 * Creates a codec that opens streams with the draft framing unless the peer uses RFC 7395.
+	 */
+	public KixmppWebSocketCodec() {
+		this(false);
+	}
+	
+	/**
+	 * @param openWithFraming whether streams this side opens use RFC 7395 framing
+	 */
+	public KixmppWebSocketCodec(boolean openWithFraming) {
+		this.openWithFraming = openWithFraming;
+	}
+	
+	/**
+	 * Sets the limits inbound stanzas are held to. A stream that breaks them is closed with a 
+	 * <code>policy-violation</code> stream error.
+	 * 
+	 * @param limits
+	 * @return
+	 */
+	public KixmppWebSocketCodec setDecoderLimits(KixmppDecoderLimits limits) {
+		this.limits = limits;
+		
+		return this;
+	}
 
 	@Override
 	public boolean acceptInboundMessage(Object msg) throws Exception {
-		return msg instanceof WebSocketFrame;
+		return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame || msg instanceof ContinuationWebSocketFrame;
 	}
 
 	@Override
 	public boolean acceptOutboundMessage(Object msg) throws Exception {
-		return msg instanceof Element || msg instanceof KixmppStreamStart || 
+		return msg instanceof Element || msg instanceof KixmppStanza || msg instanceof KixmppEncodedStanza || msg instanceof KixmppStreamStart || 
 				msg instanceof KixmppStreamEnd || msg instanceof String || 
 				msg instanceof ByteBuf;
 	}
@@ -68,62 +140,51 @@ public class KixmppWebSocketCodec extends MessageToMessageCodec<Object, Object>
 	@Override
 	protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
 		WebSocketFrame frame = null;
-
+		
 		if (msg instanceof Element) {
 			Element element = (Element)msg;
 
-			if (element.getNamespace() == null || element.getNamespace() == Namespace.NO_NAMESPACE) {
-				if ("stream".equals(element.getNamespacePrefix())) {
-					element.setNamespace(Namespace.getNamespace("http://etherx.jabber.org/streams"));
-				} else {
-					element.setNamespace(Namespace.getNamespace("jabber:client"));
-
-					IteratorIterable<Content> descendants = element.getDescendants();
+			// unqualified stanzas are written in the client namespace
+			ByteBuf binaryData = ctx.alloc().buffer();
+			KixmppXmlSerializer.write(element, element.getNamespace() == Namespace.NO_NAMESPACE ? CLIENT_NAMESPACE_URI : "", binaryData);
 
-					while (descendants.hasNext()) {
-						Content content = descendants.next();
+			frame = new TextWebSocketFrame(binaryData);
+		} else if (msg instanceof KixmppStanza) {
+			KixmppStanza stanza = (KixmppStanza)msg;
 
-						if (content instanceof Element) {
-							Element descendantElement = (Element)content;
-							if (descendantElement.getNamespace() == null || descendantElement.getNamespace() == Namespace.NO_NAMESPACE) {
-								descendantElement.setNamespace(element.getNamespace());
-							}
-						}
-					}
-				}
-			}
+			ByteBuf binaryData = ctx.alloc().buffer();
+			KixmppXmlSerializer.write(stanza, stanza.getNamespaceURI().isEmpty() ? CLIENT_NAMESPACE_URI : "", binaryData);
 
+			frame = new TextWebSocketFrame(binaryData);
+		} else if (msg instanceof KixmppEncodedStanza) {
 			ByteBuf binaryData = ctx.alloc().buffer();
-			new XMLOutputter().output((Element)msg, new ByteBufOutputStream(binaryData));
+			KixmppXmlSerializer.write((KixmppEncodedStanza)msg, CLIENT_NAMESPACE_URI, binaryData);
 
 			frame = new TextWebSocketFrame(binaryData);
 		} else if (msg instanceof KixmppStreamStart) {
-			KixmppStreamStart streamStart = (KixmppStreamStart)msg;
-
-			StringWriter writer = new StringWriter();
-
-			if (streamStart.doesIncludeXmlHeader()) {
-				writer.append("<?xml version='1.0' encoding='UTF-8'?>");
-			}
-			writer.append("<stream:stream ");
-			if (streamStart.getId() != null) {
-				writer.append(String.format("id=\"%s\" ", streamStart.getId()));
-			}
-			if (streamStart.getFrom() != null) {
-				writer.append(String.format("from=\"%s\" ", streamStart.getFrom().getFullJid()));
-			}
-			if (streamStart.getTo() != null) {
-				writer.append(String.format("to=\"%s\" ", streamStart.getTo()));
+			ByteBuf binaryData = ctx.alloc().buffer();
+			
+			if (framingUsed || openWithFraming) {
+				KixmppXmlSerializer.writeFramingOpen((KixmppStreamStart)msg, binaryData);
+			} else {
+				KixmppXmlSerializer.write((KixmppStreamStart)msg, binaryData);
 			}
-			writer.append("version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">");
 
-			frame = new TextWebSocketFrame(writer.toString());
+			frame = new TextWebSocketFrame(binaryData);
 		} else if (msg instanceof KixmppStreamEnd) {
-			frame = new TextWebSocketFrame("</stream:stream>");
+			ByteBuf binaryData = ctx.alloc().buffer();
+			
+			if (framingUsed || openWithFraming) {
+				KixmppXmlSerializer.writeFramingClose((KixmppStreamEnd)msg, binaryData);
+			} else {
+				KixmppXmlSerializer.write((KixmppStreamEnd)msg, binaryData);
+			}
+
+			frame = new TextWebSocketFrame(binaryData);
 		} else if (msg instanceof String) {
 			frame = new TextWebSocketFrame((String)msg);
 		} else if (msg instanceof ByteBuf) {
-			frame = new TextWebSocketFrame((ByteBuf)msg);
+			frame = new TextWebSocketFrame(((ByteBuf)msg).retain());
 		}
 
 		if (frame != null) {
@@ -138,31 +199,301 @@ public class KixmppWebSocketCodec extends MessageToMessageCodec<Object, Object>
 	@Override
 	protected void decode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
 		WebSocketFrame frame = (WebSocketFrame)msg;
-
-		ByteBuf content = frame.retain().content();
-		String frameString = content.toString(StandardCharsets.UTF_8);
-
+		ByteBuf content = frame.content();
+		
 		if (logger.isDebugEnabled()) {
-			logger.debug("Received: [{}]", frameString);
+			logger.debug("Received: [{}]", content.toString(StandardCharsets.UTF_8));
 		}
-
-		if (frameString.startsWith("<?xml")) {
-			frameString = frameString.replaceFirst("<\\?xml.*?\\?>", "");
+		
+		if (streamReader == null) {
+			resetReader();
 		}
-
-		if (frameString.startsWith("<stream:stream")) {
-			out.add(new KixmppStreamStart(null, true));
-		} else if (frameString.startsWith("</stream:stream")) {
-			out.add(new KixmppStreamEnd());
+		
+		try {
+			checkMessageBytes(content.readableBytes());
+			
+			int index = content.readerIndex();
+			int length = content.readableBytes();
+			
+			if (messageStart) {
+				// a declaration can only start a document, here it would start a child of the synthetic root
+				int declarationLength = getXmlDeclarationLength(content);
+				
+				index += declarationLength;
+				length -= declarationLength;
+			}
+			
+			messageStart = frame.isFinalFragment();
+			
+			feedInput(content, index, length);
+			readEvents(out);
+			
+			if (messageStart) {
+				messageBytes = 0;
+				
+				// the parser holds back an end tag until it sees what follows it
+				asyncInputFeeder.feedInput(MESSAGE_SEPARATOR, 0, MESSAGE_SEPARATOR.length);
+				readEvents(out);
+				
+				// the size limit is checked per message, a stanza left open would carry on past it
+				if (elementBuilder != null) {
+					throw new KixmppStreamErrorException(KixmppStreamErrorException.POLICY_VIOLATION, "Stanza was not closed at the end of the message");
+				}
+			}
+		} catch (KixmppStreamErrorException e) {
+			rejectStream(ctx, e);
+		} catch (XMLStreamException e) {
+			// the parser can not go on after malformed input, start over with the next message
+			closeReader();
+			
+			messageStart = true;
+			messageBytes = 0;
+			
+			throw e;
+		}
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		closeReader();
+		
+		super.handlerRemoved(ctx);
+	}
+	
+	private void readEvents(List<Object> out) throws XMLStreamException, JDOMException {
+		int event;
+		
+		while ((event = streamReader.next()) != AsyncXMLStreamReader.EVENT_INCOMPLETE && event != XMLStreamConstants.END_DOCUMENT) {
+			handleEvent(event, out);
+		}
+	}
+	
+	/**
+	 * Handles a single parser event below the synthetic root.
+	 * 
+	 * @param event
+	 * @param out
+	 * @throws XMLStreamException
+	 * @throws JDOMException
+	 */
+	private void handleEvent(int event, List<Object> out) throws XMLStreamException, JDOMException {
+		int depth = streamReader.getDepth();
+		
+		if (depth == ROOT_DEPTH + 1 && (event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT) && 
+				STREAM_NAMESPACE_URI.equals(streamReader.getNamespaceURI()) && "stream".equals(streamReader.getLocalName())) {
+			// the draft stream element
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				legacyStreamOpen = true;
+				
+				StAXElementBuilder streamElementBuilder = new StAXElementBuilder(true);
+				streamElementBuilder.process(streamReader);
+				
+				out.add(new KixmppStreamStart(streamElementBuilder.getElement(), true));
+			} else {
+				legacyStreamOpen = false;
+				
+				out.add(new KixmppStreamEnd());
+			}
+			
+			return;
+		}
+		
+		int stanzaDepth = legacyStreamOpen ? ROOT_DEPTH + 2 : ROOT_DEPTH + 1;
+		
+		if (depth < stanzaDepth) {
+			// the root itself or whitespace between messages
+			return;
+		}
+		
+		if (depth == stanzaDepth && event == XMLStreamConstants.START_ELEMENT && FRAMING_NAMESPACE_URI.equals(streamReader.getNamespaceURI())) {
+			// RFC 7395 framing elements are empty, the end event is all that is left of them
+			framingUsed = true;
+			
+			if ("open".equals(streamReader.getLocalName())) {
+				StAXElementBuilder openElementBuilder = new StAXElementBuilder(true);
+				openElementBuilder.process(streamReader);
+				
+				out.add(new KixmppStreamStart(openElementBuilder.getElement(), true));
+			} else if ("close".equals(streamReader.getLocalName())) {
+				out.add(new KixmppStreamEnd());
+			}
+			
+			return;
+		}
+		
+		if (elementBuilder == null) {
+			if (depth == stanzaDepth && event == XMLStreamConstants.START_ELEMENT) {
+				elementBuilder = new StAXElementBuilder(true);
+			} else {
+				// the end of a framing element
+				return;
+			}
+		}
+		
+		checkLimits(event, depth - stanzaDepth + 1);
+		
+		elementBuilder.process(streamReader);
+		
+		if (depth == stanzaDepth && event == XMLStreamConstants.END_ELEMENT) {
+			out.add(elementBuilder.getElement());
+			
+			elementBuilder = null;
+			stanzaDecoded = true;
+		}
+	}
+	
+	/**
+	 * Checks an event inside a stanza against the limits.
+	 * 
+	 * @param event
+	 * @param depth the depth within the stanza, starting at one
+	 */
+	private void checkLimits(int event, int depth) {
+		switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				limits.checkDepth(depth);
+				limits.checkAttributes(streamReader.getAttributeCount());
+				
+				textLength = 0;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				textLength = 0;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				textLength += streamReader.getTextLength();
+				
+				limits.checkTextLength(textLength);
+				break;
+		}
+	}
+	
+	/**
+	 * Checks the size of the current message, a message holds at most one complete stanza so this is known before it is parsed.
+	 * 
+	 * @param frameBytes
+	 */
+	private void checkMessageBytes(int frameBytes) {
+		messageBytes += frameBytes;
+		
+		if (stanzaDecoded) {
+			limits.checkStanzaBytes(messageBytes, false);
 		} else {
-
-			SAXBuilder saxBuilder = new SAXBuilder(readerFactory);
-			Document document = saxBuilder.build(new ByteBufInputStream(content));
-
-			Element element = document.getRootElement();
-
-			out.add(element);
+			bytesBeforeFirstStanza += frameBytes;
+			
+			limits.checkStanzaBytes(bytesBeforeFirstStanza, true);
 		}
-
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Creates a new parser and feeds it the synthetic root, and the draft stream element if it is open.
+	 * 
+	 * @throws XMLStreamException
+	 */
+	private void resetReader() throws XMLStreamException {
+		streamReader = inputFactory.createAsyncXMLStreamReader();
+		asyncInputFeeder = streamReader.getInputFeeder();
+		elementBuilder = null;
+		
+		asyncInputFeeder.feedInput(ROOT, 0, ROOT.length);
+		skipEvents();
+		
+		if (legacyStreamOpen) {
+			asyncInputFeeder.feedInput(LEGACY_STREAM_START, 0, LEGACY_STREAM_START.length);
+			skipEvents();
+		}
+	}
+	
+	private void skipEvents() throws XMLStreamException {
+		while (streamReader.next() != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+			// nothing to hand on
+		}
+	}
+	
+	private void closeReader() {
+		if (streamReader != null) {
+			try {
+				streamReader.close();
+			} catch (XMLStreamException e) {
+				logger.debug("Unable to close the stream reader.", e);
+			}
+			
+			streamReader = null;
+			asyncInputFeeder = null;
+			elementBuilder = null;
+		}
+	}
+	
+	/**
+	 * Feeds bytes into the parser straight from the frame's memory, or through a copy if it is not backed by an array.
+	 * 
+	 * @param content
+	 * @param index
+	 * @param length
+	 * @throws XMLStreamException
+	 */
+	private void feedInput(ByteBuf content, int index, int length) throws XMLStreamException {
+		if (length == 0) {
+			return;
+		}
+		
+		if (content.hasArray()) {
+			asyncInputFeeder.feedInput(content.array(), content.arrayOffset() + index, length);
+		} else {
+			byte[] data = new byte[length];
+			
+			content.getBytes(index, data);
+			
+			asyncInputFeeder.feedInput(data, 0, length);
+		}
+	}
+	
+	/**
+	 * @param content
+	 * @return the length of the XML declaration at the start of the content, including whitespace in front of it
+	 */
+	private static int getXmlDeclarationLength(ByteBuf content) {
+		int start = content.readerIndex();
+		int end = content.writerIndex();
+		int index = start;
+		
+		while (index < end && isWhitespace(content.getByte(index))) {
+			index++;
+		}
+		
+		if (end - index < 5 || content.getByte(index) != '<' || content.getByte(index + 1) != '?' || content.getByte(index + 2) != 'x' || 
+				content.getByte(index + 3) != 'm' || content.getByte(index + 4) != 'l') {
+			return 0;
+		}
+		
+		for (index += 5; index < end - 1; index++) {
+			if (content.getByte(index) == '?' && content.getByte(index + 1) == '>') {
+				return index + 2 - start;
+			}
+		}
+		
+		return 0;
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+	
+	/**
+	 * Closes the stream with a stream error.
+	 * 
+	 * @param ctx
+	 * @param e
+	 */
+	private void rejectStream(ChannelHandlerContext ctx, KixmppStreamErrorException e) {
+		logger.info("Closing stream of channel [{}] with [{}]: {}", ctx.channel(), e.getCondition(), e.getMessage());
+		
+		closeReader();
+		
+		ctx.writeAndFlush(new TextWebSocketFrame(e.toStreamError())).addListener(ChannelFutureListener.CLOSE);
+	}
+}
@@ -0,0 +1,437 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses WebSocket messages with the permessage-deflate extension (RFC 7692).
+ * 
+ * <p>With context takeover a message is compressed with what the messages before it left in the dictionary, 
+ * so the boilerplate every stanza repeats costs a few bytes after the first one. Without it every message 
+ * starts from an empty dictionary, which costs ratio but no memory between messages.</p>
+ * 
+ * <p>It sits between the frame decoder/encoder and whatever handles data frames. Control frames and messages
+ * the peer did not compress pass through. Servers answer an offer with {@link #negotiate(String, int, boolean)}, 
+ * clients read the answer with {@link #accept(String, int)}.</p>
+ * 
+ * <p>Inflated messages are held to the stanza size of the decoder limits, a message that inflates past it 
+ * closes the stream with a <code>policy-violation</code> stream error before it is inflated any further.</p>
+ */
+public class KixmppWebSocketDeflateCodec extends MessageToMessageCodec<WebSocketFrame, WebSocketFrame> {
+	public static final String EXTENSION_NAME = "permessage-deflate";
+	public static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+	
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	
+	// java.util.zip always deflates with a 32K window
+	private static final int WINDOW_BITS = 15;
+	
+	private static final int RSV1 = 0x4;
+	private static final byte[] TAIL = new byte[] {0x00, 0x00, (byte)0xff, (byte)0xff};
+	private static final int MIN_OUTPUT_SIZE = 64;
+	
+	private static final Logger logger = LoggerFactory.getLogger(KixmppWebSocketDeflateCodec.class);
+	
+	private final Deflater deflater;
+	private final Inflater inflater;
+	
+	private final boolean contextTakeover;
+	private final boolean peerContextTakeover;
+	
+	// whether the continuation frames that follow belong to a compressed message
+	private boolean inflatingMessage = false;
+	
+	// limits inflated messages, a message holds at most one stanza
+	private int maxMessageBytes = 0;
+	private long inflatedMessageBytes = 0;
+	private boolean rejected = false;
+	
+	private final AtomicLong uncompressedBytesWritten = new AtomicLong();
+	private final AtomicLong compressedBytesWritten = new AtomicLong();
+	private final AtomicLong compressedBytesRead = new AtomicLong();
+	private final AtomicLong uncompressedBytesRead = new AtomicLong();
+	
+	/**
+	 * @param compressionLevel from 0 (none) to 9 (best), or -1 for zlib's default
+	 * @param contextTakeover whether this side keeps its dictionary between messages
+	 * @param peerContextTakeover whether the peer keeps its dictionary between messages
+	 */
+	public KixmppWebSocketDeflateCodec(int compressionLevel, boolean contextTakeover, boolean peerContextTakeover) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9, was " + compressionLevel);
+		}
+		
+		this.deflater = new Deflater(compressionLevel, true);
+		this.inflater = new Inflater(true);
+		this.contextTakeover = contextTakeover;
+		this.peerContextTakeover = peerContextTakeover;
+	}
+	
+	/**
+	 * Sets the limits inflated messages are held to, only the stanza size applies.
+	 * 
+	 * @param limits
+	 * @return
+	 */
+	public KixmppWebSocketDeflateCodec setDecoderLimits(KixmppDecoderLimits limits) {
+		this.maxMessageBytes = limits.getMaxStanzaBytes();
+		
+		return this;
+	}
+	
+	/**
+	 * Picks the first permessage-deflate offer in a <code>Sec-WebSocket-Extensions</code> request header that can be accepted.
+	 * 
+	 * @param extensionsHeader the header value, may be null
+	 * @param compressionLevel
+	 * @param serverContextTakeover whether this side keeps its dictionary between messages unless the peer asks otherwise
+	 * @return a codec for the accepted offer, or null if there is none
+	 */
+	public static KixmppWebSocketDeflateCodec negotiate(String extensionsHeader, int compressionLevel, boolean serverContextTakeover) {
+		if (extensionsHeader == null) {
+			return null;
+		}
+		
+		for (String offer : extensionsHeader.split(",")) {
+			Map<String, String> parameters = parseParameters(offer);
+			
+			if (parameters == null) {
+				continue;
+			}
+			
+			boolean acceptable = true;
+			
+			for (Entry<String, String> parameter : parameters.entrySet()) {
+				switch (parameter.getKey()) {
+					case SERVER_NO_CONTEXT_TAKEOVER:
+					case CLIENT_NO_CONTEXT_TAKEOVER:
+						break;
+					case SERVER_MAX_WINDOW_BITS:
+						// a smaller window can not be honored
+						acceptable &= String.valueOf(WINDOW_BITS).equals(parameter.getValue());
+						break;
+					case CLIENT_MAX_WINDOW_BITS:
+						// inflating with the full window handles any window the peer picks
+						break;
+					default:
+						acceptable = false;
+						break;
+				}
+			}
+			
+			if (acceptable) {
+				return new KixmppWebSocketDeflateCodec(compressionLevel, 
+						serverContextTakeover && !parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER), 
+						!parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER));
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Reads the extension a server accepted from a <code>Sec-WebSocket-Extensions</code> response header.
+	 * 
+	 * @param extensionsHeader the header value, may be null
+	 * @param compressionLevel
+	 * @return a codec for the client side of the connection, or null if the server did not accept permessage-deflate
+	 */
+	public static KixmppWebSocketDeflateCodec accept(String extensionsHeader, int compressionLevel) {
+		if (extensionsHeader == null) {
+			return null;
+		}
+		
+		for (String extension : extensionsHeader.split(",")) {
+			Map<String, String> parameters = parseParameters(extension);
+			
+			if (parameters != null) {
+				return new KixmppWebSocketDeflateCodec(compressionLevel, 
+						!parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER), 
+						!parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER));
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @param extension a single extension of a <code>Sec-WebSocket-Extensions</code> header
+	 * @return the lower case parameter names mapped to their values, or null if it is not permessage-deflate
+	 */
+	private static Map<String, String> parseParameters(String extension) {
+		String[] parameters = extension.split(";");
+		
+		if (!EXTENSION_NAME.equalsIgnoreCase(parameters[0].trim())) {
+			return null;
+		}
+		
+		Map<String, String> parsedParameters = new HashMap<>();
+		
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+			String value = null;
+			
+			int equalsIndex = parameter.indexOf('=');
+			
+			if (equalsIndex != -1) {
+				value = parameter.substring(equalsIndex + 1).trim().replace("\"", "");
+				parameter = parameter.substring(0, equalsIndex).trim();
+			}
+			
+			parsedParameters.put(parameter.toLowerCase(), value);
+		}
+		
+		return parsedParameters;
+	}
+	
+	/**
+	 * @return the <code>Sec-WebSocket-Extensions</code> response header value that accepts this server side codec's parameters
+	 */
+	public String getResponseExtension() {
+		StringBuilder extension = new StringBuilder(EXTENSION_NAME);
+		
+		if (!contextTakeover) {
+			extension.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+		
+		if (!peerContextTakeover) {
+			extension.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		}
+		
+		return extension.toString();
+	}
+
+	/**
+	 * @return the payload bytes of outbound messages before compression
+	 */
+	public long getUncompressedBytesWritten() {
+		return uncompressedBytesWritten.get();
+	}
+
+	/**
+	 * @return the payload bytes of outbound messages after compression
+	 */
+	public long getCompressedBytesWritten() {
+		return compressedBytesWritten.get();
+	}
+
+	/**
+	 * @return the payload bytes of inbound compressed messages as received
+	 */
+	public long getCompressedBytesRead() {
+		return compressedBytesRead.get();
+	}
+
+	/**
+	 * @return the payload bytes of inbound compressed messages after decompression
+	 */
+	public long getUncompressedBytesRead() {
+		return uncompressedBytesRead.get();
+	}
+
+	@Override
+	public boolean acceptOutboundMessage(Object msg) throws Exception {
+		// control frames and fragmented messages go out as they are
+		return (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) && ((WebSocketFrame)msg).isFinalFragment();
+	}
+
+	@Override
+	public boolean acceptInboundMessage(Object msg) throws Exception {
+		return msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame || msg instanceof ContinuationWebSocketFrame;
+	}
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+		ByteBuf content = frame.content();
+		int length = content.readableBytes();
+		
+		ByteBuf compressed = ctx.alloc().heapBuffer(Math.max(MIN_OUTPUT_SIZE, length / 2));
+		
+		if (content.hasArray()) {
+			deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), length);
+		} else {
+			byte[] input = new byte[length];
+			content.getBytes(content.readerIndex(), input);
+			
+			deflater.setInput(input);
+		}
+		
+		do {
+			compressed.ensureWritable(MIN_OUTPUT_SIZE);
+			
+			int written = deflater.deflate(compressed.array(), compressed.arrayOffset() + compressed.writerIndex(), compressed.writableBytes(), Deflater.SYNC_FLUSH);
+			
+			compressed.writerIndex(compressed.writerIndex() + written);
+		} while (!compressed.isWritable());
+		
+		// a sync flush always ends with an empty stored block, which the peer puts back
+		compressed.writerIndex(compressed.writerIndex() - TAIL.length);
+		
+		if (!compressed.isReadable()) {
+			compressed.writeByte(0x00);
+		}
+		
+		if (!contextTakeover) {
+			deflater.reset();
+		}
+		
+		uncompressedBytesWritten.addAndGet(length);
+		compressedBytesWritten.addAndGet(compressed.readableBytes());
+		
+		if (frame instanceof TextWebSocketFrame) {
+			out.add(new TextWebSocketFrame(true, frame.rsv() | RSV1, compressed));
+		} else {
+			out.add(new BinaryWebSocketFrame(true, frame.rsv() | RSV1, compressed));
+		}
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+		if (rejected) {
+			return;
+		}
+		
+		if (!(frame instanceof ContinuationWebSocketFrame)) {
+			inflatingMessage = (frame.rsv() & RSV1) != 0;
+		}
+		
+		if (!inflatingMessage) {
+			out.add(frame.retain());
+			
+			return;
+		}
+		
+		ByteBuf content = frame.content();
+		ByteBuf uncompressed = ctx.alloc().heapBuffer(Math.max(MIN_OUTPUT_SIZE, content.readableBytes() * 2));
+		
+		compressedBytesRead.addAndGet(content.readableBytes());
+		
+		byte[] input = new byte[content.readableBytes() + (frame.isFinalFragment() ? TAIL.length : 0)];
+		content.getBytes(content.readerIndex(), input, 0, content.readableBytes());
+		
+		if (frame.isFinalFragment()) {
+			System.arraycopy(TAIL, 0, input, content.readableBytes(), TAIL.length);
+		}
+		
+		inflater.setInput(input);
+		
+		try {
+			int written;
+			
+			do {
+				uncompressed.ensureWritable(MIN_OUTPUT_SIZE);
+				
+				int length = uncompressed.writableBytes();
+				
+				if (maxMessageBytes > 0) {
+					// one byte past the limit is enough to tell it was broken
+					length = (int)Math.min(length, maxMessageBytes - inflatedMessageBytes - uncompressed.readableBytes() + 1);
+				}
+				
+				written = inflater.inflate(uncompressed.array(), uncompressed.arrayOffset() + uncompressed.writerIndex(), length);
+				
+				uncompressed.writerIndex(uncompressed.writerIndex() + written);
+				
+				if (maxMessageBytes > 0 && inflatedMessageBytes + uncompressed.readableBytes() > maxMessageBytes) {
+					uncompressed.release();
+					
+					rejectStream(ctx, new KixmppStreamErrorException(KixmppStreamErrorException.POLICY_VIOLATION, 
+							"Message inflates to more than " + maxMessageBytes + " bytes"));
+					return;
+				}
+			} while (written > 0 || !(inflater.needsInput() || inflater.finished() || inflater.needsDictionary()));
+		} catch (DataFormatException e) {
+			uncompressed.release();
+			
+			throw e;
+		}
+		
+		uncompressedBytesRead.addAndGet(uncompressed.readableBytes());
+		inflatedMessageBytes += uncompressed.readableBytes();
+		
+		if (frame.isFinalFragment()) {
+			inflatingMessage = false;
+			inflatedMessageBytes = 0;
+			
+			if (!peerContextTakeover) {
+				inflater.reset();
+			}
+		}
+		
+		int rsv = frame.rsv() & ~RSV1;
+		
+		if (frame instanceof TextWebSocketFrame) {
+			out.add(new TextWebSocketFrame(frame.isFinalFragment(), rsv, uncompressed));
+		} else if (frame instanceof BinaryWebSocketFrame) {
+			out.add(new BinaryWebSocketFrame(frame.isFinalFragment(), rsv, uncompressed));
+		} else {
+			out.add(new ContinuationWebSocketFrame(frame.isFinalFragment(), rsv, uncompressed));
+		}
+	}
+	
+	/**
+	 * Closes the stream with a stream error and ignores anything the peer sends after it.
+	 * 
+	 * @param ctx
+	 * @param e
+	 */
+	private void rejectStream(ChannelHandlerContext ctx, KixmppStreamErrorException e) {
+		logger.info("Closing stream of channel [{}] with [{}]: {}", ctx.channel(), e.getCondition(), e.getMessage());
+		
+		rejected = true;
+		
+		ctx.writeAndFlush(new TextWebSocketFrame(e.toStreamError())).addListener(ChannelFutureListener.CLOSE);
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		deflater.end();
+		inflater.end();
+		
+		super.handlerRemoved(ctx);
+	}
+}
@@ -0,0 +1,210 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+
+import java.util.List;
+
+/**
+ * Decodes RFC 6455 WebSocket frames.
+ * 
+ * <p>Unlike Netty's decoder it does not check that text frames hold UTF-8. With permessage-deflate they hold 
+ * compressed bytes, so the check belongs after decompression, where the XML parser makes it anyway.</p>
+ */
+public class KixmppWebSocketFrameDecoder extends ByteToMessageDecoder implements WebSocketFrameDecoder {
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+	
+	private static final int MAX_CONTROL_PAYLOAD_LENGTH = 125;
+	
+	private final boolean expectMaskedFrames;
+	private final boolean allowExtensions;
+	private final int maxFramePayloadLength;
+	
+	private boolean closed = false;
+	
+	/**
+	 * @param expectMaskedFrames whether frames must be masked, as a server requires of clients
+	 * @param allowExtensions whether frames may set reserved bits
+	 * @param maxFramePayloadLength
+	 */
+	public KixmppWebSocketFrameDecoder(boolean expectMaskedFrames, boolean allowExtensions, int maxFramePayloadLength) {
+		this.expectMaskedFrames = expectMaskedFrames;
+		this.allowExtensions = allowExtensions;
+		this.maxFramePayloadLength = maxFramePayloadLength;
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		if (closed) {
+			// nothing is read after a close frame
+			in.skipBytes(in.readableBytes());
+			return;
+		}
+		
+		while (in.readableBytes() >= 2) {
+			int index = in.readerIndex();
+			
+			int firstByte = in.getUnsignedByte(index);
+			int secondByte = in.getUnsignedByte(index + 1);
+			
+			boolean finalFragment = (firstByte & 0x80) != 0;
+			int rsv = (firstByte & 0x70) >> 4;
+			int opcode = firstByte & 0x0F;
+			boolean masked = (secondByte & 0x80) != 0;
+			long payloadLength = secondByte & 0x7F;
+			
+			int headerLength = 2;
+			
+			if (payloadLength == 126) {
+				if (in.readableBytes() < headerLength + 2) {
+					return;
+				}
+				
+				payloadLength = in.getUnsignedShort(index + headerLength);
+				headerLength += 2;
+			} else if (payloadLength == 127) {
+				if (in.readableBytes() < headerLength + 8) {
+					return;
+				}
+				
+				payloadLength = in.getLong(index + headerLength);
+				headerLength += 8;
+			}
+			
+			if (masked) {
+				headerLength += 4;
+			}
+			
+			if (expectMaskedFrames && !masked) {
+				protocolViolation(ctx, in, new CorruptedFrameException("Received an unmasked frame from the client"));
+				return;
+			}
+			
+			if (rsv != 0 && !allowExtensions) {
+				protocolViolation(ctx, in, new CorruptedFrameException("Reserved bits set without an extension: " + rsv));
+				return;
+			}
+			
+			if (opcode >= OPCODE_CLOSE && (!finalFragment || payloadLength > MAX_CONTROL_PAYLOAD_LENGTH)) {
+				protocolViolation(ctx, in, new CorruptedFrameException("Fragmented or oversized control frame"));
+				return;
+			}
+			
+			if (payloadLength < 0 || payloadLength > maxFramePayloadLength) {
+				protocolViolation(ctx, in, new TooLongFrameException("Frame payload is larger than " + maxFramePayloadLength + " bytes"));
+				return;
+			}
+			
+			if (in.readableBytes() < headerLength + payloadLength) {
+				return;
+			}
+			
+			int payloadIndex = index + headerLength;
+			ByteBuf payload;
+			
+			if (masked) {
+				payload = ctx.alloc().buffer((int)payloadLength);
+				
+				// unmask four bytes at a time, the key and the reads are both big endian
+				int mask = in.getInt(payloadIndex - 4);
+				int i = 0;
+				
+				for (; i + 3 < payloadLength; i += 4) {
+					payload.writeInt(in.getInt(payloadIndex + i) ^ mask);
+				}
+				
+				for (; i < payloadLength; i++) {
+					payload.writeByte(in.getByte(payloadIndex + i) ^ (mask >>> (24 - 8 * (i & 3))));
+				}
+			} else {
+				payload = in.slice(payloadIndex, (int)payloadLength).retain();
+			}
+			
+			in.skipBytes(headerLength + (int)payloadLength);
+			
+			switch (opcode) {
+				case OPCODE_CONTINUATION:
+					out.add(new ContinuationWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case OPCODE_TEXT:
+					out.add(new TextWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case OPCODE_BINARY:
+					out.add(new BinaryWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case OPCODE_CLOSE:
+					closed = true;
+					out.add(new CloseWebSocketFrame(finalFragment, rsv, payload));
+					return;
+				case OPCODE_PING:
+					out.add(new PingWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case OPCODE_PONG:
+					out.add(new PongWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				default:
+					payload.release();
+					protocolViolation(ctx, in, new CorruptedFrameException("Unknown opcode: " + opcode));
+					return;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the connection after a broken frame.
+	 * 
+	 * @param ctx
+	 * @param in
+	 * @param e
+	 * @throws DecoderException
+	 */
+	private void protocolViolation(ChannelHandlerContext ctx, ByteBuf in, DecoderException e) throws DecoderException {
+		closed = true;
+		
+		in.skipBytes(in.readableBytes());
+		
+		if (ctx.channel().isActive()) {
+			ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+		}
+		
+		throw e;
+	}
+}
@@ -0,0 +1,797 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+import org.jdom2.output.XMLOutputter;
+
+import com.google.common.collect.ImmutableMap;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Serializes XMPP stanzas and stream headers as UTF-8 straight into a {@link ByteBuf}.
+ * 
+ * <p>Common tags, attributes and namespace declarations are kept pre-encoded and text is escaped 
+ * and encoded in a single pass, so no Writers, charset encoders or intermediate Strings are involved. 
+ * Stanzas that still have their raw bytes are copied as they are, see {@link KixmppStanza#getRawBytes()}.</p>
+ * 
+ * <p>The output is equivalent to the raw format of {@link XMLOutputter}, except that empty elements are 
+ * written as <code>&lt;name/&gt;</code> and comments and processing instructions are dropped, since 
+ * XMPP streams can not carry them.</p>
+ */
+public final class KixmppXmlSerializer {
+	private KixmppXmlSerializer() { }
+	
+	private static final String[] COMMON_ELEMENT_NAMES = new String[] {
+		"message", "presence", "iq", "body", "subject", "thread", "x", "item", "query", "status", "show", 
+		"priority", "error", "delay", "bind", "jid", "session", "feature", "identity", "history", "text"
+	};
+	
+	private static final String[] COMMON_ATTRIBUTE_NAMES = new String[] {
+		"to", "from", "type", "id", "jid", "role", "affiliation", "nick", "var", "code", "category", "name", "stamp"
+	};
+	
+	private static final String[] COMMON_TYPES = new String[] {
+		"chat", "groupchat", "normal", "headline", "error", "get", "set", "result", 
+		"unavailable", "subscribe", "subscribed", "unsubscribe", "unsubscribed", "probe"
+	};
+	
+	private static final String[] COMMON_NAMESPACE_URIS = new String[] {
+		"jabber:client", "jabber:iq:roster", 
+		"http://jabber.org/protocol/muc", "http://jabber.org/protocol/muc#user", "http://jabber.org/protocol/muc#owner", 
+		"http://jabber.org/protocol/disco#info", "http://jabber.org/protocol/disco#items", 
+		"urn:ietf:params:xml:ns:xmpp-bind", "urn:ietf:params:xml:ns:xmpp-session", "urn:ietf:params:xml:ns:xmpp-sasl", 
+		"urn:ietf:params:xml:ns:xmpp-stanzas", "urn:xmpp:delay"
+	};
+	
+	private static final Map<String, byte[]> START_TAGS;
+	private static final Map<String, byte[]> END_TAGS;
+	private static final Map<String, byte[]> ATTRIBUTE_STARTS;
+	private static final Map<String, byte[]> TYPE_ATTRIBUTES;
+	private static final Map<String, byte[]> DEFAULT_NAMESPACE_DECLARATIONS;
+	
+	static {
+		ImmutableMap.Builder<String, byte[]> startTags = ImmutableMap.builder();
+		ImmutableMap.Builder<String, byte[]> endTags = ImmutableMap.builder();
+		
+		for (String name : COMMON_ELEMENT_NAMES) {
+			startTags.put(name, encode("<" + name));
+			endTags.put(name, encode("</" + name + ">"));
+		}
+		
+		ImmutableMap.Builder<String, byte[]> attributeStarts = ImmutableMap.builder();
+		
+		for (String name : COMMON_ATTRIBUTE_NAMES) {
+			attributeStarts.put(name, encode(" " + name + "=\""));
+		}
+		
+		ImmutableMap.Builder<String, byte[]> typeAttributes = ImmutableMap.builder();
+		
+		for (String type : COMMON_TYPES) {
+			typeAttributes.put(type, encode(" type=\"" + type + "\""));
+		}
+		
+		ImmutableMap.Builder<String, byte[]> defaultNamespaceDeclarations = ImmutableMap.builder();
+		
+		for (String uri : COMMON_NAMESPACE_URIS) {
+			defaultNamespaceDeclarations.put(uri, encode(" xmlns=\"" + uri + "\""));
+		}
+		
+		START_TAGS = startTags.build();
+		END_TAGS = endTags.build();
+		ATTRIBUTE_STARTS = attributeStarts.build();
+		TYPE_ATTRIBUTES = typeAttributes.build();
+		DEFAULT_NAMESPACE_DECLARATIONS = defaultNamespaceDeclarations.build();
+	}
+	
+	private static final byte[] XML_HEADER = encode("<?xml version='1.0' encoding='UTF-8'?>");
+	private static final byte[] STREAM_START = encode("<stream:stream ");
+	private static final byte[] STREAM_ID = encode("id=\"");
+	private static final byte[] STREAM_FROM = encode("from=\"");
+	private static final byte[] STREAM_TO = encode("to=\"");
+	private static final byte[] STREAM_ATTRIBUTE_END = encode("\" ");
+	private static final byte[] STREAM_START_END = encode("version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">");
+	private static final byte[] STREAM_END = encode("</stream:stream>");
+	
+	private static final byte[] FRAMING_OPEN_START = encode("<open ");
+	private static final byte[] FRAMING_OPEN_END = encode("version=\"1.0\" xmlns=\"urn:ietf:params:xml:ns:xmpp-framing\"/>");
+	private static final byte[] FRAMING_CLOSE = encode("<close xmlns=\"urn:ietf:params:xml:ns:xmpp-framing\"/>");
+	
+	private static final byte[] NAMESPACE_DECLARATION_START = encode(" xmlns");
+	private static final byte[] ATTRIBUTE_VALUE_START = encode("=\"");
+	private static final byte[] EMPTY_ELEMENT_END = encode("/>");
+	private static final byte[] END_TAG_START = encode("</");
+	
+	private static final byte[][] NO_ESCAPES = new byte[128][];
+	private static final byte[][] TEXT_ESCAPES = new byte[128][];
+	private static final byte[][] ATTRIBUTE_ESCAPES = new byte[128][];
+	
+	static {
+		TEXT_ESCAPES['&'] = encode("&amp;");
+		TEXT_ESCAPES['<'] = encode("&lt;");
+		TEXT_ESCAPES['>'] = encode("&gt;");
+		TEXT_ESCAPES['\r'] = encode("&#xD;");
+		
+		ATTRIBUTE_ESCAPES['&'] = encode("&amp;");
+		ATTRIBUTE_ESCAPES['<'] = encode("&lt;");
+		ATTRIBUTE_ESCAPES['>'] = encode("&gt;");
+		ATTRIBUTE_ESCAPES['"'] = encode("&quot;");
+		ATTRIBUTE_ESCAPES['\t'] = encode("&#x9;");
+		ATTRIBUTE_ESCAPES['\n'] = encode("&#xA;");
+		ATTRIBUTE_ESCAPES['\r'] = encode("&#xD;");
+	}
+	
+	private static final FastThreadLocal<NamespaceScope> namespaceScopes = new FastThreadLocal<NamespaceScope>() {
+		protected NamespaceScope initialValue() throws Exception {
+			return new NamespaceScope();
+		}
+	};
+	
+	/**
+	 * Writes an element.
+	 * 
+	 * @param element
+	 * @param out
+	 */
+	public static void write(Element element, ByteBuf out) {
+		write(element, "", out);
+	}
+	
+	/**
+	 * Writes an element. Elements that have no namespace are written in the given default namespace instead.
+	 * 
+	 * @param element
+	 * @param defaultNamespaceURI
+	 * @param out
+	 */
+	public static void write(Element element, String defaultNamespaceURI, ByteBuf out) {
+		NamespaceScope scope = namespaceScopes.get();
+		scope.reset();
+		
+		try {
+			writeElement(element, defaultNamespaceURI, scope, out);
+		} finally {
+			scope.clear();
+		}
+	}
+	
+	/**
+	 * Writes a stanza.
+	 * 
+	 * @param stanza
+	 * @param out
+	 */
+	public static void write(KixmppStanza stanza, ByteBuf out) {
+		write(stanza, "", out);
+	}
+	
+	/**
+	 * Writes a stanza. Stanzas that have no namespace are written in the given default namespace instead.
+	 * 
+	 * @param stanza
+	 * @param defaultNamespaceURI
+	 * @param out
+	 */
+	public static void write(KixmppStanza stanza, String defaultNamespaceURI, ByteBuf out) {
+		ByteBuf rawBytes = stanza.getRawBytes();
+		
+		if (rawBytes != null && (defaultNamespaceURI.isEmpty() || !stanza.getNamespaceURI().isEmpty())) {
+			writeRawBytes(stanza, rawBytes, out);
+			return;
+		}
+		
+		NamespaceScope scope = namespaceScopes.get();
+		scope.reset();
+		
+		try {
+			writeStanza(stanza, defaultNamespaceURI, scope, out);
+		} finally {
+			scope.clear();
+		}
+	}
+	
+	/**
+	 * Writes a stanza that was serialized before, adding the address of its recipient.
+	 * 
+	 * @param stanza
+	 * @param out
+	 */
+	public static void write(KixmppEncodedStanza stanza, ByteBuf out) {
+		write(stanza, "", out);
+	}
+	
+	/**
+	 * Writes a stanza that was serialized before, adding the address of its recipient. 
+	 * Stanzas that have no namespace are written in the given default namespace instead.
+	 * 
+	 * @param stanza
+	 * @param defaultNamespaceURI
+	 * @param out
+	 */
+	public static void write(KixmppEncodedStanza stanza, String defaultNamespaceURI, ByteBuf out) {
+		ByteBuf bytes = stanza.getBytes();
+		int start = bytes.readerIndex();
+		int nameEnd = start + stanza.getNameEnd();
+		
+		out.writeBytes(bytes, start, nameEnd - start);
+		
+		if (!defaultNamespaceURI.isEmpty() && !stanza.isQualified()) {
+			writeNamespaceDeclaration(defaultNamespaceURI, out);
+		}
+		
+		if (stanza.getTo() != null) {
+			writeAttribute("", "to", stanza.getTo(), out);
+		}
+		
+		out.writeBytes(bytes, nameEnd, bytes.writerIndex() - nameEnd);
+	}
+	
+	/**
+	 * Writes a stream header.
+	 * 
+	 * @param streamStart
+	 * @param out
+	 */
+	public static void write(KixmppStreamStart streamStart, ByteBuf out) {
+		if (streamStart.doesIncludeXmlHeader()) {
+			out.writeBytes(XML_HEADER);
+		}
+		
+		out.writeBytes(STREAM_START);
+		writeStreamAttributes(streamStart, out);
+		out.writeBytes(STREAM_START_END);
+	}
+	
+	/**
+	 * Writes a stream header as an RFC 7395 <code>&lt;open/&gt;</code> element.
+	 * 
+	 * @param streamStart
+	 * @param out
+	 */
+	public static void writeFramingOpen(KixmppStreamStart streamStart, ByteBuf out) {
+		out.writeBytes(FRAMING_OPEN_START);
+		writeStreamAttributes(streamStart, out);
+		out.writeBytes(FRAMING_OPEN_END);
+	}
+	
+	/**
+	 * Writes a stream footer as an RFC 7395 <code>&lt;close/&gt;</code> element.
+	 * 
+	 * @param streamEnd
+	 * @param out
+	 */
+	public static void writeFramingClose(KixmppStreamEnd streamEnd, ByteBuf out) {
+		out.writeBytes(FRAMING_CLOSE);
+	}
+	
+	private static void writeStreamAttributes(KixmppStreamStart streamStart, ByteBuf out) {
+		if (streamStart.getId() != null) {
+			out.writeBytes(STREAM_ID);
+			writeEscaped(streamStart.getId(), ATTRIBUTE_ESCAPES, out);
+			out.writeBytes(STREAM_ATTRIBUTE_END);
+		}
+		
+		if (streamStart.getFrom() != null) {
+			out.writeBytes(STREAM_FROM);
+			writeJid(streamStart.getFrom(), out);
+			out.writeBytes(STREAM_ATTRIBUTE_END);
+		}
+		
+		if (streamStart.getTo() != null) {
+			out.writeBytes(STREAM_TO);
+			writeJid(streamStart.getTo(), out);
+			out.writeBytes(STREAM_ATTRIBUTE_END);
+		}
+	}
+	
+	/**
+	 * Writes a stream footer.
+	 * 
+	 * @param streamEnd
+	 * @param out
+	 */
+	public static void write(KixmppStreamEnd streamEnd, ByteBuf out) {
+		out.writeBytes(STREAM_END);
+	}
+	
+	private static void writeElement(Element element, String defaultNamespaceURI, NamespaceScope scope, ByteBuf out) {
+		int scopeMark = scope.size();
+		
+		String name = element.getName();
+		String prefix = element.getNamespacePrefix();
+		String namespaceURI = element.getNamespaceURI();
+		
+		if (prefix.isEmpty() && namespaceURI.isEmpty()) {
+			namespaceURI = defaultNamespaceURI;
+		}
+		
+		writeStartTag(prefix, name, out);
+		writeNamespaceDeclaration(prefix, namespaceURI, scope, out);
+		
+		List<Namespace> additionalNamespaces = element.getAdditionalNamespaces();
+		
+		for (int i = 0, len = additionalNamespaces.size(); i < len; i++) {
+			Namespace namespace = additionalNamespaces.get(i);
+			
+			writeNamespaceDeclaration(namespace.getPrefix(), namespace.getURI(), scope, out);
+		}
+		
+		if (element.hasAttributes()) {
+			List<Attribute> attributes = element.getAttributes();
+			
+			for (int i = 0, len = attributes.size(); i < len; i++) {
+				Attribute attribute = attributes.get(i);
+				String attributePrefix = attribute.getNamespacePrefix();
+				
+				if (!attributePrefix.isEmpty()) {
+					writeNamespaceDeclaration(attributePrefix, attribute.getNamespaceURI(), scope, out);
+				}
+				
+				writeAttribute(attributePrefix, attribute.getName(), attribute.getValue(), out);
+			}
+		}
+		
+		List<Content> content = element.getContent();
+		
+		if (content.isEmpty()) {
+			out.writeBytes(EMPTY_ELEMENT_END);
+		} else {
+			out.writeByte('>');
+			
+			for (int i = 0, len = content.size(); i < len; i++) {
+				Content child = content.get(i);
+				
+				if (child instanceof Element) {
+					writeElement((Element)child, defaultNamespaceURI, scope, out);
+				} else if (child instanceof Text) {
+					writeEscaped(((Text)child).getText(), TEXT_ESCAPES, out);
+				}
+			}
+			
+			writeEndTag(prefix, name, out);
+		}
+		
+		scope.popTo(scopeMark);
+	}
+	
+	private static void writeStanza(KixmppStanza stanza, String defaultNamespaceURI, NamespaceScope scope, ByteBuf out) {
+		int scopeMark = scope.size();
+		
+		String name = stanza.getName();
+		String prefix = stanza.getPrefix();
+		String namespaceURI = stanza.getNamespaceURI();
+		
+		if (prefix.isEmpty() && namespaceURI.isEmpty()) {
+			namespaceURI = defaultNamespaceURI;
+		}
+		
+		writeStartTag(prefix, name, out);
+		writeNamespaceDeclaration(prefix, namespaceURI, scope, out);
+		
+		for (int i = 0, len = stanza.getNamespaceDeclarationCount(); i < len; i++) {
+			writeNamespaceDeclaration(stanza.getNamespaceDeclarationPrefix(i), stanza.getNamespaceDeclarationURI(i), scope, out);
+		}
+		
+		for (int i = 0, len = stanza.getAttributeCount(); i < len; i++) {
+			String attributePrefix = stanza.getAttributePrefix(i);
+			
+			if (!attributePrefix.isEmpty()) {
+				writeNamespaceDeclaration(attributePrefix, stanza.getAttributeNamespaceURI(i), scope, out);
+			}
+			
+			writeAttribute(attributePrefix, stanza.getAttributeName(i), stanza.getAttributeValue(i), out);
+		}
+		
+		int contentCount = stanza.getContentCount();
+		
+		if (contentCount == 0) {
+			out.writeBytes(EMPTY_ELEMENT_END);
+		} else {
+			out.writeByte('>');
+			
+			for (int i = 0; i < contentCount; i++) {
+				Object child = stanza.getContent(i);
+				
+				if (child instanceof KixmppStanza) {
+					writeStanza((KixmppStanza)child, defaultNamespaceURI, scope, out);
+				} else {
+					writeEscaped((String)child, TEXT_ESCAPES, out);
+				}
+			}
+			
+			writeEndTag(prefix, name, out);
+		}
+		
+		scope.popTo(scopeMark);
+	}
+	
+	/**
+	 * Copies the raw bytes of a stanza. If its address was rewritten the <code>to</code> and <code>from</code> attributes 
+	 * are spliced into the start tag, and if it inherited its default namespace from the stream that is declared as well.
+	 */
+	private static void writeRawBytes(KixmppStanza stanza, ByteBuf rawBytes, ByteBuf out) {
+		int start = rawBytes.readerIndex();
+		int end = rawBytes.writerIndex();
+		
+		boolean declareNamespace = stanza.getPrefix().isEmpty() && !stanza.getNamespaceURI().isEmpty() && !declaresDefaultNamespace(stanza);
+		
+		if (!declareNamespace && !stanza.isAddressRewritten()) {
+			out.writeBytes(rawBytes, start, end - start);
+			return;
+		}
+		
+		// find the end of the name, the to and from attributes and the end of the start tag
+		int index = start + 1;
+		
+		while (!isNameEnd(rawBytes.getByte(index))) {
+			index++;
+		}
+		
+		int nameEnd = index;
+		int toStart = -1;
+		int toEnd = -1;
+		int fromStart = -1;
+		int fromEnd = -1;
+		
+		for (byte b = rawBytes.getByte(index); b != '>' && b != '/'; b = rawBytes.getByte(index)) {
+			if (isWhitespace(b)) {
+				index++;
+				continue;
+			}
+			
+			int attributeStart = index;
+			
+			while (b != '=' && !isWhitespace(b)) {
+				b = rawBytes.getByte(++index);
+			}
+			
+			int nameLength = index - attributeStart;
+			
+			while (b != '"' && b != '\'') {
+				b = rawBytes.getByte(++index);
+			}
+			
+			index = rawBytes.indexOf(index + 1, end, b) + 1;
+			
+			// the ranges include the whitespace in front of the attribute
+			if (nameLength == 2 && rawBytes.getByte(attributeStart) == 't' && rawBytes.getByte(attributeStart + 1) == 'o') {
+				toStart = attributeStart - 1;
+				toEnd = index;
+			} else if (nameLength == 4 && rawBytes.getByte(attributeStart) == 'f' && rawBytes.getByte(attributeStart + 1) == 'r' 
+					&& rawBytes.getByte(attributeStart + 2) == 'o' && rawBytes.getByte(attributeStart + 3) == 'm') {
+				fromStart = attributeStart - 1;
+				fromEnd = index;
+			}
+		}
+		
+		int tagEnd = index;
+		
+		out.writeBytes(rawBytes, start, nameEnd - start);
+		
+		if (declareNamespace) {
+			writeNamespaceDeclaration(stanza.getNamespaceURI(), out);
+		}
+		
+		int position = nameEnd;
+		
+		if (stanza.isAddressRewritten()) {
+			String to = stanza.getAttributeValue("to");
+			String from = stanza.getAttributeValue("from");
+			
+			if (toStart != -1 && fromStart != -1 && fromStart < toStart) {
+				position = writeSplicedAttribute(rawBytes, position, fromStart, fromEnd, "from", from, out);
+				position = writeSplicedAttribute(rawBytes, position, toStart, toEnd, "to", to, out);
+			} else {
+				if (toStart != -1) {
+					position = writeSplicedAttribute(rawBytes, position, toStart, toEnd, "to", to, out);
+				}
+				
+				if (fromStart != -1) {
+					position = writeSplicedAttribute(rawBytes, position, fromStart, fromEnd, "from", from, out);
+				}
+			}
+			
+			out.writeBytes(rawBytes, position, tagEnd - position);
+			position = tagEnd;
+			
+			if (toStart == -1 && to != null) {
+				writeAttribute("", "to", to, out);
+			}
+			
+			if (fromStart == -1 && from != null) {
+				writeAttribute("", "from", from, out);
+			}
+		}
+		
+		out.writeBytes(rawBytes, position, end - position);
+	}
+	
+	/**
+	 * Copies the raw bytes up to an attribute and writes the attribute with its new value in place of the old one.
+	 * 
+	 * @return the position in the raw bytes after the old attribute
+	 */
+	private static int writeSplicedAttribute(ByteBuf rawBytes, int position, int attributeStart, int attributeEnd, String name, String value, ByteBuf out) {
+		out.writeBytes(rawBytes, position, attributeStart - position);
+		
+		if (value != null) {
+			writeAttribute("", name, value, out);
+		}
+		
+		return attributeEnd;
+	}
+	
+	private static boolean declaresDefaultNamespace(KixmppStanza stanza) {
+		for (int i = 0, len = stanza.getNamespaceDeclarationCount(); i < len; i++) {
+			if (stanza.getNamespaceDeclarationPrefix(i).isEmpty()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static boolean isNameEnd(byte b) {
+		return b == '>' || b == '/' || isWhitespace(b);
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+	
+	private static void writeStartTag(String prefix, String name, ByteBuf out) {
+		if (prefix.isEmpty()) {
+			byte[] startTag = START_TAGS.get(name);
+			
+			if (startTag != null) {
+				out.writeBytes(startTag);
+				return;
+			}
+			
+			out.writeByte('<');
+		} else {
+			out.writeByte('<');
+			writeEscaped(prefix, NO_ESCAPES, out);
+			out.writeByte(':');
+		}
+		
+		writeEscaped(name, NO_ESCAPES, out);
+	}
+	
+	private static void writeEndTag(String prefix, String name, ByteBuf out) {
+		if (prefix.isEmpty()) {
+			byte[] endTag = END_TAGS.get(name);
+			
+			if (endTag != null) {
+				out.writeBytes(endTag);
+				return;
+			}
+			
+			out.writeBytes(END_TAG_START);
+		} else {
+			out.writeBytes(END_TAG_START);
+			writeEscaped(prefix, NO_ESCAPES, out);
+			out.writeByte(':');
+		}
+		
+		writeEscaped(name, NO_ESCAPES, out);
+		out.writeByte('>');
+	}
+	
+	private static void writeAttribute(String prefix, String name, String value, ByteBuf out) {
+		if (prefix.isEmpty()) {
+			if ("type".equals(name)) {
+				byte[] typeAttribute = TYPE_ATTRIBUTES.get(value);
+				
+				if (typeAttribute != null) {
+					out.writeBytes(typeAttribute);
+					return;
+				}
+			}
+			
+			byte[] attributeStart = ATTRIBUTE_STARTS.get(name);
+			
+			if (attributeStart != null) {
+				out.writeBytes(attributeStart);
+			} else {
+				out.writeByte(' ');
+				writeEscaped(name, NO_ESCAPES, out);
+				out.writeBytes(ATTRIBUTE_VALUE_START);
+			}
+		} else {
+			out.writeByte(' ');
+			writeEscaped(prefix, NO_ESCAPES, out);
+			out.writeByte(':');
+			writeEscaped(name, NO_ESCAPES, out);
+			out.writeBytes(ATTRIBUTE_VALUE_START);
+		}
+		
+		writeEscaped(value, ATTRIBUTE_ESCAPES, out);
+		out.writeByte('"');
+	}
+	
+	/**
+	 * Declares the namespace unless the prefix is already bound to it in the current scope.
+	 */
+	private static void writeNamespaceDeclaration(String prefix, String namespaceURI, NamespaceScope scope, ByteBuf out) {
+		if (namespaceURI.equals(scope.lookup(prefix))) {
+			return;
+		}
+		
+		scope.push(prefix, namespaceURI);
+		
+		if (prefix.isEmpty()) {
+			writeNamespaceDeclaration(namespaceURI, out);
+			return;
+		}
+		
+		out.writeBytes(NAMESPACE_DECLARATION_START);
+		out.writeByte(':');
+		writeEscaped(prefix, NO_ESCAPES, out);
+		out.writeBytes(ATTRIBUTE_VALUE_START);
+		writeEscaped(namespaceURI, ATTRIBUTE_ESCAPES, out);
+		out.writeByte('"');
+	}
+	
+	/**
+	 * Declares the default namespace.
+	 */
+	private static void writeNamespaceDeclaration(String namespaceURI, ByteBuf out) {
+		byte[] declaration = DEFAULT_NAMESPACE_DECLARATIONS.get(namespaceURI);
+		
+		if (declaration != null) {
+			out.writeBytes(declaration);
+			return;
+		}
+		
+		out.writeBytes(NAMESPACE_DECLARATION_START);
+		out.writeBytes(ATTRIBUTE_VALUE_START);
+		writeEscaped(namespaceURI, ATTRIBUTE_ESCAPES, out);
+		out.writeByte('"');
+	}
+	
+	private static void writeJid(KixmppJid jid, ByteBuf out) {
+		if (jid.getNode() != null) {
+			writeEscaped(jid.getNode(), ATTRIBUTE_ESCAPES, out);
+			out.writeByte('@');
+		}
+		
+		writeEscaped(jid.getDomain(), ATTRIBUTE_ESCAPES, out);
+		
+		if (jid.getResource() != null) {
+			out.writeByte('/');
+			writeEscaped(jid.getResource(), ATTRIBUTE_ESCAPES, out);
+		}
+	}
+	
+	/**
+	 * Encodes the value as UTF-8 into the buffer, replacing ASCII characters that have an escape sequence in the given table.
+	 */
+	private static void writeEscaped(String value, byte[][] escapes, ByteBuf out) {
+		int length = value.length();
+		
+		out.ensureWritable(length);
+		
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			
+			if (c < 0x80) {
+				byte[] escape = escapes[c];
+				
+				if (escape == null) {
+					out.writeByte(c);
+				} else {
+					out.writeBytes(escape);
+				}
+			} else if (c < 0x800) {
+				out.writeByte(0xc0 | (c >> 6));
+				out.writeByte(0x80 | (c & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					
+					out.writeByte(0xf0 | (codePoint >> 18));
+					out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+					out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+					out.writeByte(0x80 | (codePoint & 0x3f));
+				} else {
+					// unpaired surrogate, replaced the same way the JDK's encoder does
+					out.writeByte('?');
+				}
+			} else {
+				out.writeByte(0xe0 | (c >> 12));
+				out.writeByte(0x80 | ((c >> 6) & 0x3f));
+				out.writeByte(0x80 | (c & 0x3f));
+			}
+		}
+	}
+	
+	private static byte[] encode(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * The namespace bindings in scope while an element tree is written. Kept per thread and reused.
+	 */
+	private static class NamespaceScope {
+		private String[] prefixes = new String[16];
+		private String[] namespaceURIs = new String[16];
+		private int size = 0;
+		
+		public void reset() {
+			size = 0;
+			
+			push("", "");
+			push(Namespace.XML_NAMESPACE.getPrefix(), Namespace.XML_NAMESPACE.getURI());
+		}
+		
+		public void clear() {
+			popTo(0);
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public void push(String prefix, String namespaceURI) {
+			if (size == prefixes.length) {
+				prefixes = Arrays.copyOf(prefixes, size * 2);
+				namespaceURIs = Arrays.copyOf(namespaceURIs, size * 2);
+			}
+			
+			prefixes[size] = prefix;
+			namespaceURIs[size] = namespaceURI;
+			size++;
+		}
+		
+		public String lookup(String prefix) {
+			for (int i = size - 1; i >= 0; i--) {
+				if (prefix.equals(prefixes[i])) {
+					return namespaceURIs[i];
+				}
+			}
+			
+			return null;
+		}
+		
+		public void popTo(int mark) {
+			while (size > mark) {
+				size--;
+				
+				prefixes[size] = null;
+				namespaceURIs[size] = null;
+			}
+		}
+	}
+}
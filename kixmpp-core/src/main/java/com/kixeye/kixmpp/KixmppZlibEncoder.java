@@ -0,0 +1,183 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compresses an XMPP stream with zlib, as negotiated by XEP-0138. The stream is one zlib stream, 
+ * so every stanza is compressed with what the stanzas before it left in the dictionary.
+ */
+public class KixmppZlibEncoder extends MessageToByteEncoder<ByteBuf> {
+	public enum FlushStrategy {
+		/**
+		 * Every write is sync flushed, so the peer can decompress it right away.
+		 */
+		SYNC_PER_WRITE,
+		
+		/**
+		 * Every write is full flushed, which also resets the dictionary. Compresses worse but a write never refers to an earlier one.
+		 */
+		FULL_PER_WRITE,
+		
+		/**
+		 * Writes are only compressed, the output is sync flushed when the channel is flushed. 
+		 * Writes that go out together share flush markers and compress better.
+		 */
+		SYNC_PER_FLUSH
+	}
+	
+	private static final int MIN_OUTPUT_SIZE = 64;
+	
+	private final Deflater deflater;
+	private final FlushStrategy flushStrategy;
+	
+	private boolean pendingInput = false;
+	
+	/**
+	 * Creates an encoder that sync flushes every write at the default compression level.
+	 */
+	public KixmppZlibEncoder() {
+		this(Deflater.DEFAULT_COMPRESSION, FlushStrategy.SYNC_PER_WRITE);
+	}
+
+	/**
+	 * @param compressionLevel from 0 (none) to 9 (best), or -1 for zlib's default
+	 * @param flushStrategy when compressed output is flushed
+	 */
+	public KixmppZlibEncoder(int compressionLevel, FlushStrategy flushStrategy) {
+		super(false);
+		
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9, was " + compressionLevel);
+		}
+		
+		this.deflater = new Deflater(compressionLevel);
+		this.flushStrategy = flushStrategy;
+	}
+	
+	/**
+	 * @return the flush strategy
+	 */
+	public FlushStrategy getFlushStrategy() {
+		return flushStrategy;
+	}
+
+	/**
+	 * @see io.netty.handler.codec.MessageToByteEncoder#encode(io.netty.channel.ChannelHandlerContext, java.lang.Object, io.netty.buffer.ByteBuf)
+	 */
+	@Override
+	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
+		int length = msg.readableBytes();
+		
+		if (length == 0) {
+			return;
+		}
+		
+		if (msg.hasArray()) {
+			deflater.setInput(msg.array(), msg.arrayOffset() + msg.readerIndex(), length);
+		} else {
+			byte[] input = new byte[length];
+			msg.getBytes(msg.readerIndex(), input);
+			
+			deflater.setInput(input);
+		}
+		
+		msg.skipBytes(length);
+		
+		switch (flushStrategy) {
+			case SYNC_PER_WRITE:
+				deflate(out, Deflater.SYNC_FLUSH);
+				break;
+			case FULL_PER_WRITE:
+				deflate(out, Deflater.FULL_FLUSH);
+				break;
+			case SYNC_PER_FLUSH:
+				deflate(out, Deflater.NO_FLUSH);
+				
+				pendingInput = true;
+				break;
+		}
+	}
+	
+	/**
+	 * @see io.netty.handler.codec.MessageToByteEncoder#allocateBuffer(io.netty.channel.ChannelHandlerContext, java.lang.Object, boolean)
+	 */
+	@Override
+	protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf msg, boolean preferDirect) throws Exception {
+		// compressed output is rarely larger than the input, the buffer grows if it is
+		return ctx.alloc().heapBuffer(Math.max(MIN_OUTPUT_SIZE, msg.readableBytes() + 16));
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelOutboundHandlerAdapter#flush(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		if (pendingInput) {
+			pendingInput = false;
+			
+			ByteBuf out = ctx.alloc().heapBuffer(MIN_OUTPUT_SIZE);
+			
+			deflate(out, Deflater.SYNC_FLUSH);
+			
+			ctx.write(out);
+		}
+		
+		super.flush(ctx);
+	}
+	
+	/**
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		deflater.end();
+		
+		super.handlerRemoved(ctx);
+	}
+	
+	/**
+	 * Deflates everything the deflater was given into the buffer, growing it as needed.
+	 * 
+	 * @param out
+	 * @param flushMode
+	 */
+	private void deflate(ByteBuf out, int flushMode) {
+		while (true) {
+			out.ensureWritable(MIN_OUTPUT_SIZE);
+			
+			int writerIndex = out.writerIndex();
+			int written = deflater.deflate(out.array(), out.arrayOffset() + writerIndex, out.writableBytes(), flushMode);
+			
+			out.writerIndex(writerIndex + written);
+			
+			// the deflater is done once it leaves room in the buffer
+			if (out.isWritable() && deflater.needsInput()) {
+				break;
+			}
+		}
+	}
+}
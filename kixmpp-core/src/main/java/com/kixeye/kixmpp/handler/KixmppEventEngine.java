@@ -21,17 +21,33 @@ package com.kixeye.kixmpp.handler;
  */
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.jdom2.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -39,29 +55,335 @@ import com.google.common.cache.LoadingCache;
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.KixmppStreamEnd;
 import com.kixeye.kixmpp.KixmppStreamStart;
-import com.kixeye.kixmpp.tuple.Tuple;
+import com.kixeye.kixmpp.handler.KixmppStanzaHandlerIndex.Selector;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
 
 /**
  * An event engine that uses a {@link DispatchQueue}.
  * 
+ * <p>Events for the same address, or the same channel, run in the order they were published. 
+ * How the serial queues behind that are picked is up to the {@link DispatchMode}, whether events of 
+ * a channel run on a queue at all is up to the {@link ChannelExecutionMode}.</p>
+ * 
  * @author ebahtijaragic
  */
 public class KixmppEventEngine {
-	private static final String HANDLER_WILDCARD = "*";
+	private static final Logger logger = LoggerFactory.getLogger(KixmppEventEngine.class);
+	
+	private static final String HANDLER_WILDCARD = KixmppStanzaHandlerIndex.HANDLER_WILDCARD;
+	private static final String DEFAULT_QUEUE_NAME = "default";
+	
+	public enum DispatchMode {
+		/**
+		 * A queue per address and per channel, created on first use and dropped after 30 seconds without use.
+		 */
+		QUEUE_PER_KEY,
+		
+		/**
+		 * A fixed set of queues that addresses and channels are hashed onto. Nothing is allocated to pick a queue and 
+		 * a queue never goes away, but unrelated keys on the same queue wait for each other.
+		 */
+		STRIPED
+	}
+	
+	public enum ChannelExecutionMode {
+		/**
+		 * Events of a channel run on a dispatch queue, like the events of an address.
+		 */
+		DISPATCH_QUEUE,
+		
+		/**
+		 * Events of a channel, and IQs it sent to the server, run on the event loop of the channel, so replies are written 
+		 * without handing them to another thread. Handlers of these events must never block.
+		 */
+		EVENT_LOOP
+	}
+	
+	public enum OverloadPolicy {
+		/**
+		 * The new task is not run, the stanzas in it are answered with a resource-constraint error.
+		 */
+		REJECT,
+		
+		/**
+		 * The oldest task waiting in the full queue is dropped to make room for the new one.
+		 */
+		DROP_OLDEST,
+		
+		/**
+		 * The new task is dropped.
+		 */
+		DROP_NEWEST
+	}
+	
+	private static final AttributeKey<EventQueue> EVENT_LOOP_QUEUE = AttributeKey.valueOf("kixmppEventLoopQueue");
+	
+	private static final String STANZA_ERROR_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-stanzas";
+	
+	private final DispatchMode dispatchMode;
+	private volatile ChannelExecutionMode channelExecutionMode = ChannelExecutionMode.DISPATCH_QUEUE;
+	private volatile String localDomain;
+	private final EventQueue[] stripes;
+	private final int stripeMask;
+	
+	// the limits only apply to stanzas and tasks published as droppable, connection, stream and session events are never dropped
+	private volatile int maxQueueDepth = 0;
+	private volatile int maxInFlight = 0;
+	private volatile OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	
+	// reading from a channel stops at the high watermark of its pending stanzas, 0 for no watermarks
+	private volatile int lowReadWatermark = 0;
+	private volatile int highReadWatermark = 0;
+	private final AtomicLong readSuspendedCount = new AtomicLong();
+	
+	// registrations are guarded by the lock, stanzas are dispatched with whatever index was last built from them
+	private final Object stanzaHandlersLock = new Object();
+	private final Map<Selector, Set<KixmppStanzaHandler>> globalStanzaHandlers = new HashMap<>();
+	private final Map<KixmppJid, Map<String, Set<KixmppStanzaHandler>>> jidStanzaHandlers = new HashMap<>();
+	private volatile KixmppStanzaHandlerIndex stanzaHandlerIndex = KixmppStanzaHandlerIndex.EMPTY;
 	
-	private final ConcurrentHashMap<Tuple, Set<KixmppStanzaHandler>> stanzaHandlers = new ConcurrentHashMap<>();
 	private final Set<KixmppConnectionHandler> connectionHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppConnectionHandler, Boolean>());
 	private final Set<KixmppStreamHandler> streamHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppStreamHandler, Boolean>());
 	private final Set<KixmppSessionHandler> sessionHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppSessionHandler, Boolean>());
+	private final Set<KixmppOverloadHandler> overloadHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppOverloadHandler, Boolean>());
 
-	private final LoadingCache<String, DispatchQueue> queues = CacheBuilder.newBuilder()
+	private final LoadingCache<String, EventQueue> queues = CacheBuilder.newBuilder()
 			.expireAfterAccess(30, TimeUnit.SECONDS)
-			.build(new CacheLoader<String, DispatchQueue>() {
-				public DispatchQueue load(String key) throws Exception {
-					return Dispatch.createQueue(key);
+			.build(new CacheLoader<String, EventQueue>() {
+				public EventQueue load(String key) throws Exception {
+					return new EventQueue(Dispatch.createQueue(key), inFlight);
 				}
 			});
 	
+	/**
+	 * Creates an engine with a queue per key.
+	 */
+	public KixmppEventEngine() {
+		this(DispatchMode.QUEUE_PER_KEY);
+	}
+	
+	/**
+	 * Creates an engine that, when striped, has as many queues as there are cores.
+	 * 
+	 * @param dispatchMode
+	 */
+	public KixmppEventEngine(DispatchMode dispatchMode) {
+		this(dispatchMode, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param dispatchMode
+	 * @param stripeCount the number of queues when striped, rounded up to a power of two
+	 */
+	public KixmppEventEngine(DispatchMode dispatchMode, int stripeCount) {
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("There must be at least one stripe, was " + stripeCount);
+		}
+		
+		this.dispatchMode = dispatchMode;
+		
+		if (dispatchMode == DispatchMode.STRIPED) {
+			this.stripes = new EventQueue[stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1];
+			this.stripeMask = stripes.length - 1;
+			
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new EventQueue(Dispatch.createQueue("stripe:" + i), inFlight);
+			}
+		} else {
+			this.stripes = null;
+			this.stripeMask = 0;
+		}
+	}
+	
+	/**
+	 * @return the dispatch mode
+	 */
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+	
+	/**
+	 * @return the channel execution mode
+	 */
+	public ChannelExecutionMode getChannelExecutionMode() {
+		return channelExecutionMode;
+	}
+
+	/**
+	 * Sets where the events of a channel run, before any channel has published events.
+	 * 
+	 * @param channelExecutionMode
+	 */
+	public void setChannelExecutionMode(ChannelExecutionMode channelExecutionMode) {
+		this.channelExecutionMode = channelExecutionMode;
+	}
+	
+	/**
+	 * @return the domain of the server, or null if it is not known
+	 */
+	public String getLocalDomain() {
+		return localDomain;
+	}
+
+	/**
+	 * Sets the domain of the server, IQs addressed to it are events of the channel that sent them 
+	 * when running on event loops.
+	 * 
+	 * @param localDomain
+	 */
+	public void setLocalDomain(String localDomain) {
+		this.localDomain = localDomain;
+	}
+	
+	/**
+	 * Bounds the stanzas and droppable tasks waiting to run, before any have been published. With striping the depth 
+	 * is per stripe rather than per address.
+	 * 
+	 * @param maxQueueDepth the most tasks waiting in a single queue, 0 for no limit
+	 * @param maxInFlight the most tasks waiting in all queues together, 0 for no limit
+	 * @param overloadPolicy what to do with a task that does not fit
+	 */
+	public void setQueueLimits(int maxQueueDepth, int maxInFlight, OverloadPolicy overloadPolicy) {
+		if (maxQueueDepth < 0 || maxInFlight < 0) {
+			throw new IllegalArgumentException("Queue limits cannot be negative, were " + maxQueueDepth + " and " + maxInFlight);
+		}
+		
+		this.overloadPolicy = overloadPolicy;
+		this.maxInFlight = maxInFlight;
+		this.maxQueueDepth = maxQueueDepth;
+	}
+	
+	/**
+	 * @return the most tasks waiting in a single queue, 0 for no limit
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+	
+	/**
+	 * @return the most tasks waiting in all queues together, 0 for no limit
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	/**
+	 * @return the overload policy
+	 */
+	public OverloadPolicy getOverloadPolicy() {
+		return overloadPolicy;
+	}
+	
+	/**
+	 * @return the tasks waiting in all queues, only counted while there are limits
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * @return the tasks rejected since the engine was created
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	/**
+	 * @return the tasks dropped since the engine was created
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	/**
+	 * Stops reading from a channel when it has as many stanzas waiting to be handled as the high watermark, 
+	 * or when it is not writable, and reads again once it is back down to the low watermark and writable. 
+	 * Set before any channel has published stanzas.
+	 * 
+	 * @param lowWatermark
+	 * @param highWatermark 0 to always read
+	 */
+	public void setReadWatermarks(int lowWatermark, int highWatermark) {
+		if (lowWatermark < 0 || highWatermark < 0 || (highWatermark > 0 && lowWatermark >= highWatermark)) {
+			throw new IllegalArgumentException("The low read watermark must be below the high one, were " + lowWatermark + " and " + highWatermark);
+		}
+		
+		this.lowReadWatermark = lowWatermark;
+		this.highReadWatermark = highWatermark;
+	}
+	
+	/**
+	 * @return the pending stanzas a channel reads again at
+	 */
+	public int getLowReadWatermark() {
+		return lowReadWatermark;
+	}
+	
+	/**
+	 * @return the pending stanzas a channel stops reading at, 0 for no watermarks
+	 */
+	public int getHighReadWatermark() {
+		return highReadWatermark;
+	}
+	
+	/**
+	 * @param channel
+	 * @return the stanzas of a channel waiting to be handled, only counted while there are read watermarks
+	 */
+	public int getPendingStanzaCount(Channel channel) {
+		KixmppReadThrottle throttle = KixmppReadThrottle.find(channel);
+		
+		return throttle == null ? 0 : throttle.getPendingStanzas();
+	}
+	
+	/**
+	 * @param channel
+	 * @return whether reading from a channel was stopped by the read watermarks
+	 */
+	public boolean isReadSuspended(Channel channel) {
+		KixmppReadThrottle throttle = KixmppReadThrottle.find(channel);
+		
+		return throttle != null && throttle.isSuspended();
+	}
+	
+	/**
+	 * @return the times reading from a channel was stopped since the engine was created
+	 */
+	public long getReadSuspendedCount() {
+		return readSuspendedCount.get();
+	}
+	
+	/**
+	 * Stops or resumes reading from a channel whose writability changed, call it from 
+	 * {@link io.netty.channel.ChannelInboundHandler#channelWritabilityChanged(io.netty.channel.ChannelHandlerContext)}.
+	 * 
+	 * @param channel
+	 */
+	public void handleWritabilityChanged(Channel channel) {
+		KixmppReadThrottle throttle = getReadThrottle(channel);
+		
+		if (throttle != null) {
+			throttle.update();
+		}
+	}
+	
+	/**
+	 * @param channel
+	 * @return the read throttle of a channel, or null if there are no read watermarks
+	 */
+	private KixmppReadThrottle getReadThrottle(Channel channel) {
+		int highReadWatermark = this.highReadWatermark;
+		
+		if (highReadWatermark == 0 || channel == null) {
+			return null;
+		}
+		
+		return KixmppReadThrottle.get(channel, lowReadWatermark, highReadWatermark, readSuspendedCount);
+	}
+	
 	/**
 	 * Publishes a stanza.
 	 * 
@@ -69,93 +391,440 @@ public class KixmppEventEngine {
 	 * @param stanza
 	 */
 	public void publishStanza(Channel channel, Element stanza) {
+		publishStanza(channel, KixmppStanza.fromElement(stanza));
+	}
+	
+	/**
+	 * Publishes a stanza. All of its handlers run in a single task, which holds its own reference to the stanza, 
+	 * the caller still has to release its reference.
+	 * 
+	 * @param channel
+	 * @param stanza
+	 */
+	public void publishStanza(Channel channel, KixmppStanza stanza) {
 		String to = stanza.getAttributeValue("to");
 		
-		DispatchQueue queue;
+		KixmppStanzaHandler[] handlers = stanzaHandlerIndex.get(stanza, to);
 		
-		try {
-			if (to != null) {
-				queue = queues.get("address:" + to);
+		if (handlers.length == 0) {
+			return;
+		}
+		
+		EventQueue queue = isChannelStanza(stanza, to) ? getChannelExecutor(channel) : getAddressQueue(to);
+		
+		ExecuteStanzaHandlers task = new ExecuteStanzaHandlers(channel, handlers, stanza);
+		task.throttle(getReadThrottle(channel));
+		
+		execute(queue, task);
+	}
+	
+	/**
+	 * Publishes stanzas that were received together. Stanzas for the same queue are handled by a single task, 
+	 * in the order they are in the list, so stanzas to the same address are still handled in order. 
+	 * Every task holds its own reference to the stanzas it handles, the caller still has to release its references.
+	 * 
+	 * @param channel
+	 * @param stanzas
+	 */
+	public void publishStanzas(Channel channel, List<KixmppStanza> stanzas) {
+		if (stanzas.size() == 1) {
+			publishStanza(channel, stanzas.get(0));
+			return;
+		}
+		
+		EventQueue channelQueue = null;
+		
+		KixmppStanzaHandlerIndex index = stanzaHandlerIndex;
+		
+		// stanzas whose queues are the same share a task, with striping that can be several addresses
+		Map<EventQueue, ExecuteStanzaHandlers> tasks = new LinkedHashMap<>();
+		
+		for (KixmppStanza stanza : stanzas) {
+			String to = stanza.getAttributeValue("to");
+			
+			KixmppStanzaHandler[] handlers = index.get(stanza, to);
+			
+			if (handlers.length == 0) {
+				continue;
+			}
+			
+			EventQueue queue;
+			
+			if (!isChannelStanza(stanza, to)) {
+				queue = getAddressQueue(to);
 			} else {
-				queue = queues.get("channel:" + channel.hashCode());
+				if (channelQueue == null) {
+					channelQueue = getChannelExecutor(channel);
+				}
+				
+				queue = channelQueue;
+			}
+			
+			ExecuteStanzaHandlers task = tasks.get(queue);
+			
+			if (task == null) {
+				task = new ExecuteStanzaHandlers(channel);
+				tasks.put(queue, task);
 			}
+			
+			task.add(handlers, stanza);
+		}
+		
+		KixmppReadThrottle throttle = tasks.isEmpty() ? null : getReadThrottle(channel);
+		
+		for (Map.Entry<EventQueue, ExecuteStanzaHandlers> task : tasks.entrySet()) {
+			task.getValue().throttle(throttle);
+			
+			execute(task.getKey(), task.getValue());
+		}
+	}
+	
+	/**
+	 * Gets the queue with the given name.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private EventQueue getQueue(String name) {
+		try {
+			return queues.get(name);
 		} catch (ExecutionException e) {
 			throw new RuntimeException(e);
 		}
+	}
+	
+	/**
+	 * Gets the queue of an address.
+	 * 
+	 * @param address a full JID
+	 * @return
+	 */
+	private EventQueue getAddressQueue(String address) {
+		if (stripes != null) {
+			return getStripe(address.hashCode());
+		}
 		
-		if (to != null) {
-			Set<KixmppStanzaHandler> recipientHandlers = stanzaHandlers.get(Tuple.from(stanza.getQualifiedName(), KixmppJid.fromRawJid(to)));
+		return getQueue("address:" + address);
+	}
+	
+	/**
+	 * Gets the queue of an address, the same one {@link #getAddressQueue(String)} gets for its full JID.
+	 * 
+	 * @param jid
+	 * @return
+	 */
+	private EventQueue getAddressQueue(KixmppJid jid) {
+		if (stripes != null) {
+			return getStripe(fullJidHashCode(jid));
+		}
+		
+		return getQueue("address:" + jid.getFullJid());
+	}
+	
+	/**
+	 * Gets the queue of a channel.
+	 * 
+	 * @param channel
+	 * @return
+	 */
+	private EventQueue getChannelQueue(Channel channel) {
+		if (stripes != null) {
+			return getStripe(channel.hashCode());
+		}
+		
+		return getQueue("channel:" + channel.hashCode());
+	}
+	
+	/**
+	 * Gets where the events of a channel run.
+	 * 
+	 * @param channel
+	 * @return
+	 */
+	private EventQueue getChannelExecutor(Channel channel) {
+		if (channelExecutionMode == ChannelExecutionMode.EVENT_LOOP) {
+			Attribute<EventQueue> queueAttribute = channel.attr(EVENT_LOOP_QUEUE);
+			EventQueue queue = queueAttribute.get();
 			
-			if (recipientHandlers != null) {
-				for (KixmppStanzaHandler handler : recipientHandlers) {
-					queue.execute(new ExecuteStanzaHandler(handler, channel, stanza));
+			if (queue == null) {
+				queue = new EventQueue(channel.eventLoop(), inFlight);
+				
+				EventQueue existingQueue = queueAttribute.setIfAbsent(queue);
+				
+				if (existingQueue != null) {
+					queue = existingQueue;
 				}
 			}
 			
-			recipientHandlers = stanzaHandlers.get(Tuple.from(HANDLER_WILDCARD, KixmppJid.fromRawJid(to)));
-			
-			if (recipientHandlers != null) {
-				for (KixmppStanzaHandler handler : recipientHandlers) {
-					queue.execute(new ExecuteStanzaHandler(handler, channel, stanza));
-				}
-			}
+			return queue;
 		}
 		
-		Set<KixmppStanzaHandler> globalHandlers = stanzaHandlers.get(Tuple.from(stanza.getQualifiedName()));
+		return getChannelQueue(channel);
+	}
+	
+	/**
+	 * Whether a stanza is an event of the channel it came from rather than of its recipient. 
+	 * IQs to the server are answered on the channel that sent them, so they are when running on event loops. 
+	 * IQs to anyone else stay in order with the other stanzas to that address.
+	 * 
+	 * @param stanza
+	 * @param to
+	 * @return
+	 */
+	private boolean isChannelStanza(KixmppStanza stanza, String to) {
+		if (to == null) {
+			return true;
+		}
 		
-		if (globalHandlers != null) {
-			for (KixmppStanzaHandler handler : globalHandlers) {
-				queue.execute(new ExecuteStanzaHandler(handler, channel, stanza));
-			}
+		if (channelExecutionMode != ChannelExecutionMode.EVENT_LOOP || !"iq".equals(stanza.getQualifiedName())) {
+			return false;
 		}
 		
-		globalHandlers = stanzaHandlers.get(Tuple.from(HANDLER_WILDCARD));
+		String localDomain = this.localDomain;
 		
-		if (globalHandlers != null) {
-			for (KixmppStanzaHandler handler : globalHandlers) {
-				queue.execute(new ExecuteStanzaHandler(handler, channel, stanza));
-			}
+		return localDomain != null && localDomain.equalsIgnoreCase(to);
+	}
+	
+	private EventQueue getStripe(int hashCode) {
+		// string hashes are weak in the low bits
+		return stripes[(hashCode ^ (hashCode >>> 16)) & stripeMask];
+	}
+	
+	/**
+	 * Hashes a JID the way {@link String#hashCode()} hashes {@link KixmppJid#getFullJid()}, without building the string.
+	 * 
+	 * @param jid
+	 * @return
+	 */
+	static int fullJidHashCode(KixmppJid jid) {
+		int hashCode = 0;
+		
+		if (jid.getNode() != null || jid.getResource() != null) {
+			hashCode = hashCode(hashCode, String.valueOf(jid.getNode()));
+			hashCode = 31 * hashCode + '@';
 		}
+		
+		hashCode = hashCode(hashCode, jid.getDomain());
+		
+		if (jid.getResource() != null) {
+			hashCode = 31 * hashCode + '/';
+			hashCode = hashCode(hashCode, jid.getResource());
+		}
+		
+		return hashCode;
+	}
+	
+	private static int hashCode(int hashCode, String value) {
+		for (int i = 0, length = value.length(); i < length; i++) {
+			hashCode = 31 * hashCode + value.charAt(i);
+		}
+		
+		return hashCode;
 	}
 	
 	/**
-	 * Published an arbitrary task for serial execution.
+	 * Published an arbitrary task for serial execution. The task is never dropped.
 	 * 
 	 * @param jid
 	 * @param task
 	 */
 	public void publishTask(KixmppJid jid, Task task) {
-		DispatchQueue queue;
+		publishTask(jid, task, false);
+	}
+	
+	/**
+	 * Published an arbitrary task for serial execution.
+	 * 
+	 * @param jid
+	 * @param task
+	 * @param droppable whether the task may be dropped when its queue is full, only for work driven by a stanza
+	 */
+	public void publishTask(KixmppJid jid, Task task, boolean droppable) {
+		EventQueue queue;
 		
-		try {
-            if (jid != null) {
-                queue = queues.get("address:" + jid.getFullJid());
-            } else {
-                queue = queues.get("default");
-            }
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
+		if (jid != null) {
+			queue = getAddressQueue(jid);
+		} else if (stripes != null) {
+			queue = getStripe(DEFAULT_QUEUE_NAME.hashCode());
+		} else {
+			queue = getQueue(DEFAULT_QUEUE_NAME);
 		}
 		
-		queue.execute(task);
+		execute(queue, new ExecuteTask(task, jid, null, droppable));
 	}
 	
 	/**
-	 * Published an arbitrary task for serial execution.
+	 * Published an arbitrary task for serial execution. The task is never dropped.
 	 * 
 	 * @param channel
 	 * @param task
 	 */
 	public void publishTask(Channel channel, Task task) {
-		DispatchQueue queue;
+		publishTask(channel, task, false);
+	}
+	
+	/**
+	 * Published an arbitrary task for serial execution.
+	 * 
+	 * @param channel
+	 * @param task
+	 * @param droppable whether the task may be dropped when its queue is full, only for work driven by a stanza
+	 */
+	public void publishTask(Channel channel, Task task, boolean droppable) {
+		execute(getChannelExecutor(channel), new ExecuteTask(task, null, channel, droppable));
+	}
+	
+	/**
+	 * Runs a task on a queue, unless the queue is full.
+	 * 
+	 * @param queue
+	 * @param task
+	 */
+	private void execute(EventQueue queue, BatchedTask task) {
+		int maxQueueDepth = this.maxQueueDepth;
+		int maxInFlight = this.maxInFlight;
+		
+		if (maxQueueDepth == 0 && maxInFlight == 0) {
+			queue.executor.execute(task);
+			return;
+		}
+		
+		if (!task.isDroppable()) {
+			queue.offer(task);
+			return;
+		}
+		
+		int depth = queue.depth.incrementAndGet();
+		int flight = inFlight.incrementAndGet();
+		
+		if ((maxQueueDepth > 0 && depth > maxQueueDepth) || (maxInFlight > 0 && flight > maxInFlight)) {
+			OverloadPolicy policy = overloadPolicy;
+			
+			if (policy == OverloadPolicy.DROP_OLDEST) {
+				BatchedTask oldestTask = queue.pollOldestDroppable();
+				
+				if (oldestTask != null) {
+					queue.depth.decrementAndGet();
+					inFlight.decrementAndGet();
+					
+					discard(oldestTask, policy);
+					queue.offer(task);
+					return;
+				}
+				
+				// nothing of this queue to make room with when it's the other queues that are full
+				policy = OverloadPolicy.DROP_NEWEST;
+			}
+			
+			queue.depth.decrementAndGet();
+			inFlight.decrementAndGet();
+			
+			discard(task, policy);
+			return;
+		}
+		
+		queue.offer(task);
+	}
+	
+	/**
+	 * Gives up on a task that did not fit in its queue.
+	 * 
+	 * @param task
+	 * @param policy
+	 */
+	private void discard(BatchedTask task, OverloadPolicy policy) {
+		if (policy == OverloadPolicy.REJECT) {
+			rejectedCount.incrementAndGet();
+		} else {
+			droppedCount.incrementAndGet();
+		}
 		
 		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
+			for (KixmppOverloadHandler handler : overloadHandlers) {
+				try {
+					handler.handleOverload(task.getAddress(), task.getChannel(), task.getStanzas(), policy);
+				} catch (Exception e) {
+					logger.error("Overload handler [{}] threw an exception.", handler, e);
+				}
+			}
+			
+			if (policy == OverloadPolicy.REJECT && task.getChannel() != null) {
+				for (KixmppStanza stanza : task.getStanzas()) {
+					Element error = createResourceConstraintError(stanza);
+					
+					if (error != null) {
+						task.getChannel().writeAndFlush(error);
+					}
+				}
+			}
+		} finally {
+			task.discard();
 		}
-
-		queue.execute(task);
+	}
+	
+	/**
+	 * Creates the error a stanza that is not handled is answered with.
+	 * 
+	 * @param stanza
+	 * @return the error, or null if the stanza is not answered
+	 */
+	private static Element createResourceConstraintError(KixmppStanza stanza) {
+		String name = stanza.getQualifiedName();
+		
+		if (!("message".equals(name) || "presence".equals(name) || "iq".equals(name)) || "error".equals(stanza.getAttributeValue("type"))) {
+			return null;
+		}
+		
+		Element error = new Element(name);
+		error.setAttribute("type", "error");
+		
+		String id = stanza.getAttributeValue("id");
+		
+		if (id != null) {
+			error.setAttribute("id", id);
+		}
+		
+		String from = stanza.getAttributeValue("from");
+		
+		if (from != null) {
+			error.setAttribute("to", from);
+		}
+		
+		String to = stanza.getAttributeValue("to");
+		
+		if (to != null) {
+			error.setAttribute("from", to);
+		}
+		
+		Element condition = new Element("error");
+		condition.setAttribute("type", "wait");
+		condition.addContent(new Element("resource-constraint", STANZA_ERROR_NAMESPACE));
+		
+		error.addContent(condition);
+		
+		return error;
+	}
+	
+	/**
+	 * Writes a message from a handler or task of this engine. The channel is flushed once when the task is done, 
+	 * however many messages were written to it, outside of a task the message is flushed right away.
+	 * 
+	 * @param channel
+	 * @param msg
+	 * @return
+	 */
+	public ChannelFuture write(Channel channel, Object msg) {
+		return KixmppWriteBatch.current().write(channel, msg);
+	}
+	
+	/**
+	 * Runs a task on the calling thread the way this engine runs its own, flushing what it wrote with 
+	 * {@link #write(Channel, Object)} when it is done.
+	 * 
+	 * @param task
+	 */
+	public void runTask(Runnable task) {
+		KixmppWriteBatch.current().run(task);
 	}
 	
 	/**
@@ -164,16 +833,10 @@ public class KixmppEventEngine {
 	 * @param channel
 	 */
 	public void publishConnected(Channel channel) {
-		DispatchQueue queue;
-		
-		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
-		}
+		EventQueue queue = getChannelExecutor(channel);
 		
 		for (KixmppConnectionHandler handler : connectionHandlers) {
-			queue.execute(new ExecuteConnectionConnectedHandler(handler, channel));
+			execute(queue, new ExecuteConnectionConnectedHandler(handler, channel));
 		}
 	}
 	
@@ -183,16 +846,10 @@ public class KixmppEventEngine {
 	 * @param channel
 	 */
 	public void publishDisconnected(Channel channel) {
-		DispatchQueue queue;
-		
-		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
-		}
+		EventQueue queue = getChannelExecutor(channel);
 		
 		for (KixmppConnectionHandler handler : connectionHandlers) {
-			queue.execute(new ExecuteConnectionDisconnectedHandler(handler, channel));
+			execute(queue, new ExecuteConnectionDisconnectedHandler(handler, channel));
 		}
 	}
 	
@@ -203,16 +860,10 @@ public class KixmppEventEngine {
 	 * @param streamStart
 	 */
 	public void publishStreamStart(Channel channel, KixmppStreamStart streamStart) {
-		DispatchQueue queue;
-		
-		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
-		}
+		EventQueue queue = getChannelExecutor(channel);
 		
 		for (KixmppStreamHandler handler : streamHandlers) {
-			queue.execute(new ExecuteStreamStartHandler(handler, channel, streamStart));
+			execute(queue, new ExecuteStreamStartHandler(handler, channel, streamStart));
 		}
 	}
 	
@@ -223,16 +874,10 @@ public class KixmppEventEngine {
 	 * @param streamEnd
 	 */
 	public void publishStreamEnd(Channel channel, KixmppStreamEnd streamEnd) {
-		DispatchQueue queue;
-		
-		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
-		}
+		EventQueue queue = getChannelExecutor(channel);
 		
 		for (KixmppStreamHandler handler : streamHandlers) {
-			queue.execute(new ExecuteStreamEndHandler(handler, channel, streamEnd));
+			execute(queue, new ExecuteStreamEndHandler(handler, channel, streamEnd));
 		}
 	}
 
@@ -242,16 +887,10 @@ public class KixmppEventEngine {
 	 * @param channel
 	 */
 	public void publishSessionStart(Channel channel) {
-		DispatchQueue queue;
-
-		try {
-			queue = queues.get("channel:" + channel.hashCode());
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
-		}
+		EventQueue queue = getChannelExecutor(channel);
 
 		for (KixmppSessionHandler handler : sessionHandlers) {
-			queue.execute(new ExecuteSessionStartHandler(handler, channel));
+			execute(queue, new ExecuteSessionStartHandler(handler, channel));
 		}
 	}
 
@@ -309,6 +948,24 @@ public class KixmppEventEngine {
 		sessionHandlers.remove(handler);
 	}
 
+	/**
+	 * Registers a handler to listen to tasks that were rejected or dropped.
+	 *
+	 * @param handler
+	 */
+	public void registerOverloadHandler(KixmppOverloadHandler handler) {
+		overloadHandlers.add(handler);
+	}
+
+	/**
+	 * Unregisters an overload handler.
+	 *
+	 * @param handler
+	 */
+	public void unregisterOverloadHandler(KixmppOverloadHandler handler) {
+		overloadHandlers.remove(handler);
+	}
+
 	/**
 	 * Registers a stanza handler.
 	 * 
@@ -317,21 +974,18 @@ public class KixmppEventEngine {
 	 * @param handler
 	 */
 	public void registerStanzaHandler(KixmppJid jid, String qualifiedName, KixmppStanzaHandler handler) {
-		Tuple key = Tuple.from(qualifiedName, jid);
-		
-		Set<KixmppStanzaHandler> handlers = stanzaHandlers.get(key);
-		
-		if (handlers == null) {
-			Set<KixmppStanzaHandler> newHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppStanzaHandler, Boolean>());
-			
-			handlers = stanzaHandlers.putIfAbsent(key, newHandlers);
+		synchronized (stanzaHandlersLock) {
+			Map<String, Set<KixmppStanzaHandler>> handlers = jidStanzaHandlers.get(jid);
 			
 			if (handlers == null) {
-				handlers = newHandlers;
+				handlers = new HashMap<>();
+				jidStanzaHandlers.put(jid, handlers);
 			}
-        }
-		
-		handlers.add(handler);
+			
+			if (addStanzaHandler(handlers, qualifiedName, handler)) {
+				rebuildStanzaHandlerIndex();
+			}
+		}
 	}
 	
 	/**
@@ -350,21 +1004,26 @@ public class KixmppEventEngine {
 	 * @param handler
 	 */
 	public void registerGlobalStanzaHandler(String qualifiedName, KixmppStanzaHandler handler) {
-		Tuple key = Tuple.from(qualifiedName);
-		
-		Set<KixmppStanzaHandler> handlers = stanzaHandlers.get(key);
+		registerGlobalStanzaHandler(qualifiedName, null, null, handler);
+	}
+	
+	/**
+	 * Registers a stanza handler that only runs for stanzas with the given type and first child, 
+	 * so stanzas meant for other handlers are never scheduled for it.
+	 * 
+	 * @param qualifiedName
+	 * @param type the type attribute, null for any
+	 * @param childNamespaceURI the namespace of the first child, null for any
+	 * @param handler
+	 */
+	public void registerGlobalStanzaHandler(String qualifiedName, String type, String childNamespaceURI, KixmppStanzaHandler handler) {
+		Selector selector = toSelector(qualifiedName, type, childNamespaceURI);
 		
-		if (handlers == null) {
-			Set<KixmppStanzaHandler> newHandlers = Collections.newSetFromMap(new ConcurrentHashMap<KixmppStanzaHandler, Boolean>());
-			
-			handlers = stanzaHandlers.putIfAbsent(key, newHandlers);
-			
-			if (handlers == null) {
-				handlers = newHandlers;
+		synchronized (stanzaHandlersLock) {
+			if (addStanzaHandler(globalStanzaHandlers, selector, handler)) {
+				rebuildStanzaHandlerIndex();
 			}
-        }
-		
-		handlers.add(handler);
+		}
 	}
 	
 	/**
@@ -384,10 +1043,16 @@ public class KixmppEventEngine {
 	 * @param handler
 	 */
 	public void unregisterStanzaHandler(KixmppJid jid, String qualifiedName, KixmppStanzaHandler handler) {
-		Set<KixmppStanzaHandler> handlers = stanzaHandlers.get(Tuple.from(qualifiedName, jid));
-		
-		if (handlers != null) {
-			handlers.remove(handler);
+		synchronized (stanzaHandlersLock) {
+			Map<String, Set<KixmppStanzaHandler>> handlers = jidStanzaHandlers.get(jid);
+			
+			if (handlers != null && removeStanzaHandler(handlers, qualifiedName, handler)) {
+				if (handlers.isEmpty()) {
+					jidStanzaHandlers.remove(jid);
+				}
+				
+				rebuildStanzaHandlerIndex();
+			}
 		}
 	}
 	
@@ -408,10 +1073,24 @@ public class KixmppEventEngine {
 	 * @param handler
 	 */
 	public void unregisterGlobalStanzaHandler(String qualifiedName, KixmppStanzaHandler handler) {
-		Set<KixmppStanzaHandler> handlers = stanzaHandlers.get(Tuple.from(qualifiedName));
+		unregisterGlobalStanzaHandler(qualifiedName, null, null, handler);
+	}
+	
+	/**
+	 * Unregisters a stanza handler.
+	 * 
+	 * @param qualifiedName
+	 * @param type
+	 * @param childNamespaceURI
+	 * @param handler
+	 */
+	public void unregisterGlobalStanzaHandler(String qualifiedName, String type, String childNamespaceURI, KixmppStanzaHandler handler) {
+		Selector selector = toSelector(qualifiedName, type, childNamespaceURI);
 		
-		if (handlers != null) {
-			handlers.remove(handler);
+		synchronized (stanzaHandlersLock) {
+			if (removeStanzaHandler(globalStanzaHandlers, selector, handler)) {
+				rebuildStanzaHandlerIndex();
+			}
 		}
 	}
 	
@@ -428,29 +1107,286 @@ public class KixmppEventEngine {
 	 * Unregisters all the handlers.
 	 */
 	public void unregisterAll() {
-		stanzaHandlers.clear();
+		synchronized (stanzaHandlersLock) {
+			globalStanzaHandlers.clear();
+			jidStanzaHandlers.clear();
+			
+			stanzaHandlerIndex = KixmppStanzaHandlerIndex.EMPTY;
+		}
+		
 		connectionHandlers.clear();
 		streamHandlers.clear();
 		sessionHandlers.clear();
+		overloadHandlers.clear();
+	}
+	
+	private static Selector toSelector(String qualifiedName, String type, String childNamespaceURI) {
+		if (HANDLER_WILDCARD.equals(qualifiedName) && (type != null || childNamespaceURI != null)) {
+			throw new IllegalArgumentException("A wildcard handler cannot select stanzas by type or child namespace");
+		}
+		
+		return new Selector(qualifiedName, type, childNamespaceURI);
+	}
+	
+	private static <K> boolean addStanzaHandler(Map<K, Set<KixmppStanzaHandler>> handlers, K key, KixmppStanzaHandler handler) {
+		Set<KixmppStanzaHandler> keyHandlers = handlers.get(key);
+		
+		if (keyHandlers == null) {
+			keyHandlers = new LinkedHashSet<>();
+			handlers.put(key, keyHandlers);
+		}
+		
+		return keyHandlers.add(handler);
+	}
+	
+	private static <K> boolean removeStanzaHandler(Map<K, Set<KixmppStanzaHandler>> handlers, K key, KixmppStanzaHandler handler) {
+		Set<KixmppStanzaHandler> keyHandlers = handlers.get(key);
+		
+		if (keyHandlers == null || !keyHandlers.remove(handler)) {
+			return false;
+		}
+		
+		if (keyHandlers.isEmpty()) {
+			handlers.remove(key);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Rebuilds the index stanzas are dispatched with, has to hold the lock.
+	 */
+	private void rebuildStanzaHandlerIndex() {
+		stanzaHandlerIndex = KixmppStanzaHandlerIndex.build(globalStanzaHandlers, jidStanzaHandlers);
+	}
+	
+	/**
+	 * A serial executor, with the tasks waiting in it when its depth is bounded.
+	 */
+	private static final class EventQueue implements Runnable {
+		private final Executor executor;
+		private final AtomicInteger inFlight;
+		
+		private final ConcurrentLinkedQueue<BatchedTask> pending = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger depth = new AtomicInteger();
+		
+		public EventQueue(Executor executor, AtomicInteger inFlight) {
+			this.executor = executor;
+			this.inFlight = inFlight;
+		}
+		
+		/**
+		 * Adds a task, the executor runs a task of this queue for every one added, so they run in order.
+		 * 
+		 * @param task
+		 */
+		public void offer(BatchedTask task) {
+			pending.offer(task);
+			executor.execute(this);
+		}
+		
+		/**
+		 * Removes the oldest waiting task that can be dropped.
+		 * 
+		 * @return the task or null if there is none
+		 */
+		public BatchedTask pollOldestDroppable() {
+			for (Iterator<BatchedTask> iterator = pending.iterator(); iterator.hasNext();) {
+				BatchedTask task = iterator.next();
+				
+				// the task only counts as dropped if it did not start running in the meantime
+				if (task.isDroppable() && pending.remove(task)) {
+					return task;
+				}
+			}
+			
+			return null;
+		}
+		
+		public void run() {
+			// a queue that had a task dropped can be run once more than it has tasks
+			BatchedTask task = pending.poll();
+			
+			if (task == null) {
+				return;
+			}
+			
+			if (task.isDroppable()) {
+				depth.decrementAndGet();
+				inFlight.decrementAndGet();
+			}
+			
+			task.run();
+		}
 	}
 	
-	private static class ExecuteStanzaHandler extends Task {
-		private final KixmppStanzaHandler handler;
+	/**
+	 * A task whose writes made with {@link KixmppEventEngine#write(Channel, Object)} are flushed when it is done.
+	 */
+	private static abstract class BatchedTask extends Task {
+		public final void run() {
+			KixmppWriteBatch batch = KixmppWriteBatch.current();
+			
+			batch.begin();
+			
+			try {
+				execute();
+			} finally {
+				batch.end();
+			}
+		}
+		
+		protected abstract void execute();
+		
+		/**
+		 * @return whether the task may be dropped when its queue is full
+		 */
+		public boolean isDroppable() {
+			return false;
+		}
+		
+		public KixmppJid getAddress() {
+			return null;
+		}
+		
+		public Channel getChannel() {
+			return null;
+		}
+		
+		public List<KixmppStanza> getStanzas() {
+			return Collections.emptyList();
+		}
+		
+		/**
+		 * Lets go of what the task holds when it is dropped instead of run.
+		 */
+		public void discard() {
+		}
+	}
+	
+	private static class ExecuteTask extends BatchedTask {
+		private final Runnable task;
+		private final KixmppJid address;
 		private final Channel channel;
-		private final Element stanza;
+		private final boolean droppable;
 		
-		public ExecuteStanzaHandler(KixmppStanzaHandler handler, Channel channel, Element stanza) {
-			this.handler = handler;
+		public ExecuteTask(Runnable task, KixmppJid address, Channel channel, boolean droppable) {
+			this.task = task;
+			this.address = address;
 			this.channel = channel;
-			this.stanza = stanza;
+			this.droppable = droppable;
 		}
 
-		public void run() {
-			handler.handle(channel, stanza);
+		protected void execute() {
+			task.run();
+		}
+		
+		public boolean isDroppable() {
+			return droppable;
+		}
+		
+		public KixmppJid getAddress() {
+			return address;
+		}
+		
+		public Channel getChannel() {
+			return channel;
 		}
 	}
 	
-	private static class ExecuteConnectionConnectedHandler extends Task {
+	private static class ExecuteStanzaHandlers extends BatchedTask {
+		private final Channel channel;
+		private final List<KixmppStanzaHandler[]> handlers = new ArrayList<>(1);
+		private final List<KixmppStanza> stanzas = new ArrayList<>(1);
+		private KixmppReadThrottle throttle;
+		
+		public ExecuteStanzaHandlers(Channel channel) {
+			this.channel = channel;
+		}
+		
+		public ExecuteStanzaHandlers(Channel channel, KixmppStanzaHandler[] handlers, KixmppStanza stanza) {
+			this(channel);
+			
+			add(handlers, stanza);
+		}
+		
+		public void add(KixmppStanzaHandler[] stanzaHandlers, KixmppStanza stanza) {
+			handlers.add(stanzaHandlers);
+			stanzas.add(stanza.retain());
+		}
+		
+		/**
+		 * Counts the stanzas of this task as pending on the channel until the task is run or dropped.
+		 * 
+		 * @param throttle may be null
+		 */
+		public void throttle(KixmppReadThrottle throttle) {
+			if (throttle != null) {
+				this.throttle = throttle;
+				
+				throttle.added(stanzas.size());
+			}
+		}
+		
+		public boolean isDroppable() {
+			return true;
+		}
+		
+		public KixmppJid getAddress() {
+			String to = stanzas.get(0).getAttributeValue("to");
+			
+			return to == null ? null : KixmppJid.fromRawJid(to);
+		}
+		
+		public Channel getChannel() {
+			return channel;
+		}
+		
+		public List<KixmppStanza> getStanzas() {
+			return stanzas;
+		}
+		
+		public void discard() {
+			for (int i = 0, size = stanzas.size(); i < size; i++) {
+				stanzas.get(i).release();
+			}
+			
+			if (throttle != null) {
+				throttle.done(stanzas.size());
+			}
+		}
+
+		protected void execute() {
+			for (int i = 0, size = stanzas.size(); i < size; i++) {
+				KixmppStanzaHandler[] stanzaHandlers = handlers.get(i);
+				KixmppStanza stanza = stanzas.get(i);
+				
+				try {
+					for (KixmppStanzaHandler handler : stanzaHandlers) {
+						// a failing handler does not keep the other handlers from running
+						try {
+							if (handler instanceof KixmppStanzaModelHandler) {
+								((KixmppStanzaModelHandler)handler).handle(channel, stanza);
+							} else {
+								// the JDOM view is built once and shared by all the handlers
+								handler.handle(channel, stanza.toElement());
+							}
+						} catch (Exception e) {
+							logger.error("Stanza handler [{}] threw an exception.", handler, e);
+						}
+					}
+				} finally {
+					stanza.release();
+					
+					if (throttle != null) {
+						throttle.done(1);
+					}
+				}
+			}
+		}
+	}
+	
+	private static class ExecuteConnectionConnectedHandler extends BatchedTask {
 		private final KixmppConnectionHandler handler;
 		private final Channel channel;
 		
@@ -459,12 +1395,12 @@ public class KixmppEventEngine {
 			this.channel = channel;
 		}
 
-		public void run() {
+		protected void execute() {
 			handler.handleConnected(channel);
 		}
 	}
 	
-	private static class ExecuteConnectionDisconnectedHandler extends Task {
+	private static class ExecuteConnectionDisconnectedHandler extends BatchedTask {
 		private final KixmppConnectionHandler handler;
 		private final Channel channel;
 		
@@ -473,12 +1409,12 @@ public class KixmppEventEngine {
 			this.channel = channel;
 		}
 
-		public void run() {
+		protected void execute() {
 			handler.handleDisconnected(channel);
 		}
 	}
 	
-	private static class ExecuteStreamStartHandler extends Task {
+	private static class ExecuteStreamStartHandler extends BatchedTask {
 		private final KixmppStreamHandler handler;
 		private final Channel channel;
 		private final KixmppStreamStart start;
@@ -489,12 +1425,12 @@ public class KixmppEventEngine {
 			this.start = start;
 		}
 
-		public void run() {
+		protected void execute() {
 			handler.handleStreamStart(channel, start);
 		}
 	}
 	
-	private static class ExecuteStreamEndHandler extends Task {
+	private static class ExecuteStreamEndHandler extends BatchedTask {
 		private final KixmppStreamHandler handler;
 		private final Channel channel;
 		private final KixmppStreamEnd end;
@@ -505,12 +1441,12 @@ public class KixmppEventEngine {
 			this.end = end;
 		}
 
-		public void run() {
+		protected void execute() {
 			handler.handleStreamEnd(channel, end);
 		}
 	}
 
-	private static class ExecuteSessionStartHandler extends Task {
+	private static class ExecuteSessionStartHandler extends BatchedTask {
 		private final KixmppSessionHandler handler;
 		private final Channel channel;
 
@@ -519,7 +1455,7 @@ public class KixmppEventEngine {
 			this.channel = channel;
 		}
 
-		public void run() {
+		protected void execute() {
 			handler.handleSessionStart(channel);
 		}
 	}
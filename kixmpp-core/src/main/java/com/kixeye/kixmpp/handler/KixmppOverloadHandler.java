@@ -0,0 +1,45 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+
+import java.util.List;
+
+import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.handler.KixmppEventEngine.OverloadPolicy;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Handles work the event engine did not run because a queue was full.
+ */
+public interface KixmppOverloadHandler {
+	/**
+	 * Handles a task that was rejected or dropped. Called on the thread that published the task 
+	 * that overflowed the queue, so it must not block.
+	 * 
+	 * @param address the address the task was published for, null if it was published for a channel
+	 * @param channel the channel the stanzas came from or the task was published for, can be null
+	 * @param stanzas the stanzas that were not handled, empty for tasks, only valid during the call
+	 * @param policy what was done with the task
+	 */
+	public void handleOverload(KixmppJid address, Channel channel, List<KixmppStanza> stanzas, OverloadPolicy policy);
+}
@@ -0,0 +1,146 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops reading from a channel while too many of its stanzas wait in the {@link KixmppEventEngine}, 
+ * or while its outbound buffer is full, so a fast sender is held back by TCP instead of filling the heap.
+ */
+final class KixmppReadThrottle {
+	private static final AttributeKey<KixmppReadThrottle> READ_THROTTLE = AttributeKey.valueOf("kixmppReadThrottle");
+	
+	private final Channel channel;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final AtomicLong suspendedCount;
+	
+	private final AtomicInteger pendingStanzas = new AtomicInteger();
+	private volatile boolean suspended = false;
+	
+	private KixmppReadThrottle(Channel channel, int lowWatermark, int highWatermark, AtomicLong suspendedCount) {
+		this.channel = channel;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.suspendedCount = suspendedCount;
+	}
+	
+	/**
+	 * Gets the throttle of a channel, creating it with the given watermarks if it has none.
+	 * 
+	 * @param channel
+	 * @param lowWatermark
+	 * @param highWatermark
+	 * @param suspendedCount counts the times reading was suspended
+	 * @return
+	 */
+	static KixmppReadThrottle get(Channel channel, int lowWatermark, int highWatermark, AtomicLong suspendedCount) {
+		Attribute<KixmppReadThrottle> throttleAttribute = channel.attr(READ_THROTTLE);
+		KixmppReadThrottle throttle = throttleAttribute.get();
+		
+		if (throttle == null) {
+			throttle = new KixmppReadThrottle(channel, lowWatermark, highWatermark, suspendedCount);
+			
+			KixmppReadThrottle existingThrottle = throttleAttribute.setIfAbsent(throttle);
+			
+			if (existingThrottle != null) {
+				throttle = existingThrottle;
+			}
+		}
+		
+		return throttle;
+	}
+	
+	/**
+	 * @param channel
+	 * @return the throttle of a channel, or null if it has none
+	 */
+	static KixmppReadThrottle find(Channel channel) {
+		return channel.attr(READ_THROTTLE).get();
+	}
+	
+	/**
+	 * @return the stanzas of the channel waiting to be handled
+	 */
+	int getPendingStanzas() {
+		return pendingStanzas.get();
+	}
+	
+	/**
+	 * @return whether reading from the channel is suspended
+	 */
+	boolean isSuspended() {
+		return suspended;
+	}
+	
+	/**
+	 * Counts stanzas that were published, suspending reads at the high watermark.
+	 * 
+	 * @param count
+	 */
+	void added(int count) {
+		if (pendingStanzas.addAndGet(count) >= highWatermark) {
+			update();
+		}
+	}
+	
+	/**
+	 * Counts stanzas that were handled or dropped, resuming reads at the low watermark.
+	 * 
+	 * @param count
+	 */
+	void done(int count) {
+		// suspended is read after the count is written and written before the count is read in update, 
+		// so either this sees the suspension or the suspension sees this count
+		if (pendingStanzas.addAndGet(-count) <= lowWatermark && suspended) {
+			update();
+		}
+	}
+	
+	/**
+	 * Suspends or resumes reading for the current count and writability.
+	 */
+	synchronized void update() {
+		if (!suspended) {
+			if (pendingStanzas.get() < highWatermark && channel.isWritable()) {
+				return;
+			}
+			
+			suspended = true;
+			suspendedCount.incrementAndGet();
+			
+			channel.config().setAutoRead(false);
+		}
+		
+		// Netty's write buffer watermarks already keep writability from flapping
+		if (pendingStanzas.get() <= lowWatermark && channel.isWritable()) {
+			suspended = false;
+			
+			channel.config().setAutoRead(true);
+		}
+	}
+}
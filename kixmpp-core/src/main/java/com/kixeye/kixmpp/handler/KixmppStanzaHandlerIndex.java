@@ -0,0 +1,336 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * An immutable lookup of the stanza handlers that run for a stanza. 
+ * 
+ * <p>Handlers are found by element name, then by the type attribute and then by the namespace of the first child, 
+ * the latter two are only looked at when a handler was registered for them. The handlers of every combination 
+ * are concatenated when the index is built, in the order they run in, so a lookup is a few map gets and allocates 
+ * nothing. An index is rebuilt every time a handler is registered or unregistered.</p>
+ */
+final class KixmppStanzaHandlerIndex {
+	static final String HANDLER_WILDCARD = "*";
+	
+	static final KixmppStanzaHandler[] NO_HANDLERS = new KixmppStanzaHandler[0];
+	
+	static final KixmppStanzaHandlerIndex EMPTY = build(Collections.<Selector, Collection<KixmppStanzaHandler>>emptyMap(), 
+			Collections.<KixmppJid, Map<String, Collection<KixmppStanzaHandler>>>emptyMap());
+	
+	private final HandlersByName globalHandlers;
+	private final Map<String, HandlersByName> jidHandlers;
+	
+	private KixmppStanzaHandlerIndex(HandlersByName globalHandlers, Map<String, HandlersByName> jidHandlers) {
+		this.globalHandlers = globalHandlers;
+		this.jidHandlers = jidHandlers;
+	}
+	
+	/**
+	 * Builds an index. The handlers of the recipient run first, then the global ones. Handlers for an element name run 
+	 * before the wildcard ones, and of those the ones registered for a type and a namespace run before the ones registered 
+	 * for a type, then the ones for a namespace and then the ones for any stanza with that name.
+	 * 
+	 * @param globalHandlers handlers by selector
+	 * @param jidHandlers handlers by recipient and element name
+	 * @return
+	 */
+	static KixmppStanzaHandlerIndex build(Map<Selector, ? extends Collection<KixmppStanzaHandler>> globalHandlers, 
+			Map<KixmppJid, ? extends Map<String, ? extends Collection<KixmppStanzaHandler>>> jidHandlers) {
+		Map<String, Collection<KixmppStanzaHandler>> noHandlers = Collections.emptyMap();
+		
+		Map<String, HandlersByName> jidIndex = new HashMap<>();
+		
+		for (Map.Entry<KixmppJid, ? extends Map<String, ? extends Collection<KixmppStanzaHandler>>> jidEntry : jidHandlers.entrySet()) {
+			jidIndex.put(toKey(jidEntry.getKey()), buildByName(jidEntry.getValue(), globalHandlers));
+		}
+		
+		return new KixmppStanzaHandlerIndex(buildByName(noHandlers, globalHandlers), jidIndex);
+	}
+	
+	/**
+	 * Gets the handlers of a stanza, in the order they run in.
+	 * 
+	 * @param stanza
+	 * @param to the raw recipient, can be null
+	 * @return the handlers, never null
+	 */
+	KixmppStanzaHandler[] get(KixmppStanza stanza, String to) {
+		HandlersByName handlers = globalHandlers;
+		
+		if (to != null && !jidHandlers.isEmpty()) {
+			HandlersByName recipientHandlers = jidHandlers.get(toKey(to));
+			
+			if (recipientHandlers != null) {
+				handlers = recipientHandlers;
+			}
+		}
+		
+		return handlers.get(stanza);
+	}
+	
+	/**
+	 * Builds the handlers by name, with the given recipient handlers ahead of the global ones.
+	 * 
+	 * @param recipientHandlers
+	 * @param globalHandlers
+	 * @return
+	 */
+	private static HandlersByName buildByName(Map<String, ? extends Collection<KixmppStanzaHandler>> recipientHandlers, 
+			Map<Selector, ? extends Collection<KixmppStanzaHandler>> globalHandlers) {
+		Collection<KixmppStanzaHandler> recipientWildcard = recipientHandlers.get(HANDLER_WILDCARD);
+		Collection<KixmppStanzaHandler> globalWildcard = globalHandlers.get(new Selector(HANDLER_WILDCARD, null, null));
+		
+		// the types and namespaces that were registered for, by element name
+		Map<String, Set<String>> types = new HashMap<>();
+		Map<String, Set<String>> namespaces = new HashMap<>();
+		
+		for (String name : recipientHandlers.keySet()) {
+			if (!HANDLER_WILDCARD.equals(name)) {
+				types.put(name, new LinkedHashSet<String>());
+				namespaces.put(name, new LinkedHashSet<String>());
+			}
+		}
+		
+		for (Selector selector : globalHandlers.keySet()) {
+			if (HANDLER_WILDCARD.equals(selector.name)) {
+				continue;
+			}
+			
+			if (!types.containsKey(selector.name)) {
+				types.put(selector.name, new LinkedHashSet<String>());
+				namespaces.put(selector.name, new LinkedHashSet<String>());
+			}
+			
+			if (selector.type != null) {
+				types.get(selector.name).add(selector.type);
+			}
+			
+			if (selector.childNamespaceURI != null) {
+				namespaces.get(selector.name).add(selector.childNamespaceURI);
+			}
+		}
+		
+		Map<String, HandlersByType> byName = new HashMap<>();
+		
+		for (Map.Entry<String, Set<String>> entry : types.entrySet()) {
+			String name = entry.getKey();
+			Collection<KixmppStanzaHandler> recipientNameHandlers = recipientHandlers.get(name);
+			
+			Map<String, HandlersByNamespace> byType = new HashMap<>();
+			
+			for (String type : entry.getValue()) {
+				byType.put(type.intern(), buildByNamespace(name, type, namespaces.get(name), recipientNameHandlers, recipientWildcard, globalHandlers, globalWildcard));
+			}
+			
+			byName.put(name.intern(), new HandlersByType(byType, 
+					buildByNamespace(name, null, namespaces.get(name), recipientNameHandlers, recipientWildcard, globalHandlers, globalWildcard)));
+		}
+		
+		return new HandlersByName(byName, concat(recipientWildcard, globalWildcard));
+	}
+	
+	private static HandlersByNamespace buildByNamespace(String name, String type, Set<String> namespaces, 
+			Collection<KixmppStanzaHandler> recipientNameHandlers, Collection<KixmppStanzaHandler> recipientWildcard,
+			Map<Selector, ? extends Collection<KixmppStanzaHandler>> globalHandlers, Collection<KixmppStanzaHandler> globalWildcard) {
+		Map<String, KixmppStanzaHandler[]> byNamespace = new HashMap<>();
+		
+		for (String namespace : namespaces) {
+			byNamespace.put(namespace.intern(), concat(recipientNameHandlers, recipientWildcard, 
+					type == null ? null : globalHandlers.get(new Selector(name, type, namespace)),
+					type == null ? null : globalHandlers.get(new Selector(name, type, null)),
+					globalHandlers.get(new Selector(name, null, namespace)),
+					globalHandlers.get(new Selector(name, null, null)),
+					globalWildcard));
+		}
+		
+		return new HandlersByNamespace(byNamespace, concat(recipientNameHandlers, recipientWildcard, 
+				type == null ? null : globalHandlers.get(new Selector(name, type, null)),
+				globalHandlers.get(new Selector(name, null, null)),
+				globalWildcard));
+	}
+	
+	/**
+	 * Gets the key of a JID, the raw JID with its domain in lower case.
+	 * 
+	 * @param jid
+	 * @return
+	 */
+	static String toKey(KixmppJid jid) {
+		StringBuilder key = new StringBuilder();
+		
+		if (jid.getNode() != null) {
+			key.append(jid.getNode()).append('@');
+		}
+		
+		key.append(jid.getDomain());
+		
+		if (jid.getResource() != null) {
+			key.append('/').append(jid.getResource());
+		}
+		
+		return key.toString();
+	}
+	
+	/**
+	 * Gets the key of a raw JID. Only {@link KixmppJid} changes a JID, by lower casing its domain, 
+	 * so a raw JID without upper case characters already is its key.
+	 * 
+	 * @param jid
+	 * @return
+	 */
+	static String toKey(String jid) {
+		for (int i = 0, length = jid.length(); i < length; i++) {
+			char c = jid.charAt(i);
+			
+			if (Character.toLowerCase(c) != c) {
+				return toKey(KixmppJid.fromRawJid(jid));
+			}
+		}
+		
+		return jid;
+	}
+	
+	@SafeVarargs
+	private static KixmppStanzaHandler[] concat(Collection<KixmppStanzaHandler>... handlers) {
+		List<KixmppStanzaHandler> result = new ArrayList<>();
+		
+		for (Collection<KixmppStanzaHandler> someHandlers : handlers) {
+			if (someHandlers != null) {
+				result.addAll(someHandlers);
+			}
+		}
+		
+		return result.isEmpty() ? NO_HANDLERS : result.toArray(new KixmppStanzaHandler[result.size()]);
+	}
+	
+	/**
+	 * Selects the stanzas a handler runs for.
+	 */
+	static final class Selector {
+		private final String name;
+		private final String type;
+		private final String childNamespaceURI;
+		
+		/**
+		 * @param name the qualified name of the stanza
+		 * @param type the type attribute, null for any
+		 * @param childNamespaceURI the namespace of the first child, null for any
+		 */
+		public Selector(String name, String type, String childNamespaceURI) {
+			this.name = name;
+			this.type = type;
+			this.childNamespaceURI = childNamespaceURI;
+		}
+
+		public int hashCode() {
+			int result = name.hashCode();
+			result = 31 * result + (type == null ? 0 : type.hashCode());
+			result = 31 * result + (childNamespaceURI == null ? 0 : childNamespaceURI.hashCode());
+			return result;
+		}
+
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			
+			if (!(obj instanceof Selector)) {
+				return false;
+			}
+			
+			Selector other = (Selector)obj;
+			
+			return name.equals(other.name) 
+					&& (type == null ? other.type == null : type.equals(other.type))
+					&& (childNamespaceURI == null ? other.childNamespaceURI == null : childNamespaceURI.equals(other.childNamespaceURI));
+		}
+	}
+	
+	private static class HandlersByName {
+		private final Map<String, HandlersByType> handlers;
+		private final KixmppStanzaHandler[] otherHandlers;
+		
+		public HandlersByName(Map<String, HandlersByType> handlers, KixmppStanzaHandler[] otherHandlers) {
+			this.handlers = handlers;
+			this.otherHandlers = otherHandlers;
+		}
+		
+		public KixmppStanzaHandler[] get(KixmppStanza stanza) {
+			HandlersByType result = handlers.get(stanza.getQualifiedName());
+			
+			return result != null ? result.get(stanza) : otherHandlers;
+		}
+	}
+	
+	private static class HandlersByType {
+		private final Map<String, HandlersByNamespace> handlers;
+		private final HandlersByNamespace otherHandlers;
+		
+		public HandlersByType(Map<String, HandlersByNamespace> handlers, HandlersByNamespace otherHandlers) {
+			this.handlers = handlers;
+			this.otherHandlers = otherHandlers;
+		}
+		
+		public KixmppStanzaHandler[] get(KixmppStanza stanza) {
+			if (handlers.isEmpty()) {
+				return otherHandlers.get(stanza);
+			}
+			
+			HandlersByNamespace result = handlers.get(stanza.getAttributeValue("type"));
+			
+			return result != null ? result.get(stanza) : otherHandlers.get(stanza);
+		}
+	}
+	
+	private static class HandlersByNamespace {
+		private final Map<String, KixmppStanzaHandler[]> handlers;
+		private final KixmppStanzaHandler[] otherHandlers;
+		
+		public HandlersByNamespace(Map<String, KixmppStanzaHandler[]> handlers, KixmppStanzaHandler[] otherHandlers) {
+			this.handlers = handlers;
+			this.otherHandlers = otherHandlers;
+		}
+		
+		public KixmppStanzaHandler[] get(KixmppStanza stanza) {
+			if (handlers.isEmpty()) {
+				return otherHandlers;
+			}
+			
+			// known from the header of a stanza, so the body is not parsed for this
+			KixmppStanzaHandler[] result = handlers.get(stanza.getFirstChildNamespaceURI());
+			
+			return result != null ? result : otherHandlers;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+
+import org.jdom2.Element;
+
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Handles stanzas using the compact {@link KixmppStanza} model. The {@link KixmppEventEngine} 
+ * hands these handlers the decoded stanza directly, so no JDOM tree is built for them.
+ */
+public abstract class KixmppStanzaModelHandler implements KixmppStanzaHandler {
+	/**
+	 * Handles a stanza.
+	 * 
+	 * @param channel
+	 * @param stanza
+	 */
+	public abstract void handle(Channel channel, KixmppStanza stanza);
+	
+	/**
+	 * @see com.kixeye.kixmpp.handler.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+	 */
+	public final void handle(Channel channel, Element stanza) {
+		handle(channel, KixmppStanza.fromElement(stanza));
+	}
+}
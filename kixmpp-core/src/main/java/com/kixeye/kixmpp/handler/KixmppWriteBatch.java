@@ -0,0 +1,111 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The channels written to while a thread runs a task of the {@link KixmppEventEngine}, 
+ * each flushed once when the task is done instead of once per write.
+ * 
+ * <p>Every batch flushes the channels it wrote to itself, even when another thread's batch flushes them too. 
+ * A flush from off the event loop is queued behind the writes before it, one from the event loop is not, 
+ * so only the batch that wrote can be sure its writes are flushed.</p>
+ */
+final class KixmppWriteBatch {
+	private static final ThreadLocal<KixmppWriteBatch> batches = new ThreadLocal<KixmppWriteBatch>() {
+		protected KixmppWriteBatch initialValue() {
+			return new KixmppWriteBatch();
+		}
+	};
+	
+	private final List<Channel> channels = new ArrayList<>();
+	private final Set<Channel> channelSet = new HashSet<>();
+	private int depth = 0;
+	
+	private KixmppWriteBatch() {}
+	
+	/**
+	 * @return the batch of the current thread
+	 */
+	static KixmppWriteBatch current() {
+		return batches.get();
+	}
+	
+	/**
+	 * Runs a task in this batch, nested tasks are flushed with the outermost one.
+	 * 
+	 * @param task
+	 */
+	void run(Runnable task) {
+		begin();
+		
+		try {
+			task.run();
+		} finally {
+			end();
+		}
+	}
+	
+	void begin() {
+		depth++;
+	}
+	
+	void end() {
+		if (--depth == 0) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Writes a message, flushing it when the batch is done or right away when there is no batch running.
+	 * 
+	 * @param channel
+	 * @param msg
+	 * @return
+	 */
+	ChannelFuture write(Channel channel, Object msg) {
+		if (depth == 0) {
+			return channel.writeAndFlush(msg);
+		}
+		
+		if (channelSet.add(channel)) {
+			channels.add(channel);
+		}
+		
+		return channel.write(msg);
+	}
+	
+	private void flush() {
+		for (int i = 0, size = channels.size(); i < size; i++) {
+			channels.get(i).flush();
+		}
+		
+		channels.clear();
+		channelSet.clear();
+	}
+}
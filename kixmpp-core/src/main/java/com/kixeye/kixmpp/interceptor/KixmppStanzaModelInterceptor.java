@@ -0,0 +1,67 @@
+package com.kixeye.kixmpp.interceptor;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+
+import org.jdom2.Element;
+
+import com.kixeye.kixmpp.KixmppStanzaRejectedException;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Intercepts stanzas using the compact {@link KixmppStanza} model, so stanzas that are only routed 
+ * never have a JDOM tree built for them.
+ * 
+ * <p>Outgoing stanzas may be written to several channels at once and must not be modified. Stanzas that 
+ * come in as JDOM {@link Element}s are wrapped, changes to the wrapper are not written back to the element.</p>
+ */
+public abstract class KixmppStanzaModelInterceptor implements KixmppStanzaInterceptor {
+	/**
+	 * Intercepts an incoming stanza.
+	 * 
+	 * @param channel
+	 * @param stanza
+	 */
+	public abstract void interceptIncoming(Channel channel, KixmppStanza stanza) throws KixmppStanzaRejectedException;
+
+	/**
+	 * Intercepts an outgoing stanza.
+	 * 
+	 * @param channel
+	 * @param stanza
+	 */
+	public abstract void interceptOutgoing(Channel channel, KixmppStanza stanza) throws KixmppStanzaRejectedException;
+	
+	/**
+	 * @see com.kixeye.kixmpp.interceptor.KixmppStanzaInterceptor#interceptIncoming(io.netty.channel.Channel, org.jdom2.Element)
+	 */
+	public final void interceptIncoming(Channel channel, Element stanza) throws KixmppStanzaRejectedException {
+		interceptIncoming(channel, KixmppStanza.fromElement(stanza));
+	}
+	
+	/**
+	 * @see com.kixeye.kixmpp.interceptor.KixmppStanzaInterceptor#interceptOutgoing(io.netty.channel.Channel, org.jdom2.Element)
+	 */
+	public final void interceptOutgoing(Channel channel, Element stanza) throws KixmppStanzaRejectedException {
+		interceptOutgoing(channel, KixmppStanza.fromElement(stanza));
+	}
+}
@@ -0,0 +1,93 @@
+package com.kixeye.kixmpp.jdom;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.jdom2.Namespace;
+
+/**
+ * A shared, lock-free table of canonical {@link Namespace}s keyed by prefix and uri. 
+ * 
+ * <p>Aalto hands out interned prefixes and uris, so a lookup is usually a single array read 
+ * and two identity comparisons instead of the map lookups and verification {@link Namespace#getNamespace(String, String)} does. 
+ * Prefix and uri pairs that are not valid namespaces are remembered as well, so they don't have to 
+ * throw and catch an exception every time they come through.</p>
+ * 
+ * <p>The table is direct mapped: colliding pairs replace each other and are looked up again the next time.</p>
+ */
+public final class NamespaceTable {
+	private static final int TABLE_SIZE = 1024;
+	private static final int TABLE_MASK = TABLE_SIZE - 1;
+	
+	private static final Entry[] table = new Entry[TABLE_SIZE];
+	
+	private NamespaceTable() { }
+	
+	/**
+	 * Gets the canonical namespace for a prefix and uri.
+	 * 
+	 * @param prefix
+	 * @param uri
+	 * @return the namespace or null if the pair is not a valid namespace
+	 */
+	public static Namespace getNamespace(String prefix, String uri) {
+		if (prefix == null) {
+			prefix = "";
+		}
+		
+		if (uri == null) {
+			uri = "";
+		}
+		
+		int hash = prefix.hashCode() * 31 + uri.hashCode();
+		int index = (hash ^ (hash >>> 16)) & TABLE_MASK;
+		
+		// entries are immutable, a racy read sees either a complete entry or null
+		Entry entry = table[index];
+		
+		if (entry != null && (entry.prefix == prefix || entry.prefix.equals(prefix)) && (entry.uri == uri || entry.uri.equals(uri))) {
+			return entry.namespace;
+		}
+		
+		Namespace namespace = null;
+		
+		try {
+			namespace = Namespace.getNamespace(prefix, uri);
+		} catch (Exception e) {
+			// remembered as invalid
+		}
+		
+		table[index] = new Entry(prefix, uri, namespace);
+		
+		return namespace;
+	}
+	
+	private static final class Entry {
+		private final String prefix;
+		private final String uri;
+		private final Namespace namespace;
+		
+		private Entry(String prefix, String uri, Namespace namespace) {
+			this.prefix = prefix;
+			this.uri = uri;
+			this.namespace = namespace;
+		}
+	}
+}
@@ -23,21 +23,24 @@ package com.kixeye.kixmpp.jdom;
 import org.codehaus.stax2.XMLStreamReader2;
 import org.jdom2.Attribute;
 import org.jdom2.AttributeType;
-import org.jdom2.DefaultJDOMFactory;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 import org.jdom2.JDOMFactory;
 import org.jdom2.Namespace;
+import org.jdom2.UncheckedJDOMFactory;
 import org.jdom2.input.stax.DTDParser;
 
 /**
  * Builds a JDOM {@link Document} from a StAX Stream. This class is NOT thread safe.
  * 
+ * <p>The parser has already checked names and text, so the tree is built without JDOM's verification. 
+ * Namespaces come from the shared {@link NamespaceTable}.</p>
+ * 
  * @author ebahtijaragic
  */
 public class StAXElementBuilder {
-	private JDOMFactory builderFactory = new DefaultJDOMFactory();
+	private static final JDOMFactory builderFactory = new UncheckedJDOMFactory();
 	
 	private final boolean ignoreInvalidNamespaces;
 
@@ -69,14 +72,14 @@ public class StAXElementBuilder {
 				if (namespace == null) {
 					element = builderFactory.element(streamReader.getLocalName());
 				} else {
-					element = builderFactory.element(streamReader.getLocalName(), getNamespace(streamReader.getPrefix(), streamReader.getNamespaceURI()));
+					element = builderFactory.element(streamReader.getLocalName(), namespace);
 				}
 
 				if (rootElement == null) {
 					rootElement = element;
 					currentElement = element;
 				} else {
-					currentElement.addContent(element);
+					builderFactory.addContent(currentElement, element);
 					currentElement = element;
 				}
 
@@ -89,13 +92,13 @@ public class StAXElementBuilder {
 						attribute = builderFactory.attribute(
 								streamReader.getAttributeLocalName(i),
 								streamReader.getAttributeValue(i), 
-								AttributeType.getAttributeType(streamReader.getAttributeType(i)),
-								getNamespace(streamReader.getAttributePrefix(i), streamReader.getAttributeNamespace(i)));
+								AttributeType.getAttributeType(streamReader.getAttributeType(i)));
 					} else {
 						attribute = builderFactory.attribute(
 								streamReader.getAttributeLocalName(i),
 								streamReader.getAttributeValue(i), 
-								AttributeType.getAttributeType(streamReader.getAttributeType(i)));
+								AttributeType.getAttributeType(streamReader.getAttributeType(i)),
+								namespace);
 					}
 					
 					builderFactory.setAttribute(element, attribute);
@@ -106,7 +109,7 @@ public class StAXElementBuilder {
 					namespace = getNamespace(streamReader.getNamespacePrefix(i), streamReader.getNamespaceURI(i));
 					
 					if (namespace != null) {
-						element.addNamespaceDeclaration(namespace);
+						builderFactory.addNamespaceDeclaration(element, namespace);
 					}
 				}
 			}
@@ -125,32 +128,32 @@ public class StAXElementBuilder {
 			case XMLStreamReader2.SPACE:
 			case XMLStreamReader2.CHARACTERS:
 			{
-				currentElement.addContent(builderFactory.text(streamReader.getText()));
+				builderFactory.addContent(currentElement, builderFactory.text(streamReader.getText()));
 			}
 			break;
 			case XMLStreamReader2.CDATA:
 			{
-				currentElement.addContent(builderFactory.cdata(streamReader.getText()));
+				builderFactory.addContent(currentElement, builderFactory.cdata(streamReader.getText()));
 			}
 			break;
 			case XMLStreamReader2.ENTITY_REFERENCE:
 			{
-				currentElement.addContent(builderFactory.entityRef(streamReader.getText()));
+				builderFactory.addContent(currentElement, builderFactory.entityRef(streamReader.getText()));
 			}
 			break;
 			case XMLStreamReader2.COMMENT:
 			{
-				currentElement.addContent(builderFactory.comment(streamReader.getText()));
+				builderFactory.addContent(currentElement, builderFactory.comment(streamReader.getText()));
 			}
 			break;
 			case XMLStreamReader2.PROCESSING_INSTRUCTION:
 			{
-				currentElement.addContent(builderFactory.processingInstruction(streamReader.getPITarget(), streamReader.getPIData()));
+				builderFactory.addContent(currentElement, builderFactory.processingInstruction(streamReader.getPITarget(), streamReader.getPIData()));
 			}
 			break;
 			case XMLStreamReader2.DTD:
 			{
-				currentElement.addContent(DTDParser.parse(streamReader.getText(), builderFactory));
+				builderFactory.addContent(currentElement, DTDParser.parse(streamReader.getText(), builderFactory));
 			}
 			break;
 		}
@@ -164,14 +167,11 @@ public class StAXElementBuilder {
 	 * @return
 	 */
 	private Namespace getNamespace(String prefix, String uri) {
-		Namespace namespace = null;
+		Namespace namespace = NamespaceTable.getNamespace(prefix, uri);
 		
-		try {
+		if (namespace == null && !ignoreInvalidNamespaces) {
+			// throws the verification error
 			namespace = Namespace.getNamespace(prefix, uri);
-		} catch (Exception e) {
-			if (!ignoreInvalidNamespaces) {
-				throw e;
-			}
 		}
 		
 		return namespace;
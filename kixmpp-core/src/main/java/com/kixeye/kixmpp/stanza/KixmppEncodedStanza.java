@@ -0,0 +1,200 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import com.kixeye.kixmpp.KixmppXmlSerializer;
+
+/**
+ * A stanza that is serialized once and written to many recipients, each copy only adds the address of its recipient 
+ * to the shared bytes. Every copy holds its own reference to the bytes and is released by the codec that writes it.
+ */
+public class KixmppEncodedStanza implements ReferenceCounted {
+	private static final String[] EMPTY_STRINGS = new String[0];
+	
+	private final ByteBuf bytes;
+	private final int nameEnd;
+	private final boolean qualified;
+	private final String to;
+	
+	private KixmppEncodedStanza(ByteBuf bytes, int nameEnd, boolean qualified, String to) {
+		this.bytes = bytes;
+		this.nameEnd = nameEnd;
+		this.qualified = qualified;
+		this.to = to;
+	}
+	
+	/**
+	 * Serializes an element into a buffer of the given allocator. The element is addressed by the copies made of it, 
+	 * so it cannot have a <code>to</code> attribute itself.
+	 * 
+	 * @param element
+	 * @param allocator
+	 * @return a stanza the caller has to release once it has made its copies
+	 */
+	public static KixmppEncodedStanza encode(Element element, ByteBufAllocator allocator) {
+		return encode(element, "", allocator);
+	}
+	
+	/**
+	 * Serializes an element into a buffer of the given allocator, writing elements that have no namespace in the given one. 
+	 * With the namespace of the stream's content as the default the bytes fit both TCP and WebSocket connections as they are.
+	 * 
+	 * @param element
+	 * @param defaultNamespaceURI
+	 * @param allocator
+	 * @return a stanza the caller has to release once it has made its copies
+	 */
+	public static KixmppEncodedStanza encode(Element element, String defaultNamespaceURI, ByteBufAllocator allocator) {
+		if (element.getAttribute("to") != null) {
+			throw new IllegalArgumentException("An encoded stanza is addressed by its copies, it cannot have a to attribute.");
+		}
+		
+		ByteBuf bytes = allocator.buffer();
+		
+		try {
+			KixmppXmlSerializer.write(element, defaultNamespaceURI, bytes);
+		} catch (RuntimeException e) {
+			bytes.release();
+			
+			throw e;
+		}
+		
+		// the name ends where the attributes or the end of the start tag begin
+		int nameEnd = bytes.readerIndex() + 1;
+		
+		for (byte b = bytes.getByte(nameEnd); b != ' ' && b != '>' && b != '/'; b = bytes.getByte(nameEnd)) {
+			nameEnd++;
+		}
+		
+		boolean qualified = element.getNamespace() != Namespace.NO_NAMESPACE || !defaultNamespaceURI.isEmpty();
+		
+		return new KixmppEncodedStanza(bytes, nameEnd - bytes.readerIndex(), qualified, null);
+	}
+	
+	/**
+	 * Makes a copy of this stanza addressed to a recipient, which shares the bytes of this stanza.
+	 * 
+	 * @param to the address, or null to leave the copy without one
+	 * @return
+	 */
+	public KixmppEncodedStanza addressedTo(String to) {
+		return new KixmppEncodedStanza(bytes.retain(), nameEnd, qualified, to);
+	}
+	
+	/**
+	 * @return the shared bytes, which are not to be modified
+	 */
+	public ByteBuf getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return the length of the start of the bytes up to the end of the stanza's name, where the address goes
+	 */
+	public int getNameEnd() {
+		return nameEnd;
+	}
+	
+	/**
+	 * @return whether the stanza declares its own namespace, one that does not is written in the default namespace of the connection
+	 */
+	public boolean isQualified() {
+		return qualified;
+	}
+	
+	/**
+	 * @return the address of the recipient, or null
+	 */
+	public String getTo() {
+		return to;
+	}
+	
+	/**
+	 * Parses this copy into a stanza of its own, for whoever needs to look at or change it before it is written.
+	 * 
+	 * @return
+	 */
+	public KixmppStanza toStanza() {
+		KixmppStanza stanza = KixmppStanzaBuilder.parse(bytes.duplicate(), EMPTY_STRINGS);
+		
+		if (to != null) {
+			stanza.setAttribute("to", to);
+		}
+		
+		return stanza;
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#refCnt()
+	 */
+	public int refCnt() {
+		return bytes.refCnt();
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#retain()
+	 */
+	public KixmppEncodedStanza retain() {
+		bytes.retain();
+		
+		return this;
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#retain(int)
+	 */
+	public KixmppEncodedStanza retain(int increment) {
+		bytes.retain(increment);
+		
+		return this;
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#release()
+	 */
+	public boolean release() {
+		return bytes.release();
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#release(int)
+	 */
+	public boolean release(int decrement) {
+		return bytes.release(decrement);
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "KixmppEncodedStanza [" + bytes.toString(bytes.readerIndex(), nameEnd, StandardCharsets.UTF_8).substring(1) + " to=" + to + "]";
+	}
+}
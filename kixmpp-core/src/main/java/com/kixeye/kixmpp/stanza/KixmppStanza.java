@@ -0,0 +1,793 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+
+import com.kixeye.kixmpp.jdom.NamespaceTable;
+
+/**
+ * A compact, array-backed stanza. Attributes are kept in flat parallel arrays and 
+ * content is a flat array of child stanzas and text, so reading a stanza never 
+ * allocates the object graph a JDOM {@link Element} needs.
+ * 
+ * <p>A JDOM view is built on demand by {@link #toElement()} for code that still works with JDOM. 
+ * Stanzas that wrap an existing {@link Element} build their children lazily from it.</p>
+ * 
+ * <p>A decoded stanza can carry the raw bytes it was parsed from, see {@link #getRawBytes()}. Such a stanza is 
+ * reference counted like a {@link ByteBuf}: whoever hands it to another thread or writes it to a channel 
+ * has to {@link #retain()} it first. Stanzas without raw bytes ignore reference counting.</p>
+ * 
+ * <p>A stanza decoded header only just has its name, attributes and the name of its first child. The body 
+ * is parsed from the raw bytes the first time it is accessed, which has to happen before they are released. 
+ * Routing on the header never builds the tree.</p>
+ * 
+ * <p>This class is NOT thread safe.</p>
+ */
+public class KixmppStanza implements ReferenceCounted {
+	private static final String[] EMPTY_STRINGS = new String[0];
+	private static final Object[] EMPTY_CONTENT = new Object[0];
+	
+	private final String name;
+	private final String prefix;
+	private final String namespaceURI;
+	
+	private String[] attributeNames = EMPTY_STRINGS;
+	private String[] attributePrefixes = EMPTY_STRINGS;
+	private String[] attributeNamespaceURIs = EMPTY_STRINGS;
+	private String[] attributeValues = EMPTY_STRINGS;
+	private int attributeCount = 0;
+	
+	private String[] namespaceDeclarations = EMPTY_STRINGS;
+	private int namespaceDeclarationCount = 0;
+	
+	private Object[] content = EMPTY_CONTENT;
+	private int contentCount = 0;
+	private boolean contentLoaded = true;
+	
+	private String firstChildName;
+	private String firstChildNamespaceURI;
+	private KixmppStanza deferredFirstChild;
+	
+	private KixmppStanza parent;
+	
+	private Element element;
+	private Element sourceElement;
+	
+	private ByteBuf rawBytes;
+	private String[] inheritedNamespaces = EMPTY_STRINGS;
+	private boolean selfContained = true;
+	private boolean rawBytesModified = false;
+	private boolean addressRewritten = false;
+
+	/**
+	 * @param name
+	 * @param prefix
+	 * @param namespaceURI
+	 */
+	public KixmppStanza(String name, String prefix, String namespaceURI) {
+		this.name = name;
+		this.prefix = prefix == null ? "" : prefix;
+		this.namespaceURI = namespaceURI == null ? "" : namespaceURI;
+	}
+	
+	/**
+	 * Wraps an existing {@link Element}. Attributes are copied, children are built on first access.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public static KixmppStanza fromElement(Element element) {
+		KixmppStanza stanza = new KixmppStanza(element.getName(), element.getNamespacePrefix(), element.getNamespaceURI());
+		
+		if (element.hasAttributes()) {
+			List<Attribute> attributes = element.getAttributes();
+			
+			for (int i = 0, len = attributes.size(); i < len; i++) {
+				Attribute attribute = attributes.get(i);
+				
+				stanza.addAttribute(attribute.getName(), attribute.getNamespacePrefix(), attribute.getNamespaceURI(), attribute.getValue());
+			}
+		}
+		
+		List<Namespace> additionalNamespaces = element.getAdditionalNamespaces();
+		
+		for (int i = 0, len = additionalNamespaces.size(); i < len; i++) {
+			Namespace namespace = additionalNamespaces.get(i);
+			
+			stanza.addNamespaceDeclaration(namespace.getPrefix(), namespace.getURI());
+		}
+		
+		stanza.element = element;
+		stanza.sourceElement = element;
+		stanza.contentLoaded = false;
+		
+		return stanza;
+	}
+
+	/**
+	 * @return the local name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the namespace prefix, never null
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @return the namespace uri, never null
+	 */
+	public String getNamespaceURI() {
+		return namespaceURI;
+	}
+	
+	/**
+	 * @return the qualified name
+	 */
+	public String getQualifiedName() {
+		if (prefix.isEmpty()) {
+			return name;
+		}
+		
+		return prefix + ":" + name;
+	}
+	
+	/**
+	 * @return the parent stanza, or null if this is the root
+	 */
+	public KixmppStanza getParent() {
+		return parent;
+	}
+	
+	/**
+	 * Adds an attribute.
+	 * 
+	 * @param name
+	 * @param prefix
+	 * @param namespaceURI
+	 * @param value
+	 */
+	public void addAttribute(String name, String prefix, String namespaceURI, String value) {
+		appendAttribute(name, prefix, namespaceURI, value);
+		
+		invalidate(false);
+	}
+	
+	/**
+	 * @return the number of attributes
+	 */
+	public int getAttributeCount() {
+		return attributeCount;
+	}
+	
+	/**
+	 * @param index
+	 * @return the local name of the attribute at the given index
+	 */
+	public String getAttributeName(int index) {
+		return attributeNames[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return the value of the attribute at the given index
+	 */
+	public String getAttributeValue(int index) {
+		return attributeValues[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the namespace prefix of the attribute at the given index, never null
+	 */
+	public String getAttributePrefix(int index) {
+		return attributePrefixes[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the namespace uri of the attribute at the given index, never null
+	 */
+	public String getAttributeNamespaceURI(int index) {
+		return attributeNamespaceURIs[index];
+	}
+
+	/**
+	 * Gets the value of an attribute that has no namespace.
+	 * 
+	 * @param name
+	 * @return the value or null
+	 */
+	public String getAttributeValue(String name) {
+		return getAttributeValue(name, "");
+	}
+	
+	/**
+	 * Gets the value of an attribute.
+	 * 
+	 * @param name
+	 * @param namespaceURI
+	 * @return the value or null
+	 */
+	public String getAttributeValue(String name, String namespaceURI) {
+		for (int i = 0; i < attributeCount; i++) {
+			if (name.equals(attributeNames[i]) && namespaceURI.equals(attributeNamespaceURIs[i])) {
+				return attributeValues[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Sets the value of an attribute that has no namespace, adding it if it does not exist yet. 
+	 * Rewriting the <code>to</code> or <code>from</code> address of a stanza keeps its raw bytes usable.
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public void setAttribute(String name, String value) {
+		int index = -1;
+		
+		for (int i = 0; i < attributeCount; i++) {
+			if (name.equals(attributeNames[i]) && attributeNamespaceURIs[i].isEmpty()) {
+				index = i;
+				break;
+			}
+		}
+		
+		if (index == -1) {
+			appendAttribute(name, null, null, value);
+		} else {
+			attributeValues[index] = value;
+		}
+		
+		invalidate(parent == null && ("to".equals(name) || "from".equals(name)));
+	}
+	
+	/**
+	 * Declares an additional namespace on this stanza.
+	 * 
+	 * @param prefix
+	 * @param namespaceURI
+	 */
+	public void addNamespaceDeclaration(String prefix, String namespaceURI) {
+		if (namespaceDeclarationCount * 2 == namespaceDeclarations.length) {
+			namespaceDeclarations = Arrays.copyOf(namespaceDeclarations, Math.max(4, namespaceDeclarations.length * 2));
+		}
+		
+		namespaceDeclarations[namespaceDeclarationCount * 2] = prefix == null ? "" : prefix;
+		namespaceDeclarations[namespaceDeclarationCount * 2 + 1] = namespaceURI == null ? "" : namespaceURI;
+		namespaceDeclarationCount++;
+
+		invalidate(false);
+	}
+
+	/**
+	 * @return the number of additional namespace declarations
+	 */
+	public int getNamespaceDeclarationCount() {
+		return namespaceDeclarationCount;
+	}
+
+	/**
+	 * @param index
+	 * @return the prefix of the additional namespace declaration at the given index
+	 */
+	public String getNamespaceDeclarationPrefix(int index) {
+		return namespaceDeclarations[index * 2];
+	}
+
+	/**
+	 * @param index
+	 * @return the uri of the additional namespace declaration at the given index
+	 */
+	public String getNamespaceDeclarationURI(int index) {
+		return namespaceDeclarations[index * 2 + 1];
+	}
+
+	/**
+	 * Adds a child stanza.
+	 * 
+	 * @param child
+	 */
+	public void addChild(KixmppStanza child) {
+		loadContent();
+		
+		child.parent = this;
+		appendContent(child);
+		
+		invalidate(false);
+	}
+	
+	/**
+	 * Adds text.
+	 * 
+	 * @param text
+	 */
+	public void addText(String text) {
+		loadContent();
+		
+		appendContent(text);
+		
+		invalidate(false);
+	}
+	
+	/**
+	 * @return the number of child stanzas and text nodes
+	 */
+	public int getContentCount() {
+		loadContent();
+
+		return contentCount;
+	}
+
+	/**
+	 * @param index
+	 * @return the child {@link KixmppStanza} or text {@link String} at the given index
+	 */
+	public Object getContent(int index) {
+		loadContent();
+
+		return content[index];
+	}
+
+	/**
+	 * Gets all child stanzas.
+	 * 
+	 * @return
+	 */
+	public List<KixmppStanza> getChildren() {
+		loadContent();
+		
+		List<KixmppStanza> children = null;
+		
+		for (int i = 0; i < contentCount; i++) {
+			if (content[i] instanceof KixmppStanza) {
+				if (children == null) {
+					children = new ArrayList<>(contentCount - i);
+				}
+				
+				children.add((KixmppStanza)content[i]);
+			}
+		}
+		
+		if (children == null) {
+			return Collections.emptyList();
+		}
+		
+		return children;
+	}
+	
+	/**
+	 * Gets the first child stanza.
+	 * 
+	 * @return the child or null
+	 */
+	public KixmppStanza getFirstChild() {
+		if (!contentLoaded && deferredFirstChild != null) {
+			return deferredFirstChild;
+		}
+		
+		loadContent();
+		
+		for (int i = 0; i < contentCount; i++) {
+			if (content[i] instanceof KixmppStanza) {
+				return (KixmppStanza)content[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Gets the local name of the first child stanza. Known without parsing the body of a stanza decoded header only.
+	 * 
+	 * @return the name or null if there are no children
+	 */
+	public String getFirstChildName() {
+		if (!contentLoaded && firstChildName != null) {
+			return firstChildName;
+		}
+		
+		KixmppStanza child = getFirstChild();
+		
+		return child == null ? null : child.name;
+	}
+	
+	/**
+	 * Gets the namespace uri of the first child stanza. Known without parsing the body of a stanza decoded header only.
+	 * 
+	 * @return the namespace uri or null if there are no children
+	 */
+	public String getFirstChildNamespaceURI() {
+		if (!contentLoaded && firstChildName != null) {
+			return firstChildNamespaceURI;
+		}
+		
+		KixmppStanza child = getFirstChild();
+		
+		return child == null ? null : child.namespaceURI;
+	}
+	
+	/**
+	 * Gets the first child with the given name and namespace.
+	 * 
+	 * @param name
+	 * @param namespaceURI
+	 * @return the child or null
+	 */
+	public KixmppStanza getChild(String name, String namespaceURI) {
+		if (!contentLoaded && deferredFirstChild != null 
+				&& name.equals(deferredFirstChild.name) && namespaceURI.equals(deferredFirstChild.namespaceURI)) {
+			return deferredFirstChild;
+		}
+		
+		loadContent();
+		
+		for (int i = 0; i < contentCount; i++) {
+			if (content[i] instanceof KixmppStanza) {
+				KixmppStanza child = (KixmppStanza)content[i];
+				
+				if (name.equals(child.name) && namespaceURI.equals(child.namespaceURI)) {
+					return child;
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Gets the text of the first child with the given name and namespace.
+	 * 
+	 * @param name
+	 * @param namespaceURI
+	 * @return the text or null if there is no such child
+	 */
+	public String getChildText(String name, String namespaceURI) {
+		KixmppStanza child = getChild(name, namespaceURI);
+		
+		if (child == null) {
+			return null;
+		}
+		
+		return child.getText();
+	}
+	
+	/**
+	 * Gets the text directly contained by this stanza.
+	 * 
+	 * @return the text, never null
+	 */
+	public String getText() {
+		loadContent();
+		
+		String text = null;
+		StringBuilder builder = null;
+		
+		for (int i = 0; i < contentCount; i++) {
+			if (content[i] instanceof String) {
+				if (text == null) {
+					text = (String)content[i];
+				} else {
+					if (builder == null) {
+						builder = new StringBuilder(text);
+					}
+					
+					builder.append((String)content[i]);
+				}
+			}
+		}
+		
+		if (builder != null) {
+			return builder.toString();
+		}
+		
+		return text == null ? "" : text;
+	}
+	
+	/**
+	 * Attaches the raw bytes this stanza was parsed from. The stanza takes over the reference held by the caller.
+	 * 
+	 * <p>The bytes must hold a single well-formed element that only uses namespace prefixes it declares itself, 
+	 * a default namespace may be inherited.</p>
+	 * 
+	 * @param rawBytes
+	 */
+	public void setRawBytes(ByteBuf rawBytes) {
+		setRawBytes(rawBytes, EMPTY_STRINGS, true);
+	}
+	
+	/**
+	 * Attaches the raw bytes this stanza was parsed from. The stanza takes over the reference held by the caller.
+	 * 
+	 * @param rawBytes
+	 * @param inheritedNamespaces the prefix and uri pairs the bytes use without declaring them
+	 * @param selfContained whether the bytes can be copied into another stream as they are
+	 */
+	void setRawBytes(ByteBuf rawBytes, String[] inheritedNamespaces, boolean selfContained) {
+		if (this.rawBytes != null) {
+			this.rawBytes.release();
+		}
+		
+		this.rawBytes = rawBytes;
+		this.inheritedNamespaces = inheritedNamespaces;
+		this.selfContained = selfContained;
+		this.rawBytesModified = false;
+		this.addressRewritten = false;
+	}
+	
+	/**
+	 * Leaves the body unparsed until it is accessed, it is then parsed from the raw bytes. 
+	 * A first child that was already built is handed out without parsing the body.
+	 * 
+	 * @param firstChildName
+	 * @param firstChildNamespaceURI
+	 * @param firstChild the built first child or null
+	 */
+	void deferContent(String firstChildName, String firstChildNamespaceURI, KixmppStanza firstChild) {
+		this.contentLoaded = false;
+		this.firstChildName = firstChildName;
+		this.firstChildNamespaceURI = firstChildNamespaceURI;
+		this.deferredFirstChild = firstChild;
+		
+		if (firstChild != null) {
+			firstChild.parent = this;
+		}
+	}
+	
+	/**
+	 * @return <b>true</b> if the body has been parsed or built
+	 */
+	boolean isContentLoaded() {
+		return contentLoaded;
+	}
+	
+	/**
+	 * Gets the raw bytes this stanza was parsed from.
+	 * 
+	 * @return the bytes or null if there are none, or the stanza has been modified other than by rewriting its address
+	 */
+	public ByteBuf getRawBytes() {
+		if (rawBytes == null || !selfContained || rawBytesModified || rawBytes.refCnt() == 0) {
+			return null;
+		}
+		
+		return rawBytes;
+	}
+	
+	/**
+	 * @return <b>true</b> if the <code>to</code> or <code>from</code> attribute was changed after the raw bytes were attached
+	 */
+	public boolean isAddressRewritten() {
+		return addressRewritten;
+	}
+	
+	/**
+	 * @see io.netty.util.ReferenceCounted#refCnt()
+	 */
+	public int refCnt() {
+		return rawBytes == null ? 1 : rawBytes.refCnt();
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#retain()
+	 */
+	public KixmppStanza retain() {
+		if (rawBytes != null) {
+			rawBytes.retain();
+		}
+		
+		return this;
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#retain(int)
+	 */
+	public KixmppStanza retain(int increment) {
+		if (rawBytes != null) {
+			rawBytes.retain(increment);
+		}
+		
+		return this;
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#release()
+	 */
+	public boolean release() {
+		return rawBytes != null && rawBytes.release();
+	}
+
+	/**
+	 * @see io.netty.util.ReferenceCounted#release(int)
+	 */
+	public boolean release(int decrement) {
+		return rawBytes != null && rawBytes.release(decrement);
+	}
+	
+	/**
+	 * Gets a JDOM view of this stanza. The view is built once and cached, changes to it are not reflected in this stanza.
+	 * 
+	 * @return
+	 */
+	public synchronized Element toElement() {
+		if (element == null) {
+			element = buildElement();
+		}
+		
+		return element;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "KixmppStanza [" + getQualifiedName() + "]";
+	}
+	
+	private Element buildElement() {
+		loadContent();
+		
+		Element element = new Element(name, getNamespace(prefix, namespaceURI));
+		
+		for (int i = 0; i < namespaceDeclarationCount; i++) {
+			Namespace namespace = getNamespace(namespaceDeclarations[i * 2], namespaceDeclarations[i * 2 + 1]);
+			
+			if (namespace != Namespace.NO_NAMESPACE) {
+				element.addNamespaceDeclaration(namespace);
+			}
+		}
+		
+		for (int i = 0; i < attributeCount; i++) {
+			element.setAttribute(new Attribute(attributeNames[i], attributeValues[i], getNamespace(attributePrefixes[i], attributeNamespaceURIs[i])));
+		}
+		
+		for (int i = 0; i < contentCount; i++) {
+			if (content[i] instanceof KixmppStanza) {
+				element.addContent(((KixmppStanza)content[i]).toElement().detach());
+			} else {
+				element.addContent(new Text((String)content[i]));
+			}
+		}
+		
+		return element;
+	}
+	
+	/**
+	 * Drops the cached views of this stanza and all of its ancestors.
+	 */
+	private void invalidate(boolean addressRewrite) {
+		for (KixmppStanza stanza = this; stanza != null; stanza = stanza.parent) {
+			stanza.element = null;
+			
+			if (addressRewrite) {
+				stanza.addressRewritten = true;
+			} else {
+				stanza.rawBytesModified = true;
+			}
+		}
+	}
+	
+	private void appendAttribute(String name, String prefix, String namespaceURI, String value) {
+		if (attributeCount == attributeNames.length) {
+			int capacity = Math.max(4, attributeCount * 2);
+			
+			attributeNames = Arrays.copyOf(attributeNames, capacity);
+			attributePrefixes = Arrays.copyOf(attributePrefixes, capacity);
+			attributeNamespaceURIs = Arrays.copyOf(attributeNamespaceURIs, capacity);
+			attributeValues = Arrays.copyOf(attributeValues, capacity);
+		}
+		
+		attributeNames[attributeCount] = name;
+		attributePrefixes[attributeCount] = prefix == null ? "" : prefix;
+		attributeNamespaceURIs[attributeCount] = namespaceURI == null ? "" : namespaceURI;
+		attributeValues[attributeCount] = value;
+		attributeCount++;
+	}
+	
+	private void appendContent(Object value) {
+		if (contentCount == content.length) {
+			content = Arrays.copyOf(content, Math.max(4, contentCount * 2));
+		}
+		
+		content[contentCount++] = value;
+	}
+	
+	/**
+	 * Makes sure the body is parsed. Unlike the rest of this class this is safe to call from several threads, 
+	 * stanzas that are read by several threads at once have to be loaded before they are handed over.
+	 */
+	public synchronized void loadContent() {
+		if (contentLoaded) {
+			return;
+		}
+		
+		if (sourceElement == null) {
+			loadContentFromRawBytes();
+		} else {
+			loadContentFromElement();
+		}
+		
+		contentLoaded = true;
+	}
+	
+	private void loadContentFromRawBytes() {
+		if (rawBytes == null || rawBytes.refCnt() == 0) {
+			throw new IllegalReferenceCountException(0);
+		}
+		
+		KixmppStanza parsed = KixmppStanzaBuilder.parse(rawBytes, inheritedNamespaces);
+		
+		for (int i = 0; i < parsed.contentCount; i++) {
+			if (parsed.content[i] instanceof KixmppStanza) {
+				// keep the first child that was already handed out
+				if (deferredFirstChild != null) {
+					parsed.content[i] = deferredFirstChild;
+					deferredFirstChild = null;
+				}
+				
+				((KixmppStanza)parsed.content[i]).parent = this;
+			}
+			
+			appendContent(parsed.content[i]);
+		}
+	}
+	
+	private void loadContentFromElement() {
+		for (Content elementContent : sourceElement.getContent()) {
+			if (elementContent instanceof Element) {
+				KixmppStanza child = fromElement((Element)elementContent);
+				child.parent = this;
+				
+				appendContent(child);
+			} else if (elementContent instanceof Text) {
+				appendContent(((Text)elementContent).getText());
+			}
+		}
+	}
+	
+	private static Namespace getNamespace(String prefix, String uri) {
+		Namespace namespace = NamespaceTable.getNamespace(prefix, uri);
+		
+		return namespace == null ? Namespace.NO_NAMESPACE : namespace;
+	}
+}
@@ -0,0 +1,85 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The stanzas a codec decoded from a single read, in the order they were received.
+ */
+public class KixmppStanzaBatch implements Iterable<KixmppStanza> {
+	private final List<KixmppStanza> stanzas;
+	
+	/**
+	 * @param stanzas
+	 */
+	public KixmppStanzaBatch(List<KixmppStanza> stanzas) {
+		this.stanzas = stanzas;
+	}
+	
+	/**
+	 * @param capacity
+	 */
+	public KixmppStanzaBatch(int capacity) {
+		this(new ArrayList<KixmppStanza>(capacity));
+	}
+	
+	/**
+	 * Adds a stanza to the end of the batch, the batch takes over the caller's reference.
+	 * 
+	 * @param stanza
+	 */
+	public void add(KixmppStanza stanza) {
+		stanzas.add(stanza);
+	}
+	
+	/**
+	 * @return the stanzas in the order they were received
+	 */
+	public List<KixmppStanza> getStanzas() {
+		return stanzas;
+	}
+	
+	/**
+	 * @return
+	 */
+	public int size() {
+		return stanzas.size();
+	}
+	
+	/**
+	 * Releases every stanza in the batch.
+	 */
+	public void release() {
+		for (KixmppStanza stanza : stanzas) {
+			stanza.release();
+		}
+	}
+
+	/**
+	 * @see java.lang.Iterable#iterator()
+	 */
+	public Iterator<KixmppStanza> iterator() {
+		return stanzas.iterator();
+	}
+}
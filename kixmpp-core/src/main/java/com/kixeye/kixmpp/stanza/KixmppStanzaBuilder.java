@@ -0,0 +1,311 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.codehaus.stax2.XMLStreamReader2;
+
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.kixeye.kixmpp.KixmppCodec;
+import com.kixeye.kixmpp.KixmppCodec.XMLStreamReaderConfiguration;
+
+/**
+ * Builds a {@link KixmppStanza} from a StAX Stream. This class is NOT thread safe.
+ * 
+ * <p>Names and namespace URIs are taken as-is from the reader, Aalto hands out interned strings for both.
+ * Comments, processing instructions and DTDs are not allowed in stanzas and are dropped.</p>
+ * 
+ * <p>A header only builder just builds the root with its attributes and notes the name of the first child, 
+ * the body is parsed later from the raw bytes handed to {@link #setRawBytes(ByteBuf)}. A first child that only 
+ * holds text, like a message body, is built as well so reading it does not parse the stanza again.</p>
+ */
+public class KixmppStanzaBuilder {
+	private static final byte[] WRAPPER_END = "</w>".getBytes(StandardCharsets.UTF_8);
+	
+	private final boolean headerOnly;
+	
+	private KixmppStanza rootStanza;
+	
+	private KixmppStanza currentStanza;
+	
+	private int depth = 0;
+	
+	// prefixes declared inside the stanza and the size of that list at each depth
+	private final ArrayList<String> declaredPrefixes = new ArrayList<>();
+	private int[] declaredPrefixMarks = new int[8];
+	
+	// prefix and uri pairs the stanza uses without declaring them
+	private final ArrayList<String> inheritedNamespaces = new ArrayList<>();
+	
+	private boolean selfContained = true;
+	
+	private boolean bodySkipped = false;
+	private String firstChildName;
+	private String firstChildNamespaceURI;
+	private KixmppStanza firstChild;
+	private boolean buildingFirstChild = false;
+	
+	/**
+	 * Creates a builder that builds the whole stanza.
+	 */
+	public KixmppStanzaBuilder() {
+		this(false);
+	}
+	
+	/**
+	 * @param headerOnly whether to only build the root and leave the body to be parsed from the raw bytes
+	 */
+	public KixmppStanzaBuilder(boolean headerOnly) {
+		this.headerOnly = headerOnly;
+	}
+
+	/**
+	 * Processes the current event on a stream reader.
+	 * 
+	 * @param streamReader
+	 */
+	public void process(XMLStreamReader2 streamReader) {
+		switch (streamReader.getEventType()) {
+			case XMLStreamReader2.START_ELEMENT:
+			{
+				depth++;
+				
+				openScope(streamReader);
+				
+				if (depth == 1) {
+					// unprefixed children may inherit the default namespace
+					String defaultNamespaceURI = streamReader.getNamespaceURI("");
+					
+					if (defaultNamespaceURI != null && !defaultNamespaceURI.isEmpty() && !declaredPrefixes.contains("")) {
+						inheritedNamespaces.add("");
+						inheritedNamespaces.add(defaultNamespaceURI);
+					}
+				}
+				
+				checkDeclared(streamReader.getPrefix(), streamReader.getNamespaceURI());
+				
+				for (int i = 0, len = streamReader.getAttributeCount(); i < len; i++) {
+					checkDeclared(streamReader.getAttributePrefix(i), streamReader.getAttributeNamespace(i));
+				}
+				
+				if (headerOnly && depth > 1) {
+					bodySkipped = true;
+					
+					if (depth == 2 && firstChildName == null) {
+						firstChildName = streamReader.getLocalName();
+						firstChildNamespaceURI = streamReader.getNamespaceURI();
+						
+						firstChild = buildStanza(streamReader);
+						buildingFirstChild = true;
+					} else if (buildingFirstChild) {
+						// the first child holds more than text, leave it to the body
+						firstChild = null;
+						buildingFirstChild = false;
+					}
+					
+					break;
+				}
+				
+				KixmppStanza stanza = buildStanza(streamReader);
+				
+				if (rootStanza == null) {
+					rootStanza = stanza;
+				} else {
+					currentStanza.addChild(stanza);
+				}
+				
+				currentStanza = stanza;
+			}
+			break;
+			case XMLStreamReader2.END_ELEMENT:
+			{
+				declaredPrefixes.subList(declaredPrefixMarks[depth], declaredPrefixes.size()).clear();
+				
+				depth--;
+				
+				if (depth == 1) {
+					buildingFirstChild = false;
+				}
+				
+				if (depth == 0 && bodySkipped) {
+					rootStanza.deferContent(firstChildName, firstChildNamespaceURI, firstChild);
+				}
+				
+				if (!headerOnly && currentStanza != null && currentStanza.getParent() != null) {
+					currentStanza = currentStanza.getParent();
+				}
+			}
+			break;
+			case XMLStreamReader2.SPACE:
+			case XMLStreamReader2.CHARACTERS:
+			case XMLStreamReader2.CDATA:
+			{
+				if (headerOnly) {
+					bodySkipped = true;
+					
+					if (buildingFirstChild) {
+						firstChild.addText(streamReader.getText());
+					}
+				} else {
+					currentStanza.addText(streamReader.getText());
+				}
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Gets the stanza in the current state.
+	 * 
+	 * @return
+	 */
+	public KixmppStanza getStanza() {
+		return rootStanza;
+	}
+	
+	/**
+	 * Tells whether the stanza only uses namespace prefixes that it declares itself, so its 
+	 * source bytes can be copied into another stream as they are.
+	 * 
+	 * @return
+	 */
+	public boolean isSelfContained() {
+		return selfContained;
+	}
+	
+	/**
+	 * Attaches the bytes the stanza was parsed from, the stanza takes over the caller's reference. 
+	 * A header only stanza parses its body from them.
+	 * 
+	 * @param rawBytes
+	 */
+	public void setRawBytes(ByteBuf rawBytes) {
+		rootStanza.setRawBytes(rawBytes, inheritedNamespaces.toArray(new String[inheritedNamespaces.size()]), selfContained);
+	}
+	
+	/**
+	 * Parses a whole stanza from its raw bytes.
+	 * 
+	 * @param rawBytes
+	 * @param inheritedNamespaces the prefix and uri pairs the bytes use without declaring them
+	 * @return
+	 */
+	static KixmppStanza parse(ByteBuf rawBytes, String[] inheritedNamespaces) {
+		// wrap the stanza into an element that declares the namespaces it inherited
+		StringBuilder wrapperStart = new StringBuilder("<w");
+		
+		for (int i = 0; i < inheritedNamespaces.length; i += 2) {
+			wrapperStart.append(inheritedNamespaces[i].isEmpty() ? " xmlns" : " xmlns:").append(inheritedNamespaces[i]).append("='");
+			wrapperStart.append(inheritedNamespaces[i + 1].replace("&", "&amp;").replace("<", "&lt;").replace("'", "&apos;")).append("'");
+		}
+		
+		byte[] start = wrapperStart.append('>').toString().getBytes(StandardCharsets.UTF_8);
+		
+		int length = rawBytes.readableBytes();
+		
+		byte[] data = Arrays.copyOf(start, start.length + length + WRAPPER_END.length);
+		rawBytes.getBytes(rawBytes.readerIndex(), data, start.length, length);
+		System.arraycopy(WRAPPER_END, 0, data, start.length + length, WRAPPER_END.length);
+		
+		AsyncXMLStreamReader streamReader = KixmppCodec.getInputFactory(XMLStreamReaderConfiguration.SPEED).createAsyncXMLStreamReader();
+		
+		try {
+			streamReader.getInputFeeder().feedInput(data, 0, data.length);
+			streamReader.getInputFeeder().endOfInput();
+			
+			KixmppStanzaBuilder builder = new KixmppStanzaBuilder();
+			
+			int event;
+			
+			while ((event = streamReader.next()) != XMLStreamReader2.END_DOCUMENT && event != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+				if (streamReader.getDepth() > 1) {
+					builder.process(streamReader);
+				}
+			}
+			
+			return builder.getStanza();
+		} catch (XMLStreamException e) {
+			throw new IllegalStateException("Unable to parse the stanza from its raw bytes.", e);
+		} finally {
+			try {
+				streamReader.close();
+			} catch (XMLStreamException e) {
+				// ignore
+			}
+		}
+	}
+	
+	private KixmppStanza buildStanza(XMLStreamReader2 streamReader) {
+		KixmppStanza stanza = new KixmppStanza(streamReader.getLocalName(), streamReader.getPrefix(), streamReader.getNamespaceURI());
+
+		for (int i = 0, len = streamReader.getAttributeCount(); i < len; i++) {
+			stanza.addAttribute(
+					streamReader.getAttributeLocalName(i), 
+					streamReader.getAttributePrefix(i), 
+					streamReader.getAttributeNamespace(i), 
+					streamReader.getAttributeValue(i));
+		}
+		
+		for (int i = 0, len = streamReader.getNamespaceCount(); i < len; i++) {
+			stanza.addNamespaceDeclaration(streamReader.getNamespacePrefix(i), streamReader.getNamespaceURI(i));
+		}
+		
+		return stanza;
+	}
+	
+	private void openScope(XMLStreamReader2 streamReader) {
+		if (depth == declaredPrefixMarks.length) {
+			declaredPrefixMarks = Arrays.copyOf(declaredPrefixMarks, depth * 2);
+		}
+		
+		declaredPrefixMarks[depth] = declaredPrefixes.size();
+		
+		for (int i = 0, len = streamReader.getNamespaceCount(); i < len; i++) {
+			String prefix = streamReader.getNamespacePrefix(i);
+			
+			declaredPrefixes.add(prefix == null ? "" : prefix);
+		}
+	}
+	
+	private void checkDeclared(String prefix, String namespaceURI) {
+		if (prefix == null || prefix.isEmpty() || "xml".equals(prefix) || declaredPrefixes.contains(prefix)) {
+			return;
+		}
+		
+		for (int i = 0, len = inheritedNamespaces.size(); i < len; i += 2) {
+			if (prefix.equals(inheritedNamespaces.get(i))) {
+				return;
+			}
+		}
+		
+		inheritedNamespaces.add(prefix);
+		inheritedNamespaces.add(namespaceURI == null ? "" : namespaceURI);
+		
+		selfContained = false;
+	}
+}
@@ -20,6 +20,8 @@ package com.kixeye.kixmpp;
  * #L%
  */
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.embedded.EmbeddedChannel;
@@ -28,13 +30,24 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.lang.management.MemoryMXBean;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.jdom2.Element;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kixeye.kixmpp.KixmppCodec.StanzaModel;
+import com.kixeye.kixmpp.KixmppCodec.XMLStreamReaderConfiguration;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanzaBatch;
 
 /**
  * Tests the {@link KixmppCodec}
@@ -42,6 +55,8 @@ import org.junit.Test;
  * @author ebahtijaragic
  */
 public class KixmppCodecTest {
+	private static final Logger logger = LoggerFactory.getLogger(KixmppCodecTest.class);
+	
 	@Test
 	public void testSampleXmppClientSessionPerLine() throws Exception {
 		final AtomicReference<KixmppStreamStart> start = new AtomicReference<>();
@@ -184,4 +199,357 @@ public class KixmppCodecTest {
 		Assert.assertEquals("iq", elements.get(4).getName());
 		Assert.assertEquals("iq", elements.get(5).getName());
 	}
+	
+	@Test
+	public void testDecodeAllocationIsBounded() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppCodec());
+		
+		channel.writeInbound(channel.alloc().directBuffer().writeBytes(
+				"<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>".getBytes(StandardCharsets.UTF_8)));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		// every read is one small stanza followed by a lot of whitespace keep-alive padding
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 32 * 1024; i++) {
+			padding.append(' ');
+		}
+		byte[] read = ("<presence from='someone@example.com/resource'/>" + padding).getBytes(StandardCharsets.UTF_8);
+		
+		// warm up the parser and the scratch buffers
+		for (int i = 0; i < 100; i++) {
+			decodeDirect(channel, read);
+		}
+		
+		int stanzaCount = 1000;
+		
+		long allocatedBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		
+		for (int i = 0; i < stanzaCount; i++) {
+			decodeDirect(channel, read);
+		}
+		
+		long allocatedPerStanza = (threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore) / stanzaCount;
+
+		// copying each read into a fresh array would cost more than the read size per stanza
+		Assert.assertTrue("Allocated " + allocatedPerStanza + " bytes per stanza", allocatedPerStanza < read.length / 4);
+	}
+	
+	@Test
+	public void testRetainRawBytes() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true));
+		
+		String streamStart = "<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' xmlns:foo='urn:foo' version='1.0'>";
+		String message = "<message to='someone@example.com' type='chat'><body>h\u00e9llo &amp; bye</body></message>";
+		String presence = "<presence from='someone@example.com/resource'/>";
+		String prefixed = "<message><foo:x/></message>";
+		
+		byte[] data = (streamStart + message + "\n " + presence + prefixed + message + "</stream:stream>").getBytes(StandardCharsets.UTF_8);
+		
+		// split the input at awkward places, including inside tags and multi-byte characters
+		for (int i = 0; i < data.length; i += 7) {
+			channel.writeInbound(channel.alloc().buffer().writeBytes(data, i, Math.min(7, data.length - i)));
+		}
+		
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		KixmppStanza first = (KixmppStanza)channel.readInbound();
+		KixmppStanza second = (KixmppStanza)channel.readInbound();
+		KixmppStanza third = (KixmppStanza)channel.readInbound();
+		KixmppStanza fourth = (KixmppStanza)channel.readInbound();
+		
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamEnd);
+		
+		Assert.assertEquals(message, first.getRawBytes().toString(StandardCharsets.UTF_8));
+		Assert.assertEquals(presence, second.getRawBytes().toString(StandardCharsets.UTF_8));
+		Assert.assertEquals(message, fourth.getRawBytes().toString(StandardCharsets.UTF_8));
+		
+		// the stream declares the prefix so the bytes alone would not be well-formed
+		Assert.assertNull(third.getRawBytes());
+		
+		// only the header is parsed up front, the body comes from the raw bytes
+		Assert.assertEquals("body", first.getFirstChildName());
+		Assert.assertEquals("jabber:client", first.getFirstChildNamespaceURI());
+		Assert.assertEquals("h\u00e9llo & bye", first.getChildText("body", "jabber:client"));
+		Assert.assertEquals("urn:foo", third.getFirstChild().getNamespaceURI());
+		
+		for (KixmppStanza stanza : new KixmppStanza[] {first, second, fourth}) {
+			Assert.assertTrue(stanza.release());
+			Assert.assertNull(stanza.getRawBytes());
+		}
+	}
+	
+	@Test
+	public void testRetainRawBytesFromHeapBuffers() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true));
+		
+		String streamStart = "<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>";
+		String message = "<message to='someone@example.com' type='chat'><body>hello there</body></message>";
+		
+		byte[] data = (streamStart + message + message).getBytes(StandardCharsets.UTF_8);
+		
+		// the parser reads straight from the arrays, which start at an offset and are merged as the stanzas span reads
+		for (int i = 0; i < data.length; i += 11) {
+			channel.writeInbound(Unpooled.wrappedBuffer(data, i, Math.min(11, data.length - i)));
+		}
+		
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		for (int i = 0; i < 2; i++) {
+			KixmppStanza stanza = (KixmppStanza)channel.readInbound();
+			
+			Assert.assertEquals(message, stanza.getRawBytes().toString(StandardCharsets.UTF_8));
+			Assert.assertTrue(stanza.release());
+		}
+	}
+	
+	@Test
+	public void testRawBytesDroppedOnModification() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true));
+		
+		channel.writeInbound(channel.alloc().buffer().writeBytes(
+				"<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'><message><body>hi</body></message>".getBytes(StandardCharsets.UTF_8)));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		KixmppStanza stanza = (KixmppStanza)channel.readInbound();
+		Assert.assertNotNull(stanza.getRawBytes());
+		
+		// rewriting the addresses keeps the bytes around for splicing
+		stanza.setAttribute("to", "someone@example.com");
+		Assert.assertNotNull(stanza.getRawBytes());
+		Assert.assertTrue(stanza.isAddressRewritten());
+		
+		// any other change invalidates them
+		stanza.getFirstChild().addText(" there");
+		Assert.assertNull(stanza.getRawBytes());
+		
+		Assert.assertTrue(stanza.release());
+	}
+	
+	@Test
+	public void testHibernateMidStanza() throws Exception {
+		KixmppCodec codec = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true).enableHibernation(0, TimeUnit.SECONDS);
+		EmbeddedChannel channel = new EmbeddedChannel(codec);
+		
+		writeInbound(channel, "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' xmlns:foo='urn:foo'>");
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		writeInbound(channel, "<presence/> <message to='someone@example.com'><foo:x/><bo");
+		Assert.assertEquals("presence", ((KixmppStanza)channel.readInbound()).getName());
+		
+		Assert.assertTrue(codec.hibernate());
+		Assert.assertTrue(codec.isHibernating());
+		
+		// the partial stanza is parsed again, in the namespaces of the stream
+		writeInbound(channel, "dy>hi</body></message>");
+		Assert.assertFalse(codec.isHibernating());
+		
+		KixmppStanza message = (KixmppStanza)channel.readInbound();
+		Assert.assertEquals("someone@example.com", message.getAttributeValue("to"));
+		Assert.assertEquals("urn:foo", message.getFirstChildNamespaceURI());
+		Assert.assertEquals("hi", message.getChildText("body", "jabber:client"));
+		message.release();
+		
+		// raw bytes still line up with the buffer after waking up
+		writeInbound(channel, "<iq id='1'/>");
+		
+		KixmppStanza iq = (KixmppStanza)channel.readInbound();
+		Assert.assertEquals("<iq id='1'/>", iq.getRawBytes().toString(StandardCharsets.UTF_8));
+		iq.release();
+	}
+	
+	@Test
+	public void testHibernationReleasesParserMemory() throws Exception {
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		
+		int connectionCount = 1000;
+		
+		KixmppCodec[] codecs = new KixmppCodec[connectionCount];
+		EmbeddedChannel[] channels = new EmbeddedChannel[connectionCount];
+		
+		for (int i = 0; i < connectionCount; i++) {
+			codecs[i] = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true).enableHibernation(0, TimeUnit.SECONDS);
+			channels[i] = new EmbeddedChannel(codecs[i]);
+			
+			writeInbound(channels[i], "<?xml version='1.0'?><stream:stream to='example.com' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>"
+					+ "<message to='someone@example.com' type='chat'><body>hello there, how are you doing?</body></message>");
+			
+			channels[i].readInbound();
+			((KixmppStanza)channels[i].readInbound()).release();
+		}
+		
+		long activeHeap = usedHeap(memoryBean);
+		
+		for (int i = 0; i < connectionCount; i++) {
+			Assert.assertTrue(codecs[i].hibernate());
+		}
+		
+		long hibernatingHeap = usedHeap(memoryBean);
+		
+		logger.info("Per connection heap: [{}] bytes active, [{}] bytes hibernating, [{}] bytes released", 
+				activeHeap / connectionCount, hibernatingHeap / connectionCount, (activeHeap - hibernatingHeap) / connectionCount);
+		
+		Assert.assertTrue("Hibernation released " + (activeHeap - hibernatingHeap) + " bytes", activeHeap - hibernatingHeap > connectionCount * 1024L);
+		
+		// everything still works after waking up
+		for (int i = 0; i < connectionCount; i++) {
+			writeInbound(channels[i], "<presence/>");
+			
+			Assert.assertEquals("presence", ((KixmppStanza)channels[i].readInbound()).getName());
+		}
+	}
+	
+	@Test
+	public void testStanzaBatching() throws Exception {
+		KixmppCodec codec = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true).enableStanzaBatching();
+		EmbeddedChannel channel = new EmbeddedChannel(codec);
+		
+		// stanzas read together are passed on together, without moving past stream events
+		writeInbound(channel, "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+				+ "<presence/><iq id='1'/><message to='a@example.com'/>");
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		KixmppStanzaBatch batch = (KixmppStanzaBatch)channel.readInbound();
+		Assert.assertEquals(3, batch.size());
+		Assert.assertEquals("presence", batch.getStanzas().get(0).getName());
+		Assert.assertEquals("iq", batch.getStanzas().get(1).getName());
+		Assert.assertEquals("message", batch.getStanzas().get(2).getName());
+		Assert.assertEquals("<iq id='1'/>", batch.getStanzas().get(1).getRawBytes().toString(StandardCharsets.UTF_8));
+		batch.release();
+		
+		Assert.assertNull(channel.readInbound());
+		
+		// a single stanza is passed on as is
+		writeInbound(channel, "<presence/>");
+		
+		KixmppStanza stanza = (KixmppStanza)channel.readInbound();
+		Assert.assertEquals("presence", stanza.getName());
+		stanza.release();
+		
+		writeInbound(channel, "<presence/><presence type='unavailable'/></stream:stream>");
+		
+		batch = (KixmppStanzaBatch)channel.readInbound();
+		Assert.assertEquals(2, batch.size());
+		batch.release();
+		
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamEnd);
+	}
+	
+	@Test
+	public void testDepthLimit() throws Exception {
+		EmbeddedChannel channel = openLimitedStream(KixmppDecoderLimits.NONE.withMaxDepth(3));
+		
+		writeInbound(channel, "<message><x><y/></x></message>");
+		Assert.assertEquals("message", ((KixmppStanza)channel.readInbound()).getName());
+		
+		writeInbound(channel, "<message><x><y><z/></y></x></message>");
+		assertPolicyViolation(channel);
+	}
+	
+	@Test
+	public void testAttributeLimit() throws Exception {
+		EmbeddedChannel channel = openLimitedStream(KixmppDecoderLimits.NONE.withMaxAttributes(2));
+		
+		writeInbound(channel, "<message to='a@example.com' id='1'/>");
+		Assert.assertEquals("message", ((KixmppStanza)channel.readInbound()).getName());
+		
+		writeInbound(channel, "<message to='a@example.com' id='2' type='chat'/>");
+		assertPolicyViolation(channel);
+	}
+	
+	@Test
+	public void testTextLimitAcrossReads() throws Exception {
+		EmbeddedChannel channel = openLimitedStream(KixmppDecoderLimits.NONE.withMaxTextLength(10));
+		
+		writeInbound(channel, "<message><body>123456");
+		Assert.assertNull(channel.readInbound());
+		Assert.assertTrue(channel.isOpen());
+		
+		writeInbound(channel, "789012</body></message>");
+		assertPolicyViolation(channel);
+	}
+	
+	@Test
+	public void testStanzaBytesLimitOnIncompleteStanza() throws Exception {
+		EmbeddedChannel channel = openLimitedStream(KixmppDecoderLimits.NONE.withMaxStanzaBytes(64));
+		
+		writeInbound(channel, "<message><body>short</body></message>");
+		Assert.assertEquals("message", ((KixmppStanza)channel.readInbound()).getName());
+		
+		// never completed, but cut off as soon as it grows past the limit
+		writeInbound(channel, "<message><body>");
+		
+		for (int i = 0; i < 4 && channel.isOpen(); i++) {
+			writeInbound(channel, "0123456789012345678901234567890123456789");
+		}
+		
+		assertPolicyViolation(channel);
+	}
+	
+	@Test
+	public void testBytesBeforeFirstStanzaLimit() throws Exception {
+		KixmppCodec codec = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true)
+				.setDecoderLimits(KixmppDecoderLimits.NONE.withMaxBytesBeforeFirstStanza(256));
+		EmbeddedChannel channel = new EmbeddedChannel(codec);
+		
+		writeInbound(channel, "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>");
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		writeInbound(channel, "<message><body>");
+		
+		for (int i = 0; i < 8 && channel.isOpen(); i++) {
+			writeInbound(channel, "0123456789012345678901234567890123456789");
+		}
+		
+		assertPolicyViolation(channel);
+	}
+	
+	private static EmbeddedChannel openLimitedStream(KixmppDecoderLimits limits) {
+		KixmppCodec codec = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA)
+				.setDecoderLimits(limits);
+		EmbeddedChannel channel = new EmbeddedChannel(codec);
+		
+		writeInbound(channel, "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>");
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		return channel;
+	}
+	
+	private static void assertPolicyViolation(EmbeddedChannel channel) {
+		Assert.assertNull(channel.readInbound());
+		
+		ByteBuf error = (ByteBuf)channel.readOutbound();
+		Assert.assertEquals("<stream:error><policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error></stream:stream>", 
+				error.toString(StandardCharsets.UTF_8));
+		error.release();
+		
+		Assert.assertFalse(channel.isOpen());
+	}
+	
+	private static long usedHeap(MemoryMXBean memoryBean) throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+	
+	private static void writeInbound(EmbeddedChannel channel, String data) {
+		channel.writeInbound(channel.alloc().buffer().writeBytes(data.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	private static void decodeDirect(EmbeddedChannel channel, byte[] data) {
+		ByteBuf buffer = channel.alloc().directBuffer(data.length);
+		buffer.writeBytes(data);
+		
+		channel.writeInbound(buffer);
+		
+		Element element = (Element)channel.readInbound();
+		Assert.assertEquals("presence", element.getName());
+	}
 }
@@ -0,0 +1,158 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jdom2.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link KixmppWebSocketCodec}
+ */
+public class KixmppWebSocketCodecTest {
+	@Test
+	public void testFramedSession() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec());
+		
+		channel.writeInbound(new TextWebSocketFrame("<open xmlns='urn:ietf:params:xml:ns:xmpp-framing' to='example.com' version='1.0'/>"));
+		
+		KixmppStreamStart streamStart = (KixmppStreamStart)channel.readInbound();
+		Assert.assertEquals("example.com", streamStart.getTo().getDomain());
+		
+		channel.writeInbound(new TextWebSocketFrame("<message to='a@example.com'><body>hi</body></message>"));
+		
+		Element message = (Element)channel.readInbound();
+		Assert.assertEquals("message", message.getName());
+		Assert.assertEquals("jabber:client", message.getNamespaceURI());
+		Assert.assertEquals("a@example.com", message.getAttributeValue("to"));
+		Assert.assertEquals("hi", message.getChildText("body", message.getNamespace()));
+		
+		channel.writeInbound(new TextWebSocketFrame("<close xmlns='urn:ietf:params:xml:ns:xmpp-framing'/>"));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamEnd);
+		Assert.assertNull(channel.readInbound());
+		
+		// the reply uses the framing the peer used
+		channel.writeOutbound(new KixmppStreamStart(null, KixmppJid.fromRawJid("example.com"), true));
+		assertOutbound(channel, "<open to=\"example.com\" version=\"1.0\" xmlns=\"urn:ietf:params:xml:ns:xmpp-framing\"/>");
+		
+		channel.writeOutbound(new KixmppStreamEnd());
+		assertOutbound(channel, "<close xmlns=\"urn:ietf:params:xml:ns:xmpp-framing\"/>");
+	}
+	
+	@Test
+	public void testLegacyStream() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec());
+		
+		channel.writeInbound(new TextWebSocketFrame("<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' to='example.com'>"));
+		
+		KixmppStreamStart streamStart = (KixmppStreamStart)channel.readInbound();
+		Assert.assertEquals("example.com", streamStart.getTo().getDomain());
+		
+		channel.writeInbound(new TextWebSocketFrame("<presence/>"));
+		Assert.assertEquals("presence", ((Element)channel.readInbound()).getName());
+		
+		channel.writeInbound(new TextWebSocketFrame("</stream:stream>"));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamEnd);
+		
+		channel.writeOutbound(new KixmppStreamEnd());
+		assertOutbound(channel, "</stream:stream>");
+	}
+	
+	@Test
+	public void testContinuationFrames() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec());
+		
+		channel.writeInbound(new TextWebSocketFrame(false, 0, Unpooled.copiedBuffer("<?xml version='1.0'?><message><bo", StandardCharsets.UTF_8)));
+		channel.writeInbound(new ContinuationWebSocketFrame(false, 0, "dy>split</bo"));
+		Assert.assertNull(channel.readInbound());
+		
+		channel.writeInbound(new ContinuationWebSocketFrame(true, 0, "dy></message>"));
+		
+		Element message = (Element)channel.readInbound();
+		Assert.assertEquals("split", message.getChildText("body", message.getNamespace()));
+	}
+	
+	@Test
+	public void testMalformedMessage() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec());
+		
+		try {
+			channel.writeInbound(new TextWebSocketFrame("<message></iq>"));
+			Assert.fail();
+		} catch (Exception e) {
+			// expected
+		}
+		
+		channel.writeInbound(new TextWebSocketFrame("<iq type='get'/>"));
+		Assert.assertEquals("iq", ((Element)channel.readInbound()).getName());
+	}
+	
+	@Test
+	public void testDepthLimit() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec()
+				.setDecoderLimits(KixmppDecoderLimits.DEFAULT.withMaxDepth(2)));
+		
+		channel.writeInbound(new TextWebSocketFrame("<open xmlns='urn:ietf:params:xml:ns:xmpp-framing' to='example.com' version='1.0'/>"));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		channel.writeInbound(new TextWebSocketFrame("<message><a><b/></a></message>"));
+		Assert.assertNull(channel.readInbound());
+		
+		TextWebSocketFrame error = (TextWebSocketFrame)channel.readOutbound();
+		Assert.assertTrue(error.text().contains("<policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-streams'/>"));
+		error.release();
+		
+		Assert.assertFalse(channel.isOpen());
+	}
+	
+	@Test
+	public void testStanzaSplitAcrossMessages() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketCodec()
+				.setDecoderLimits(KixmppDecoderLimits.DEFAULT.withMaxStanzaBytes(1024)));
+		
+		channel.writeInbound(new TextWebSocketFrame("<open xmlns='urn:ietf:params:xml:ns:xmpp-framing' to='example.com' version='1.0'/>"));
+		Assert.assertTrue(channel.readInbound() instanceof KixmppStreamStart);
+		
+		channel.writeInbound(new TextWebSocketFrame("<message><body>"));
+		Assert.assertNull(channel.readInbound());
+		
+		TextWebSocketFrame error = (TextWebSocketFrame)channel.readOutbound();
+		Assert.assertTrue(error.text().contains("<policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-streams'/>"));
+		error.release();
+		
+		Assert.assertFalse(channel.isOpen());
+	}
+	
+	private static void assertOutbound(EmbeddedChannel channel, String expected) {
+		TextWebSocketFrame frame = (TextWebSocketFrame)channel.readOutbound();
+		Assert.assertEquals(expected, frame.text());
+		
+		frame.release();
+	}
+}
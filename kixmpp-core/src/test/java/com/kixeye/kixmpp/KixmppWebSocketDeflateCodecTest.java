@@ -0,0 +1,197 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link KixmppWebSocketDeflateCodec}
+ */
+public class KixmppWebSocketDeflateCodecTest {
+	private static final String MESSAGE = "<message to='someone@example.com/resource' from='me@example.com/resource' type='chat'><body>Hello there</body></message>";
+	
+	@Test
+	public void testNegotiate() throws Exception {
+		Assert.assertNull(KixmppWebSocketDeflateCodec.negotiate(null, Deflater.DEFAULT_COMPRESSION, true));
+		Assert.assertNull(KixmppWebSocketDeflateCodec.negotiate("x-webkit-deflate-frame", Deflater.DEFAULT_COMPRESSION, true));
+		
+		Assert.assertEquals("permessage-deflate", KixmppWebSocketDeflateCodec.negotiate(
+				"permessage-deflate; client_max_window_bits", Deflater.DEFAULT_COMPRESSION, true).getResponseExtension());
+		Assert.assertEquals("permessage-deflate; server_no_context_takeover", KixmppWebSocketDeflateCodec.negotiate(
+				"permessage-deflate", Deflater.DEFAULT_COMPRESSION, false).getResponseExtension());
+		Assert.assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", KixmppWebSocketDeflateCodec.negotiate(
+				"permessage-deflate; server_no_context_takeover; client_no_context_takeover", Deflater.DEFAULT_COMPRESSION, true).getResponseExtension());
+		
+		// a smaller window can not be honored, so the fallback offer is picked
+		Assert.assertEquals("permessage-deflate", KixmppWebSocketDeflateCodec.negotiate(
+				"permessage-deflate; server_max_window_bits=10, permessage-deflate", Deflater.DEFAULT_COMPRESSION, true).getResponseExtension());
+		Assert.assertNull(KixmppWebSocketDeflateCodec.negotiate("permessage-deflate; server_max_window_bits=10", Deflater.DEFAULT_COMPRESSION, true));
+	}
+	
+	@Test
+	public void testAccept() throws Exception {
+		Assert.assertNull(KixmppWebSocketDeflateCodec.accept(null, Deflater.DEFAULT_COMPRESSION));
+		Assert.assertNull(KixmppWebSocketDeflateCodec.accept("x-webkit-deflate-frame", Deflater.DEFAULT_COMPRESSION));
+		
+		KixmppWebSocketDeflateCodec server = KixmppWebSocketDeflateCodec.negotiate("permessage-deflate", Deflater.DEFAULT_COMPRESSION, false);
+		KixmppWebSocketDeflateCodec client = KixmppWebSocketDeflateCodec.accept(server.getResponseExtension(), Deflater.DEFAULT_COMPRESSION);
+		
+		// the server resets its dictionary after every message, the client does not
+		EmbeddedChannel serverChannel = new EmbeddedChannel(server);
+		EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+		
+		Assert.assertEquals(sendAndReceive(serverChannel, clientChannel, MESSAGE), sendAndReceive(serverChannel, clientChannel, MESSAGE));
+		Assert.assertTrue(sendAndReceive(clientChannel, serverChannel, MESSAGE) > sendAndReceive(clientChannel, serverChannel, MESSAGE));
+	}
+	
+	@Test
+	public void testContextTakeover() throws Exception {
+		KixmppWebSocketDeflateCodec serverCodec = new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true);
+		EmbeddedChannel server = new EmbeddedChannel(serverCodec);
+		EmbeddedChannel client = new EmbeddedChannel(new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true));
+		
+		int firstSize = sendAndReceive(server, client, MESSAGE);
+		int secondSize = sendAndReceive(server, client, MESSAGE);
+		
+		Assert.assertTrue(firstSize < MESSAGE.length());
+		Assert.assertTrue("The repeated message should refer back to the first one", secondSize < firstSize / 2);
+		
+		Assert.assertEquals(MESSAGE.length() * 2, serverCodec.getUncompressedBytesWritten());
+		Assert.assertEquals(firstSize + secondSize, serverCodec.getCompressedBytesWritten());
+	}
+	
+	@Test
+	public void testNoContextTakeover() throws Exception {
+		EmbeddedChannel server = new EmbeddedChannel(new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, false, false));
+		EmbeddedChannel client = new EmbeddedChannel(new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, false, false));
+		
+		Assert.assertEquals(sendAndReceive(server, client, MESSAGE), sendAndReceive(server, client, MESSAGE));
+		Assert.assertEquals(1, sendAndReceive(server, client, ""));
+	}
+	
+	@Test
+	public void testFragmentedMessage() throws Exception {
+		EmbeddedChannel server = new EmbeddedChannel(new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true));
+		
+		server.writeOutbound(new TextWebSocketFrame(MESSAGE));
+		TextWebSocketFrame compressed = (TextWebSocketFrame)server.readOutbound();
+		
+		int split = compressed.content().readableBytes() / 2;
+		
+		KixmppWebSocketDeflateCodec clientCodec = new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true);
+		EmbeddedChannel client = new EmbeddedChannel(clientCodec);
+		
+		client.writeInbound(new TextWebSocketFrame(false, compressed.rsv(), compressed.content().readSlice(split).retain()));
+		client.writeInbound(new ContinuationWebSocketFrame(true, 0, compressed.content().retain()));
+		compressed.release();
+		
+		StringBuilder received = new StringBuilder();
+		WebSocketFrame frame;
+		
+		while ((frame = (WebSocketFrame)client.readInbound()) != null) {
+			received.append(frame.content().toString(StandardCharsets.UTF_8));
+			frame.release();
+		}
+		
+		Assert.assertEquals(MESSAGE, received.toString());
+		Assert.assertEquals(MESSAGE.length(), clientCodec.getUncompressedBytesRead());
+	}
+	
+	@Test
+	public void testInflateLimitAcrossFragments() throws Exception {
+		KixmppWebSocketDeflateCodec serverCodec = new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true)
+				.setDecoderLimits(KixmppDecoderLimits.NONE.withMaxStanzaBytes(3000));
+		
+		EmbeddedChannel server = new EmbeddedChannel(serverCodec);
+		
+		// each fragment inflates to 2000 bytes, together they break the limit
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] first = deflate(deflater, new byte[2000]);
+		byte[] second = deflate(deflater, new byte[2000]);
+		
+		server.writeInbound(new TextWebSocketFrame(false, 0x4, Unpooled.wrappedBuffer(first)));
+		
+		WebSocketFrame inflated = (WebSocketFrame)server.readInbound();
+		Assert.assertEquals(2000, inflated.content().readableBytes());
+		inflated.release();
+		
+		// the peer puts back the empty block a final fragment ends with
+		server.writeInbound(new ContinuationWebSocketFrame(true, 0, Unpooled.wrappedBuffer(second, 0, second.length - 4)));
+		
+		Assert.assertNull(server.readInbound());
+		Assert.assertTrue(((TextWebSocketFrame)server.readOutbound()).text().contains("policy-violation"));
+		Assert.assertFalse(server.isOpen());
+		Assert.assertTrue(serverCodec.getUncompressedBytesRead() < 4000);
+		
+		deflater.end();
+	}
+	
+	@Test
+	public void testPassThrough() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketDeflateCodec(Deflater.DEFAULT_COMPRESSION, true, true));
+		
+		channel.writeInbound(new TextWebSocketFrame(MESSAGE));
+		TextWebSocketFrame frame = (TextWebSocketFrame)channel.readInbound();
+		Assert.assertEquals(MESSAGE, frame.text());
+		frame.release();
+		
+		channel.writeOutbound(new PingWebSocketFrame());
+		Assert.assertTrue(channel.readOutbound() instanceof PingWebSocketFrame);
+	}
+	
+	private static int sendAndReceive(EmbeddedChannel server, EmbeddedChannel client, String message) {
+		server.writeOutbound(new TextWebSocketFrame(message));
+		
+		TextWebSocketFrame compressed = (TextWebSocketFrame)server.readOutbound();
+		Assert.assertEquals(0x4, compressed.rsv());
+		
+		int size = compressed.content().readableBytes();
+		
+		client.writeInbound(compressed);
+		
+		TextWebSocketFrame received = (TextWebSocketFrame)client.readInbound();
+		Assert.assertEquals(message, received.text());
+		Assert.assertEquals(0, received.rsv());
+		received.release();
+		
+		return size;
+	}
+	
+	private static byte[] deflate(Deflater deflater, byte[] input) {
+		byte[] output = new byte[input.length + 64];
+		
+		deflater.setInput(input);
+		
+		return Arrays.copyOf(output, deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH));
+	}
+}
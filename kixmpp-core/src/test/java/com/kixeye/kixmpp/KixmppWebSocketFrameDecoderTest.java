@@ -0,0 +1,147 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link KixmppWebSocketFrameDecoder}
+ */
+public class KixmppWebSocketFrameDecoderTest {
+	@Test
+	public void testMaskedFramesAcrossReads() throws Exception {
+		StringBuilder longText = new StringBuilder();
+		
+		for (int i = 0; i < 100; i++) {
+			longText.append("<message><body>").append(i).append("</body></message>");
+		}
+		
+		ByteBuf encoded = encode(true, 
+				new TextWebSocketFrame(false, 0, Unpooled.copiedBuffer("<mess", StandardCharsets.UTF_8)), 
+				new ContinuationWebSocketFrame(true, 0, "age/>"),
+				new TextWebSocketFrame(longText.toString()));
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketFrameDecoder(true, false, 65536));
+		
+		// one byte at a time
+		while (encoded.isReadable()) {
+			channel.writeInbound(encoded.readSlice(1).retain());
+		}
+		
+		encoded.release();
+		
+		assertFrame(channel, TextWebSocketFrame.class, false, "<mess");
+		assertFrame(channel, ContinuationWebSocketFrame.class, true, "age/>");
+		assertFrame(channel, TextWebSocketFrame.class, true, longText.toString());
+		Assert.assertNull(channel.readInbound());
+	}
+	
+	@Test
+	public void testCompressedTextIsNotValidated() throws Exception {
+		byte[] compressed = new byte[] {(byte)0xf2, 0x48, (byte)0xcd, (byte)0xc9, (byte)0xc9, 0x07, 0x00};
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketFrameDecoder(false, true, 65536));
+		channel.writeInbound(encode(false, new TextWebSocketFrame(true, 0x4, Unpooled.wrappedBuffer(compressed))));
+		
+		WebSocketFrame frame = (WebSocketFrame)channel.readInbound();
+		Assert.assertEquals(0x4, frame.rsv());
+		Assert.assertEquals(Unpooled.wrappedBuffer(compressed), frame.content());
+		frame.release();
+	}
+	
+	@Test
+	public void testReservedBitsWithoutExtension() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketFrameDecoder(true, false, 65536));
+		
+		try {
+			channel.writeInbound(encode(true, new TextWebSocketFrame(true, 0x4, Unpooled.copiedBuffer("x", StandardCharsets.UTF_8))));
+			Assert.fail();
+		} catch (Exception e) {
+			// expected
+		}
+		
+		Assert.assertFalse(channel.isOpen());
+	}
+	
+	@Test
+	public void testUnmaskedClientFrame() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketFrameDecoder(true, true, 65536));
+		
+		try {
+			channel.writeInbound(encode(false, new TextWebSocketFrame("<message/>")));
+			Assert.fail();
+		} catch (Exception e) {
+			// expected
+		}
+		
+		Assert.assertNull(channel.readInbound());
+		Assert.assertFalse(channel.isOpen());
+	}
+	
+	@Test
+	public void testNothingAfterClose() throws Exception {
+		EmbeddedChannel channel = new EmbeddedChannel(new KixmppWebSocketFrameDecoder(true, false, 65536));
+		channel.writeInbound(encode(true, new CloseWebSocketFrame(), new TextWebSocketFrame("ignored")));
+		
+		Assert.assertTrue(channel.readInbound() instanceof CloseWebSocketFrame);
+		Assert.assertNull(channel.readInbound());
+	}
+	
+	private static ByteBuf encode(boolean masked, WebSocketFrame... frames) {
+		EmbeddedChannel encoder = new EmbeddedChannel(new WebSocket13FrameEncoder(masked));
+		ByteBuf encoded = Unpooled.buffer();
+		
+		for (WebSocketFrame frame : frames) {
+			encoder.writeOutbound(frame);
+			
+			ByteBuf part;
+			
+			while ((part = (ByteBuf)encoder.readOutbound()) != null) {
+				encoded.writeBytes(part);
+				part.release();
+			}
+		}
+		
+		return encoded;
+	}
+	
+	private static void assertFrame(EmbeddedChannel channel, Class<? extends WebSocketFrame> type, boolean finalFragment, String text) {
+		WebSocketFrame frame = (WebSocketFrame)channel.readInbound();
+		
+		Assert.assertEquals(type, frame.getClass());
+		Assert.assertEquals(finalFragment, frame.isFinalFragment());
+		Assert.assertEquals(text, frame.content().toString(StandardCharsets.UTF_8));
+		
+		frame.release();
+	}
+}
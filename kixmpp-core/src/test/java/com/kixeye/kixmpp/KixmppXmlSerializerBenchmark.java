@@ -0,0 +1,141 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.output.XMLOutputter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Compares the {@link KixmppXmlSerializer} against the {@link XMLOutputter} path the codecs used before.
+ * 
+ * <p>Run with <code>mvn test-compile</code> and then this class' main method with the test classpath, 
+ * add <code>-prof gc</code> to the options to see the allocation rate.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KixmppXmlSerializerBenchmark {
+	private Element message;
+	private KixmppStanza stanza;
+	private KixmppStreamStart streamStart;
+	
+	private ByteBuf out;
+	
+	@Setup
+	public void setup() {
+		Namespace client = Namespace.getNamespace("jabber:client");
+		
+		message = new Element("message", client);
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("from", "room@conference.example.com/nickname");
+		message.setAttribute("to", "someone@example.com/resource");
+		message.setAttribute("id", "b8e0a8b0-7c5c-4c1f-9e5e-1a2b3c4d5e6f");
+		message.addContent(new Element("body", client).setText("Hello everyone, meet me at <the usual place> & bring snacks!"));
+		message.addContent(new Element("delay", Namespace.getNamespace("urn:xmpp:delay")).setAttribute("stamp", "2014-01-01T00:00:00Z"));
+		
+		stanza = KixmppStanza.fromElement(message);
+		stanza.getContentCount();
+		
+		streamStart = new KixmppStreamStart(new KixmppJid("example.com"), new KixmppJid("someone", "example.com", "resource"), true, "stream-id");
+		
+		out = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		out.release();
+	}
+	
+	@Benchmark
+	public ByteBuf xmlOutputterElement() throws Exception {
+		out.clear();
+		new XMLOutputter().output(message, new ByteBufOutputStream(out));
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf serializerElement() {
+		out.clear();
+		KixmppXmlSerializer.write(message, out);
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf serializerStanza() {
+		out.clear();
+		KixmppXmlSerializer.write(stanza, out);
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf formatStreamStart() {
+		out.clear();
+		out.writeBytes("<?xml version='1.0' encoding='UTF-8'?>".getBytes(StandardCharsets.UTF_8));
+		out.writeBytes("<stream:stream ".getBytes(StandardCharsets.UTF_8));
+		out.writeBytes(String.format("id=\"%s\" ", streamStart.getId()).getBytes(StandardCharsets.UTF_8));
+		out.writeBytes(String.format("from=\"%s\" ", streamStart.getFrom().getFullJid()).getBytes(StandardCharsets.UTF_8));
+		out.writeBytes(String.format("to=\"%s\" ", streamStart.getTo().getFullJid()).getBytes(StandardCharsets.UTF_8));
+		out.writeBytes("version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">".getBytes(StandardCharsets.UTF_8));
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf serializerStreamStart() {
+		out.clear();
+		KixmppXmlSerializer.write(streamStart, out);
+		
+		return out;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(KixmppXmlSerializerBenchmark.class.getSimpleName()).build()).run();
+	}
+}
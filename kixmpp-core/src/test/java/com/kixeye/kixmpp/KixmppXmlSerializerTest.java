@@ -0,0 +1,283 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+import org.jdom2.Attribute;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Tests the {@link KixmppXmlSerializer}
+ */
+public class KixmppXmlSerializerTest {
+	@Test
+	public void testWriteCommonMessage() throws Exception {
+		Element message = new Element("message", Namespace.getNamespace("jabber:client"));
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("to", "someone@example.com/resource");
+		message.addContent(new Element("body", Namespace.getNamespace("jabber:client")).setText("hello & <goodbye>"));
+		
+		Assert.assertEquals("<message xmlns=\"jabber:client\" type=\"groupchat\" to=\"someone@example.com/resource\"><body>hello &amp; &lt;goodbye&gt;</body></message>", 
+				serialize(message));
+	}
+	
+	@Test
+	public void testWriteMatchesXmlOutputter() throws Exception {
+		Namespace muc = Namespace.getNamespace("http://jabber.org/protocol/muc#user");
+		Namespace custom = Namespace.getNamespace("custom", "urn:example:custom");
+		
+		Element presence = new Element("presence");
+		presence.setAttribute("from", "room@conference.example.com/nïck \"quoted\"");
+		presence.setAttribute("lang", "en", Namespace.XML_NAMESPACE);
+		presence.setAttribute("flag", "tab\tline\nreturn\r", custom);
+		presence.addNamespaceDeclaration(Namespace.getNamespace("unused", "urn:example:unused"));
+		
+		Element x = new Element("x", muc);
+		x.addContent(new Element("item", muc).setAttribute("affiliation", "member").setAttribute("role", "participant"));
+		x.addContent(new Element("unqualified"));
+		x.addContent(new Element("prefixed", custom).setText("© 中文 😀 \r"));
+		
+		presence.addContent(x);
+		presence.addContent(new Element("status").setText("   "));
+		presence.addContent(new Element("empty"));
+		
+		assertEquivalent(new XMLOutputter().outputString(presence), serialize(presence));
+		assertEquivalent(new XMLOutputter().outputString(presence), serialize(KixmppStanza.fromElement(presence)));
+	}
+	
+	@Test
+	public void testWriteStanzaFromScratch() throws Exception {
+		KixmppStanza message = new KixmppStanza("message", null, "jabber:client");
+		message.addAttribute("type", null, null, "chat");
+		message.addAttribute("id", null, null, "a<b");
+		
+		KixmppStanza body = new KixmppStanza("body", null, "jabber:client");
+		body.addText("part one, ");
+		body.addText("part two");
+		message.addChild(body);
+		
+		KixmppStanza delay = new KixmppStanza("delay", null, "urn:xmpp:delay");
+		delay.addAttribute("stamp", null, null, "2014-01-01T00:00:00Z");
+		message.addChild(delay);
+		
+		Assert.assertEquals("<message xmlns=\"jabber:client\" type=\"chat\" id=\"a&lt;b\"><body>part one, part two</body><delay xmlns=\"urn:xmpp:delay\" stamp=\"2014-01-01T00:00:00Z\"/></message>", 
+				serialize(message));
+		assertEquivalent(new XMLOutputter().outputString(message.toElement()), serialize(message));
+	}
+	
+	@Test
+	public void testWriteWithDefaultNamespace() throws Exception {
+		Element message = new Element("message");
+		message.addContent(new Element("body").setText("hi"));
+		message.addContent(new Element("x", Namespace.getNamespace("jabber:x:data")).addContent(new Element("field")));
+		
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(message, "jabber:client", buf);
+		
+		Assert.assertEquals("<message xmlns=\"jabber:client\"><body>hi</body><x xmlns=\"jabber:x:data\"><field xmlns=\"jabber:client\"/></x></message>", 
+				buf.toString(StandardCharsets.UTF_8));
+		
+		// the element itself is left untouched
+		Assert.assertEquals(Namespace.NO_NAMESPACE, message.getNamespace());
+	}
+	
+	@Test
+	public void testWriteEncodedStanza() throws Exception {
+		Element message = new Element("message");
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("from", "room@conference.example.com/nick");
+		message.addContent(new Element("body").setText("hello & <goodbye>"));
+		
+		KixmppEncodedStanza encoded = KixmppEncodedStanza.encode(message, Unpooled.buffer().alloc());
+		
+		KixmppEncodedStanza addressed = encoded.addressedTo("someone@example.com/\"resource\"");
+		KixmppEncodedStanza unaddressed = encoded.addressedTo(null);
+		
+		Assert.assertEquals(3, encoded.refCnt());
+		
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(addressed, buf);
+		
+		Assert.assertEquals("<message to=\"someone@example.com/&quot;resource&quot;\" type=\"groupchat\" from=\"room@conference.example.com/nick\"><body>hello &amp; &lt;goodbye&gt;</body></message>", 
+				buf.toString(StandardCharsets.UTF_8));
+		
+		buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(unaddressed, "jabber:client", buf);
+		
+		Assert.assertEquals("<message xmlns=\"jabber:client\" type=\"groupchat\" from=\"room@conference.example.com/nick\"><body>hello &amp; &lt;goodbye&gt;</body></message>", 
+				buf.toString(StandardCharsets.UTF_8));
+		
+		// a copy parsed for interceptors carries its address
+		KixmppStanza stanza = addressed.toStanza();
+		
+		Assert.assertEquals("someone@example.com/\"resource\"", stanza.getAttributeValue("to"));
+		Assert.assertEquals("hello & <goodbye>", stanza.getChildText("body", ""));
+		
+		addressed.release();
+		unaddressed.release();
+		
+		Assert.assertTrue(encoded.release());
+	}
+	
+	@Test
+	public void testWriteEncodedStanzaInDefaultNamespace() throws Exception {
+		Element presence = new Element("presence");
+		presence.addContent(new Element("x", Namespace.getNamespace("http://jabber.org/protocol/muc#user")).addContent(new Element("item")));
+		
+		KixmppEncodedStanza encoded = KixmppEncodedStanza.encode(presence, "jabber:client", Unpooled.buffer().alloc());
+		
+		try {
+			ByteBuf tcp = Unpooled.buffer();
+			KixmppXmlSerializer.write(encoded.addressedTo("someone@example.com"), tcp);
+			
+			ByteBuf webSocket = Unpooled.buffer();
+			KixmppXmlSerializer.write(encoded.addressedTo("someone@example.com"), "jabber:client", webSocket);
+			
+			// the same bytes fit either connection, declared once
+			Assert.assertEquals("<presence to=\"someone@example.com\" xmlns=\"jabber:client\"><x xmlns=\"http://jabber.org/protocol/muc#user\"><item xmlns=\"jabber:client\"/></x></presence>", 
+					tcp.toString(StandardCharsets.UTF_8));
+			Assert.assertEquals(tcp.toString(StandardCharsets.UTF_8), webSocket.toString(StandardCharsets.UTF_8));
+		} finally {
+			encoded.release();
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeAddressedStanza() throws Exception {
+		KixmppEncodedStanza.encode(new Element("message").setAttribute("to", "someone@example.com"), Unpooled.buffer().alloc());
+	}
+	
+	@Test
+	public void testWriteStreamStart() throws Exception {
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(new KixmppStreamStart(new KixmppJid("example.com"), new KixmppJid("someone", "example.com", "resource"), true, "abc"), buf);
+		
+		Assert.assertEquals("<?xml version='1.0' encoding='UTF-8'?><stream:stream id=\"abc\" from=\"example.com\" to=\"someone@example.com/resource\" "
+				+ "version=\"1.0\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\">", buf.toString(StandardCharsets.UTF_8));
+		
+		buf.clear();
+		KixmppXmlSerializer.write(new KixmppStreamEnd(), buf);
+		
+		Assert.assertEquals("</stream:stream>", buf.toString(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testWriteRawBytes() throws Exception {
+		String raw = "<message to='someone@example.com' type='chat'><body>hi</body></message>";
+		
+		KixmppStanza message = new KixmppStanza("message", null, "jabber:client");
+		message.addAttribute("to", null, null, "someone@example.com");
+		message.addAttribute("type", null, null, "chat");
+		message.setRawBytes(Unpooled.copiedBuffer(raw, StandardCharsets.UTF_8));
+		
+		// the inherited default namespace is declared on the way out
+		Assert.assertEquals("<message xmlns=\"jabber:client\" to='someone@example.com' type='chat'><body>hi</body></message>", serialize(message));
+		
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(message, "jabber:client", buf);
+		Assert.assertEquals("<message xmlns=\"jabber:client\" to='someone@example.com' type='chat'><body>hi</body></message>", buf.toString(StandardCharsets.UTF_8));
+		
+		// rewritten addresses are spliced into the start tag
+		message.setAttribute("to", "other@example.com");
+		message.setAttribute("from", "someone@example.com/a&b");
+		Assert.assertEquals("<message xmlns=\"jabber:client\" to=\"other@example.com\" type='chat' from=\"someone@example.com/a&amp;b\"><body>hi</body></message>", serialize(message));
+		
+		// released bytes fall back to the tree
+		Assert.assertTrue(message.release());
+		assertEquivalent("<message xmlns=\"jabber:client\" to=\"other@example.com\" type=\"chat\" from=\"someone@example.com/a&amp;b\"/>", serialize(message));
+	}
+	
+	@Test
+	public void testWriteRawBytesVerbatim() throws Exception {
+		String raw = "<presence xmlns='jabber:client'\n\tfrom='someone@example.com/resource'/>";
+		
+		KixmppStanza presence = new KixmppStanza("presence", null, "jabber:client");
+		presence.addNamespaceDeclaration("", "jabber:client");
+		presence.addAttribute("from", null, null, "someone@example.com/resource");
+		presence.setRawBytes(Unpooled.copiedBuffer(raw, StandardCharsets.UTF_8));
+		
+		Assert.assertEquals(raw, serialize(presence));
+		
+		presence.setAttribute("from", "other@example.com");
+		Assert.assertEquals("<presence xmlns='jabber:client'\n from=\"other@example.com\"/>", serialize(presence));
+		
+		Assert.assertTrue(presence.release());
+	}
+	
+	private static String serialize(Element element) {
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(element, buf);
+		
+		return buf.toString(StandardCharsets.UTF_8);
+	}
+	
+	private static String serialize(KixmppStanza stanza) {
+		ByteBuf buf = Unpooled.buffer();
+		KixmppXmlSerializer.write(stanza, buf);
+		
+		return buf.toString(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Parses both documents and compares them after a round trip through the {@link XMLOutputter}.
+	 */
+	private static void assertEquivalent(String expected, String actual) throws Exception {
+		Assert.assertEquals(canonicalize(expected), canonicalize(actual));
+	}
+	
+	private static String canonicalize(String xml) throws Exception {
+		Element element = new SAXBuilder().build(new ByteBufInputStream(Unpooled.copiedBuffer(xml, StandardCharsets.UTF_8))).getRootElement().detach();
+		
+		sortAttributes(element);
+		
+		ByteBuf buf = Unpooled.buffer();
+		new XMLOutputter().output(element, new ByteBufOutputStream(buf));
+		
+		return buf.toString(StandardCharsets.UTF_8);
+	}
+	
+	private static void sortAttributes(Element element) {
+		element.sortAttributes(new Comparator<Attribute>() {
+			public int compare(Attribute o1, Attribute o2) {
+				return o1.getQualifiedName().compareTo(o2.getQualifiedName());
+			}
+		});
+		
+		for (Element child : element.getChildren()) {
+			sortAttributes(child);
+		}
+	}
+}
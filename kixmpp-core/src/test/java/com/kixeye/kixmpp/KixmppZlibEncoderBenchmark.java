@@ -0,0 +1,140 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.kixmpp.KixmppZlibEncoder.FlushStrategy;
+
+/**
+ * Measures what stream compression costs in CPU and saves in bandwidth for typical chat traffic. 
+ * The <code>rawBytes</code> and <code>compressedBytes</code> counters show the bandwidth, the score the CPU cost.
+ * 
+ * <p>Run with <code>mvn test-compile</code> and then this class' main method with the test classpath.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KixmppZlibEncoderBenchmark {
+	private static final String[] STANZAS = new String[] {
+		"<message to='someone@example.com/resource' from='room@conference.example.com/nickname' type='groupchat' id='b8e0a8b0-7c5c-4c1f'>"
+				+ "<body>Hello everyone, meet me at the usual place</body></message>",
+		"<presence from='room@conference.example.com/another' to='someone@example.com/resource'>"
+				+ "<x xmlns='http://jabber.org/protocol/muc#user'><item affiliation='member' role='participant'/></x></presence>",
+		"<message to='someone@example.com/resource' from='friend@example.com/phone' type='chat' id='4d5e6f'>"
+				+ "<body>are you coming tonight?</body></message>",
+		"<iq type='result' id='ping-42' from='example.com' to='someone@example.com/resource'/>"
+	};
+	
+	@Param({"1", "6", "9"})
+	public int compressionLevel;
+	
+	@Param({"SYNC_PER_WRITE", "FULL_PER_WRITE", "SYNC_PER_FLUSH"})
+	public FlushStrategy flushStrategy;
+	
+	/**
+	 * Stanzas written together before the channel is flushed.
+	 */
+	@Param({"1", "8"})
+	public int writesPerFlush;
+	
+	private EmbeddedChannel channel;
+	private ByteBuf[] stanzas;
+	private int next = 0;
+	
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Bandwidth {
+		public long rawBytes;
+		public long compressedBytes;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			rawBytes = 0;
+			compressedBytes = 0;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		channel = new EmbeddedChannel(new KixmppZlibEncoder(compressionLevel, flushStrategy));
+		
+		stanzas = new ByteBuf[STANZAS.length];
+		
+		for (int i = 0; i < STANZAS.length; i++) {
+			stanzas[i] = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(STANZAS[i], StandardCharsets.UTF_8));
+		}
+	}
+	
+	@Benchmark
+	public long compress(Bandwidth bandwidth) {
+		long compressed = 0;
+		
+		for (int i = 0; i < writesPerFlush; i++) {
+			ByteBuf stanza = stanzas[next++ % stanzas.length];
+			
+			bandwidth.rawBytes += stanza.readableBytes();
+			
+			channel.write(stanza.duplicate());
+		}
+		
+		channel.flush();
+		
+		ByteBuf out;
+		
+		while ((out = (ByteBuf)channel.readOutbound()) != null) {
+			compressed += out.readableBytes();
+			out.release();
+		}
+		
+		bandwidth.compressedBytes += compressed;
+		
+		return compressed;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(KixmppZlibEncoderBenchmark.class.getSimpleName()).build()).run();
+	}
+}
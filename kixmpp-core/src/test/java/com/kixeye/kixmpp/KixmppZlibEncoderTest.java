@@ -0,0 +1,119 @@
+package com.kixeye.kixmpp;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.kixeye.kixmpp.KixmppZlibEncoder.FlushStrategy;
+
+/**
+ * Tests the {@link KixmppZlibEncoder}
+ */
+public class KixmppZlibEncoderTest {
+	private static final String MESSAGE = "<message to='someone@example.com/resource' from='room@conference.example.com/nickname' type='groupchat'>"
+			+ "<body>Hello everyone, meet me at the usual place</body></message>";
+	
+	@Test
+	public void testSyncPerWrite() throws Exception {
+		EmbeddedChannel encoder = new EmbeddedChannel(new KixmppZlibEncoder(6, FlushStrategy.SYNC_PER_WRITE));
+		EmbeddedChannel decoder = new EmbeddedChannel(new JdkZlibDecoder(ZlibWrapper.ZLIB));
+		
+		// every write can be decompressed on its own, and later ones compress better
+		int firstSize = 0;
+		
+		for (int i = 0; i < 3; i++) {
+			encoder.writeOutbound(Unpooled.copiedBuffer(MESSAGE, StandardCharsets.UTF_8));
+			
+			ByteBuf compressed = (ByteBuf)encoder.readOutbound();
+			
+			if (i == 0) {
+				firstSize = compressed.readableBytes();
+			} else {
+				Assert.assertTrue(compressed.readableBytes() < firstSize / 2);
+			}
+			
+			Assert.assertEquals(MESSAGE, inflate(decoder, compressed));
+		}
+	}
+	
+	@Test
+	public void testFullPerWrite() throws Exception {
+		EmbeddedChannel encoder = new EmbeddedChannel(new KixmppZlibEncoder(6, FlushStrategy.FULL_PER_WRITE));
+		EmbeddedChannel decoder = new EmbeddedChannel(new JdkZlibDecoder(ZlibWrapper.ZLIB));
+		
+		for (int i = 0; i < 3; i++) {
+			encoder.writeOutbound(Unpooled.copiedBuffer(MESSAGE, StandardCharsets.UTF_8));
+			
+			Assert.assertEquals(MESSAGE, inflate(decoder, (ByteBuf)encoder.readOutbound()));
+		}
+	}
+	
+	@Test
+	public void testSyncPerFlush() throws Exception {
+		EmbeddedChannel encoder = new EmbeddedChannel(new KixmppZlibEncoder(6, FlushStrategy.SYNC_PER_FLUSH));
+		EmbeddedChannel decoder = new EmbeddedChannel(new JdkZlibDecoder(ZlibWrapper.ZLIB));
+		
+		// nothing is complete until the channel is flushed
+		for (int i = 0; i < 3; i++) {
+			encoder.write(Unpooled.copiedBuffer(MESSAGE, StandardCharsets.UTF_8));
+		}
+		
+		encoder.flush();
+		
+		ByteBuf compressed = Unpooled.buffer();
+		ByteBuf part;
+		
+		while ((part = (ByteBuf)encoder.readOutbound()) != null) {
+			compressed.writeBytes(part);
+			part.release();
+		}
+		
+		Assert.assertEquals(MESSAGE + MESSAGE + MESSAGE, inflate(decoder, compressed));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCompressionLevel() throws Exception {
+		new KixmppZlibEncoder(10, FlushStrategy.SYNC_PER_WRITE);
+	}
+	
+	private static String inflate(EmbeddedChannel decoder, ByteBuf compressed) {
+		decoder.writeInbound(compressed);
+		
+		StringBuilder inflated = new StringBuilder();
+		ByteBuf part;
+		
+		while ((part = (ByteBuf)decoder.readInbound()) != null) {
+			inflated.append(part.toString(StandardCharsets.UTF_8));
+			part.release();
+		}
+		
+		return inflated.toString();
+	}
+}
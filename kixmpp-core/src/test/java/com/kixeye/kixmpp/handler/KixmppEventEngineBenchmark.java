@@ -0,0 +1,122 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom2.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.kixmpp.handler.KixmppEventEngine.DispatchMode;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Compares the dispatch modes of the {@link KixmppEventEngine}: publishes a burst of stanzas over a number of 
+ * addresses and waits for all of them to be handled. The score is stanzas per millisecond.
+ * 
+ * <p>Run with <code>mvn test-compile</code> and then this class' main method with the test classpath.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KixmppEventEngineBenchmark {
+	private static final int BURST_SIZE = 1024;
+	
+	@Param({"QUEUE_PER_KEY", "STRIPED"})
+	public DispatchMode dispatchMode;
+	
+	@Param({"16", "10000"})
+	public int addressCount;
+	
+	private KixmppEventEngine eventEngine;
+	private KixmppStanza[] stanzas;
+	private int next = 0;
+	
+	private final AtomicLong handled = new AtomicLong();
+	private long published = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		eventEngine = new KixmppEventEngine(dispatchMode);
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaModelHandler() {
+			public void handle(Channel channel, KixmppStanza stanza) {
+				handled.incrementAndGet();
+			}
+		});
+		
+		stanzas = new KixmppStanza[addressCount];
+		
+		for (int i = 0; i < addressCount; i++) {
+			stanzas[i] = KixmppStanza.fromElement(new Element("message")
+					.setAttribute("to", "user" + i + "@example.com/resource")
+					.setAttribute("type", "chat")
+					.addContent(new Element("body").setText("hello")));
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (KixmppStanza stanza : stanzas) {
+			stanza.release();
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BURST_SIZE)
+	public long publish() {
+		for (int i = 0; i < BURST_SIZE; i++) {
+			eventEngine.publishStanza(null, stanzas[next++ % stanzas.length]);
+		}
+		
+		published += BURST_SIZE;
+		
+		while (handled.get() < published) {
+			Thread.yield();
+		}
+		
+		return published;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(KixmppEventEngineBenchmark.class.getSimpleName()).build()).run();
+	}
+}
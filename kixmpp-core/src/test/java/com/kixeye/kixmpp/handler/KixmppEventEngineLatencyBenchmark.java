@@ -0,0 +1,162 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom2.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.kixmpp.handler.KixmppEventEngine.ChannelExecutionMode;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Compares the channel execution modes of the {@link KixmppEventEngine}: sends an IQ over a local channel, 
+ * has a handler answer it on the channel and waits for the answer. The score is the round trip time.
+ * 
+ * <p>Run with <code>mvn test-compile</code> and then this class' main method with the test classpath.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KixmppEventEngineLatencyBenchmark {
+	@Param({"DISPATCH_QUEUE", "EVENT_LOOP"})
+	public ChannelExecutionMode channelExecutionMode;
+	
+	private KixmppEventEngine eventEngine;
+	private EventLoopGroup eventLoopGroup;
+	private Channel serverChannel;
+	private Channel clientChannel;
+	
+	private KixmppStanza request;
+	private KixmppStanza response;
+	
+	private final AtomicLong received = new AtomicLong();
+	private long sent = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		request = KixmppStanza.fromElement(new Element("iq")
+				.setAttribute("type", "get")
+				.setAttribute("id", "ping")
+				.addContent(new Element("ping", "urn:xmpp:ping")));
+		response = KixmppStanza.fromElement(new Element("iq")
+				.setAttribute("type", "result")
+				.setAttribute("id", "ping"));
+		
+		eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(channelExecutionMode);
+		eventEngine.registerGlobalStanzaHandler("iq", new KixmppStanzaModelHandler() {
+			public void handle(Channel channel, KixmppStanza stanza) {
+				channel.writeAndFlush(response.retain());
+			}
+		});
+		
+		eventLoopGroup = new LocalEventLoopGroup(2);
+		
+		LocalAddress address = new LocalAddress(KixmppEventEngineLatencyBenchmark.class.getSimpleName());
+		
+		// the server side publishes what it reads, like the codec does
+		serverChannel = new ServerBootstrap()
+				.group(eventLoopGroup)
+				.channel(LocalServerChannel.class)
+				.childHandler(new ChannelInboundHandlerAdapter() {
+					public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+						KixmppStanza stanza = (KixmppStanza)msg;
+						
+						try {
+							eventEngine.publishStanza(ctx.channel(), stanza);
+						} finally {
+							stanza.release();
+						}
+					}
+				})
+				.bind(address).sync().channel();
+		
+		clientChannel = new Bootstrap()
+				.group(eventLoopGroup)
+				.channel(LocalChannel.class)
+				.handler(new ChannelInboundHandlerAdapter() {
+					public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+						((KixmppStanza)msg).release();
+						
+						received.incrementAndGet();
+					}
+				})
+				.connect(address).sync().channel();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		clientChannel.close().sync();
+		serverChannel.close().sync();
+		eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		
+		request.release();
+		response.release();
+	}
+	
+	@Benchmark
+	public long roundTrip() {
+		clientChannel.writeAndFlush(request.retain());
+		
+		sent++;
+		
+		while (received.get() < sent) {
+			Thread.yield();
+		}
+		
+		return sent;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(KixmppEventEngineLatencyBenchmark.class.getSimpleName()).build()).run();
+	}
+}
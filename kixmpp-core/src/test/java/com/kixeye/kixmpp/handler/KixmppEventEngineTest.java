@@ -0,0 +1,575 @@
+package com.kixeye.kixmpp.handler;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fusesource.hawtdispatch.Task;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.handler.KixmppEventEngine.ChannelExecutionMode;
+import com.kixeye.kixmpp.handler.KixmppEventEngine.DispatchMode;
+import com.kixeye.kixmpp.handler.KixmppEventEngine.OverloadPolicy;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+
+/**
+ * Tests the {@link KixmppEventEngine}
+ */
+public class KixmppEventEngineTest {
+	@Test
+	public void testFullJidHashCode() throws Exception {
+		KixmppJid[] jids = new KixmppJid[] {
+				new KixmppJid("example.com"),
+				new KixmppJid("user", "example.com"),
+				new KixmppJid("user", "example.com", "resource"),
+				KixmppJid.fromRawJid("room@conference.example.com/nick name")
+		};
+		
+		for (KixmppJid jid : jids) {
+			Assert.assertEquals(jid.getFullJid().hashCode(), KixmppEventEngine.fullJidHashCode(jid));
+		}
+	}
+	
+	@Test
+	public void testStripedOrderPerAddress() throws Exception {
+		assertOrderPerAddress(new KixmppEventEngine(DispatchMode.STRIPED, 3));
+	}
+	
+	@Test
+	public void testQueuePerKeyOrderPerAddress() throws Exception {
+		assertOrderPerAddress(new KixmppEventEngine());
+	}
+	
+	@Test
+	public void testStripedTasksShareStanzaQueues() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine(DispatchMode.STRIPED);
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(2);
+		
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaHandler() {
+			public void handle(Channel channel, Element stanza) {
+				events.add("stanza");
+				latch.countDown();
+			}
+		});
+		
+		KixmppJid jid = new KixmppJid("user", "example.com", "resource");
+		
+		// a task published for a JID runs on the same queue as stanzas addressed to it
+		eventEngine.publishTask(jid, new Task() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				
+				events.add("task");
+				latch.countDown();
+			}
+		});
+		eventEngine.publishStanza(null, new Element("message").setAttribute("to", jid.getFullJid()));
+		
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("task", "stanza"), events);
+	}
+	
+	@Test
+	public void testStanzaHandlerOrder() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(4);
+		
+		KixmppJid jid = new KixmppJid("user", "example.com", "resource");
+		
+		eventEngine.registerGlobalStanzaHandler(new RecordingHandler("global *", events, latch));
+		eventEngine.registerGlobalStanzaHandler("message", new RecordingHandler("global message", events, latch));
+		eventEngine.registerStanzaHandler(jid, new RecordingHandler("jid *", events, latch));
+		eventEngine.registerStanzaHandler(jid, "message", new RecordingHandler("jid message", events, latch));
+		eventEngine.registerStanzaHandler(jid, "presence", new RecordingHandler("jid presence", events, latch));
+		
+		// the domain of a JID is not case sensitive
+		eventEngine.publishStanza(null, new Element("message").setAttribute("to", "user@Example.COM/resource"));
+		
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("jid message", "jid *", "global message", "global *"), events);
+	}
+	
+	@Test
+	public void testUnregisterStanzaHandler() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(2);
+		
+		KixmppJid jid = new KixmppJid("user", "example.com");
+		
+		RecordingHandler jidHandler = new RecordingHandler("jid", events, latch);
+		RecordingHandler globalHandler = new RecordingHandler("global", events, latch);
+		
+		eventEngine.registerStanzaHandler(jid, "message", jidHandler);
+		eventEngine.registerGlobalStanzaHandler("message", globalHandler);
+		eventEngine.registerGlobalStanzaHandler("message", new RecordingHandler("other", events, latch));
+		
+		eventEngine.unregisterStanzaHandler(jid, "message", jidHandler);
+		eventEngine.unregisterGlobalStanzaHandler("message", globalHandler);
+		
+		eventEngine.publishStanza(null, new Element("message").setAttribute("to", jid.getFullJid()));
+		eventEngine.publishStanza(null, new Element("message").setAttribute("to", jid.getFullJid()));
+		
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("other", "other"), events);
+	}
+	
+	@Test
+	public void testStanzaHandlerByTypeAndChildNamespace() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(7);
+		
+		eventEngine.registerGlobalStanzaHandler("iq", new RecordingHandler("iq", events, latch));
+		eventEngine.registerGlobalStanzaHandler("iq", "set", "urn:ietf:params:xml:ns:xmpp-bind", new RecordingHandler("bind", events, latch));
+		eventEngine.registerGlobalStanzaHandler("iq", null, "jabber:iq:roster", new RecordingHandler("roster", events, latch));
+		eventEngine.registerGlobalStanzaHandler("iq", "get", null, new RecordingHandler("get", events, latch));
+		
+		eventEngine.publishStanza(null, new Element("iq").setAttribute("to", "example.com").setAttribute("type", "set")
+				.addContent(new Element("bind", "urn:ietf:params:xml:ns:xmpp-bind")));
+		eventEngine.publishStanza(null, new Element("iq").setAttribute("to", "example.com").setAttribute("type", "get")
+				.addContent(new Element("query", "jabber:iq:roster")));
+		eventEngine.publishStanza(null, new Element("iq").setAttribute("to", "example.com").setAttribute("type", "get")
+				.addContent(new Element("bind", "urn:ietf:params:xml:ns:xmpp-bind")));
+		
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		// the handlers for a type and a child namespace run first, the ones for any stanza with that name last
+		Assert.assertEquals(Arrays.asList("bind", "iq", "get", "roster", "iq", "get", "iq"), events);
+	}
+	
+	@Test
+	public void testChannelStanzasOnEventLoop() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		eventEngine.setLocalDomain("example.com");
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		
+		CountDownLatch latch = new CountDownLatch(3);
+		
+		eventEngine.registerGlobalStanzaHandler("iq", new RecordingHandler("iq", events, latch));
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		
+		eventEngine.publishStanza(channel, new Element("iq").setAttribute("type", "get"));
+		// IQs to the server are answered on the channel that sent them
+		eventEngine.publishStanza(channel, new Element("iq").setAttribute("type", "get").setAttribute("to", "example.com"));
+		
+		Assert.assertTrue(events.isEmpty());
+		
+		channel.runPendingTasks();
+		
+		Assert.assertEquals(Arrays.asList("iq", "iq"), events);
+		
+		// IQs to anyone else run on the queue of their address
+		eventEngine.publishStanza(channel, new Element("iq").setAttribute("type", "get").setAttribute("to", "room@conference.example.com"));
+		
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testWritesFlushedOncePerTask() throws Exception {
+		final KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		final AtomicInteger flushes = new AtomicInteger();
+		
+		final EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+			public void flush(ChannelHandlerContext ctx) throws Exception {
+				flushes.incrementAndGet();
+				super.flush(ctx);
+			}
+		});
+		
+		eventEngine.runTask(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++) {
+					eventEngine.write(channel, "message");
+				}
+				
+				// a nested task is flushed with the outer one
+				eventEngine.runTask(new Runnable() {
+					public void run() {
+						eventEngine.write(channel, "message");
+					}
+				});
+				
+				Assert.assertEquals(0, flushes.get());
+			}
+		});
+		
+		Assert.assertEquals(1, flushes.get());
+		Assert.assertEquals(21, channel.outboundMessages().size());
+		
+		// outside of a task every write is flushed
+		eventEngine.write(channel, "message");
+		
+		Assert.assertEquals(2, flushes.get());
+	}
+	
+	@Test
+	public void testWritesFromDispatchQueueFlushedOnEventLoop() throws Exception {
+		final KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		
+		final List<Object> written = Collections.synchronizedList(new ArrayList<Object>());
+		final List<Object> flushed = Collections.synchronizedList(new ArrayList<Object>());
+		
+		LocalEventLoopGroup eventLoopGroup = new LocalEventLoopGroup(1);
+		
+		try {
+			final LocalChannel channel = new LocalChannel();
+			channel.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+				public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+					written.add(msg);
+					promise.setSuccess();
+				}
+				
+				public void flush(ChannelHandlerContext ctx) throws Exception {
+					flushed.addAll(written);
+					written.clear();
+				}
+			});
+			
+			eventLoopGroup.register(channel).sync();
+			
+			eventEngine.publishTask(channel, new Task() {
+				public void run() {
+					eventEngine.write(channel, "fromEventLoop");
+					
+					final CountDownLatch dispatched = new CountDownLatch(1);
+					
+					// the write is queued on the event loop, behind this task's flush
+					eventEngine.publishTask(KixmppJid.fromRawJid("someone@example.com"), new Task() {
+						public void run() {
+							eventEngine.write(channel, "fromDispatchQueue");
+							dispatched.countDown();
+						}
+					});
+					
+					try {
+						Assert.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			
+			// the dispatch queue's flush is queued on the event loop behind its write
+			for (int i = 0; i < 100 && flushed.size() < 2; i++) {
+				Thread.sleep(50);
+			}
+			
+			Assert.assertEquals(Arrays.<Object>asList("fromEventLoop", "fromDispatchQueue"), flushed);
+		} finally {
+			eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+		}
+	}
+	
+	@Test
+	public void testQueueLimitRejects() throws Exception {
+		final List<OverloadPolicy> overloads = new ArrayList<>();
+		
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.registerOverloadHandler(new KixmppOverloadHandler() {
+			public void handleOverload(KixmppJid address, Channel channel, List<KixmppStanza> stanzas, OverloadPolicy policy) {
+				Assert.assertEquals(1, stanzas.size());
+				
+				overloads.add(policy);
+			}
+		});
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		
+		Assert.assertEquals(Arrays.asList("0", "1"), publishToFullQueue(eventEngine, channel, OverloadPolicy.REJECT));
+		Assert.assertEquals(Arrays.asList(OverloadPolicy.REJECT, OverloadPolicy.REJECT, OverloadPolicy.REJECT), overloads);
+		Assert.assertEquals(3, eventEngine.getRejectedCount());
+		Assert.assertEquals(0, eventEngine.getInFlightCount());
+		
+		for (int i = 2; i < 5; i++) {
+			Element error = (Element)channel.readOutbound();
+			
+			Assert.assertEquals("message", error.getName());
+			Assert.assertEquals("error", error.getAttributeValue("type"));
+			Assert.assertEquals(String.valueOf(i), error.getAttributeValue("id"));
+			Assert.assertNotNull(error.getChild("error").getChild("resource-constraint", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-stanzas")));
+		}
+	}
+	
+	@Test
+	public void testQueueLimitDropsOldest() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		Assert.assertEquals(Arrays.asList("3", "4"), publishToFullQueue(eventEngine, new EmbeddedChannel(new ChannelInboundHandlerAdapter()), OverloadPolicy.DROP_OLDEST));
+		Assert.assertEquals(3, eventEngine.getDroppedCount());
+		Assert.assertEquals(0, eventEngine.getInFlightCount());
+	}
+	
+	@Test
+	public void testQueueLimitDropsNewest() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		
+		Assert.assertEquals(Arrays.asList("0", "1"), publishToFullQueue(eventEngine, new EmbeddedChannel(new ChannelInboundHandlerAdapter()), OverloadPolicy.DROP_NEWEST));
+		Assert.assertEquals(3, eventEngine.getDroppedCount());
+	}
+	
+	@Test
+	public void testQueueLimitKeepsTasksNotDroppable() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		eventEngine.setQueueLimits(2, 0, OverloadPolicy.DROP_OLDEST);
+		
+		List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		
+		eventEngine.publishTask(channel, new RecordingTask("join", handled));
+		
+		for (int i = 0; i < 5; i++) {
+			eventEngine.publishTask(channel, new RecordingTask(String.valueOf(i), handled), true);
+		}
+		
+		// the oldest waiting tasks are dropped to make room, membership changes are not
+		eventEngine.publishTask(channel, new RecordingTask("leave", handled));
+		
+		channel.runPendingTasks();
+		
+		Assert.assertEquals(Arrays.asList("join", "3", "4", "leave"), handled);
+		Assert.assertEquals(3, eventEngine.getDroppedCount());
+		Assert.assertEquals(0, eventEngine.getInFlightCount());
+	}
+	
+	@Test
+	public void testInFlightLimit() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		eventEngine.setQueueLimits(0, 3, OverloadPolicy.DROP_OLDEST);
+		
+		final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaHandler() {
+			public void handle(Channel channel, Element stanza) {
+				handled.add(stanza.getAttributeValue("id"));
+			}
+		});
+		
+		EmbeddedChannel channel1 = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		EmbeddedChannel channel2 = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		
+		eventEngine.publishStanza(channel1, new Element("message").setAttribute("id", "1a"));
+		eventEngine.publishStanza(channel1, new Element("message").setAttribute("id", "1b"));
+		eventEngine.publishStanza(channel2, new Element("message").setAttribute("id", "2a"));
+		// the oldest of the channel's own queue makes room
+		eventEngine.publishStanza(channel2, new Element("message").setAttribute("id", "2b"));
+		
+		channel1.runPendingTasks();
+		channel2.runPendingTasks();
+		
+		Assert.assertEquals(Arrays.asList("1a", "1b", "2b"), handled);
+		Assert.assertEquals(1, eventEngine.getDroppedCount());
+		Assert.assertEquals(0, eventEngine.getInFlightCount());
+	}
+	
+	@Test
+	public void testReadWatermarks() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		eventEngine.setReadWatermarks(1, 3);
+		
+		final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaHandler() {
+			public void handle(Channel channel, Element stanza) {
+				handled.add(stanza.getAttributeValue("id"));
+			}
+		});
+		
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		
+		eventEngine.publishStanza(channel, new Element("message").setAttribute("id", "0"));
+		eventEngine.publishStanzas(channel, Arrays.asList(KixmppStanza.fromElement(new Element("message").setAttribute("id", "1"))));
+		
+		Assert.assertEquals(2, eventEngine.getPendingStanzaCount(channel));
+		Assert.assertTrue(channel.config().isAutoRead());
+		
+		eventEngine.publishStanza(channel, new Element("message").setAttribute("id", "2"));
+		
+		Assert.assertFalse(channel.config().isAutoRead());
+		Assert.assertTrue(eventEngine.isReadSuspended(channel));
+		Assert.assertEquals(1, eventEngine.getReadSuspendedCount());
+		
+		channel.runPendingTasks();
+		
+		Assert.assertEquals(Arrays.asList("0", "1", "2"), handled);
+		Assert.assertEquals(0, eventEngine.getPendingStanzaCount(channel));
+		Assert.assertTrue(channel.config().isAutoRead());
+		Assert.assertFalse(eventEngine.isReadSuspended(channel));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testReadWatermarksOutOfOrder() throws Exception {
+		new KixmppEventEngine().setReadWatermarks(3, 3);
+	}
+	
+	/**
+	 * Publishes five stanzas to a queue that holds two, with a connection event in between that is never dropped.
+	 * 
+	 * @return the ids of the stanzas that were handled
+	 */
+	private static List<String> publishToFullQueue(KixmppEventEngine eventEngine, EmbeddedChannel channel, OverloadPolicy overloadPolicy) {
+		eventEngine.setChannelExecutionMode(ChannelExecutionMode.EVENT_LOOP);
+		eventEngine.setQueueLimits(2, 0, overloadPolicy);
+		
+		final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+		
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaHandler() {
+			public void handle(Channel channel, Element stanza) {
+				handled.add(stanza.getAttributeValue("id"));
+			}
+		});
+		eventEngine.registerConnectionHandler(new KixmppConnectionHandler() {
+			public void handleConnected(Channel channel) {
+				handled.add("connected");
+			}
+			
+			public void handleDisconnected(Channel channel) {
+			}
+		});
+		
+		for (int i = 0; i < 5; i++) {
+			eventEngine.publishStanza(channel, new Element("message").setAttribute("id", String.valueOf(i)).setAttribute("from", "user@example.com/resource"));
+			
+			if (i == 2) {
+				eventEngine.publishConnected(channel);
+			}
+		}
+		
+		channel.runPendingTasks();
+		
+		Assert.assertTrue(handled.remove("connected"));
+		
+		return handled;
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testWildcardStanzaHandlerByType() throws Exception {
+		new KixmppEventEngine().registerGlobalStanzaHandler("*", "chat", null, new RecordingHandler("chat", null, null));
+	}
+	
+	private static class RecordingTask extends Task {
+		private final String name;
+		private final List<String> events;
+		
+		public RecordingTask(String name, List<String> events) {
+			this.name = name;
+			this.events = events;
+		}
+		
+		public void run() {
+			events.add(name);
+		}
+	}
+	
+	private static class RecordingHandler implements KixmppStanzaHandler {
+		private final String name;
+		private final List<String> events;
+		private final CountDownLatch latch;
+		
+		public RecordingHandler(String name, List<String> events, CountDownLatch latch) {
+			this.name = name;
+			this.events = events;
+			this.latch = latch;
+		}
+		
+		public void handle(Channel channel, Element stanza) {
+			events.add(name);
+			latch.countDown();
+		}
+	}
+	
+	private static void assertOrderPerAddress(KixmppEventEngine eventEngine) throws Exception {
+		final int addressCount = 16;
+		final int stanzaCount = 1000;
+		
+		final List<List<Integer>> received = new ArrayList<>();
+		
+		for (int i = 0; i < addressCount; i++) {
+			received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		
+		final CountDownLatch latch = new CountDownLatch(addressCount * stanzaCount);
+		
+		eventEngine.registerGlobalStanzaHandler("message", new KixmppStanzaHandler() {
+			public void handle(Channel channel, Element stanza) {
+				int address = Integer.parseInt(KixmppJid.fromRawJid(stanza.getAttributeValue("to")).getNode());
+				
+				received.get(address).add(Integer.parseInt(stanza.getAttributeValue("id")));
+				latch.countDown();
+			}
+		});
+		
+		for (int i = 0; i < stanzaCount; i++) {
+			for (int address = 0; address < addressCount; address++) {
+				eventEngine.publishStanza(null, new Element("message")
+						.setAttribute("to", address + "@example.com/resource")
+						.setAttribute("id", String.valueOf(i)));
+			}
+		}
+		
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		
+		for (List<Integer> addressReceived : received) {
+			Assert.assertEquals(stanzaCount, addressReceived.size());
+			
+			for (int i = 0; i < stanzaCount; i++) {
+				Assert.assertEquals(i, (int)addressReceived.get(i));
+			}
+		}
+	}
+}
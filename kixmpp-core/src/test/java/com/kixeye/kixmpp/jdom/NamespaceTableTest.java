@@ -0,0 +1,51 @@
+package com.kixeye.kixmpp.jdom;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.jdom2.Namespace;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the {@link NamespaceTable}
+ */
+public class NamespaceTableTest {
+	@Test
+	public void testCanonicalNamespaces() throws Exception {
+		Namespace namespace = NamespaceTable.getNamespace("", "jabber:client");
+		
+		Assert.assertSame(Namespace.getNamespace("jabber:client"), namespace);
+		Assert.assertSame(namespace, NamespaceTable.getNamespace("", "jabber:client"));
+		
+		// equal strings that are not the interned instances still hit
+		Assert.assertSame(namespace, NamespaceTable.getNamespace(new String(""), new String("jabber:client")));
+		
+		Assert.assertSame(Namespace.NO_NAMESPACE, NamespaceTable.getNamespace(null, null));
+		Assert.assertSame(Namespace.XML_NAMESPACE, NamespaceTable.getNamespace("xml", Namespace.XML_NAMESPACE.getURI()));
+	}
+	
+	@Test
+	public void testInvalidNamespaces() throws Exception {
+		Assert.assertNull(NamespaceTable.getNamespace("xmlns", "urn:foo"));
+		Assert.assertNull(NamespaceTable.getNamespace("xmlns", "urn:foo"));
+		Assert.assertNull(NamespaceTable.getNamespace("foo", ""));
+	}
+}
@@ -23,6 +23,7 @@ package com.kixeye.kixmpp.jdom;
 import java.nio.charset.StandardCharsets;
 
 import org.jdom2.Element;
+import org.jdom2.Namespace;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -81,4 +82,26 @@ public class StAXElementBuilderTest {
 		Assert.assertEquals("someChildElement", someChildElement.getName());
 		Assert.assertEquals("someChildElementAttributeValue", someChildElement.getAttributeValue("someChildElementAttribute"));
 	}
+	
+	@Test
+	public void testPrefixedAttribute() throws Exception {
+		InputFactoryImpl inputFactory = new InputFactoryImpl();
+		AsyncXMLStreamReader streamReader = inputFactory.createAsyncXMLStreamReader();
+		
+		byte[] xmlData = "<message xmlns='jabber:client' xml:lang='en' xmlns:foo='urn:foo' foo:bar='baz'/>".getBytes(StandardCharsets.UTF_8);
+		
+		streamReader.getInputFeeder().feedInput(xmlData, 0, xmlData.length);
+		
+		StAXElementBuilder elementBuilder = new StAXElementBuilder(true);
+		
+		while (streamReader.next() != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+			elementBuilder.process(streamReader);
+		}
+		
+		Element message = elementBuilder.getElement();
+		
+		Assert.assertEquals("en", message.getAttributeValue("lang", Namespace.XML_NAMESPACE));
+		Assert.assertEquals("baz", message.getAttributeValue("bar", Namespace.getNamespace("foo", "urn:foo")));
+		Assert.assertEquals(Namespace.getNamespace("foo", "urn:foo"), message.getNamespace("foo"));
+	}
 }
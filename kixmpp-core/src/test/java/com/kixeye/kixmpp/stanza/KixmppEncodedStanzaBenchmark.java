@@ -0,0 +1,151 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.kixeye.kixmpp.KixmppXmlSerializer;
+
+/**
+ * Fans a room message out to every occupant, building and serializing an element per occupant 
+ * against serializing a {@link KixmppEncodedStanza} once and writing an addressed copy per occupant. 
+ * Each write goes into the buffer a codec would encode into.
+ * 
+ * <p>Run with <code>mvn test-compile</code> and then this class' main method with the test classpath.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KixmppEncodedStanzaBenchmark {
+	@Param({"10", "100", "1000", "10000"})
+	private int occupants;
+	
+	private String[] addresses;
+	
+	private ByteBuf out;
+	
+	@Setup
+	public void setup() {
+		addresses = new String[occupants];
+		
+		for (int i = 0; i < occupants; i++) {
+			addresses[i] = "occupant" + i + "@example.com/resource";
+		}
+		
+		out = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		out.release();
+	}
+	
+	@Benchmark
+	public ByteBuf elementPerOccupant() {
+		for (int i = 0; i < occupants; i++) {
+			Element message = createMessage();
+			message.setAttribute("to", addresses[i]);
+			
+			out.clear();
+			KixmppXmlSerializer.write(message, out);
+		}
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf encodedOnce() {
+		KixmppEncodedStanza message = KixmppEncodedStanza.encode(createMessage(), "jabber:client", PooledByteBufAllocator.DEFAULT);
+		
+		try {
+			for (int i = 0; i < occupants; i++) {
+				KixmppEncodedStanza copy = message.addressedTo(addresses[i]);
+				
+				out.clear();
+				KixmppXmlSerializer.write(copy, out);
+				
+				// released by the codec once written
+				copy.release();
+			}
+		} finally {
+			message.release();
+		}
+		
+		return out;
+	}
+	
+	@Benchmark
+	public ByteBuf encodedOnceWithoutAddress() {
+		KixmppEncodedStanza message = KixmppEncodedStanza.encode(createMessage(), "jabber:client", PooledByteBufAllocator.DEFAULT);
+		
+		try {
+			for (int i = 0; i < occupants; i++) {
+				KixmppEncodedStanza copy = message.addressedTo(null);
+				
+				out.clear();
+				KixmppXmlSerializer.write(copy, out);
+				
+				copy.release();
+			}
+		} finally {
+			message.release();
+		}
+		
+		return out;
+	}
+	
+	private static Element createMessage() {
+		Element message = new Element("message");
+		message.setAttribute("from", "room@conference.example.com/nickname");
+		message.setAttribute("type", "groupchat");
+		message.setAttribute("id", UUID.randomUUID().toString());
+		message.addContent(new Element("body").setText("Hello everyone, meet me at <the usual place> & bring snacks!"));
+		
+		return message;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(KixmppEncodedStanzaBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,206 @@
+package com.kixeye.kixmpp.stanza;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+
+import org.jdom2.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.aalto.AsyncInputFeeder;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+/**
+ * Tests the {@link KixmppStanzaBuilder}
+ */
+public class KixmppStanzaBuilderTest {
+	@Test
+	public void testFullXml() throws Exception {
+		InputFactoryImpl inputFactory = new InputFactoryImpl();
+		AsyncXMLStreamReader streamReader = inputFactory.createAsyncXMLStreamReader();
+		AsyncInputFeeder asyncInputFeeder = streamReader.getInputFeeder();
+		
+		byte[] xmlData = 
+				(	"<?xml version='1.0'?>"
+				+	"<message to='someone@someDomain.com' type='chat' xmlns='jabber:client'>"
+				+		"<body>some text</body>"
+				+ 		"<x xmlns='http://jabber.org/protocol/muc#user'><item role='participant'/></x>"
+				+ 	"</message>").getBytes(StandardCharsets.UTF_8);
+		
+		asyncInputFeeder.feedInput(xmlData, 0, xmlData.length);
+		
+		KixmppStanzaBuilder stanzaBuilder = new KixmppStanzaBuilder();
+		
+		int event = -1;
+		int elementsActive = 0;
+		
+		while ((event = streamReader.next()) > 0) {
+			elementsActive += (event == 1 ? 1 : 0);
+			elementsActive -= (event == 2 ? 1 : 0);
+
+			stanzaBuilder.process(streamReader);
+			
+			if (event != 7 && elementsActive < 1) {
+				break;
+			}
+		}
+		
+		KixmppStanza message = stanzaBuilder.getStanza();
+		
+		Assert.assertNotNull(message);
+		Assert.assertEquals("message", message.getName());
+		Assert.assertEquals("jabber:client", message.getNamespaceURI());
+		Assert.assertEquals("someone@someDomain.com", message.getAttributeValue("to"));
+		Assert.assertEquals("chat", message.getAttributeValue("type"));
+		Assert.assertNull(message.getAttributeValue("from"));
+		Assert.assertEquals("some text", message.getChildText("body", "jabber:client"));
+		Assert.assertEquals("participant", message.getChild("x", "http://jabber.org/protocol/muc#user").getFirstChild().getAttributeValue("role"));
+		
+		Element element = message.toElement();
+		
+		Assert.assertSame(element, message.toElement());
+		Assert.assertEquals("message", element.getName());
+		Assert.assertEquals("chat", element.getAttributeValue("type"));
+		Assert.assertEquals("some text", element.getChildText("body", element.getNamespace()));
+		Assert.assertEquals(2, element.getChildren().size());
+	}
+	
+	@Test
+	public void testHeaderOnly() throws Exception {
+		InputFactoryImpl inputFactory = new InputFactoryImpl();
+		AsyncXMLStreamReader streamReader = inputFactory.createAsyncXMLStreamReader();
+		AsyncInputFeeder asyncInputFeeder = streamReader.getInputFeeder();
+		
+		String stanzaXml = "<message to='someone@someDomain.com' type='chat'><foo:x/><body>some &amp; text</body></message>";
+		
+		byte[] xmlData = 
+				(	"<?xml version='1.0'?>"
+				+	"<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' xmlns:foo='urn:foo'>"
+				+		stanzaXml).getBytes(StandardCharsets.UTF_8);
+		
+		asyncInputFeeder.feedInput(xmlData, 0, xmlData.length);
+		
+		KixmppStanzaBuilder stanzaBuilder = new KixmppStanzaBuilder(true);
+		
+		int event = -1;
+		
+		while ((event = streamReader.next()) != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+			if (streamReader.getDepth() > 1) {
+				stanzaBuilder.process(streamReader);
+			}
+		}
+		
+		stanzaBuilder.setRawBytes(Unpooled.copiedBuffer(stanzaXml, StandardCharsets.UTF_8));
+		
+		KixmppStanza message = stanzaBuilder.getStanza();
+		
+		Assert.assertEquals("message", message.getName());
+		Assert.assertEquals("jabber:client", message.getNamespaceURI());
+		Assert.assertEquals("chat", message.getAttributeValue("type"));
+		Assert.assertEquals("x", message.getFirstChildName());
+		Assert.assertEquals("urn:foo", message.getFirstChildNamespaceURI());
+		Assert.assertFalse(message.isContentLoaded());
+		
+		// the stanza uses a prefix declared on the stream
+		Assert.assertFalse(stanzaBuilder.isSelfContained());
+		Assert.assertNull(message.getRawBytes());
+		
+		// the body is parsed on first access with the namespaces it inherited
+		Assert.assertEquals("some & text", message.getChildText("body", "jabber:client"));
+		Assert.assertTrue(message.isContentLoaded());
+		Assert.assertEquals("foo", message.getFirstChild().getPrefix());
+		Assert.assertSame(message, message.getFirstChild().getParent());
+		Assert.assertEquals(2, message.toElement().getChildren().size());
+		
+		Assert.assertTrue(message.release());
+	}
+	
+	@Test
+	public void testHeaderOnlyTextFirstChild() throws Exception {
+		String stanzaXml = "<message to='room@conference.someDomain.com' type='groupchat'><body>some &amp; text</body><x xmlns='urn:foo'><item/></x></message>";
+		
+		KixmppStanza message = buildHeaderOnly(stanzaXml);
+		
+		// a first child that only holds text is built along with the header
+		KixmppStanza body = message.getChild("body", "jabber:client");
+		
+		Assert.assertEquals("some & text", body.getText());
+		Assert.assertSame(message, body.getParent());
+		Assert.assertSame(body, message.getFirstChild());
+		Assert.assertFalse(message.isContentLoaded());
+		Assert.assertNotNull(message.getRawBytes());
+		
+		// the rest of the body is parsed around it
+		Assert.assertNotNull(message.getChild("x", "urn:foo").getFirstChild());
+		Assert.assertTrue(message.isContentLoaded());
+		Assert.assertSame(body, message.getFirstChild());
+		Assert.assertEquals(2, message.getChildren().size());
+		
+		Assert.assertTrue(message.release());
+		
+		// a first child with children of its own is left to the body
+		message = buildHeaderOnly("<message type='chat'><x xmlns='urn:foo'><item/></x><body>text</body></message>");
+		
+		Assert.assertEquals("x", message.getFirstChildName());
+		Assert.assertNotNull(message.getChild("x", "urn:foo").getFirstChild());
+		Assert.assertTrue(message.isContentLoaded());
+		
+		Assert.assertTrue(message.release());
+	}
+	
+	@Test
+	public void testFromElement() throws Exception {
+		Element element = new Element("iq");
+		element.setAttribute("type", "get");
+		element.addContent(new Element("query", "jabber:iq:roster"));
+		
+		KixmppStanza stanza = KixmppStanza.fromElement(element);
+		
+		Assert.assertSame(element, stanza.toElement());
+		Assert.assertEquals("get", stanza.getAttributeValue("type"));
+		Assert.assertNotNull(stanza.getChild("query", "jabber:iq:roster"));
+		Assert.assertSame(stanza, stanza.getFirstChild().getParent());
+	}
+	
+	private static KixmppStanza buildHeaderOnly(String stanzaXml) throws Exception {
+		AsyncXMLStreamReader streamReader = new InputFactoryImpl().createAsyncXMLStreamReader();
+		
+		byte[] xmlData = ("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>" + stanzaXml).getBytes(StandardCharsets.UTF_8);
+		
+		streamReader.getInputFeeder().feedInput(xmlData, 0, xmlData.length);
+		
+		KixmppStanzaBuilder stanzaBuilder = new KixmppStanzaBuilder(true);
+		
+		while (streamReader.next() != AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+			if (streamReader.getDepth() > 1) {
+				stanzaBuilder.process(streamReader);
+			}
+		}
+		
+		stanzaBuilder.setRawBytes(Unpooled.copiedBuffer(stanzaXml, StandardCharsets.UTF_8));
+		
+		return stanzaBuilder.getStanza();
+	}
+}
@@ -4,8 +4,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Striped;
 import com.kixeye.kixmpp.*;
+import com.kixeye.kixmpp.KixmppCodec.StanzaModel;
+import com.kixeye.kixmpp.KixmppCodec.XMLStreamReaderConfiguration;
 import com.kixeye.kixmpp.handler.KixmppEventEngine;
 import com.kixeye.kixmpp.interceptor.KixmppStanzaInterceptor;
+import com.kixeye.kixmpp.interceptor.KixmppStanzaModelInterceptor;
 import com.kixeye.kixmpp.p2p.ClusterClient;
 import com.kixeye.kixmpp.p2p.discovery.ConstNodeDiscovery;
 import com.kixeye.kixmpp.p2p.discovery.NodeDiscovery;
@@ -17,12 +20,16 @@ import com.kixeye.kixmpp.server.module.KixmppServerModule;
 import com.kixeye.kixmpp.server.module.auth.SaslKixmppServerModule;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
 import com.kixeye.kixmpp.server.module.chat.ChatKixmppServerModule;
+import com.kixeye.kixmpp.server.module.compression.CompressionKixmppServerModule;
 import com.kixeye.kixmpp.server.module.disco.DiscoKixmppServerModule;
 import com.kixeye.kixmpp.server.module.features.FeaturesKixmppServerModule;
 import com.kixeye.kixmpp.server.module.muc.*;
 import com.kixeye.kixmpp.server.module.presence.PresenceKixmppServerModule;
 import com.kixeye.kixmpp.server.module.roster.RosterKixmppServerModule;
 import com.kixeye.kixmpp.server.module.session.SessionKixmppServerModule;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
+import com.kixeye.kixmpp.stanza.KixmppStanzaBatch;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -36,6 +43,7 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.websocketx.*;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -46,14 +54,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.zip.Deflater;
 /*
  * #%L
  * KIXMPP
@@ -87,11 +99,24 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 	public static final InetSocketAddress DEFAULT_SOCKET_ADDRESS = new InetSocketAddress(5222);
 	public static final InetSocketAddress DEFAULT_WEBSOCKET_ADDRESS = new InetSocketAddress(5290);
     public static final InetSocketAddress DEFAULT_CLUSTER_ADDRESS = new InetSocketAddress(8100);
+    public static final long DEFAULT_PARSER_HIBERNATION_DELAY_MILLIS = 60 * 1000;
+    
+    // the same frame limit Netty's handshaker factory uses
+    private static final int MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH = 65536;
+    // an upgrade request is a GET, it has no business carrying a body
+    private static final int MAX_HANDSHAKE_CONTENT_LENGTH = 1024;
     
     public static final int CUSTOM_MESSAGE_START = 16;
 
 	private final InetSocketAddress bindAddress;
 	private final String domain;
+	
+	private volatile long parserHibernationDelayMillis = DEFAULT_PARSER_HIBERNATION_DELAY_MILLIS;
+	private volatile KixmppDecoderLimits decoderLimits = KixmppDecoderLimits.DEFAULT;
+	
+	private volatile boolean webSocketCompression = false;
+	private volatile int webSocketCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private volatile boolean webSocketContextTakeover = true;
 
 	private final ServerBootstrap bootstrap;
 
@@ -173,13 +198,24 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 	 * @param domain
 	 */
 	public KixmppServer(InetSocketAddress bindAddress, String domain, InetSocketAddress clusterAddress, NodeDiscovery clusterDiscovery, boolean useEpollIfAvailable) {
+		this(bindAddress, domain, clusterAddress, clusterDiscovery, useEpollIfAvailable, new KixmppEventEngine());
+	}
+	
+	/**
+	 * Creates a new {@link KixmppServer} that dispatches events with the given engine.
+	 * 
+	 * @param bindAddress
+	 * @param domain
+	 * @param eventEngine
+	 */
+	public KixmppServer(InetSocketAddress bindAddress, String domain, InetSocketAddress clusterAddress, NodeDiscovery clusterDiscovery, boolean useEpollIfAvailable, KixmppEventEngine eventEngine) {
 		if (useEpollIfAvailable && OS.indexOf("nux") >= 0) {
 			this.bootstrap = new ServerBootstrap()
 				.group(new EpollEventLoopGroup(), new EpollEventLoopGroup())
 				.channel(EpollServerSocketChannel.class)
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					protected void initChannel(SocketChannel ch) throws Exception {
-						ch.pipeline().addLast(new KixmppCodec());
+						ch.pipeline().addLast(createCodec());
 						ch.pipeline().addLast(new KixmppServerMessageHandler());
 					}
 				});
@@ -189,7 +225,7 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 				.channel(NioServerSocketChannel.class)
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					protected void initChannel(SocketChannel ch) throws Exception {
-						ch.pipeline().addLast(new KixmppCodec());
+						ch.pipeline().addLast(createCodec());
 						ch.pipeline().addLast(new KixmppServerMessageHandler());
 					}
 				});
@@ -201,15 +237,19 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 		this.cluster.getMessageRegistry().addCustomMessage(3, PrivateChatTask.class);
 		this.cluster.getMessageRegistry().addCustomMessage(4, GetMucRoomNicknamesRequest.class);
 		this.cluster.getMessageRegistry().addCustomMessage(5, GetMucRoomNicknamesResponse.class);
+		this.cluster.getMessageRegistry().addCustomMessage(6, RoomOccupancySnapshot.class);
+		this.cluster.getMessageRegistry().addCustomMessage(7, RoomInterestUpdate.class);
 		this.mapReduce = new MapReduceTracker(this, bootstrap.group());
         this.channels = new DefaultChannelGroup("All Channels", GlobalEventExecutor.INSTANCE);
 
 		this.bindAddress = bindAddress;
 		this.domain = domain.toLowerCase();
-		this.eventEngine = new KixmppEventEngine();
+		this.eventEngine = eventEngine;
+		this.eventEngine.setLocalDomain(this.domain);
 
 		this.modulesToRegister.add(FeaturesKixmppServerModule.class.getName());
 		this.modulesToRegister.add(SaslKixmppServerModule.class.getName());
+		this.modulesToRegister.add(CompressionKixmppServerModule.class.getName());
 		this.modulesToRegister.add(BindKixmppServerModule.class.getName());
 		this.modulesToRegister.add(SessionKixmppServerModule.class.getName());
 		this.modulesToRegister.add(PresenceKixmppServerModule.class.getName());
@@ -219,6 +259,104 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 		this.modulesToRegister.add(ChatKixmppServerModule.class.getName());
 	}
 	
+	/**
+	 * Sets how long a connection has to be quiet before its parser is released, it is rebuilt on the next read. 
+	 * Zero disables parser hibernation.
+	 * 
+	 * @param delay
+	 * @param unit
+	 */
+	public KixmppServer setParserHibernationDelay(long delay, TimeUnit unit) {
+		if (state.get() != State.STOPPED) {
+			throw new IllegalStateException(String.format("The current state is [%s] but must be [STOPPED]", state.get()));
+		}
+		
+		this.parserHibernationDelayMillis = unit.toMillis(delay);
+		
+		return this;
+	}
+	
+	/**
+	 * Sets the limits inbound stanzas are held to on both TCP and WebSocket connections. 
+	 * A stream that breaks them is closed with a <code>policy-violation</code> stream error.
+	 * 
+	 * @param decoderLimits
+	 */
+	public KixmppServer setDecoderLimits(KixmppDecoderLimits decoderLimits) {
+		if (state.get() != State.STOPPED) {
+			throw new IllegalStateException(String.format("The current state is [%s] but must be [STOPPED]", state.get()));
+		}
+		
+		this.decoderLimits = decoderLimits;
+		
+		return this;
+	}
+	
+	/**
+	 * Sets whether WebSocket clients that offer permessage-deflate get their messages compressed. 
+	 * With context takeover every connection keeps a compression dictionary between messages, 
+	 * which compresses repeated stanza boilerplate well but costs memory per connection.
+	 * 
+	 * @param enabled
+	 * @param compressionLevel from 0 (none) to 9 (best), or -1 for zlib's default
+	 * @param contextTakeover
+	 */
+	public KixmppServer setWebSocketCompression(boolean enabled, int compressionLevel, boolean contextTakeover) {
+		if (state.get() != State.STOPPED) {
+			throw new IllegalStateException(String.format("The current state is [%s] but must be [STOPPED]", state.get()));
+		}
+		
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9, was " + compressionLevel);
+		}
+		
+		this.webSocketCompression = enabled;
+		this.webSocketCompressionLevel = compressionLevel;
+		this.webSocketContextTakeover = contextTakeover;
+		
+		return this;
+	}
+	
+	/**
+	 * Gets the permessage-deflate codec of a WebSocket connection, which counts the bytes it saved.
+	 * 
+	 * @param channel
+	 * @return the codec or null if the connection does not compress
+	 */
+	public KixmppWebSocketDeflateCodec getWebSocketDeflateCodec(Channel channel) {
+		return channel.pipeline().get(KixmppWebSocketDeflateCodec.class);
+	}
+	
+	/**
+	 * Sets up the pipeline of a new WebSocket connection. The HTTP stages only live until the upgrade.
+	 * 
+	 * @param pipeline
+	 */
+	void initWebSocketPipeline(ChannelPipeline pipeline) {
+		pipeline.addLast(new HttpServerCodec());
+		pipeline.addLast(new HttpObjectAggregator(MAX_HANDSHAKE_CONTENT_LENGTH));
+		pipeline.addLast(new WebSocketServerHandler());
+		pipeline.addLast(new KixmppWebSocketCodec().setDecoderLimits(decoderLimits));
+		pipeline.addLast(new KixmppServerMessageHandler());
+	}
+	
+	/**
+	 * Creates the codec for a new TCP connection.
+	 * 
+	 * @return
+	 */
+	private KixmppCodec createCodec() {
+		KixmppCodec codec = new KixmppCodec(XMLStreamReaderConfiguration.SPEED, StanzaModel.KIXMPP_STANZA, true)
+				.setDecoderLimits(decoderLimits)
+				.enableStanzaBatching();
+		
+		if (parserHibernationDelayMillis > 0) {
+			codec.enableHibernation(parserHibernationDelayMillis, TimeUnit.MILLISECONDS);
+		}
+		
+		return codec;
+	}
+	
 	/**
 	 * Enables the WebSocket port.
 	 */
@@ -244,11 +382,7 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 					.channel(EpollServerSocketChannel.class)
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						protected void initChannel(SocketChannel ch) throws Exception {
-							ch.pipeline().addLast(new HttpServerCodec());
-							ch.pipeline().addLast(new HttpObjectAggregator(65536));
-							ch.pipeline().addLast(new WebSocketServerHandler());
-							ch.pipeline().addLast(new KixmppWebSocketCodec());
-							ch.pipeline().addLast(new KixmppServerMessageHandler());
+							initWebSocketPipeline(ch.pipeline());
 						}
 					});
 		} else {
@@ -257,11 +391,7 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 				.channel(NioServerSocketChannel.class)
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					protected void initChannel(SocketChannel ch) throws Exception {
-						ch.pipeline().addLast(new HttpServerCodec());
-						ch.pipeline().addLast(new HttpObjectAggregator(65536));
-						ch.pipeline().addLast(new WebSocketServerHandler());
-						ch.pipeline().addLast(new KixmppWebSocketCodec());
-						ch.pipeline().addLast(new KixmppServerMessageHandler());
+						initWebSocketPipeline(ch.pipeline());
 					}
 				});
 		}
@@ -645,7 +775,37 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 	private final class KixmppServerMessageHandler extends ChannelDuplexHandler {
 		@Override
 		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-			if (msg instanceof Element) {
+			if (msg instanceof KixmppStanza) {
+				try {
+					KixmppStanza stanza = interceptIncoming(ctx, (KixmppStanza)msg);
+					
+					if (stanza != null) {
+						eventEngine.publishStanza(ctx.channel(), stanza);
+					}
+				} finally {
+					ReferenceCountUtil.release(msg);
+				}
+			} else if (msg instanceof KixmppStanzaBatch) {
+				KixmppStanzaBatch batch = (KixmppStanzaBatch)msg;
+				
+				try {
+					List<KixmppStanza> stanzas = new ArrayList<>(batch.size());
+					
+					for (KixmppStanza received : batch) {
+						KixmppStanza stanza = interceptIncoming(ctx, received);
+						
+						if (stanza != null) {
+							stanzas.add(stanza);
+						}
+					}
+					
+					if (!stanzas.isEmpty()) {
+						eventEngine.publishStanzas(ctx.channel(), stanzas);
+					}
+				} finally {
+					batch.release();
+				}
+			} else if (msg instanceof Element) {
 				Element stanza = (Element)msg;
 				
 				boolean rejected = false;
@@ -678,14 +838,77 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 			}
 		}
 		
+		/**
+		 * Runs the incoming interceptors on a stanza.
+		 * 
+		 * @param ctx
+		 * @param stanza
+		 * @return the stanza to publish, or <b>null</b> if it was rejected
+		 */
+		private KixmppStanza interceptIncoming(ChannelHandlerContext ctx, KixmppStanza stanza) {
+			boolean rejected = false;
+			
+			for (KixmppStanzaInterceptor interceptor : interceptors) {
+				try {
+					if (interceptor instanceof KixmppStanzaModelInterceptor) {
+						((KixmppStanzaModelInterceptor)interceptor).interceptIncoming(ctx.channel(), stanza);
+					} else {
+						Element element = stanza.toElement();
+						
+						interceptor.interceptIncoming(ctx.channel(), element);
+						
+						// the interceptor may have modified the element
+						stanza = KixmppStanza.fromElement(element);
+					}
+				} catch (KixmppStanzaRejectedException e) {
+					rejected = true;
+					
+					logger.debug("Incoming stanza interceptor [{}] threw an rejected exception.", interceptor, e);
+				} catch (Exception e) {
+					logger.error("Incoming stanza interceptor [{}] threw an exception.", interceptor, e);
+				}
+			}
+			
+			return rejected ? null : stanza;
+		}
+		
 		@Override
 		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
 			boolean rejected = false;
 			
-			if (msg instanceof Element) {
+			if (msg instanceof KixmppEncodedStanza && !interceptors.isEmpty()) {
+				// interceptors get a copy of their own, only then is the shared stanza serialized again for this channel
+				KixmppEncodedStanza encodedStanza = (KixmppEncodedStanza)msg;
+				
+				try {
+					msg = encodedStanza.toStanza();
+				} finally {
+					encodedStanza.release();
+				}
+			}
+			
+			if (msg instanceof Element || msg instanceof KixmppStanza) {
 				for (KixmppStanzaInterceptor interceptor : interceptors) {
 					try {
-						interceptor.interceptOutgoing(ctx.channel(), (Element)msg);
+						if (interceptor instanceof KixmppStanzaModelInterceptor) {
+							KixmppStanzaModelInterceptor modelInterceptor = (KixmppStanzaModelInterceptor)interceptor;
+							
+							if (msg instanceof KixmppStanza) {
+								modelInterceptor.interceptOutgoing(ctx.channel(), (KixmppStanza)msg);
+							} else {
+								modelInterceptor.interceptOutgoing(ctx.channel(), (Element)msg);
+							}
+						} else {
+							if (msg instanceof KixmppStanza) {
+								// JDOM interceptors work on a copy of the view since the stanza may be written to other channels too
+								Element element = ((KixmppStanza)msg).toElement().clone();
+								
+								ReferenceCountUtil.release(msg);
+								msg = element;
+							}
+							
+							interceptor.interceptOutgoing(ctx.channel(), (Element)msg);
+						}
 					} catch (KixmppStanzaRejectedException e) {
 						rejected = true;
 						
@@ -698,6 +921,8 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 			
 			if (!rejected) {
 				super.write(ctx, msg, promise);
+			} else {
+				ReferenceCountUtil.release(msg);
 			}
 		}
 		
@@ -734,6 +959,13 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 			eventEngine.publishDisconnected(ctx.channel());
 		}
 		
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+			eventEngine.handleWritabilityChanged(ctx.channel());
+			
+			super.channelWritabilityChanged(ctx);
+		}
+		
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
 			logger.error("Unexpected exception.", cause);
@@ -742,16 +974,14 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 		}
 	}
 	
-	public class WebSocketServerHandler extends SimpleChannelInboundHandler<Object> {
-	    private WebSocketServerHandshaker handshaker;
-
+	/**
+	 * Upgrades a WebSocket connection. Once the handshake is written the HTTP stages leave the pipeline 
+	 * and this handler gives way to a {@link WebSocketFrameHandler}.
+	 */
+	public class WebSocketServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 	    @Override
-	    public void channelRead0(ChannelHandlerContext ctx, Object msg) {
-	        if (msg instanceof FullHttpRequest) {
-	            handleHttpRequest(ctx, (FullHttpRequest) msg);
-	        } else if (msg instanceof WebSocketFrame) {
-	            handleWebSocketFrame(ctx, (WebSocketFrame) msg);
-	        }
+	    public void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+	        handleHttpRequest(ctx, msg);
 	    }
 
 	    @Override
@@ -772,25 +1002,47 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 	            return;
 	        }
 
+	        KixmppWebSocketDeflateCodec deflateCodec = null;
+	        
+	        if (webSocketCompression && WebSocketVersion.V13.toHttpHeaderValue().equals(req.headers().get(HttpHeaders.Names.SEC_WEBSOCKET_VERSION))) {
+	        	deflateCodec = KixmppWebSocketDeflateCodec.negotiate(req.headers().get(KixmppWebSocketDeflateCodec.EXTENSIONS_HEADER), 
+	        			webSocketCompressionLevel, webSocketContextTakeover);
+	        	
+	        	if (deflateCodec != null) {
+	        		deflateCodec.setDecoderLimits(decoderLimits);
+	        	}
+	        }
+	        
 	        // Handshake
-	        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(getWebSocketLocation(req), "xmpp", false);
-	        handshaker = wsFactory.newHandshaker(req);
+	        WebSocketServerHandshaker handshaker;
 	        
-	        if (handshaker == null) {
-	            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+	        if (deflateCodec != null) {
+	        	// compressed frames set the first reserved bit and their text is not UTF-8 until it is inflated
+	        	handshaker = new WebSocketServerHandshaker13(getWebSocketLocation(req), "xmpp", true, MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH) {
+	        		@Override
+	        		protected WebSocketFrameDecoder newWebsocketDecoder() {
+	        			return new KixmppWebSocketFrameDecoder(true, true, MAX_WEBSOCKET_FRAME_PAYLOAD_LENGTH);
+	        		}
+	        	};
 	        } else {
-	            handshaker.handshake(ctx.channel(), req);
+	        	handshaker = new WebSocketServerHandshakerFactory(getWebSocketLocation(req), "xmpp", false).newHandshaker(req);
 	        }
-	    }
-
-	    private void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame) {
-	        if (frame instanceof CloseWebSocketFrame) {
-	            handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
-	        } else if (frame instanceof PingWebSocketFrame) {
-	            ctx.channel().write(new PongWebSocketFrame(frame.content().retain()));
+	        
+	        if (handshaker == null) {
+	            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+	        } else if (deflateCodec != null) {
+	        	HttpHeaders responseHeaders = new DefaultHttpHeaders();
+	        	responseHeaders.add(KixmppWebSocketDeflateCodec.EXTENSIONS_HEADER, deflateCodec.getResponseExtension());
+	        	
+	        	handshaker.handshake(ctx.channel(), req, responseHeaders, ctx.newPromise()).addListener(CLOSE_ON_HANDSHAKE_FAILURE);
+	        	
+	        	ctx.pipeline().addBefore(ctx.name(), "wsDeflate", deflateCodec);
 	        } else {
-                ctx.fireChannelRead(frame);
+	            handshaker.handshake(ctx.channel(), req).addListener(CLOSE_ON_HANDSHAKE_FAILURE);
 	        }
+	        
+	        // the handshaker already swapped the HTTP codec and aggregator for the frame codec, nothing here needs the handshake any more
+	        ctx.pipeline().replace(this, "wsFrames", new WebSocketFrameHandler());
 	    }
 
 	    private void sendHttpResponse(ChannelHandlerContext ctx, FullHttpRequest req, FullHttpResponse res) {
@@ -822,6 +1074,49 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
 	    }
 	}
 	
+	private static final ChannelFutureListener CLOSE_ON_HANDSHAKE_FAILURE = new ChannelFutureListener() {
+		public void operationComplete(ChannelFuture future) throws Exception {
+			if (!future.isSuccess()) {
+				logger.warn("WebSocket handshake with [{}] failed", future.channel(), future.cause());
+				
+				future.channel().close();
+			}
+		}
+	};
+	
+	/**
+	 * Answers WebSocket control frames and hands data frames on, for the life of an upgraded connection.
+	 */
+	public static class WebSocketFrameHandler extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			if (msg instanceof CloseWebSocketFrame) {
+				// echo the close and hang up
+				ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+			} else if (msg instanceof PingWebSocketFrame) {
+				ctx.write(new PongWebSocketFrame(((PingWebSocketFrame)msg).content()));
+			} else if (msg instanceof PongWebSocketFrame) {
+				ReferenceCountUtil.release(msg);
+			} else {
+				ctx.fireChannelRead(msg);
+			}
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			ctx.flush();
+			
+			ctx.fireChannelReadComplete();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			logger.warn("Closing WebSocket connection [{}]", ctx.channel(), cause);
+			
+			ctx.close();
+		}
+	}
+	
 	public <T> Promise<T> createPromise() {
 		return bootstrap.childGroup().next().newPromise();
 	}
@@ -841,11 +1136,17 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
     @Override
     public void onNodeJoin(ClusterClient cluster, NodeId nodeId) {
         logger.info("Node {} joined cluster", nodeId.toString());
+        if (hasActiveModule(MucKixmppServerModule.class)) {
+            module(MucKixmppServerModule.class).getOccupancy().nodeJoined(nodeId);
+        }
     }
 
     @Override
     public void onNodeLeft(ClusterClient cluster, NodeId nodeId) {
         logger.info("Node {} left cluster", nodeId.toString());
+        if (hasActiveModule(MucKixmppServerModule.class)) {
+            module(MucKixmppServerModule.class).getOccupancy().nodeLeft(nodeId);
+        }
     }
 
     @Override
@@ -863,12 +1164,19 @@ public class KixmppServer implements AutoCloseable, ClusterListener {
         } else if (message instanceof MapReduceResponse) {
             MapReduceResponse response = (MapReduceResponse) message;
             mapReduce.processResponse(response);
+        } else if (message instanceof RoomOccupancySnapshot) {
+            module(MucKixmppServerModule.class).getOccupancy().receive(senderId, (RoomOccupancySnapshot) message);
+        } else if (message instanceof RoomInterestUpdate) {
+            module(MucKixmppServerModule.class).getOccupancy().receive(senderId, (RoomInterestUpdate) message);
         } else  if (message instanceof RoomTask) {
             RoomTask roomTask = (RoomTask) message;
+            if (roomTask instanceof RoomPresenceBroadcastTask) {
+                module(MucKixmppServerModule.class).getOccupancy().receive(senderId, (RoomPresenceBroadcastTask) roomTask);
+            }
             module(MucKixmppServerModule.class).handleClusterTask(roomTask);
         } else if (message instanceof Task) {
             Task task = (Task) message;
-            task.run();
+            getEventEngine().runTask(task);
         }
     }
 }
@@ -29,6 +29,7 @@ import java.util.Set;
 import org.jdom2.Element;
 
 import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
 
 /**
  * Distributes a private message.
@@ -39,14 +40,27 @@ public class PrivateChatTask extends ClusterTask {
     private String fromJid;
     private String toJid;
     private String body;
+    
+    private transient KixmppStanza stanza;
 
     public PrivateChatTask() {
     }
 
     public PrivateChatTask(KixmppJid fromJid, KixmppJid toJid, String body) {
+        this(fromJid, toJid, body, null);
+    }
+
+    /**
+     * @param fromJid
+     * @param toJid
+     * @param body
+     * @param stanza the received message, forwarded as it is on the local node. The task takes over the caller's reference.
+     */
+    public PrivateChatTask(KixmppJid fromJid, KixmppJid toJid, String body, KixmppStanza stanza) {
         this.fromJid = fromJid.getFullJid();
         this.toJid = toJid.getFullJid();
         this.body = body;
+        this.stanza = stanza;
     }
 
 	/**
@@ -98,6 +112,11 @@ public class PrivateChatTask extends ClusterTask {
 		KixmppJid fromJid = KixmppJid.fromRawJid(this.fromJid);
 		KixmppJid toJid = KixmppJid.fromRawJid(this.toJid);
 		KixmppServer server = getKixmppServer();
+		
+		if (stanza != null) {
+			forwardStanza(server, fromJid, toJid);
+			return;
+		}
 
 		// broadcast message stanza to all channels of the recipient
 		for (Channel toChannel : server.getChannels(toJid.getNode())) {
@@ -111,7 +130,7 @@ public class PrivateChatTask extends ClusterTask {
 
 			messageElement.addContent(bodyElement);
 
-			toChannel.writeAndFlush(messageElement);
+			server.getEventEngine().write(toChannel, messageElement);
 		}
 
 		// broadcast message stanza to all channels of the sender
@@ -131,7 +150,42 @@ public class PrivateChatTask extends ClusterTask {
 
 			messageElement.addContent(bodyElement);
 
-			fromChannel.writeAndFlush(messageElement);
+			server.getEventEngine().write(fromChannel, messageElement);
+		}
+	}
+
+	/**
+	 * Forwards the received stanza, which still holds its raw bytes unless it was modified.
+	 * 
+	 * @param server
+	 * @param fromJid
+	 * @param toJid
+	 */
+	private void forwardStanza(KixmppServer server, KixmppJid fromJid, KixmppJid toJid) {
+		try {
+			stanza.setAttribute("from", fromJid.getFullJid());
+			stanza.setAttribute("to", toJid.getFullJid());
+			
+			if (stanza.getRawBytes() == null) {
+				// the channels serialize the tree on their own threads
+				stanza.loadContent();
+			}
+			
+			for (Channel toChannel : server.getChannels(toJid.getNode())) {
+				server.getEventEngine().write(toChannel, stanza.retain());
+			}
+			
+			for (Channel fromChannel : server.getChannels(fromJid.getNode())) {
+				// skip the channel message was sent from
+				if (fromChannel.attr(BindKixmppServerModule.JID).get().toString().equalsIgnoreCase(fromJid.toString())) {
+					continue;
+				}
+				
+				server.getEventEngine().write(fromChannel, stanza.retain());
+			}
+		} finally {
+			stanza.release();
+			stanza = null;
 		}
 	}
 }
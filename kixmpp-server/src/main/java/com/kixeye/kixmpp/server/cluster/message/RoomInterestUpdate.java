@@ -0,0 +1,51 @@
+package com.kixeye.kixmpp.server.cluster.message;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Sent to every node when the first occupant of a room joins on the sending node or the last one leaves it.
+ */
+public class RoomInterestUpdate {
+	private String serviceSubDomain;
+	private String roomId;
+	private boolean interested;
+
+	public RoomInterestUpdate() {
+	}
+
+	public RoomInterestUpdate(String serviceSubDomain, String roomId, boolean interested) {
+		this.serviceSubDomain = serviceSubDomain;
+		this.roomId = roomId;
+		this.interested = interested;
+	}
+
+	public String getServiceSubDomain() {
+		return serviceSubDomain;
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	public boolean isInterested() {
+		return interested;
+	}
+}
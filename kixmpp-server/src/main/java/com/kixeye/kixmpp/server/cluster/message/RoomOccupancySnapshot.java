@@ -0,0 +1,73 @@
+package com.kixeye.kixmpp.server.cluster.message;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rooms with occupants on the sending node, and their nicknames if the room has presence enabled, sent to a node 
+ * that joins the cluster.
+ */
+public class RoomOccupancySnapshot {
+	private List<RoomOccupants> rooms = new ArrayList<>();
+
+	public RoomOccupancySnapshot() {
+	}
+
+	public void addRoom(String serviceSubDomain, String roomId, List<String> nicknames) {
+		rooms.add(new RoomOccupants(serviceSubDomain, roomId, nicknames));
+	}
+
+	public List<RoomOccupants> getRooms() {
+		return rooms;
+	}
+
+	/**
+	 * The occupants of a single room.
+	 */
+	public static class RoomOccupants {
+		private String serviceSubDomain;
+		private String roomId;
+		private List<String> nicknames;
+
+		public RoomOccupants() {
+		}
+
+		public RoomOccupants(String serviceSubDomain, String roomId, List<String> nicknames) {
+			this.serviceSubDomain = serviceSubDomain;
+			this.roomId = roomId;
+			this.nicknames = nicknames;
+		}
+
+		public String getServiceSubDomain() {
+			return serviceSubDomain;
+		}
+
+		public String getRoomId() {
+			return roomId;
+		}
+
+		public List<String> getNicknames() {
+			return nicknames;
+		}
+	}
+}
@@ -44,4 +44,25 @@ public class RoomPresenceBroadcastTask extends RoomTask {
 	public void run() {
 		getRoom().receivePresence(fromRoomJid, role, type);
 	}
+
+	/**
+	 * @return the fromRoomJid
+	 */
+	public KixmppJid getFromRoomJid() {
+		return fromRoomJid;
+	}
+
+	/**
+	 * @return the role
+	 */
+	public MucRole getRole() {
+		return role;
+	}
+
+	/**
+	 * @return the type
+	 */
+	public String getType() {
+		return type;
+	}
 }
@@ -53,14 +53,14 @@ public class BindKixmppServerModule implements KixmppServerModule {
 	public void install(KixmppServer server) {
 		this.server = server;
 		
-		this.server.getEventEngine().registerGlobalStanzaHandler("iq", BIND_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("iq", "set", "urn:ietf:params:xml:ns:xmpp-bind", BIND_HANDLER);
 	}
 
 	/**
 	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
 	 */
 	public void uninstall(KixmppServer server) {
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", BIND_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", "set", "urn:ietf:params:xml:ns:xmpp-bind", BIND_HANDLER);
 	}
 
 	/**
@@ -85,40 +85,38 @@ public class BindKixmppServerModule implements KixmppServerModule {
 		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
 		 */
 		public void handle(Channel channel, Element stanza) {
-			Element bind = stanza.getChild("bind", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind"));
+			// registered for iqs whose first child is in the bind namespace
+			Element bind = stanza.getChildren().get(0);
 			
-			if (bind != null) {
-				// handle the bind
-				String resource = bind.getChildText("resource", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind"));
-				
-				if (resource == null) {
-					resource = UUID.randomUUID().toString().replace("-", "");
-				}
+			String resource = bind.getChildText("resource", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind"));
+			
+			if (resource == null) {
+				resource = UUID.randomUUID().toString().replace("-", "");
+			}
 
-				KixmppJid jid = channel.attr(BindKixmppServerModule.JID).get().withResource(resource);
-				
-				channel.attr(BindKixmppServerModule.IS_BOUND).set(true);
-				
-				channel.attr(BindKixmppServerModule.JID).set(jid);
-				
-				server.addChannelMapping(jid, channel);
-				
-				Element iq = new Element("iq");
-				iq.setAttribute("type", "result");
-				
-				String id = stanza.getAttributeValue("id");
-				
-				if (id != null) {
-					iq.setAttribute("id", id);
-				}
-				
-				bind = new Element("bind", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind"));
-				bind.addContent(new Element("jid", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind")).setText(jid.toString()));
-				
-				iq.addContent(bind);
-				
-				channel.writeAndFlush(iq);
+			KixmppJid jid = channel.attr(BindKixmppServerModule.JID).get().withResource(resource);
+			
+			channel.attr(BindKixmppServerModule.IS_BOUND).set(true);
+			
+			channel.attr(BindKixmppServerModule.JID).set(jid);
+			
+			server.addChannelMapping(jid, channel);
+			
+			Element iq = new Element("iq");
+			iq.setAttribute("type", "result");
+			
+			String id = stanza.getAttributeValue("id");
+			
+			if (id != null) {
+				iq.setAttribute("id", id);
 			}
+			
+			bind = new Element("bind", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind"));
+			bind.addContent(new Element("jid", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-bind")).setText(jid.toString()));
+			
+			iq.addContent(bind);
+			
+			server.getEventEngine().write(channel, iq);
 		}
 	};
 }
@@ -28,10 +28,12 @@ import org.jdom2.Element;
 
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
+import com.kixeye.kixmpp.handler.KixmppStanzaModelHandler;
 import com.kixeye.kixmpp.server.KixmppServer;
 import com.kixeye.kixmpp.server.cluster.message.PrivateChatTask;
 import com.kixeye.kixmpp.server.module.KixmppServerModule;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
 
 /**
  * Handles private chat features.
@@ -47,14 +49,14 @@ public class ChatKixmppServerModule implements KixmppServerModule {
 	public void install(KixmppServer server) {
 		this.server = server;
 		
-		this.server.getEventEngine().registerGlobalStanzaHandler("message", MESSAGE_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("message", "chat", null, MESSAGE_HANDLER);
 	}
 
 	/**
 	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
 	 */
 	public void uninstall(KixmppServer server) {
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("message", MESSAGE_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("message", "chat", null, MESSAGE_HANDLER);
 	}
 
 	/**
@@ -64,18 +66,22 @@ public class ChatKixmppServerModule implements KixmppServerModule {
 		return null;
 	}
 	
-	private KixmppStanzaHandler MESSAGE_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler MESSAGE_HANDLER = new KixmppStanzaModelHandler() {
 		/**
-		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaModelHandler#handle(io.netty.channel.Channel, com.kixeye.kixmpp.stanza.KixmppStanza)
 		 */
-		public void handle(Channel channel, Element stanza) {
-			if ("chat".equals(stanza.getAttributeValue("type"))) {
-				KixmppJid fromJid = channel.attr(BindKixmppServerModule.JID).get();
-				KixmppJid toJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
-				String body = stanza.getChildText("body", stanza.getNamespace());
-
-				server.getCluster().sendMessageToAll(new PrivateChatTask(fromJid, toJid, body), true);
+		public void handle(Channel channel, KixmppStanza stanza) {
+			KixmppJid fromJid = channel.attr(BindKixmppServerModule.JID).get();
+			KixmppJid toJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
+			
+			// the local node forwards the received stanza itself, the others rebuild it from the body
+			String body = null;
+			
+			if (server.getCluster().getNodeCount() > 1) {
+				body = stanza.getChildText("body", stanza.getNamespaceURI());
 			}
+
+			server.getCluster().sendMessageToAll(new PrivateChatTask(fromJid, toJid, body, stanza.retain()), true);
 		}
 	};
 
@@ -0,0 +1,181 @@
+package com.kixeye.kixmpp.server.module.compression;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.util.AttributeKey;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+import com.kixeye.kixmpp.KixmppCodec;
+import com.kixeye.kixmpp.KixmppZlibEncoder;
+import com.kixeye.kixmpp.KixmppZlibEncoder.FlushStrategy;
+import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
+import com.kixeye.kixmpp.server.KixmppServer;
+import com.kixeye.kixmpp.server.module.KixmppServerModule;
+import com.kixeye.kixmpp.server.module.auth.SaslKixmppServerModule;
+
+/**
+ * Handles XEP-0138 stream compression. Compression is offered to authenticated TCP connections, 
+ * once negotiated zlib handlers go in front of the codec and the client restarts the stream.
+ */
+public class CompressionKixmppServerModule implements KixmppServerModule {
+	public static AttributeKey<Boolean> IS_COMPRESSED = AttributeKey.valueOf("IS_COMPRESSED");
+	
+	public static final String FEATURE_NAMESPACE = "http://jabber.org/features/compress";
+	public static final String PROTOCOL_NAMESPACE = "http://jabber.org/protocol/compress";
+	
+	private static final String ZLIB_METHOD = "zlib";
+	
+	private KixmppServer server;
+	
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private volatile FlushStrategy flushStrategy = FlushStrategy.SYNC_PER_WRITE;
+	
+	/**
+	 * @see com.kixeye.kixmpp.server.module.KixmppModule#install(com.kixeye.kixmpp.server.KixmppServer)
+	 */
+	public void install(KixmppServer server) {
+		this.server = server;
+		
+		this.server.getEventEngine().registerGlobalStanzaHandler("compress", COMPRESS_HANDLER);
+	}
+
+	/**
+	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
+	 */
+	public void uninstall(KixmppServer server) {
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("compress", COMPRESS_HANDLER);
+	}
+
+	/**
+	 * @see com.kixeye.kixmpp.server.module.KixmppServerModule#getFeatures(io.netty.channel.Channel)
+	 */
+	public List<Element> getFeatures(Channel channel) {
+		List<Element> features = new LinkedList<>();
+		
+		if (canCompress(channel)) {
+			Element compression = new Element("compression", FEATURE_NAMESPACE);
+			
+			Element zlibMethod = new Element("method", FEATURE_NAMESPACE);
+			zlibMethod.setText(ZLIB_METHOD);
+			
+			compression.addContent(zlibMethod);
+			
+			features.add(compression);
+		}
+		
+		return features;
+	}
+	
+	/**
+	 * @return the compressionLevel
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel from 0 (none) to 9 (best), or -1 for zlib's default
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9, was " + compressionLevel);
+		}
+		
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * @return the flushStrategy
+	 */
+	public FlushStrategy getFlushStrategy() {
+		return flushStrategy;
+	}
+
+	/**
+	 * @param flushStrategy the flushStrategy to set
+	 */
+	public void setFlushStrategy(FlushStrategy flushStrategy) {
+		this.flushStrategy = flushStrategy;
+	}
+	
+	/**
+	 * @param channel
+	 * @return <b>true</b> if the channel is authenticated, not compressed yet and decoded by a {@link KixmppCodec}
+	 */
+	private boolean canCompress(Channel channel) {
+		Boolean isAuthed = channel.attr(SaslKixmppServerModule.IS_AUTHENTICATED).get();
+		Boolean isCompressed = channel.attr(IS_COMPRESSED).get();
+		
+		return isAuthed != null && isAuthed && isCompressed == null && channel.pipeline().get(KixmppCodec.class) != null;
+	}
+
+	private KixmppStanzaHandler COMPRESS_HANDLER = new KixmppStanzaHandler() {
+		/**
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 */
+		public void handle(final Channel channel, Element stanza) {
+			String method = stanza.getChildText("method", Namespace.getNamespace(PROTOCOL_NAMESPACE));
+			
+			if (!canCompress(channel)) {
+				Element failure = new Element("failure", PROTOCOL_NAMESPACE);
+				failure.addContent(new Element("setup-failed", PROTOCOL_NAMESPACE));
+				
+				channel.writeAndFlush(failure);
+			} else if (!ZLIB_METHOD.equals(method)) {
+				Element failure = new Element("failure", PROTOCOL_NAMESPACE);
+				failure.addContent(new Element("unsupported-method", PROTOCOL_NAMESPACE));
+				
+				channel.writeAndFlush(failure);
+			} else {
+				channel.attr(IS_COMPRESSED).set(true);
+				
+				final int level = compressionLevel;
+				final FlushStrategy strategy = flushStrategy;
+				
+				// the answer has to leave uncompressed and everything after it compressed, so both happen on the event loop
+				channel.eventLoop().execute(new Runnable() {
+					public void run() {
+						channel.writeAndFlush(new Element("compressed", PROTOCOL_NAMESPACE));
+						
+						ChannelPipeline pipeline = channel.pipeline();
+						ChannelHandlerContext codecContext = pipeline.context(KixmppCodec.class);
+						
+						if (codecContext != null) {
+							pipeline.addBefore(codecContext.name(), "zlibDecoder", new JdkZlibDecoder(ZlibWrapper.ZLIB));
+							pipeline.addBefore(codecContext.name(), "zlibEncoder", new KixmppZlibEncoder(level, strategy));
+						}
+					}
+				});
+			}
+		}
+	};
+}
@@ -45,14 +45,16 @@ public class DiscoKixmppServerModule implements KixmppServerModule {
 	public void install(KixmppServer server) {
 		this.server = server;
 		
-		this.server.getEventEngine().registerGlobalStanzaHandler("iq", ROSTER_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("iq", null, "http://jabber.org/protocol/disco#info", INFO_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("iq", null, "http://jabber.org/protocol/disco#items", ITEMS_HANDLER);
 	}
 
 	/**
 	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
 	 */
 	public void uninstall(KixmppServer server) {
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", ROSTER_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", null, "http://jabber.org/protocol/disco#info", INFO_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", null, "http://jabber.org/protocol/disco#items", ITEMS_HANDLER);
 	}
 
 	/**
@@ -62,63 +64,64 @@ public class DiscoKixmppServerModule implements KixmppServerModule {
 		return null;
 	}
 	
-	private KixmppStanzaHandler ROSTER_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler INFO_HANDLER = new KixmppStanzaHandler() {
 		/**
 		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
 		 */
 		public void handle(Channel channel, Element stanza) {
-			Element infoQuery = stanza.getChild("query", Namespace.getNamespace("http://jabber.org/protocol/disco#info"));
-			Element itemsQuery = stanza.getChild("query", Namespace.getNamespace("http://jabber.org/protocol/disco#items"));
+			Element iq = new Element("iq");
+			iq.setAttribute("type", "result");
 			
-			if (infoQuery != null) {
-				Element iq = new Element("iq");
-				iq.setAttribute("type", "result");
-				
-				String to = stanza.getAttributeValue("to");
-				
-				if (to != null) {
-					iq.setAttribute("from", to);
-				}
-				
-				String id = stanza.getAttributeValue("id");
-				
-				if (id != null) {
-					iq.setAttribute("id", id);
-				}
-				
-				Element queryResult = new Element("query", Namespace.getNamespace("http://jabber.org/protocol/disco#info"));
-				
-				queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/disco#info"));
-				queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/disco#items"));
-				queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/muc"));
-				queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "jabber:iq:time"));
-				queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "jabber:iq:version"));
-				
-				iq.addContent(queryResult);
-				
-				channel.writeAndFlush(iq);
-			} else if (itemsQuery != null) {
-				Element iq = new Element("iq");
-				iq.setAttribute("type", "result");
-				
-				String to = stanza.getAttributeValue("to");
-				
-				if (to != null) {
-					iq.setAttribute("from", to);
-				}
-				
-				String id = stanza.getAttributeValue("id");
-				
-				if (id != null) {
-					iq.setAttribute("id", id);
-				}
-				
-				Element queryResult = new Element("query", Namespace.getNamespace("http://jabber.org/protocol/disco#items"));
-				iq.addContent(queryResult);
-				
-				channel.writeAndFlush(iq);
-				require("for ($i = 0; $i < $count; $i++
+			String to = stanza.getAttributeValue("to");
+			
+			if (to != null) {
+				iq.setAttribute("from", to);
+			}
+			
+			String id = stanza.getAttributeValue("id");
+			
+			if (id != null) {
+				iq.setAttribute("id", id);
 			}
+			
+			Element queryResult = new Element("query", Namespace.getNamespace("http://jabber.org/protocol/disco#info"));
+			
+			queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/disco#info"));
+			queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/disco#items"));
+			queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "http://jabber.org/protocol/muc"));
+			queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "jabber:iq:time"));
+			queryResult.addContent(new Element("feature", Namespace.getNamespace("http://jabber.org/protocol/disco#info")).setAttribute("var", "jabber:iq:version"));
+			
+			iq.addContent(queryResult);
+			
+			server.getEventEngine().write(channel, iq);
+		}
+	};
+	
+	private KixmppStanzaHandler ITEMS_HANDLER = new KixmppStanzaHandler() {
+		/**
+		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 */
+		public void handle(Channel channel, Element stanza) {
+			Element iq = new Element("iq");
+			iq.setAttribute("type", "result");
+			
+			String to = stanza.getAttributeValue("to");
+			
+			if (to != null) {
+				iq.setAttribute("from", to);
+			}
+			
+			String id = stanza.getAttributeValue("id");
+			
+			if (id != null) {
+				iq.setAttribute("id", id);
+			}
+			
+			Element queryResult = new Element("query", Namespace.getNamespace("http://jabber.org/protocol/disco#items"));
+			iq.addContent(queryResult);
+			
+			server.getEventEngine().write(channel, iq);
 		}
 	};
 }
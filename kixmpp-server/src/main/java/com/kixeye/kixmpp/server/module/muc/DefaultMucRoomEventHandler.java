@@ -21,16 +21,18 @@ package com.kixeye.kixmpp.server.module.muc;
  */
 
 import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
 import org.jdom2.Element;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class DefaultMucRoomEventHandler implements MucRoomEventHandler {
 
-	private Element createMessage(String id, KixmppJid from, KixmppJid to, String type, String bodyText) {
+	private Element createMessage(String id, KixmppJid from, String type, String bodyText) {
 		Element message = new Element("message");
 
-		message.setAttribute("to", to.getFullJid());
 		message.setAttribute("from", from.getFullJid());
 		message.setAttribute("type", type);
 		message.setAttribute("id", id);
@@ -45,16 +47,21 @@ public class DefaultMucRoomEventHandler implements MucRoomEventHandler {
 
 	@Override
 	public void handleMessage(MucRoom room, KixmppJid fromJid, KixmppJid fromRoomJid, String... messages) {
-		for (MucRoom.User user: room.getUsers()) {
-			for (MucRoom.Client client: user.getConnections()) {
-				for (String message: messages) {
-					Element stanza = createMessage(UUID.randomUUID().toString(),
-							fromRoomJid,
-							client.getAddress(),
-							"groupchat",
-							message);
-					client.getChannel().writeAndFlush(stanza);
-				}
+		List<KixmppEncodedStanza> stanzas = new ArrayList<>(messages.length);
+		
+		try {
+			for (String message: messages) {
+				stanzas.add(MucRoom.encodeBroadcast(createMessage(UUID.randomUUID().toString(),
+						fromRoomJid,
+						"groupchat",
+						message)));
+			}
+			
+			// one batch per event loop for all of the messages
+			room.broadcast(stanzas, null);
+		} finally {
+			for (KixmppEncodedStanza stanza : stanzas) {
+				stanza.release();
 			}
 		}
 	}
@@ -31,17 +31,19 @@ import java.util.concurrent.ConcurrentHashMap;
 import io.netty.util.concurrent.Promise;
 import org.fusesource.hawtdispatch.Task;
 import org.jdom2.Element;
-import org.jdom2.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
+import com.kixeye.kixmpp.handler.KixmppStanzaModelHandler;
+import com.kixeye.kixmpp.p2p.node.Node;
 import com.kixeye.kixmpp.server.KixmppServer;
 import com.kixeye.kixmpp.server.cluster.message.RoomBroadcastTask;
 import com.kixeye.kixmpp.server.cluster.message.RoomTask;
 import com.kixeye.kixmpp.server.module.KixmppServerModule;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
 
 /**
  * Handles presence.
@@ -57,6 +59,8 @@ public class MucKixmppServerModule implements KixmppServerModule {
 	
 	private ConcurrentHashMap<String, MucService> services = new ConcurrentHashMap<>();
 	
+	private MucOccupancy occupancy;
+	
 	private MucHistoryProvider historyProvider = new MucHistoryProvider() {
 		private final List<MucHistory> emptyList = Collections.unmodifiableList(new ArrayList<MucHistory>(0));
 
@@ -73,10 +77,17 @@ public class MucKixmppServerModule implements KixmppServerModule {
 	 */
 	public void install(KixmppServer server) {
 		this.server = server;
+		this.occupancy = new MucOccupancy(server.getCluster());
+		
+		// the cluster may have formed before the module was installed
+		for (Node node : server.getCluster().getNodes()) {
+			this.occupancy.nodeJoined(node.getId());
+		}
 		
+		// a join is an available presence, which has no type, and its muc child does not have to come first
 		this.server.getEventEngine().registerGlobalStanzaHandler("presence", JOIN_ROOM_HANDLER);
-		this.server.getEventEngine().registerGlobalStanzaHandler("presence", LEAVE_ROOM_HANDLER);
-		this.server.getEventEngine().registerGlobalStanzaHandler("message", ROOM_MESSAGE_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("presence", "unavailable", null, LEAVE_ROOM_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("message", "groupchat", null, ROOM_MESSAGE_HANDLER);
 	}
 
 	/**
@@ -84,8 +95,8 @@ public class MucKixmppServerModule implements KixmppServerModule {
 	 */
 	public void uninstall(KixmppServer server) {
 		this.server.getEventEngine().unregisterGlobalStanzaHandler("presence", JOIN_ROOM_HANDLER);
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("presence", LEAVE_ROOM_HANDLER);
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("message", ROOM_MESSAGE_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("presence", "unavailable", null, LEAVE_ROOM_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("message", "groupchat", null, ROOM_MESSAGE_HANDLER);
 	}
 	
 	/**
@@ -174,6 +185,13 @@ public class MucKixmppServerModule implements KixmppServerModule {
 		this.historyProvider = historyProvider;
 	}
 
+	/**
+	 * @return the occupants of the rooms across the cluster
+	 */
+	public MucOccupancy getOccupancy() {
+		return occupancy;
+	}
+
 	/**
 	 * Figures out what to do with a {@link RoomTask}.
 	 * 
@@ -200,15 +218,21 @@ public class MucKixmppServerModule implements KixmppServerModule {
         
         roomTask.setRoom(room);
         
-        server.getEventEngine().publishTask(room.getRoomJid(),roomTask);
+        // messages from other nodes can be shed under load, presence keeps the occupants right and never is
+        server.getEventEngine().publishTask(room.getRoomJid(), roomTask, roomTask instanceof RoomBroadcastTask);
 	}
 	
-	private KixmppStanzaHandler JOIN_ROOM_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler JOIN_ROOM_HANDLER = new KixmppStanzaModelHandler() {
 		/**
-		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaModelHandler#handle(io.netty.channel.Channel, com.kixeye.kixmpp.stanza.KixmppStanza)
 		 */
-		public void handle(Channel channel, Element stanza) {
-			Element x = stanza.getChild("x", Namespace.getNamespace("http://jabber.org/protocol/muc"));
+		public void handle(Channel channel, KixmppStanza stanza) {
+			// only presence addressed to a room can be a join, don't parse the body of any other
+			if (stanza.getAttributeValue("to") == null) {
+				return;
+			}
+			
+			KixmppStanza x = stanza.getChild("x", "http://jabber.org/protocol/muc");
 			
 			if (x != null) {
 				KixmppJid fullRoomJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
@@ -220,55 +244,51 @@ public class MucKixmppServerModule implements KixmppServerModule {
 					
 					if (room != null) {
                         server.getEventEngine().publishTask(room.getRoomJid(), 
-                        		new JoinRoomTask(channel, room, fullRoomJid.getResource(), x));
+                        		new JoinRoomTask(channel, room, fullRoomJid.getResource(), x.toElement()));
 					} // TODO handle else
 				} // TODO handle else
 			}
 		}
 	};
 
-	private KixmppStanzaHandler LEAVE_ROOM_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler LEAVE_ROOM_HANDLER = new KixmppStanzaModelHandler() {
 		/**
-		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaModelHandler#handle(io.netty.channel.Channel, com.kixeye.kixmpp.stanza.KixmppStanza)
 		 */
-		public void handle(Channel channel, Element stanza) {
-			if (stanza.getAttribute("type") != null && stanza.getAttribute("to") != null) {
-				if (stanza.getAttributeValue("type").equals("unavailable")) {
-					KixmppJid fullRoomJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
-					MucService service = services.get(fullRoomJid.getDomain().toLowerCase().replace("." + server.getDomain(), ""));
-					if (service != null) {
-						MucRoom room = service.getRoom(fullRoomJid.getNode());
-						if (room != null) {
-							server.getEventEngine().publishTask(room.getRoomJid(),
-									new LeaveRoomTask(channel, room, fullRoomJid.getResource()));
-						}
+		public void handle(Channel channel, KixmppStanza stanza) {
+			if (stanza.getAttributeValue("to") != null) {
+				KixmppJid fullRoomJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
+				MucService service = services.get(fullRoomJid.getDomain().toLowerCase().replace("." + server.getDomain(), ""));
+				if (service != null) {
+					MucRoom room = service.getRoom(fullRoomJid.getNode());
+					if (room != null) {
+						server.getEventEngine().publishTask(room.getRoomJid(),
+								new LeaveRoomTask(channel, room, fullRoomJid.getResource()));
 					}
 				}
 			}
 		}
 	};
 
-	private KixmppStanzaHandler ROOM_MESSAGE_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler ROOM_MESSAGE_HANDLER = new KixmppStanzaModelHandler() {
 		/**
-		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaModelHandler#handle(io.netty.channel.Channel, com.kixeye.kixmpp.stanza.KixmppStanza)
 		 */
-		public void handle(Channel channel, Element stanza) {
-			if ("groupchat".equals(stanza.getAttributeValue("type"))) {
-				KixmppJid fullRoomJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
+		public void handle(Channel channel, KixmppStanza stanza) {
+			KixmppJid fullRoomJid = KixmppJid.fromRawJid(stanza.getAttributeValue("to"));
 
-				MucService service = services.get(fullRoomJid.getDomain().toLowerCase().replace("." + server.getDomain(), ""));
-				
-				if (service != null) {
-					MucRoom room = service.getRoom(fullRoomJid.getNode());
+			MucService service = services.get(fullRoomJid.getDomain().toLowerCase().replace("." + server.getDomain(), ""));
+			
+			if (service != null) {
+				MucRoom room = service.getRoom(fullRoomJid.getNode());
 
-					if (room != null) {
-                        Element body = stanza.getChild("body", stanza.getNamespace());
-                        
-                        server.getEventEngine().publishTask(room.getRoomJid(), 
-                        		new ReceiveMessageTask(channel.attr(BindKixmppServerModule.JID).get(), room, body.getText()));
-					} // TODO handle else
+				if (room != null) {
+                    KixmppStanza body = stanza.getChild("body", stanza.getNamespaceURI());
+                    
+                    server.getEventEngine().publishTask(room.getRoomJid(), 
+                    		new ReceiveMessageTask(channel.attr(BindKixmppServerModule.JID).get(), room, body.getText()), true);
 				} // TODO handle else
-			}
+			} // TODO handle else
 		}
 	};
 	
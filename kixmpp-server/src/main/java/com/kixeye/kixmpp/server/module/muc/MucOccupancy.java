@@ -0,0 +1,338 @@
+package com.kixeye.kixmpp.server.module.muc;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.p2p.ClusterClient;
+import com.kixeye.kixmpp.p2p.node.Node;
+import com.kixeye.kixmpp.p2p.node.NodeId;
+import com.kixeye.kixmpp.server.cluster.message.RoomInterestUpdate;
+import com.kixeye.kixmpp.server.cluster.message.RoomOccupancySnapshot;
+import com.kixeye.kixmpp.server.cluster.message.RoomOccupancySnapshot.RoomOccupants;
+import com.kixeye.kixmpp.server.cluster.message.RoomPresenceBroadcastTask;
+
+/**
+ * A replicated view of which nicknames are in which room on every node of the cluster, so a join lists the occupants 
+ * of a room without asking the other nodes. Every node sends the joins and leaves of its own occupants to all others 
+ * and a snapshot of them to each node that joins the cluster, and forgets the occupants of a node that leaves it.
+ * 
+ * <p>Which nodes have occupants in a room at all is tracked the same way for every room, whether or not it has 
+ * presence enabled, so messages to a room are only sent to the nodes that have someone to deliver them to.
+ */
+public class MucOccupancy {
+	private final ClusterClient cluster;
+
+	// room -> node -> nicknames of the room's occupants on that node, changed under the lock and read without it
+	private final ConcurrentMap<KixmppJid, ConcurrentMap<NodeId, Set<String>>> rooms = new ConcurrentHashMap<>();
+
+	// room -> nodes that have occupants in it, this one included
+	private final ConcurrentMap<KixmppJid, Set<NodeId>> interests = new ConcurrentHashMap<>();
+
+	// the remote nodes a snapshot came from, joins and leaves from any other are stale
+	private final Set<NodeId> nodes = Collections.newSetFromMap(new ConcurrentHashMap<NodeId, Boolean>());
+
+	/**
+	 * @param cluster
+	 */
+	public MucOccupancy(ClusterClient cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Gets the nicknames in a room across the cluster.
+	 * 
+	 * @param serviceSubDomain
+	 * @param roomId
+	 * @return
+	 */
+	public Set<String> getNicknames(String serviceSubDomain, String roomId) {
+		Set<String> nicknames = new HashSet<>();
+		
+		Map<NodeId, Set<String>> roomNodes = rooms.get(new KixmppJid(roomId, serviceSubDomain));
+		
+		if (roomNodes != null) {
+			for (Set<String> nodeNicknames : roomNodes.values()) {
+				nicknames.addAll(nodeNicknames);
+			}
+		}
+		
+		return nicknames;
+	}
+
+	/**
+	 * Gets the other nodes that have occupants in a room.
+	 * 
+	 * @param serviceSubDomain
+	 * @param roomId
+	 * @return
+	 */
+	public List<NodeId> getInterestedNodes(String serviceSubDomain, String roomId) {
+		Set<NodeId> roomNodes = interests.get(new KixmppJid(roomId, serviceSubDomain));
+		
+		if (roomNodes == null) {
+			return Collections.emptyList();
+		}
+		
+		NodeId localNodeId = cluster.getLocalNodeId();
+		List<NodeId> nodeIds = new ArrayList<>(roomNodes.size());
+		
+		for (NodeId nodeId : roomNodes) {
+			if (!nodeId.equals(localNodeId)) {
+				nodeIds.add(nodeId);
+			}
+		}
+		
+		return nodeIds;
+	}
+
+	/**
+	 * Sends a message to the other nodes that have occupants in a room.
+	 * 
+	 * @param serviceSubDomain
+	 * @param roomId
+	 * @param message
+	 */
+	public void sendToInterestedNodes(String serviceSubDomain, String roomId, Object message) {
+		List<NodeId> nodeIds = getInterestedNodes(serviceSubDomain, roomId);
+		
+		if (!nodeIds.isEmpty()) {
+			cluster.sendMessage(nodeIds, message);
+		}
+	}
+
+	/**
+	 * Records that the first occupant of a room joined on this node, or that the last one left it, and sends it to 
+	 * the rest of the cluster.
+	 * 
+	 * @param serviceSubDomain
+	 * @param roomId
+	 * @param interested
+	 */
+	public synchronized void publishInterest(String serviceSubDomain, String roomId, boolean interested) {
+		updateInterest(new KixmppJid(roomId, serviceSubDomain), cluster.getLocalNodeId(), interested);
+		cluster.sendMessageToAll(new RoomInterestUpdate(serviceSubDomain, roomId, interested), false);
+	}
+
+	/**
+	 * Records that another node got its first occupant in a room or lost its last one.
+	 * 
+	 * @param senderId
+	 * @param update
+	 */
+	public synchronized void receive(NodeId senderId, RoomInterestUpdate update) {
+		if (nodes.contains(senderId)) {
+			updateInterest(new KixmppJid(update.getRoomId(), update.getServiceSubDomain()), senderId, update.isInterested());
+		}
+	}
+
+	/**
+	 * Records the join or leave of a local occupant and sends it to the rest of the cluster. Both happen under the 
+	 * lock a snapshot is taken with, so a node never gets a snapshot that is older than a change sent before it.
+	 * 
+	 * @param presence
+	 */
+	public synchronized void publish(RoomPresenceBroadcastTask presence) {
+		update(cluster.getLocalNodeId(), presence);
+		cluster.sendMessageToAll(presence, false);
+	}
+
+	/**
+	 * Records the join or leave of an occupant of another node.
+	 * 
+	 * @param senderId
+	 * @param presence
+	 */
+	public synchronized void receive(NodeId senderId, RoomPresenceBroadcastTask presence) {
+		if (nodes.contains(senderId)) {
+			update(senderId, presence);
+		}
+	}
+
+	/**
+	 * Replaces everything known about the occupants of another node.
+	 * 
+	 * @param senderId
+	 * @param snapshot
+	 */
+	public synchronized void receive(NodeId senderId, RoomOccupancySnapshot snapshot) {
+		if (!isClusterNode(senderId)) {
+			// a node that has left already, its occupants are gone
+			return;
+		}
+		
+		nodes.add(senderId);
+		remove(senderId);
+		
+		if (snapshot.getRooms() == null) {
+			return;
+		}
+		
+		for (RoomOccupants room : snapshot.getRooms()) {
+			KixmppJid roomKey = new KixmppJid(room.getRoomId(), room.getServiceSubDomain());
+			
+			updateInterest(roomKey, senderId, true);
+			
+			if (room.getNicknames() != null) {
+				for (String nickname : room.getNicknames()) {
+					add(roomKey, senderId, nickname);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the occupants of this node to a node that joined the cluster.
+	 * 
+	 * @param nodeId
+	 */
+	public synchronized void nodeJoined(NodeId nodeId) {
+		NodeId localNodeId = cluster.getLocalNodeId();
+		
+		if (localNodeId.equals(nodeId)) {
+			return;
+		}
+		
+		// every room with local occupants, with their nicknames if it has presence enabled
+		Map<KixmppJid, List<String>> localRooms = new HashMap<>();
+		
+		for (Map.Entry<KixmppJid, Set<NodeId>> room : interests.entrySet()) {
+			if (room.getValue().contains(localNodeId)) {
+				localRooms.put(room.getKey(), new ArrayList<String>());
+			}
+		}
+		
+		for (Map.Entry<KixmppJid, ConcurrentMap<NodeId, Set<String>>> room : rooms.entrySet()) {
+			Set<String> nicknames = room.getValue().get(localNodeId);
+			
+			if (nicknames != null) {
+				localRooms.put(room.getKey(), new ArrayList<>(nicknames));
+			}
+		}
+		
+		RoomOccupancySnapshot snapshot = new RoomOccupancySnapshot();
+		
+		for (Map.Entry<KixmppJid, List<String>> room : localRooms.entrySet()) {
+			snapshot.addRoom(room.getKey().getDomain(), room.getKey().getNode(), room.getValue());
+		}
+		
+		cluster.sendMessage(nodeId, snapshot);
+	}
+
+	/**
+	 * Forgets the occupants of a node that left the cluster.
+	 * 
+	 * @param nodeId
+	 */
+	public synchronized void nodeLeft(NodeId nodeId) {
+		nodes.remove(nodeId);
+		remove(nodeId);
+	}
+
+	private boolean isClusterNode(NodeId nodeId) {
+		for (Node node : cluster.getNodes()) {
+			if (nodeId.equals(node.getId())) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
+	private void update(NodeId nodeId, RoomPresenceBroadcastTask presence) {
+		KixmppJid roomKey = new KixmppJid(presence.getRoomId(), presence.getServiceSubDomain());
+		String nickname = presence.getFromRoomJid().getResource();
+		
+		if ("unavailable".equals(presence.getType())) {
+			Map<NodeId, Set<String>> roomNodes = rooms.get(roomKey);
+			
+			if (roomNodes != null) {
+				Set<String> nicknames = roomNodes.get(nodeId);
+				
+				if (nicknames != null && nicknames.remove(nickname) && nicknames.isEmpty()) {
+					roomNodes.remove(nodeId);
+					
+					if (roomNodes.isEmpty()) {
+						rooms.remove(roomKey);
+					}
+				}
+			}
+		} else {
+			add(roomKey, nodeId, nickname);
+		}
+	}
+
+	private void add(KixmppJid roomKey, NodeId nodeId, String nickname) {
+		ConcurrentMap<NodeId, Set<String>> roomNodes = rooms.get(roomKey);
+		
+		if (roomNodes == null) {
+			roomNodes = new ConcurrentHashMap<>();
+			rooms.put(roomKey, roomNodes);
+		}
+		
+		Set<String> nicknames = roomNodes.get(nodeId);
+		
+		if (nicknames == null) {
+			nicknames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			roomNodes.put(nodeId, nicknames);
+		}
+		
+		nicknames.add(nickname);
+	}
+
+	private void updateInterest(KixmppJid roomKey, NodeId nodeId, boolean interested) {
+		Set<NodeId> roomNodes = interests.get(roomKey);
+		
+		if (interested) {
+			if (roomNodes == null) {
+				roomNodes = Collections.newSetFromMap(new ConcurrentHashMap<NodeId, Boolean>());
+				interests.put(roomKey, roomNodes);
+			}
+			
+			roomNodes.add(nodeId);
+		} else if (roomNodes != null && roomNodes.remove(nodeId) && roomNodes.isEmpty()) {
+			interests.remove(roomKey);
+		}
+	}
+
+	private void remove(NodeId nodeId) {
+		for (Map.Entry<KixmppJid, ConcurrentMap<NodeId, Set<String>>> room : rooms.entrySet()) {
+			if (room.getValue().remove(nodeId) != null && room.getValue().isEmpty()) {
+				rooms.remove(room.getKey());
+			}
+		}
+		
+		for (Map.Entry<KixmppJid, Set<NodeId>> room : interests.entrySet()) {
+			if (room.getValue().remove(nodeId) && room.getValue().isEmpty()) {
+				interests.remove(room.getKey());
+			}
+		}
+	}
+}
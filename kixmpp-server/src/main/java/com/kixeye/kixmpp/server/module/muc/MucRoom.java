@@ -21,42 +21,63 @@ package com.kixeye.kixmpp.server.module.muc;
  */
 
 import com.google.common.collect.Maps;
-import com.kixeye.kixmpp.server.cluster.message.GetMucRoomNicknamesRequest;
 import com.kixeye.kixmpp.server.cluster.message.RoomPresenceBroadcastTask;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
-import io.netty.util.concurrent.Promise;
+import org.fusesource.hawtdispatch.Task;
 import org.jdom2.Element;
 import org.jdom2.Namespace;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.date.XmppDateUtils;
 import com.kixeye.kixmpp.server.cluster.message.RoomBroadcastTask;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
 
 /**
  * A simple muc room.
+ * 
+ * <p>The state of the room is only changed from its queue in the event engine, see {@link #execute(Task)}, so the 
+ * methods that change it have to be called from there. Everyone else reads the {@link Occupants}, which are replaced 
+ * as a whole on every change.
  *
  * @author ebahtijaragic
  */
 public class MucRoom {
+    // broadcasts are written in the client namespace, so the same bytes fit TCP and WebSocket connections
+    private static final String CLIENT_NAMESPACE_URI = "jabber:client";
+    private static final Client[] NO_CLIENTS = new Client[0];
+
     private final MucService service;
     private final KixmppJid roomJid;
     private final MucKixmppServerModule mucModule;
     private final String roomId;
     private final MucRoomSettings settings;
 
+    // only touched from the room's queue
     private Map<KixmppJid, MucRole> jidRoles = new HashMap<>();
     private Map<KixmppJid, MucAffiliation> jidAffiliations = new HashMap<>();
     
     private Map<KixmppJid, String> nicknamesByBareJid = new HashMap<>();
-    private Map<String, User> usersByNickname = Maps.newConcurrentMap();
+    private Map<String, User> usersByNickname = new HashMap<>();
+
+    // what everyone else sees of the above
+    private volatile Occupants occupants = new Occupants(0, Collections.<KixmppJid, String>emptyMap(), Collections.<String, User>emptyMap());
+
+    // connections grouped by the event loop of their channel, a loop's list is only ever added to or removed from
+    private final ConcurrentMap<EventLoop, List<Client>> clientsByEventLoop = Maps.newConcurrentMap();
     
     /**
      * @param service
@@ -95,6 +116,18 @@ public class MucRoom {
         nicknamesByBareJid.put(jid, nickname);
         jidRoles.put(jid, role);
         jidAffiliations.put(jid, affiliation);
+        
+        updateOccupants();
+    }
+
+    /**
+     * Runs a task on the room's queue, where its state is changed. These tasks are never dropped when the queue is 
+     * overloaded, a lost leave would keep a closed connection in the room.
+     * 
+     * @param task
+     */
+    public void execute(Task task) {
+        service.getServer().getEventEngine().publishTask(roomJid, task, false);
     }
 
 	/**
@@ -128,7 +161,13 @@ public class MucRoom {
         boolean existingUser = true;
         if (user == null) {
             user = new User(nickname, jid.withoutResource());
+            boolean firstUser = usersByNickname.isEmpty();
             usersByNickname.put(nickname, user);
+            updateOccupants();
+            if (firstUser) {
+                // the other nodes start sending messages to the room here
+                mucModule.getOccupancy().publishInterest(service.getSubDomain(), roomId, true);
+            }
             MucRoomEventHandler handler = service.getServer().getMucRoomEventHandler();
             if (handler != null) {
                 handler.userAdded(this, user);
@@ -141,7 +180,7 @@ public class MucRoom {
         // xep-0045 7.2.3 begin
         // self presence
 	    KixmppJid fromRoomJid = roomJid.withResource(nickname);
-        channel.writeAndFlush(createPresence(fromRoomJid, jid, MucRole.Participant, null));
+        service.getServer().getEventEngine().write(channel, createPresence(fromRoomJid, jid, MucRole.Participant, null));
 
         if (settings.isPresenceEnabled() && !existingUser) {
             // Send presence from existing occupants to new occupant
@@ -161,7 +200,7 @@ public class MucRoom {
 
             message.addContent(new Element("subject").setText(settings.getSubject()));
 
-            channel.writeAndFlush(message);
+            service.getServer().getEventEngine().write(channel, message);
         }
 
 		if (mucStanza != null) {
@@ -232,47 +271,70 @@ public class MucRoom {
         channel.closeFuture().addListener(new CloseChannelListener(client));
     }
 
-	private void sendExistingOccupantsPresenceToNewOccupant(final User newUser, final Channel channel) {
-
-		final KixmppJid jid = channel.attr(BindKixmppServerModule.JID).get();
-		final MucRole role = jidRoles.get(jid.withoutResource());
+	private void sendExistingOccupantsPresenceToNewOccupant(User newUser, Channel channel) {
 
-		Promise<Set<String>> promise = service.getServer().createPromise();
-		promise.addListener(new GenericFutureListener<Future<Set<String>>>() {
-			@Override
-			public void operationComplete(Future<Set<String>> future) throws Exception {
-				if (future.isSuccess()) {
-					Set<String> nicknames = future.get();
-					for (String nickname : nicknames) {
+		KixmppJid jid = channel.attr(BindKixmppServerModule.JID).get();
+		MucRole role = jidRoles.get(jid.withoutResource());
 
-						if (newUser.getNickname().equals(nickname)) {
-							continue;
-						}
+		// the occupants on every node are replicated locally
+		Set<String> nicknames = mucModule.getOccupancy().getNicknames(service.getSubDomain(), roomId);
+		for (String nickname : nicknames) {
 
-						Element presence = createPresence(roomJid.withResource(nickname), jid, role, null);
-						channel.write(presence);
-					}
-					if (!nicknames.isEmpty()) {
-						channel.flush();
-					}
-				}
+			if (newUser.getNickname().equals(nickname)) {
+				continue;
 			}
-		});
-		service.getServer().sendMapReduceRequest(new GetMucRoomNicknamesRequest(service.getSubDomain(), roomId, jid, promise));
+
+			Element presence = createPresence(roomJid.withResource(nickname), jid, role, null);
+			channel.write(presence);
+		}
+		if (!nicknames.isEmpty()) {
+			channel.flush();
+		}
 	}
 
 	private void broadcastPresence(KixmppJid fromRoomJid, MucRole role, String type) {
 		receivePresence(fromRoomJid, role, type);
-		service.getServer().getCluster().sendMessageToAll(new RoomPresenceBroadcastTask(this, service.getSubDomain(), roomId, fromRoomJid, role, type), false);
+		mucModule.getOccupancy().publish(new RoomPresenceBroadcastTask(this, service.getSubDomain(), roomId, fromRoomJid, role, type));
 	}
 
 	public void receivePresence(KixmppJid fromRoomJid, MucRole role, String type) {
-		String nickname = fromRoomJid.getResource();
-		for (User user : usersByNickname.values()) {
-			if (user.getNickname().equals(nickname)) {
+		KixmppEncodedStanza presence = encodeBroadcast(createPresence(fromRoomJid, null, role, type));
+		try {
+			broadcast(Collections.singletonList(presence), fromRoomJid.getResource());
+		} finally {
+			presence.release();
+		}
+	}
+
+	/**
+	 * Writes a copy of every stanza to every connection in the room. Each event loop that has connections in the room 
+	 * gets a single task which writes to its own connections and flushes each of them once, so a broadcast is spread 
+	 * over all the loops. Broadcasts made one after the other reach every connection in that order, and the connections 
+	 * written to are the ones in the room when the broadcast is made.
+	 *
+	 * @param stanzas the stanzas to write, the caller still has to release its references
+	 * @param exceptNickname the occupant left out, or null
+	 */
+	public void broadcast(List<KixmppEncodedStanza> stanzas, String exceptNickname) {
+		for (Map.Entry<EventLoop, List<Client>> entry : clientsByEventLoop.entrySet()) {
+			Client[] clients = entry.getValue().toArray(NO_CLIENTS);
+
+			if (clients.length == 0) {
 				continue;
 			}
-			user.receivePresence(fromRoomJid, role, type);
+
+			for (KixmppEncodedStanza stanza : stanzas) {
+				stanza.retain();
+			}
+
+			EventLoopBroadcast broadcast = new EventLoopBroadcast(clients, stanzas, exceptNickname);
+
+			try {
+				entry.getKey().execute(broadcast);
+			} catch (RejectedExecutionException e) {
+				// the loop is shutting down along with its connections
+				broadcast.release();
+			}
 		}
 	}
 
@@ -372,12 +434,24 @@ public class MucRoom {
     }
 
 
+	/**
+	 * Serializes a stanza that is broadcast to occupants once for all of them, every copy only adds the address of its occupant.
+	 *
+	 * @param stanza
+	 * @return a stanza to release once the copies are written
+	 */
+	static KixmppEncodedStanza encodeBroadcast(Element stanza) {
+		return KixmppEncodedStanza.encode(stanza, CLIENT_NAMESPACE_URI, PooledByteBufAllocator.DEFAULT);
+	}
+
 	private Element createPresence(KixmppJid from, KixmppJid to, MucRole role, String type) {
 		Element presence = new Element("presence");
 
 		presence.setAttribute("id", UUID.randomUUID().toString());
 		presence.setAttribute("from", from.toString());
-		presence.setAttribute("to", to.toString());
+		if (to != null) {
+			presence.setAttribute("to", to.toString());
+		}
 
 		Element x = new Element("x", Namespace.getNamespace("http://jabber.org/protocol/muc#user"));
 
@@ -441,7 +515,8 @@ public class MucRoom {
 		receive(fromAddress, fromRoomJid, messages);
 
         if (sendToCluster) {
-            service.getServer().getCluster().sendMessageToAll(new RoomBroadcastTask(this, service.getSubDomain(), roomId, fromAddress, fromRoomJid, fromNickname, messages), false);
+            // only the nodes with occupants in the room
+            mucModule.getOccupancy().sendToInterestedNodes(service.getSubDomain(), roomId, new RoomBroadcastTask(this, service.getSubDomain(), roomId, fromAddress, fromRoomJid, fromNickname, messages));
         }
     }
 
@@ -470,7 +545,7 @@ public class MucRoom {
 
         message.addContent(x);
 
-        userChannelToInvite.writeAndFlush(message);
+        service.getServer().getEventEngine().write(userChannelToInvite, message);
     }
 
     /**
@@ -494,23 +569,38 @@ public class MucRoom {
         message.setAttribute("from", roomJid.getFullJid());
         message.addContent(x);
 
-        userChannelToInvite.writeAndFlush(message);
+        service.getServer().getEventEngine().write(userChannelToInvite, message);
+    }
+
+    public MucService getService() {
+        return service;
+    }
+
+    public MucRoomSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the current occupants, which do not change
+     */
+    public Occupants getOccupants() {
+        return occupants;
     }
 
     public List<User> getUsers() {
-        return Lists.newArrayList(usersByNickname.values());
+        return occupants.getUsers();
     }
 
     public User getUser(String nickname) {
-        return usersByNickname.get(nickname);
+        return occupants.getUser(nickname);
     }
 
     public User getUser(KixmppJid jid) {
-        String nickname = nicknamesByBareJid.get(jid.withoutResource());
-        if (nickname != null) {
-            return usersByNickname.get(nickname);
-        }
-        return null;
+        return occupants.getUser(jid);
+    }
+
+    private void updateOccupants() {
+        occupants = new Occupants(occupants.getVersion() + 1, nicknamesByBareJid, usersByNickname);
     }
 
     private class CloseChannelListener implements GenericFutureListener<Future<? super Void>> {
@@ -524,7 +614,56 @@ public class MucRoom {
         }
 
         public void operationComplete(Future<? super Void> future) throws Exception {
-            leave(client);
+            // closes complete on the channel's thread, the room only changes on its own
+            execute(new Task() {
+                public void run() {
+                    leave(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a broadcast to the connections of a single event loop, on that loop.
+     */
+    private final class EventLoopBroadcast implements Runnable {
+        private final Client[] clients;
+        private final List<KixmppEncodedStanza> stanzas;
+        private final String exceptNickname;
+
+        public EventLoopBroadcast(Client[] clients, List<KixmppEncodedStanza> stanzas, String exceptNickname) {
+            this.clients = clients;
+            this.stanzas = stanzas;
+            this.exceptNickname = exceptNickname;
+        }
+
+        public void run() {
+            try {
+                boolean addressBroadcasts = settings.isAddressBroadcasts();
+
+                for (Client client : clients) {
+                    if (client.getNickname().equals(exceptNickname)) {
+                        continue;
+                    }
+
+                    Channel channel = client.getChannel();
+                    String to = addressBroadcasts ? client.getAddress().getFullJid() : null;
+
+                    for (KixmppEncodedStanza stanza : stanzas) {
+                        channel.write(stanza.addressedTo(to));
+                    }
+
+                    channel.flush();
+                }
+            } finally {
+                release();
+            }
+        }
+
+        public void release() {
+            for (KixmppEncodedStanza stanza : stanzas) {
+                stanza.release();
+            }
         }
     }
 
@@ -535,7 +674,13 @@ public class MucRoom {
 	        if (settings.isPresenceEnabled()) {
 		        broadcastPresence(roomJid.withResource(user.getNickname()), role, "unavailable");
 	        }
-	        this.usersByNickname.remove(user.getNickname());
+	        if (this.usersByNickname.remove(user.getNickname()) != null) {
+		        updateOccupants();
+		        
+		        if (this.usersByNickname.isEmpty()) {
+			        mucModule.getOccupancy().publishInterest(service.getSubDomain(), roomId, false);
+		        }
+	        }
 	        this.jidAffiliations.remove(user.getBareJid());
 	        this.jidRoles.remove(user.getBareJid());
             MucRoomEventHandler handler = service.getServer().getMucRoomEventHandler();
@@ -548,6 +693,47 @@ public class MucRoom {
         }
     }
 
+    /**
+     * The users in a room at one point, each change to them makes a new version.
+     */
+    public static final class Occupants {
+        private final long version;
+        private final Map<KixmppJid, String> nicknamesByBareJid;
+        private final Map<String, User> usersByNickname;
+        private final List<User> users;
+
+        private Occupants(long version, Map<KixmppJid, String> nicknamesByBareJid, Map<String, User> usersByNickname) {
+            this.version = version;
+            this.nicknamesByBareJid = ImmutableMap.copyOf(nicknamesByBareJid);
+            this.usersByNickname = ImmutableMap.copyOf(usersByNickname);
+            this.users = ImmutableList.copyOf(usersByNickname.values());
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<User> getUsers() {
+            return users;
+        }
+
+        public User getUser(String nickname) {
+            return usersByNickname.get(nickname);
+        }
+
+        public User getUser(KixmppJid jid) {
+            String nickname = nicknamesByBareJid.get(jid.withoutResource());
+            if (nickname != null) {
+                return usersByNickname.get(nickname);
+            }
+            return null;
+        }
+
+        public int size() {
+            return users.size();
+        }
+    }
+
     /**
      * Represents a single user within a room. A User owns a unique nickname
      * within the room, but may have multiple Connections (1 per full JID)
@@ -555,8 +741,9 @@ public class MucRoom {
     public class User {
         private String nickname;
         private KixmppJid bareJid;
-        private Map<Channel, Client> clientsByChannel = new HashMap<>();
-        private Map<KixmppJid, Client> clientsByAddress = new HashMap<>();
+        // changed from the room's queue, read from anywhere
+        private Map<Channel, Client> clientsByChannel = Maps.newConcurrentMap();
+        private Map<KixmppJid, Client> clientsByAddress = Maps.newConcurrentMap();
 
         public User(String nickname, KixmppJid bareJid) {
             this.nickname = nickname;
@@ -566,8 +753,25 @@ public class MucRoom {
         public Client addClient(Client client) {
             Preconditions.checkNotNull(client.getAddress().getResource());
 
-            clientsByChannel.put(client.getChannel(), client);
-            clientsByAddress.put(client.getAddress(), client);
+            Client previousClient = clientsByChannel.put(client.getChannel(), client);
+            if (previousClient != null) {
+                removeFromEventLoop(previousClient);
+            }
+            previousClient = clientsByAddress.put(client.getAddress(), client);
+            if (previousClient != null) {
+                removeFromEventLoop(previousClient);
+            }
+
+            EventLoop eventLoop = client.getChannel().eventLoop();
+            List<Client> eventLoopClients = clientsByEventLoop.get(eventLoop);
+            if (eventLoopClients == null) {
+                eventLoopClients = new CopyOnWriteArrayList<>();
+                List<Client> existingClients = clientsByEventLoop.putIfAbsent(eventLoop, eventLoopClients);
+                if (existingClients != null) {
+                    eventLoopClients = existingClients;
+                }
+            }
+            eventLoopClients.add(client);
 
             return client;
         }
@@ -585,9 +789,23 @@ public class MucRoom {
         }
 
 	    public void receivePresence(KixmppJid fromRoomJid, MucRole role, String type) {
+		    KixmppEncodedStanza presence = encodeBroadcast(createPresence(fromRoomJid, null, role, type));
+		    try {
+			    receivePresence(presence);
+		    } finally {
+			    presence.release();
+		    }
+	    }
+
+	    /**
+	     * Writes a copy of a presence that was serialized for the whole room to every connection of this user.
+	     *
+	     * @param presence
+	     */
+	    public void receivePresence(KixmppEncodedStanza presence) {
 		    for (Client client : clientsByAddress.values()) {
-			    Element presence = createPresence(fromRoomJid, client.getAddress(), role, type);
-			    client.getChannel().writeAndFlush(presence);
+			    String to = settings.isAddressBroadcasts() ? client.getAddress().toString() : null;
+			    service.getServer().getEventEngine().write(client.getChannel(), presence.addressedTo(to));
 		    }
 	    }
 
@@ -598,6 +816,7 @@ public class MucRoom {
         public void removeClient(Client client) {
             clientsByAddress.remove(client.getAddress());
             clientsByChannel.remove(client.getChannel());
+            removeFromEventLoop(client);
         }
 
         public String getNickname() {
@@ -609,10 +828,20 @@ public class MucRoom {
         }
 
         public void removeClients() {
+            for (Client client : clientsByAddress.values()) {
+                removeFromEventLoop(client);
+            }
             clientsByAddress.clear();
             clientsByChannel.clear();
         }
 
+        private void removeFromEventLoop(Client client) {
+            List<Client> eventLoopClients = clientsByEventLoop.get(client.getChannel().eventLoop());
+            if (eventLoopClients != null) {
+                eventLoopClients.remove(client);
+            }
+        }
+
 
     }
 
@@ -29,6 +29,7 @@ public class MucRoomSettings {
 	private boolean presenceEnabled = false;
     private boolean isOpen = true;
     private String subject = null;
+    private boolean addressBroadcasts = true;
     
     public MucRoomSettings(boolean presenceEnabled, boolean isOpen, String subject) {
 	    this.presenceEnabled = presenceEnabled;
@@ -40,6 +41,7 @@ public class MucRoomSettings {
 	    this.presenceEnabled = settings.presenceEnabled;
     	this.isOpen = settings.isOpen;
     	this.subject = settings.subject;
+    	this.addressBroadcasts = settings.addressBroadcasts;
     }
     
 	public MucRoomSettings() {
@@ -62,4 +64,19 @@ public class MucRoomSettings {
     }
 
 	public boolean isPresenceEnabled() { return presenceEnabled; }
+
+	/**
+	 * Sets whether the messages and presences broadcast to occupants carry the address of each occupant. 
+	 * Without it every occupant is written the very same bytes, which clients that know which connection 
+	 * a stanza arrived on do not mind.
+	 *
+	 * @param addressBroadcasts
+	 */
+	public void setAddressBroadcasts(boolean addressBroadcasts) {
+		this.addressBroadcasts = addressBroadcasts;
+	}
+
+	public boolean isAddressBroadcasts() {
+		return addressBroadcasts;
+	}
 }
@@ -29,9 +29,11 @@ import org.jdom2.Element;
 
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
+import com.kixeye.kixmpp.handler.KixmppStanzaModelHandler;
 import com.kixeye.kixmpp.server.KixmppServer;
 import com.kixeye.kixmpp.server.module.KixmppServerModule;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
+import com.kixeye.kixmpp.stanza.KixmppStanza;
 
 /**
  * Handles presence features.
@@ -66,11 +68,11 @@ public class PresenceKixmppServerModule implements KixmppServerModule {
 		return null;
 	}
 	
-	private KixmppStanzaHandler PRESENCE_HANDLER = new KixmppStanzaHandler() {
+	private KixmppStanzaHandler PRESENCE_HANDLER = new KixmppStanzaModelHandler() {
 		/**
-		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
+		 * @see com.kixeye.kixmpp.handler.KixmppStanzaModelHandler#handle(io.netty.channel.Channel, com.kixeye.kixmpp.stanza.KixmppStanza)
 		 */
-		public void handle(Channel channel, Element stanza) {
+		public void handle(Channel channel, KixmppStanza stanza) {
 			if (stanza.getAttributeValue("to") == null) {
 				KixmppJid jid = channel.attr(BindKixmppServerModule.JID).get();
 				
@@ -87,7 +89,7 @@ public class PresenceKixmppServerModule implements KixmppServerModule {
 					presence.setAttribute("to", channel.attr(BindKixmppServerModule.JID).get().toString());
 				}
 				
-				channel.writeAndFlush(presence);
+				server.getEventEngine().write(channel, presence);
 			}
 		}
 	};
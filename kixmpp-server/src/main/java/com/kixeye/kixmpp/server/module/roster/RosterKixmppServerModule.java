@@ -64,14 +64,14 @@ public class RosterKixmppServerModule implements KixmppServerModule {
 	public void install(KixmppServer server) {
 		this.server = server;
 		
-		this.server.getEventEngine().registerGlobalStanzaHandler("iq", ROSTER_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("iq", null, "jabber:iq:roster", ROSTER_HANDLER);
 	}
 
 	/**
 	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
 	 */
 	public void uninstall(KixmppServer server) {
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", ROSTER_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", null, "jabber:iq:roster", ROSTER_HANDLER);
 	}
 
 	/**
@@ -101,59 +101,54 @@ public class RosterKixmppServerModule implements KixmppServerModule {
 		 */
 		public void handle(final Channel channel, final Element stanza) {
 
-			Element query = stanza.getChild("query", Namespace.getNamespace("jabber:iq:roster"));
-			
-			if (query != null) {
+			Promise<List<RosterItem>> promise = rosterProvider.getRoster(channel.attr(BindKixmppServerModule.JID).get());
 
-				Promise<List<RosterItem>> promise = rosterProvider.getRoster(channel.attr(BindKixmppServerModule.JID).get());
+			promise.addListener(new GenericFutureListener<Future<List<RosterItem>>>() {
 
-				promise.addListener(new GenericFutureListener<Future<List<RosterItem>>>() {
+				@Override
+				public void operationComplete(final Future<List<RosterItem>> future) throws Exception {
 
-					@Override
-					public void operationComplete(final Future<List<RosterItem>> future) throws Exception {
+					Element iq = new Element("iq");
+					iq.setAttribute("type", "result");
 
-						Element iq = new Element("iq");
-						iq.setAttribute("type", "result");
+					String id = stanza.getAttributeValue("id");
+					if (id != null) {
+						iq.setAttribute("id", id);
+					}
 
-						String id = stanza.getAttributeValue("id");
-						if (id != null) {
-							iq.setAttribute("id", id);
-						}
+					Element queryResult = new Element("query", Namespace.getNamespace("jabber:iq:roster"));
+
+					if (future.isSuccess()) {
+						final List<RosterItem> roster = future.getNow();
+						if (roster != null && !roster.isEmpty()) {
+							for (RosterItem rosterItem : roster) {
+								Element item = new Element("item", queryResult.getNamespace());
+
+								if (rosterItem.getJid() != null) {
+									item.setAttribute("jid", rosterItem.getJid().getFullJid());
+								}
+								if (rosterItem .getName() != null) {
+									item.setAttribute("name", rosterItem.getName());
+								}
+								if (rosterItem.getSubscription() != null) {
+									item.setAttribute("subscription", rosterItem.getSubscription().name());
+								}
+								if (rosterItem.getGroup() != null) {
+									Element group = new Element("group", item.getNamespace());
+									group.setText(rosterItem.getGroup());
 
-						Element queryResult = new Element("query", Namespace.getNamespace("jabber:iq:roster"));
-
-						if (future.isSuccess()) {
-							final List<RosterItem> roster = future.getNow();
-							if (roster != null && !roster.isEmpty()) {
-								for (RosterItem rosterItem : roster) {
-									Element item = new Element("item", queryResult.getNamespace());
-
-									if (rosterItem.getJid() != null) {
-										item.setAttribute("jid", rosterItem.getJid().getFullJid());
-									}
-									if (rosterItem .getName() != null) {
-										item.setAttribute("name", rosterItem.getName());
-									}
-									if (rosterItem.getSubscription() != null) {
-										item.setAttribute("subscription", rosterItem.getSubscription().name());
-									}
-									if (rosterItem.getGroup() != null) {
-										Element group = new Element("group", item.getNamespace());
-										group.setText(rosterItem.getGroup());
-
-										item.addContent(group);
-									}
-
-									queryResult.addContent(item);
+									item.addContent(group);
 								}
+
+								queryResult.addContent(item);
 							}
 						}
-						iq.addContent(queryResult);
-
-						channel.writeAndFlush(iq);
 					}
-				});
-			}
+					iq.addContent(queryResult);
+
+					channel.writeAndFlush(iq);
+				}
+			});
 		}
 	};
 }
@@ -28,7 +28,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import org.jdom2.Element;
-import org.jdom2.Namespace;
 
 import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
 import com.kixeye.kixmpp.server.KixmppServer;
@@ -50,14 +49,14 @@ public class SessionKixmppServerModule implements KixmppServerModule {
 	public void install(KixmppServer server) {
 		this.server = server;
 		
-		this.server.getEventEngine().registerGlobalStanzaHandler("iq", SESSION_HANDLER);
+		this.server.getEventEngine().registerGlobalStanzaHandler("iq", "set", "urn:ietf:params:xml:ns:xmpp-session", SESSION_HANDLER);
 	}
 
 	/**
 	 * @see com.kixeye.kixmpp.server.module.KixmppModule#uninstall(com.kixeye.kixmpp.server.KixmppServer)
 	 */
 	public void uninstall(KixmppServer server) {
-		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", SESSION_HANDLER);
+		this.server.getEventEngine().unregisterGlobalStanzaHandler("iq", "set", "urn:ietf:params:xml:ns:xmpp-session", SESSION_HANDLER);
 	}
 
 	/**
@@ -82,23 +81,19 @@ public class SessionKixmppServerModule implements KixmppServerModule {
 		 * @see com.kixeye.kixmpp.server.KixmppStanzaHandler#handle(io.netty.channel.Channel, org.jdom2.Element)
 		 */
 		public void handle(Channel channel, Element stanza) {
-			Element session = stanza.getChild("session", Namespace.getNamespace("urn:ietf:params:xml:ns:xmpp-session"));
+			channel.attr(IS_SESSION_ESTABLISHED).set(true);
 			
-			if (session != null) {
-				channel.attr(IS_SESSION_ESTABLISHED).set(true);
-				
-				Element iq = new Element("iq");
-				iq.setAttribute("type", "result");
-				
-				String id = stanza.getAttributeValue("id");
-				
-				if (id != null) {
-					iq.setAttribute("id", id);
-				}
-				
-				channel.writeAndFlush(iq);
-				server.getEventEngine().publishSessionStart(channel);
+			Element iq = new Element("iq");
+			iq.setAttribute("type", "result");
+			
+			String id = stanza.getAttributeValue("id");
+			
+			if (id != null) {
+				iq.setAttribute("id", id);
 			}
+			
+			server.getEventEngine().write(channel, iq);
+			server.getEventEngine().publishSessionStart(channel);
 		}
 	};
 }
@@ -35,6 +35,8 @@ import com.kixeye.kixmpp.p2p.node.NodeAddress;
 import com.kixeye.kixmpp.server.module.auth.InMemoryAuthenticationService;
 import com.kixeye.kixmpp.server.module.auth.SaslKixmppServerModule;
 import com.kixeye.kixmpp.server.module.muc.MucKixmppServerModule;
+import com.kixeye.kixmpp.server.module.muc.MucOccupancy;
+import com.kixeye.kixmpp.server.module.muc.MucRoomSettings;
 import com.kixeye.kixmpp.server.utils.SocketUtils;
 
 import io.netty.handler.ssl.SslContext;
@@ -47,6 +49,9 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLException;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +67,14 @@ public class ClusterTest {
             new NodeAddress(SERVER_A_CLUSTER.getHostName(), SERVER_A_CLUSTER.getPort()),
             new NodeAddress(SERVER_B_CLUSTER.getHostName(), SERVER_B_CLUSTER.getPort())
     );
+    public static final InetSocketAddress SERVER_C_SOCKET = new InetSocketAddress(SocketUtils.findAvailableTcpPort());
+    public static final InetSocketAddress SERVER_D_SOCKET = new InetSocketAddress(SocketUtils.findAvailableTcpPort());
+    public static final InetSocketAddress SERVER_C_CLUSTER = new InetSocketAddress("127.0.0.1",SocketUtils.findAvailableTcpPort());
+    public static final InetSocketAddress SERVER_D_CLUSTER = new InetSocketAddress("127.0.0.1",SocketUtils.findAvailableTcpPort());
+    public static final ConstNodeDiscovery occupancyDiscovery = new ConstNodeDiscovery(
+            new NodeAddress(SERVER_C_CLUSTER.getHostName(), SERVER_C_CLUSTER.getPort()),
+            new NodeAddress(SERVER_D_CLUSTER.getHostName(), SERVER_D_CLUSTER.getPort())
+    );
 
     @Test
     public void twoNodeCluster() throws Exception {
@@ -99,6 +112,58 @@ public class ClusterTest {
         serverB.stop();
     }
 
+    @Test
+    public void roomOccupancyReplicated() throws Exception {
+
+        // a node that is up before the other
+        KixmppServer serverC = new KixmppServer(SERVER_C_SOCKET, "testChat", SERVER_C_CLUSTER, occupancyDiscovery);
+        serverC.start().get();
+        serverC.module(MucKixmppServerModule.class).addService("conference").addRoom("someRoom", new MucRoomSettings(true, true, null));
+
+        TestClient clientC = new TestClient(serverC,"userC");
+        clientC.connect();
+
+        // learns of the occupants on it from a snapshot when it joins
+        KixmppServer serverD = new KixmppServer(SERVER_D_SOCKET, "testChat", SERVER_D_CLUSTER, occupancyDiscovery);
+        serverD.start().get();
+        serverD.module(MucKixmppServerModule.class).addService("conference").addRoom("someRoom", new MucRoomSettings(true, true, null));
+
+        waitForCluster(serverC.getCluster());
+        waitForCluster(serverD.getCluster());
+        waitForNicknames(serverD, "userC");
+
+        // and of later joins from the join itself
+        TestClient clientD = new TestClient(serverD,"userD");
+        clientD.connect();
+
+        waitForNicknames(serverC, "userC", "userD");
+        waitForNicknames(serverD, "userC", "userD");
+
+        // the occupants of a node that goes away are forgotten
+        serverC.stop();
+        waitForNicknames(serverD, "userD");
+
+        clientD.disconnect();
+        clientC.disconnect();
+        serverD.stop();
+    }
+
+    private void waitForNicknames(KixmppServer server, String... nicknames) throws InterruptedException {
+        Set<String> expected = new HashSet<>(Arrays.asList(nicknames));
+        MucOccupancy occupancy = server.module(MucKixmppServerModule.class).getOccupancy();
+
+        for (int i = 0; ; i++) {
+            if (expected.equals(occupancy.getNicknames("conference", "someroom"))) {
+                break;
+            }
+            if (i > 10) {
+                Assert.assertEquals(expected, occupancy.getNicknames("conference", "someroom"));
+                break;
+            }
+            Thread.sleep(500);
+        }
+    }
+
     private void waitForCluster(ClusterClient cluster) throws InterruptedException {
         for (int i = 0; ; i++) {
             if (cluster.getNodeCount() == 2) {
@@ -20,16 +20,20 @@ package com.kixeye.kixmpp.server;
  * #L%
  */
 
+import io.netty.channel.Channel;
 import io.netty.handler.ssl.SslContext;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.util.concurrent.Promise;
+import org.jdom2.Element;
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
@@ -42,7 +46,9 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.KixmppWebSocketDeflateCodec;
 import com.kixeye.kixmpp.client.KixmppClient;
+import com.kixeye.kixmpp.client.KixmppClientOption;
 import com.kixeye.kixmpp.client.module.chat.MessageKixmppClientModule;
 import com.kixeye.kixmpp.client.module.chat.MessageListener;
 import com.kixeye.kixmpp.client.module.muc.MucJoin;
@@ -52,9 +58,12 @@ import com.kixeye.kixmpp.client.module.muc.MucMessage;
 import com.kixeye.kixmpp.client.module.presence.Presence;
 import com.kixeye.kixmpp.client.module.presence.PresenceKixmppClientModule;
 import com.kixeye.kixmpp.client.module.presence.PresenceListener;
+import com.kixeye.kixmpp.handler.KixmppEventEngine;
+import com.kixeye.kixmpp.handler.KixmppStanzaHandler;
 import com.kixeye.kixmpp.p2p.discovery.ConstNodeDiscovery;
 import com.kixeye.kixmpp.server.module.auth.InMemoryAuthenticationService;
 import com.kixeye.kixmpp.server.module.auth.SaslKixmppServerModule;
+import com.kixeye.kixmpp.server.module.compression.CompressionKixmppServerModule;
 import com.kixeye.kixmpp.server.module.muc.MucHistory;
 import com.kixeye.kixmpp.server.module.muc.MucHistoryProvider;
 import com.kixeye.kixmpp.server.module.muc.MucKixmppServerModule;
@@ -122,6 +131,158 @@ public class KixmppServerTest {
 		}
 	}
 	
+	@Test
+	public void testPrivateMessageWithCompression() throws Exception {
+		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
+				new InetSocketAddress(SocketUtils.findAvailableTcpPort()), new ConstNodeDiscovery())) {
+			Assert.assertNotNull(server.start().get(2, TimeUnit.SECONDS));
+
+			((InMemoryAuthenticationService) server.module(SaslKixmppServerModule.class).getAuthenticationService()).addUser("testUser1", "testPassword");
+			((InMemoryAuthenticationService) server.module(SaslKixmppServerModule.class).getAuthenticationService()).addUser("testUser2", "testPassword");
+			server.module(CompressionKixmppServerModule.class).setCompressionLevel(9);
+			
+			try (KixmppClient client1 = new KixmppClient()) {
+				final LinkedBlockingQueue<com.kixeye.kixmpp.client.module.chat.Message> client1Messages = new LinkedBlockingQueue<>();
+
+				client1.clientOption(KixmppClientOption.ENABLE_COMPRESSION, true);
+				
+				Assert.assertNotNull(client1.connect("localhost",
+						server.getBindAddress().getPort(), server.getDomain())
+						.get(2, TimeUnit.SECONDS));
+
+				client1.module(MessageKixmppClientModule.class)
+						.addMessageListener(new MessageListener() {
+							public void handle(com.kixeye.kixmpp.client.module.chat.Message message) {
+								client1Messages.offer(message);
+							}
+						});
+
+				Assert.assertNotNull(client1.login("testUser1", "testPassword", "testResource").get(2, TimeUnit.SECONDS));
+				
+				Boolean isCompressed = server.getChannel(client1.getJid()).attr(CompressionKixmppServerModule.IS_COMPRESSED).get();
+				Assert.assertTrue(isCompressed != null && isCompressed);
+				
+				try (KixmppClient client2 = new KixmppClient()) {
+					final LinkedBlockingQueue<com.kixeye.kixmpp.client.module.chat.Message> client2Messages = new LinkedBlockingQueue<>();
+
+					Assert.assertNotNull(client2.connect("localhost",
+							server.getBindAddress().getPort(), server.getDomain())
+							.get(2, TimeUnit.SECONDS));
+
+					client2.module(MessageKixmppClientModule.class)
+							.addMessageListener(new MessageListener() {
+								public void handle(com.kixeye.kixmpp.client.module.chat.Message message) {
+									client2Messages.offer(message);
+								}
+							});
+
+					Assert.assertNotNull(client2.login("testUser2", "testPassword", "testResource").get(2, TimeUnit.SECONDS));
+					
+					Assert.assertNull(server.getChannel(client2.getJid()).attr(CompressionKixmppServerModule.IS_COMPRESSED).get());
+
+					// both directions of the compressed stream carry stanzas
+					for (int i = 0; i < 3; i++) {
+						String body = UUID.randomUUID().toString().replace("-", "");
+						
+						client2.module(MessageKixmppClientModule.class).sendMessage(client1.getJid(), body);
+						
+						com.kixeye.kixmpp.client.module.chat.Message client1Message = client1Messages.poll(2, TimeUnit.SECONDS);
+						
+						Assert.assertNotNull(client1Message);
+						Assert.assertEquals(body, client1Message.getBody());
+						
+						body = UUID.randomUUID().toString().replace("-", "");
+						
+						client1.module(MessageKixmppClientModule.class).sendMessage(client2.getJid(), body);
+						
+						com.kixeye.kixmpp.client.module.chat.Message client2Message = client2Messages.poll(2, TimeUnit.SECONDS);
+						
+						Assert.assertNotNull(client2Message);
+						Assert.assertEquals(body, client2Message.getBody());
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testPrivateMessageWithWebSocketCompression() throws Exception {
+		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
+				new InetSocketAddress(SocketUtils.findAvailableTcpPort()), new ConstNodeDiscovery())) {
+			server.enableWebSocket(new InetSocketAddress(SocketUtils.findAvailableTcpPort()));
+			server.setWebSocketCompression(true, 9, true);
+			
+			Assert.assertNotNull(server.start().get(2, TimeUnit.SECONDS));
+
+			((InMemoryAuthenticationService) server.module(SaslKixmppServerModule.class).getAuthenticationService()).addUser("testUser1", "testPassword");
+			((InMemoryAuthenticationService) server.module(SaslKixmppServerModule.class).getAuthenticationService()).addUser("testUser2", "testPassword");
+			
+			try (KixmppClient client1 = new KixmppClient(SslContext.newClientContext(), KixmppClient.Type.WEBSOCKET)) {
+				final LinkedBlockingQueue<com.kixeye.kixmpp.client.module.chat.Message> client1Messages = new LinkedBlockingQueue<>();
+
+				client1.clientOption(KixmppClientOption.ENABLE_COMPRESSION, true);
+				
+				Assert.assertNotNull(client1.connect("localhost",
+						server.getWebSocketAddress().getPort(), server.getDomain())
+						.get(2, TimeUnit.SECONDS));
+
+				client1.module(MessageKixmppClientModule.class)
+						.addMessageListener(new MessageListener() {
+							public void handle(com.kixeye.kixmpp.client.module.chat.Message message) {
+								client1Messages.offer(message);
+							}
+						});
+
+				Assert.assertNotNull(client1.login("testUser1", "testPassword", "testResource").get(2, TimeUnit.SECONDS));
+				
+				KixmppWebSocketDeflateCodec deflateCodec = server.getWebSocketDeflateCodec(server.getChannel(client1.getJid()));
+				Assert.assertNotNull(deflateCodec);
+				
+				try (KixmppClient client2 = new KixmppClient(SslContext.newClientContext(), KixmppClient.Type.WEBSOCKET)) {
+					final LinkedBlockingQueue<com.kixeye.kixmpp.client.module.chat.Message> client2Messages = new LinkedBlockingQueue<>();
+
+					Assert.assertNotNull(client2.connect("localhost",
+							server.getWebSocketAddress().getPort(), server.getDomain())
+							.get(2, TimeUnit.SECONDS));
+
+					client2.module(MessageKixmppClientModule.class)
+							.addMessageListener(new MessageListener() {
+								public void handle(com.kixeye.kixmpp.client.module.chat.Message message) {
+									client2Messages.offer(message);
+								}
+							});
+
+					Assert.assertNotNull(client2.login("testUser2", "testPassword", "testResource").get(2, TimeUnit.SECONDS));
+					
+					Assert.assertNull(server.getWebSocketDeflateCodec(server.getChannel(client2.getJid())));
+
+					for (int i = 0; i < 3; i++) {
+						String body = UUID.randomUUID().toString().replace("-", "");
+						
+						client2.module(MessageKixmppClientModule.class).sendMessage(client1.getJid(), body);
+						
+						com.kixeye.kixmpp.client.module.chat.Message client1Message = client1Messages.poll(2, TimeUnit.SECONDS);
+						
+						Assert.assertNotNull(client1Message);
+						Assert.assertEquals(body, client1Message.getBody());
+						
+						body = UUID.randomUUID().toString().replace("-", "");
+						
+						client1.module(MessageKixmppClientModule.class).sendMessage(client2.getJid(), body);
+						
+						com.kixeye.kixmpp.client.module.chat.Message client2Message = client2Messages.poll(2, TimeUnit.SECONDS);
+						
+						Assert.assertNotNull(client2Message);
+						Assert.assertEquals(body, client2Message.getBody());
+					}
+				}
+				
+				Assert.assertTrue(deflateCodec.getCompressedBytesRead() > 0);
+				Assert.assertTrue(deflateCodec.getCompressedBytesWritten() < deflateCodec.getUncompressedBytesWritten());
+			}
+		}
+	}
+	
 	@Test
 	public void testPrivateMessageUsingKixmpp() throws Exception {
 		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
@@ -198,6 +359,86 @@ public class KixmppServerTest {
 		}
 	}
 
+	@Test
+	public void testSlowConsumerSuspendsReads() throws Exception {
+		KixmppEventEngine eventEngine = new KixmppEventEngine();
+		eventEngine.setReadWatermarks(2, 8);
+		
+		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
+				new InetSocketAddress(SocketUtils.findAvailableTcpPort()), new ConstNodeDiscovery(), true, eventEngine)) {
+			Assert.assertNotNull(server.start().get(2, TimeUnit.SECONDS));
+
+			((InMemoryAuthenticationService) server.module(SaslKixmppServerModule.class).getAuthenticationService()).addUser("testUser", "testPassword");
+			
+			final CountDownLatch consumerLatch = new CountDownLatch(1);
+			final AtomicInteger handled = new AtomicInteger();
+			
+			// a consumer that does not keep up with what it is sent
+			server.getEventEngine().registerGlobalStanzaHandler("message", "headline", null, new KixmppStanzaHandler() {
+				public void handle(Channel channel, Element stanza) {
+					try {
+						consumerLatch.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					
+					handled.incrementAndGet();
+				}
+			});
+			
+			try (KixmppClient client = new KixmppClient()) {
+				Assert.assertNotNull(client.connect("localhost", server.getBindAddress().getPort(), server.getDomain()).get(2, TimeUnit.SECONDS));
+				Assert.assertNotNull(client.login("testUser", "testPassword", "testResource").get(2, TimeUnit.SECONDS));
+				
+				Channel channel = server.getChannel(client.getJid());
+				
+				// one at a time, so each message is read on its own
+				for (int i = 0; i < 8; i++) {
+					Assert.assertTrue(channel.config().isAutoRead());
+					
+					client.sendStanza(new Element("message").setAttribute("type", "headline").setAttribute("to", "sink@testchat").setAttribute("id", String.valueOf(i)));
+					
+					Assert.assertTrue(awaitPendingStanzas(eventEngine, channel, i + 1));
+				}
+				
+				Assert.assertFalse(channel.config().isAutoRead());
+				Assert.assertTrue(eventEngine.isReadSuspended(channel));
+				
+				for (int i = 8; i < 18; i++) {
+					client.sendStanza(new Element("message").setAttribute("type", "headline").setAttribute("to", "sink@testchat").setAttribute("id", String.valueOf(i)));
+				}
+				
+				// the rest wait in the socket rather than in the server
+				Thread.sleep(500);
+				
+				Assert.assertEquals(8, eventEngine.getPendingStanzaCount(channel));
+				
+				consumerLatch.countDown();
+				
+				for (int count = 0; count < 50 && handled.get() < 18; count++) {
+					Thread.sleep(100);
+				}
+				
+				Assert.assertEquals(18, handled.get());
+				Assert.assertTrue(channel.config().isAutoRead());
+				Assert.assertFalse(eventEngine.isReadSuspended(channel));
+				Assert.assertEquals(0, eventEngine.getPendingStanzaCount(channel));
+			}
+		}
+	}
+	
+	private static boolean awaitPendingStanzas(KixmppEventEngine eventEngine, Channel channel, int pendingStanzas) throws InterruptedException {
+		for (int count = 0; count < 200; count++) {
+			if (eventEngine.getPendingStanzaCount(channel) == pendingStanzas) {
+				return true;
+			}
+			
+			Thread.sleep(10);
+		}
+		
+		return false;
+	}
+	
 	@Test
 	public void testSimpleUsingKixmpp() throws Exception {
 		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
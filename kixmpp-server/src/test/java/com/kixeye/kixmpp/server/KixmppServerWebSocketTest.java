@@ -0,0 +1,176 @@
+package com.kixeye.kixmpp.server;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kixeye.kixmpp.KixmppWebSocketCodec;
+import com.kixeye.kixmpp.p2p.discovery.ConstNodeDiscovery;
+import com.kixeye.kixmpp.server.KixmppServer.WebSocketFrameHandler;
+import com.kixeye.kixmpp.server.KixmppServer.WebSocketServerHandler;
+import com.kixeye.kixmpp.server.utils.SocketUtils;
+
+/**
+ * Tests the WebSocket pipeline of the {@link KixmppServer}
+ */
+public class KixmppServerWebSocketTest {
+	private static final Logger logger = LoggerFactory.getLogger(KixmppServerWebSocketTest.class);
+	
+	private static final String UPGRADE_REQUEST = "GET / HTTP/1.1\r\n" +
+			"Host: localhost\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+			"Sec-WebSocket-Protocol: xmpp\r\n" +
+			"Sec-WebSocket-Version: 13\r\n\r\n";
+	
+	@Test
+	public void testHttpStagesLeaveAfterUpgrade() throws Exception {
+		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
+				new InetSocketAddress(SocketUtils.findAvailableTcpPort()), new ConstNodeDiscovery())) {
+			Assert.assertNotNull(server.start().get(2, TimeUnit.SECONDS));
+			
+			EmbeddedChannel channel = upgrade(server);
+			
+			Assert.assertNull(channel.pipeline().get(HttpServerCodec.class));
+			Assert.assertNull(channel.pipeline().get(HttpObjectAggregator.class));
+			Assert.assertNull(channel.pipeline().get(WebSocketServerHandler.class));
+			Assert.assertNotNull(channel.pipeline().get(WebSocketFrameHandler.class));
+			Assert.assertNotNull(channel.pipeline().get(KixmppWebSocketCodec.class));
+			
+			// control frames are still answered
+			channel.writeInbound(encode(new PingWebSocketFrame(Unpooled.copiedBuffer("ping", StandardCharsets.UTF_8))));
+			
+			ByteBuf pong = (ByteBuf)channel.readOutbound();
+			Assert.assertEquals(0x8A, pong.getUnsignedByte(0));
+			pong.release();
+			
+			channel.close();
+		}
+	}
+	
+	@Test
+	public void testPerConnectionMemory() throws Exception {
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		
+		int connectionCount = 1000;
+		
+		try (KixmppServer server = new KixmppServer(new InetSocketAddress(SocketUtils.findAvailableTcpPort()), "testChat",
+				new InetSocketAddress(SocketUtils.findAvailableTcpPort()), new ConstNodeDiscovery())) {
+			Assert.assertNotNull(server.start().get(2, TimeUnit.SECONDS));
+			
+			EmbeddedChannel[] channels = new EmbeddedChannel[connectionCount];
+			
+			long baseHeap = usedHeap(memoryBean);
+			
+			for (int i = 0; i < connectionCount; i++) {
+				channels[i] = open(server);
+			}
+			
+			long acceptedHeap = usedHeap(memoryBean);
+			
+			for (int i = 0; i < connectionCount; i++) {
+				channels[i].writeInbound(Unpooled.copiedBuffer(UPGRADE_REQUEST, StandardCharsets.US_ASCII));
+				
+				ByteBuf response = (ByteBuf)channels[i].readOutbound();
+				response.release();
+			}
+			
+			long upgradedHeap = usedHeap(memoryBean);
+			
+			logger.info("Per connection heap: [{}] bytes accepted, [{}] bytes upgraded", 
+					(acceptedHeap - baseHeap) / connectionCount, (upgradedHeap - baseHeap) / connectionCount);
+			
+			// the HTTP stages cost more than the frame codec that replaces them
+			Assert.assertTrue(upgradedHeap < acceptedHeap);
+			
+			for (EmbeddedChannel channel : channels) {
+				Assert.assertNull(channel.pipeline().get(HttpObjectAggregator.class));
+				
+				channel.close();
+			}
+		}
+	}
+	
+	private static EmbeddedChannel open(final KixmppServer server) {
+		return new EmbeddedChannel(new ChannelInitializer<Channel>() {
+			protected void initChannel(Channel ch) throws Exception {
+				server.initWebSocketPipeline(ch.pipeline());
+			}
+		});
+	}
+	
+	private static EmbeddedChannel upgrade(KixmppServer server) {
+		EmbeddedChannel channel = open(server);
+		
+		channel.writeInbound(Unpooled.copiedBuffer(UPGRADE_REQUEST, StandardCharsets.US_ASCII));
+		
+		ByteBuf response = (ByteBuf)channel.readOutbound();
+		Assert.assertTrue(response.toString(StandardCharsets.US_ASCII).startsWith("HTTP/1.1 101"));
+		response.release();
+		
+		return channel;
+	}
+	
+	private static ByteBuf encode(WebSocketFrame frame) {
+		EmbeddedChannel encoder = new EmbeddedChannel(new WebSocket13FrameEncoder(true));
+		encoder.writeOutbound(frame);
+		
+		ByteBuf encoded = Unpooled.buffer();
+		ByteBuf part;
+		
+		while ((part = (ByteBuf)encoder.readOutbound()) != null) {
+			encoded.writeBytes(part);
+			part.release();
+		}
+		
+		return encoded;
+	}
+	
+	private static long usedHeap(MemoryMXBean memoryBean) throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,405 @@
+package com.kixeye.kixmpp.server.module.muc;
+
+/*
+ * #%L
+ * KIXMPP
+ * %%
+ * Copyright (C) 2014 KIXEYE, Inc
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.kixeye.kixmpp.KixmppJid;
+import com.kixeye.kixmpp.p2p.ClusterClient;
+import com.kixeye.kixmpp.p2p.node.Node;
+import com.kixeye.kixmpp.p2p.node.NodeId;
+import com.kixeye.kixmpp.server.cluster.message.RoomInterestUpdate;
+import com.kixeye.kixmpp.server.cluster.message.RoomOccupancySnapshot;
+import com.kixeye.kixmpp.server.cluster.message.RoomPresenceBroadcastTask;
+
+public class MucOccupancyTest {
+	private static final String SERVICE = "conference";
+	private static final String[] ROOMS = {"room0", "room1", "room2"};
+
+	@Test
+	public void joinAndLeave_replicatedToOtherNodes() {
+		SimulatedCluster cluster = new SimulatedCluster(new Random(0));
+		SimulatedNode nodeA = cluster.startNode();
+		SimulatedNode nodeB = cluster.startNode();
+		cluster.deliverAll();
+
+		nodeA.join("room0", "a");
+		nodeB.join("room0", "b");
+		cluster.deliverAll();
+
+		Assert.assertEquals(set("a", "b"), nodeA.occupancy.getNicknames(SERVICE, "room0"));
+		Assert.assertEquals(set("a", "b"), nodeB.occupancy.getNicknames(SERVICE, "room0"));
+		Assert.assertEquals(set(), nodeB.occupancy.getNicknames(SERVICE, "room1"));
+
+		nodeA.leave("room0", "a");
+		cluster.deliverAll();
+
+		Assert.assertEquals(set("b"), nodeB.occupancy.getNicknames(SERVICE, "room0"));
+	}
+
+	@Test
+	public void nodeJoin_receivesSnapshot() {
+		SimulatedCluster cluster = new SimulatedCluster(new Random(0));
+		SimulatedNode nodeA = cluster.startNode();
+		nodeA.join("room0", "a");
+		nodeA.join("room1", "c");
+
+		SimulatedNode nodeB = cluster.startNode();
+		cluster.deliverAll();
+
+		Assert.assertEquals(set("a"), nodeB.occupancy.getNicknames(SERVICE, "room0"));
+		Assert.assertEquals(set("c"), nodeB.occupancy.getNicknames(SERVICE, "room1"));
+	}
+
+	@Test
+	public void nodeLeft_forgetsItsOccupants() {
+		SimulatedCluster cluster = new SimulatedCluster(new Random(0));
+		SimulatedNode nodeA = cluster.startNode();
+		SimulatedNode nodeB = cluster.startNode();
+		cluster.deliverAll();
+
+		nodeA.join("room0", "a");
+		nodeB.join("room0", "b");
+		cluster.deliverAll();
+
+		// a join still in flight when the node goes away is not applied afterwards
+		nodeA.join("room0", "late");
+		cluster.stopNode(nodeA);
+		cluster.deliverAll();
+
+		Assert.assertEquals(set("b"), nodeB.occupancy.getNicknames(SERVICE, "room0"));
+	}
+
+	@Test
+	public void interest_onlyNodesWithOccupants() {
+		SimulatedCluster cluster = new SimulatedCluster(new Random(0));
+		SimulatedNode nodeA = cluster.startNode();
+		SimulatedNode nodeB = cluster.startNode();
+		SimulatedNode nodeC = cluster.startNode();
+		cluster.deliverAll();
+
+		nodeA.join("room0", "a");
+		nodeA.join("room0", "a2");
+		nodeB.join("room1", "b");
+		cluster.deliverAll();
+
+		Assert.assertEquals(Arrays.asList(nodeA.id), nodeC.occupancy.getInterestedNodes(SERVICE, "room0"));
+		Assert.assertEquals(Arrays.asList(nodeA.id), nodeB.occupancy.getInterestedNodes(SERVICE, "room0"));
+		Assert.assertEquals(Arrays.asList(), nodeA.occupancy.getInterestedNodes(SERVICE, "room0"));
+		Assert.assertEquals(Arrays.asList(nodeB.id), nodeC.occupancy.getInterestedNodes(SERVICE, "room1"));
+
+		// only once the last occupant leaves
+		nodeA.leave("room0", "a");
+		cluster.deliverAll();
+		Assert.assertEquals(Arrays.asList(nodeA.id), nodeC.occupancy.getInterestedNodes(SERVICE, "room0"));
+
+		nodeA.leave("room0", "a2");
+		cluster.deliverAll();
+		Assert.assertEquals(Arrays.asList(), nodeC.occupancy.getInterestedNodes(SERVICE, "room0"));
+
+		// and a node that joins later learns it from the snapshot
+		SimulatedNode nodeD = cluster.startNode();
+		cluster.deliverAll();
+		Assert.assertEquals(Arrays.asList(nodeB.id), nodeD.occupancy.getInterestedNodes(SERVICE, "room1"));
+	}
+
+	@Test
+	public void churn_converges() {
+		for (int seed = 0; seed < 20; seed++) {
+			Random random = new Random(seed);
+			SimulatedCluster cluster = new SimulatedCluster(random);
+
+			for (int i = 0; i < 3; i++) {
+				cluster.startNode();
+			}
+
+			for (int step = 0; step < 2000; step++) {
+				int action = random.nextInt(20);
+
+				if (action < 8) {
+					cluster.randomNode().joinOrLeave();
+				} else if (action < 18) {
+					cluster.deliverOne();
+				} else if (action == 18 && cluster.nodes.size() > 1) {
+					cluster.stopNode(cluster.randomNode());
+				} else if (cluster.nodes.size() < 5) {
+					cluster.startNode();
+				}
+			}
+
+			cluster.deliverAll();
+
+			for (String room : ROOMS) {
+				Set<String> expected = new HashSet<>();
+				for (SimulatedNode node : cluster.nodes) {
+					expected.addAll(node.localNicknames(room));
+				}
+
+				for (SimulatedNode node : cluster.nodes) {
+					Assert.assertEquals("seed " + seed + ", " + room, expected, node.occupancy.getNicknames(SERVICE, room));
+
+					Set<NodeId> expectedNodes = new HashSet<>();
+					for (SimulatedNode other : cluster.nodes) {
+						if (other != node && !other.localNicknames(room).isEmpty()) {
+							expectedNodes.add(other.id);
+						}
+					}
+					Assert.assertEquals("seed " + seed + ", " + room, expectedNodes, new HashSet<>(node.occupancy.getInterestedNodes(SERVICE, room)));
+				}
+			}
+		}
+	}
+
+	private static Set<String> set(String... values) {
+		Set<String> set = new HashSet<>();
+		for (String value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+
+	/**
+	 * Nodes connected by ordered links, messages on a link are delivered in the order they are sent.
+	 */
+	private static class SimulatedCluster {
+		private final Random random;
+		private final List<SimulatedNode> nodes = new ArrayList<>();
+		private final List<Link> links = new ArrayList<>();
+		private long nextNodeId = 1;
+
+		public SimulatedCluster(Random random) {
+			this.random = random;
+		}
+
+		public SimulatedNode startNode() {
+			SimulatedNode node = new SimulatedNode(this, new NodeId(nextNodeId++));
+
+			for (SimulatedNode peer : nodes) {
+				links.add(new Link(peer, node));
+				links.add(new Link(node, peer));
+			}
+			nodes.add(node);
+
+			for (SimulatedNode peer : new ArrayList<>(nodes)) {
+				if (peer != node) {
+					peer.occupancy.nodeJoined(node.id);
+					node.occupancy.nodeJoined(peer.id);
+				}
+			}
+
+			return node;
+		}
+
+		public void stopNode(SimulatedNode node) {
+			nodes.remove(node);
+
+			// whatever the node sent before it went away may still be handled after the others saw it leave
+			List<Link> remaining = new ArrayList<>();
+			for (Link link : links) {
+				if (link.to != node) {
+					remaining.add(link);
+				}
+			}
+			links.clear();
+			links.addAll(remaining);
+
+			for (SimulatedNode peer : nodes) {
+				peer.occupancy.nodeLeft(node.id);
+			}
+		}
+
+		public SimulatedNode randomNode() {
+			return nodes.get(random.nextInt(nodes.size()));
+		}
+
+		public void deliverOne() {
+			List<Link> pending = new ArrayList<>();
+			for (Link link : links) {
+				if (!link.messages.isEmpty()) {
+					pending.add(link);
+				}
+			}
+
+			if (!pending.isEmpty()) {
+				pending.get(random.nextInt(pending.size())).deliver();
+			}
+		}
+
+		public void deliverAll() {
+			boolean delivered = true;
+			while (delivered) {
+				delivered = false;
+				for (Link link : links) {
+					while (!link.messages.isEmpty()) {
+						link.deliver();
+						delivered = true;
+					}
+				}
+			}
+		}
+
+		public void send(SimulatedNode from, NodeId to, Object message) {
+			for (Link link : links) {
+				if (link.from == from && link.to.id.equals(to)) {
+					link.messages.add(message);
+				}
+			}
+		}
+
+		public void sendToAll(SimulatedNode from, Object message) {
+			for (Link link : links) {
+				if (link.from == from && nodes.contains(from)) {
+					link.messages.add(message);
+				}
+			}
+		}
+
+		public List<Node> getNodes(SimulatedNode of) {
+			List<Node> clusterNodes = new ArrayList<>();
+			if (nodes.contains(of)) {
+				for (SimulatedNode node : nodes) {
+					Node clusterNode = Mockito.mock(Node.class);
+					Mockito.when(clusterNode.getId()).thenReturn(node.id);
+					clusterNodes.add(clusterNode);
+				}
+			}
+			return clusterNodes;
+		}
+	}
+
+	private static class Link {
+		private final SimulatedNode from;
+		private final SimulatedNode to;
+		private final Deque<Object> messages = new ArrayDeque<>();
+
+		public Link(SimulatedNode from, SimulatedNode to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public void deliver() {
+			Object message = messages.poll();
+
+			if (message instanceof RoomOccupancySnapshot) {
+				to.occupancy.receive(from.id, (RoomOccupancySnapshot)message);
+			} else if (message instanceof RoomInterestUpdate) {
+				to.occupancy.receive(from.id, (RoomInterestUpdate)message);
+			} else {
+				to.occupancy.receive(from.id, (RoomPresenceBroadcastTask)message);
+			}
+		}
+	}
+
+	private static class SimulatedNode {
+		private final SimulatedCluster cluster;
+		private final NodeId id;
+		private final MucOccupancy occupancy;
+		private final Map<String, Set<String>> localNicknames = new HashMap<>();
+		private int nextNickname;
+
+		public SimulatedNode(final SimulatedCluster cluster, NodeId id) {
+			this.cluster = cluster;
+			this.id = id;
+
+			ClusterClient clusterClient = Mockito.mock(ClusterClient.class);
+			Mockito.when(clusterClient.getLocalNodeId()).thenReturn(id);
+			Mockito.doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					cluster.sendToAll(SimulatedNode.this, invocation.getArguments()[0]);
+					return null;
+				}
+			}).when(clusterClient).sendMessageToAll(Mockito.any(), Mockito.anyBoolean());
+			Mockito.doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					cluster.send(SimulatedNode.this, (NodeId)invocation.getArguments()[0], invocation.getArguments()[1]);
+					return null;
+				}
+			}).when(clusterClient).sendMessage(Mockito.any(NodeId.class), Mockito.any());
+			Mockito.when(clusterClient.getNodes()).thenAnswer(new Answer<List<Node>>() {
+				public List<Node> answer(InvocationOnMock invocation) throws Throwable {
+					return cluster.getNodes(SimulatedNode.this);
+				}
+			});
+
+			this.occupancy = new MucOccupancy(clusterClient);
+		}
+
+		public Set<String> localNicknames(String room) {
+			Set<String> nicknames = localNicknames.get(room);
+			return nicknames == null ? new HashSet<String>() : nicknames;
+		}
+
+		public void joinOrLeave() {
+			String room = ROOMS[cluster.random.nextInt(ROOMS.length)];
+			List<String> nicknames = new ArrayList<>(localNicknames(room));
+
+			if (!nicknames.isEmpty() && cluster.random.nextBoolean()) {
+				leave(room, nicknames.get(cluster.random.nextInt(nicknames.size())));
+			} else {
+				join(room, "node" + id.id + "-" + nextNickname++);
+			}
+		}
+
+		public void join(String room, String nickname) {
+			Set<String> nicknames = localNicknames.get(room);
+			if (nicknames == null) {
+				nicknames = new HashSet<>();
+				localNicknames.put(room, nicknames);
+			}
+			if (nicknames.isEmpty()) {
+				occupancy.publishInterest(SERVICE, room, true);
+			}
+			nicknames.add(nickname);
+
+			occupancy.publish(presence(room, nickname, null));
+		}
+
+		public void leave(String room, String nickname) {
+			Set<String> nicknames = localNicknames.get(room);
+			nicknames.remove(nickname);
+
+			occupancy.publish(presence(room, nickname, "unavailable"));
+
+			if (nicknames.isEmpty()) {
+				occupancy.publishInterest(SERVICE, room, false);
+			}
+		}
+
+		private RoomPresenceBroadcastTask presence(String room, String nickname, String type) {
+			return new RoomPresenceBroadcastTask(null, SERVICE, room, new KixmppJid(room, SERVICE, nickname), MucRole.Participant, type);
+		}
+	}
+}
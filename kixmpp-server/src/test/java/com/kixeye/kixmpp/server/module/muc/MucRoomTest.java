@@ -20,18 +20,35 @@ package com.kixeye.kixmpp.server.module.muc;
  * #L%
  */
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.Attribute;
+import io.netty.util.ReferenceCountUtil;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fusesource.hawtdispatch.Task;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import com.kixeye.kixmpp.KixmppJid;
 import com.kixeye.kixmpp.handler.KixmppEventEngine;
+import com.kixeye.kixmpp.handler.KixmppEventEngine.OverloadPolicy;
 import com.kixeye.kixmpp.server.KixmppServer;
 import com.kixeye.kixmpp.server.module.bind.BindKixmppServerModule;
+import com.kixeye.kixmpp.server.module.muc.MucRoom.Occupants;
+import com.kixeye.kixmpp.stanza.KixmppEncodedStanza;
 
 /**
  * tests for {@link MucRoom}
@@ -44,6 +61,7 @@ public class MucRoomTest {
     public void joinRoom_firstTime_isOpen() {
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -55,6 +73,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(new KixmppJid("test.user", "testdomain", "testresource"));
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -67,6 +86,7 @@ public class MucRoomTest {
     public void joinRoom_multipleConnectionsSameUser_isOpen() {
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -79,6 +99,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(new KixmppJid("test.user", "testdomain", "testresource"));
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -91,6 +112,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute2.get()).thenReturn(new KixmppJid("test.user", "testdomain", "testresource2"));
         Mockito.when(channel2.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute2);
         Mockito.when(channel2.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel2.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         mucRoom.join(channel2, "nickname");
 
@@ -102,6 +124,7 @@ public class MucRoomTest {
     public void joinRoom_conflictingNickname_isOpen() {
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -113,6 +136,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(new KixmppJid("test.user1", "testdomain", "testresource"));
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -125,6 +149,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute2.get()).thenReturn(new KixmppJid("test.user2", "testdomain", "testresource"));
         Mockito.when(channel2.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute2);
         Mockito.when(channel2.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel2.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         try {
             mucRoom.join(channel2, "nickname");
@@ -138,6 +163,7 @@ public class MucRoomTest {
     public void joinRoom_firstTime_isNotOpen_noMemberAdded() {
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -149,6 +175,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(new KixmppJid("test.user", "testdomain", "testresource"));
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         mucRoom.join(channel, "nickname");
     }
@@ -157,6 +184,7 @@ public class MucRoomTest {
     public void joinRoom_firstTime_isNotOpen_memberAdded() {
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -169,6 +197,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(new KixmppJid("test.user", "testdomain", "testresource"));
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -190,6 +219,7 @@ public class MucRoomTest {
     public void removeUser_userInRoom(){
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -203,6 +233,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(clientJid);
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -219,6 +250,7 @@ public class MucRoomTest {
     public void removeAndRejoinUser(){
     	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
     			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
     	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
     			.thenReturn(server).getMock();
     	
@@ -232,6 +264,7 @@ public class MucRoomTest {
         Mockito.when(jidAttribute.get()).thenReturn(clientJid);
         Mockito.when(channel.attr(BindKixmppServerModule.JID)).thenReturn(jidAttribute);
         Mockito.when(channel.closeFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        Mockito.when(channel.eventLoop()).thenReturn(Mockito.mock(EventLoop.class));
 
         Assert.assertEquals(0, mucRoom.getUsers().size());
 
@@ -256,4 +289,411 @@ public class MucRoomTest {
 
         Assert.assertEquals(1, mucRoom.getUsers().size());
     }
+
+    @Test
+    public void receive_burstToManyOccupants_flushesEachChannelOnce() {
+    	final KixmppEventEngine eventEngine = new KixmppEventEngine();
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(eventEngine).getMock();
+    	mockMucModule(server);
+    	Mockito.when(server.getMucRoomEventHandler()).thenReturn(new DefaultMucRoomEventHandler());
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	
+        final KixmppJid roomJid = new KixmppJid("testnode", "testdomain");
+        final MucRoom mucRoom = new MucRoom(mucService, roomJid, new MucRoomSettings(false, true, null));
+        
+        final int occupantCount = 50;
+        final String[] messages = new String[20];
+        Arrays.fill(messages, "hello");
+        
+        final AtomicInteger flushes = new AtomicInteger();
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        
+        for (int i = 0; i < occupantCount; i++) {
+        	EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+        		public void flush(ChannelHandlerContext ctx) throws Exception {
+        			flushes.incrementAndGet();
+        			super.flush(ctx);
+        		}
+        	});
+        	channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user" + i, "testdomain", "testresource"));
+        	
+        	mucRoom.join(channel, "nickname" + i);
+        	channels.add(channel);
+        }
+        
+        final KixmppJid fromJid = new KixmppJid("test.user0", "testdomain", "testresource");
+        
+        // the burst is written by a task on the loop of every channel, which flushes it once
+        flushes.set(0);
+        mucRoom.receive(fromJid, roomJid.withResource("nickname0"), messages);
+        Assert.assertEquals(0, flushes.get());
+        runPendingTasks(channels);
+        Assert.assertEquals(occupantCount, flushes.get());
+        
+        // whether or not the burst comes from a task of the engine
+        flushes.set(0);
+        eventEngine.runTask(new Runnable() {
+        	public void run() {
+        		mucRoom.receive(fromJid, roomJid.withResource("nickname0"), messages);
+        	}
+        });
+        runPendingTasks(channels);
+        Assert.assertEquals(occupantCount, flushes.get());
+        
+        for (EmbeddedChannel channel : channels) {
+        	Assert.assertEquals(1 + 2 * messages.length, channel.outboundMessages().size());
+        	
+        	for (Object message : channel.outboundMessages()) {
+        		ReferenceCountUtil.release(message);
+        	}
+        }
+    }
+
+    @Test
+    public void receive_manyOccupants_serializesMessageOnce() {
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
+    	Mockito.when(server.getMucRoomEventHandler()).thenReturn(new DefaultMucRoomEventHandler());
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	
+        KixmppJid roomJid = new KixmppJid("testnode", "testdomain");
+        MucRoomSettings settings = new MucRoomSettings(false, true, null);
+        MucRoom mucRoom = new MucRoom(mucService, roomJid, settings);
+        
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        
+        for (int i = 0; i < 3; i++) {
+        	EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        	channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user" + i, "testdomain", "testresource"));
+        	
+        	mucRoom.join(channel, "nickname" + i);
+        	channel.readOutbound();
+        	channels.add(channel);
+        }
+        
+        mucRoom.receive(channels.get(0).attr(BindKixmppServerModule.JID).get(), roomJid.withResource("nickname0"), "hello");
+        runPendingTasks(channels);
+        
+        ByteBuf bytes = null;
+        
+        for (EmbeddedChannel channel : channels) {
+        	KixmppEncodedStanza message = (KixmppEncodedStanza)channel.readOutbound();
+        	
+        	// every occupant is written a copy of the same bytes, addressed to it
+        	if (bytes == null) {
+        		bytes = message.getBytes();
+        	}
+        	Assert.assertSame(bytes, message.getBytes());
+        	Assert.assertEquals(channel.attr(BindKixmppServerModule.JID).get().getFullJid(), message.getTo());
+        	Assert.assertEquals("hello", message.toStanza().getChildText("body", "jabber:client"));
+        	
+        	message.release();
+        }
+        
+        Assert.assertEquals(0, bytes.refCnt());
+        
+        // unless the room leaves the address out
+        settings = new MucRoomSettings(false, true, null);
+        settings.setAddressBroadcasts(false);
+        mucRoom = new MucRoom(mucService, roomJid, settings);
+        
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user0", "testdomain", "testresource"));
+        mucRoom.join(channel, "nickname0");
+        channel.readOutbound();
+        
+        mucRoom.receive(channel.attr(BindKixmppServerModule.JID).get(), roomJid.withResource("nickname0"), "hello");
+        channel.runPendingTasks();
+        
+        KixmppEncodedStanza message = (KixmppEncodedStanza)channel.readOutbound();
+        
+        Assert.assertNull(message.getTo());
+        Assert.assertNull(message.toStanza().getAttributeValue("to"));
+        
+        message.release();
+    }
+
+    @Test
+    public void receive_occupantsSharingEventLoop_writtenByOneTask() throws Exception {
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
+    	Mockito.when(server.getMucRoomEventHandler()).thenReturn(new DefaultMucRoomEventHandler());
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	
+        KixmppJid roomJid = new KixmppJid("testnode", "testdomain");
+        MucRoom mucRoom = new MucRoom(mucService, roomJid, new MucRoomSettings(false, true, null));
+        
+        // the occupants are served by the loop of this channel
+        final EmbeddedChannel loopChannel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        final AtomicInteger flushes = new AtomicInteger();
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        
+        for (int i = 0; i < 3; i++) {
+        	EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+        		public void flush(ChannelHandlerContext ctx) throws Exception {
+        			flushes.incrementAndGet();
+        			super.flush(ctx);
+        		}
+        	}) {
+        		public EventLoop eventLoop() {
+        			return loopChannel.eventLoop();
+        		}
+        	};
+        	channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user" + i, "testdomain", "testresource"));
+        	
+        	mucRoom.join(channel, "nickname" + i);
+        	channel.readOutbound();
+        	channels.add(channel);
+        }
+        
+        flushes.set(0);
+        mucRoom.receive(channels.get(0).attr(BindKixmppServerModule.JID).get(), roomJid.withResource("nickname0"), "hello", "world");
+        
+        // nothing is written by the loops of the channels themselves
+        runPendingTasks(channels);
+        Assert.assertEquals(0, flushes.get());
+        
+        // but by the one they share, both messages in order and a single flush each
+        loopChannel.runPendingTasks();
+        Assert.assertEquals(channels.size(), flushes.get());
+        
+        for (EmbeddedChannel channel : channels) {
+        	Assert.assertEquals(2, channel.outboundMessages().size());
+        	
+        	KixmppEncodedStanza message = (KixmppEncodedStanza)channel.readOutbound();
+        	Assert.assertEquals("hello", message.toStanza().getChildText("body", "jabber:client"));
+        	message.release();
+        	
+        	message = (KixmppEncodedStanza)channel.readOutbound();
+        	Assert.assertEquals("world", message.toStanza().getChildText("body", "jabber:client"));
+        	message.release();
+        }
+        
+        // a connection that leaves is no longer written to
+        channels.get(2).close();
+        awaitRoomQueue(mucRoom);
+        mucRoom.receive(channels.get(0).attr(BindKixmppServerModule.JID).get(), roomJid.withResource("nickname0"), "again");
+        loopChannel.runPendingTasks();
+        
+        Assert.assertTrue(channels.get(2).outboundMessages().isEmpty());
+        for (EmbeddedChannel channel : channels.subList(0, 2)) {
+        	KixmppEncodedStanza message = (KixmppEncodedStanza)channel.readOutbound();
+        	Assert.assertEquals("again", message.toStanza().getChildText("body", "jabber:client"));
+        	message.release();
+        }
+        
+        // and one that joins after a broadcast is made is not written that broadcast
+        mucRoom.receive(channels.get(0).attr(BindKixmppServerModule.JID).get(), roomJid.withResource("nickname0"), "late");
+        EmbeddedChannel joined = new EmbeddedChannel(new ChannelOutboundHandlerAdapter()) {
+    		public EventLoop eventLoop() {
+    			return loopChannel.eventLoop();
+    		}
+    	};
+    	joined.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user3", "testdomain", "testresource"));
+    	mucRoom.join(joined, "nickname3");
+        awaitRoomQueue(mucRoom);
+        loopChannel.runPendingTasks();
+        
+        Object written;
+        while ((written = joined.readOutbound()) != null) {
+        	if (written instanceof KixmppEncodedStanza) {
+        		KixmppEncodedStanza message = (KixmppEncodedStanza)written;
+        		Assert.assertNotEquals("late", message.toStanza().getChildText("body", "jabber:client"));
+        		message.release();
+        	}
+        }
+        for (EmbeddedChannel channel : channels.subList(0, 2)) {
+        	KixmppEncodedStanza message = (KixmppEncodedStanza)channel.readOutbound();
+        	Assert.assertEquals("late", message.toStanza().getChildText("body", "jabber:client"));
+        	message.release();
+        }
+    }
+
+    @Test
+    public void joinAndLeave_firstAndLastOccupant_publishInterest() throws Exception {
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
+    	MucOccupancy occupancy = server.module(MucKixmppServerModule.class).getOccupancy();
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	Mockito.when(mucService.getSubDomain()).thenReturn("conference");
+    	
+        KixmppJid roomJid = new KixmppJid("testnode", "conference.testdomain");
+        MucRoom mucRoom = new MucRoom(mucService, roomJid, new MucRoomSettings(false, true, null));
+        
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        
+        for (int i = 0; i < 2; i++) {
+        	EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        	channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user" + i, "testdomain", "testresource"));
+        	
+        	mucRoom.join(channel, "nickname" + i);
+        	channels.add(channel);
+        }
+        
+        Mockito.verify(occupancy, Mockito.times(1)).publishInterest("conference", "testnode", true);
+        
+        channels.get(0).close();
+        awaitRoomQueue(mucRoom);
+        Mockito.verify(occupancy, Mockito.never()).publishInterest("conference", "testnode", false);
+        
+        channels.get(1).close();
+        awaitRoomQueue(mucRoom);
+        Mockito.verify(occupancy, Mockito.times(1)).publishInterest("conference", "testnode", false);
+        
+        for (EmbeddedChannel channel : channels) {
+        	for (Object message : channel.outboundMessages()) {
+        		ReferenceCountUtil.release(message);
+        	}
+        }
+    }
+
+    @Test
+    public void churn_closedOnOtherThreads_noLostOccupants() throws Exception {
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(new KixmppEventEngine()).getMock();
+    	mockMucModule(server);
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	
+        KixmppJid roomJid = new KixmppJid("testnode", "testdomain");
+        final MucRoom mucRoom = new MucRoom(mucService, roomJid, new MucRoomSettings(false, true, null));
+        
+        final int channelCount = 200;
+        final List<EmbeddedChannel> channels = new ArrayList<>();
+        
+        for (int i = 0; i < channelCount; i++) {
+        	EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        	channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user" + i, "testdomain", "testresource"));
+        	channels.add(channel);
+        }
+        
+        // the first half is in the room
+        for (int i = 0; i < channelCount; i += 2) {
+        	join(mucRoom, channels.get(i), "nickname" + i);
+        }
+        awaitRoomQueue(mucRoom);
+        
+        Occupants before = mucRoom.getOccupants();
+        Assert.assertEquals(channelCount / 2, before.size());
+        
+        // and leaves from another thread while the other half joins
+        Thread closer = new Thread() {
+        	public void run() {
+        		for (int i = 0; i < channelCount; i += 2) {
+        			channels.get(i).close();
+        		}
+        	}
+        };
+        closer.start();
+        
+        for (int i = 1; i < channelCount; i += 2) {
+        	join(mucRoom, channels.get(i), "nickname" + i);
+        }
+        
+        closer.join();
+        awaitRoomQueue(mucRoom);
+        
+        Occupants after = mucRoom.getOccupants();
+        Assert.assertEquals(channelCount / 2, after.size());
+        for (int i = 1; i < channelCount; i += 2) {
+        	Assert.assertNotNull(after.getUser("nickname" + i));
+        }
+        
+        // the changes made new versions, and the one read before did not change
+        Assert.assertTrue(after.getVersion() > before.getVersion());
+        Assert.assertEquals(channelCount / 2, before.size());
+        Assert.assertSame(after.getUsers(), mucRoom.getUsers());
+    }
+
+    @Test
+    public void leave_roomQueueOverloaded_notDropped() throws Exception {
+    	KixmppEventEngine eventEngine = new KixmppEventEngine();
+    	eventEngine.setQueueLimits(2, 0, OverloadPolicy.DROP_OLDEST);
+    	KixmppServer server = (KixmppServer)Mockito.when(Mockito.mock(KixmppServer.class).getEventEngine())
+    			.thenReturn(eventEngine).getMock();
+    	mockMucModule(server);
+    	MucService mucService = (MucService)Mockito.when(Mockito.mock(MucService.class).getServer())
+    			.thenReturn(server).getMock();
+    	
+        KixmppJid roomJid = new KixmppJid("testnode", "testdomain");
+        MucRoom mucRoom = new MucRoom(mucService, roomJid, new MucRoomSettings(false, true, null));
+        
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter());
+        channel.attr(BindKixmppServerModule.JID).set(new KixmppJid("test.user", "testdomain", "testresource"));
+        join(mucRoom, channel, "nickname");
+        awaitRoomQueue(mucRoom);
+        Assert.assertEquals(1, mucRoom.getOccupants().size());
+        
+        // hold the room's queue while it fills up with droppable work
+        final CountDownLatch blocked = new CountDownLatch(1);
+        mucRoom.execute(new Task() {
+        	public void run() {
+        		try {
+        			blocked.await(5, TimeUnit.SECONDS);
+        		} catch (InterruptedException e) {
+        			Thread.currentThread().interrupt();
+        		}
+        	}
+        });
+        
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+        	eventEngine.publishTask(roomJid, new Task() {
+        		public void run() {
+        			ran.incrementAndGet();
+        		}
+        	}, true);
+        }
+        
+        // the leave is queued behind them and outlives the overload
+        channel.close();
+        blocked.countDown();
+        awaitRoomQueue(mucRoom);
+        
+        Assert.assertEquals(3, eventEngine.getDroppedCount());
+        Assert.assertEquals(2, ran.get());
+        Assert.assertEquals(0, mucRoom.getOccupants().size());
+        
+        for (Object message : channel.outboundMessages()) {
+        	ReferenceCountUtil.release(message);
+        }
+    }
+
+    private static void join(final MucRoom mucRoom, final EmbeddedChannel channel, final String nickname) {
+    	mucRoom.execute(new Task() {
+    		public void run() {
+    			mucRoom.join(channel, nickname);
+    		}
+    	});
+    }
+
+    private static void awaitRoomQueue(MucRoom mucRoom) throws InterruptedException {
+    	final CountDownLatch latch = new CountDownLatch(1);
+    	mucRoom.execute(new Task() {
+    		public void run() {
+    			latch.countDown();
+    		}
+    	});
+    	Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void mockMucModule(KixmppServer server) {
+    	MucKixmppServerModule mucModule = Mockito.mock(MucKixmppServerModule.class);
+    	Mockito.when(mucModule.getOccupancy()).thenReturn(Mockito.mock(MucOccupancy.class));
+    	Mockito.when(server.module(MucKixmppServerModule.class)).thenReturn(mucModule);
+    }
+
+    private static void runPendingTasks(List<EmbeddedChannel> channels) {
+    	for (EmbeddedChannel channel : channels) {
+    		channel.runPendingTasks();
+    	}
+    }
 }